@@ -0,0 +1,145 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the integration of events into a {@link Backlog} that already contains a realistic number of open
+ * trajectories, and the computation of the cell keys.
+ *
+ * <p>The integration benchmarks integrate a batch of events per invocation and undo its effect on the trajectories
+ * after it, outside the measurement, so that the backlog does not grow along the run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class BacklogBenchmark {
+	private static final int BATCH = 10_000;
+
+	@Param({"100000", "1000000"})
+	public int openTrajectories;
+
+	private Fixtures.Entity[] entities;
+
+	private Backlog backlog;
+
+	private long nextSerial;
+
+	private final TransitionEvent[] batch = new TransitionEvent[BATCH];
+
+	/** The states whose keys are computed by {@link #indexOf()}. */
+	private EntityState[] states;
+
+	private int nextState = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		entities = Fixtures.entities(openTrajectories + BATCH, 2);
+		final var openEntities = new Fixtures.Entity[openTrajectories];
+		System.arraycopy(entities, 0, openEntities, 0, openTrajectories);
+		backlog = Fixtures.backlogWith(openEntities, 0.0, 3);
+		nextSerial = backlog.getLastEventArrivalSerialNumber();
+
+		states = new EntityState[4096];
+		for (int index = 0; index < states.length; ++index) {
+			states[index] = entities[index].state(index % Fixtures.STATUSES.length);
+		}
+	}
+
+	/** The creation events of entities that have no trajectory. */
+	@State(Scope.Thread)
+	public static class NewEntities {
+		@Setup(Level.Invocation)
+		public void prepare(final BacklogBenchmark benchmark) {
+			for (int index = 0; index < BATCH; ++index) {
+				benchmark.batch[index] = benchmark.entities[benchmark.openTrajectories + index].transition(-1, ++benchmark.nextSerial);
+			}
+		}
+
+		@TearDown(Level.Invocation)
+		public void undo(final BacklogBenchmark benchmark) {
+			for (TransitionEvent event : benchmark.batch) {
+				benchmark.backlog.discardTrajectory(event.getEntityId());
+				benchmark.backlog.cells.decrement(benchmark.backlog.indexOf(event.getNewState()), 1);
+			}
+		}
+	}
+
+	/** Non ultimate transitions of entities whose trajectory is open. */
+	@State(Scope.Thread)
+	public static class ExistingTrajectories {
+		private int nextEntity = 0;
+
+		@Setup(Level.Invocation)
+		public void prepare(final BacklogBenchmark benchmark) {
+			for (int index = 0; index < BATCH; ++index) {
+				final var entity = benchmark.entities[nextEntity];
+				nextEntity = (nextEntity + 1) % benchmark.openTrajectories;
+				final var trajectory = benchmark.backlog.getTrajectory(entity.id);
+				final var lastState = trajectory.newStateAt(trajectory.size() - 1);
+				// the open trajectories did not reach the status previous to the ultimate one, so this transition is not ultimate
+				benchmark.batch[index] = entity.transition(indexOfStatus(lastState.getStatus()), ++benchmark.nextSerial);
+			}
+		}
+
+		@TearDown(Level.Invocation)
+		public void undo(final BacklogBenchmark benchmark) {
+			for (TransitionEvent event : benchmark.batch) {
+				benchmark.backlog.removeLastEvent(event.getEntityId());
+				benchmark.backlog.cells.decrement(benchmark.backlog.indexOf(event.getNewState()), 1);
+				benchmark.backlog.cells.increment(benchmark.backlog.indexOf(event.getOldState()), 1);
+			}
+		}
+
+		private static int indexOfStatus(final String status) {
+			for (int step = 0; step < Fixtures.STATUSES.length; ++step) {
+				if (Fixtures.STATUSES[step].equals(status)) {
+					return step;
+				}
+			}
+			throw new IllegalArgumentException(status);
+		}
+	}
+
+	/** The integration of the first event of an entity, which creates its trajectory. */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void integrateNewEntity(final NewEntities newEntities) {
+		for (TransitionEvent event : batch) {
+			backlog.integrate(event);
+		}
+	}
+
+	/** The integration of a non ultimate event of an entity whose trajectory is open. */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void integrateExistingTrajectory(final ExistingTrajectories existingTrajectories) {
+		for (TransitionEvent event : batch) {
+			backlog.integrate(event);
+		}
+	}
+
+	@Benchmark
+	public void indexOf(final Blackhole blackhole) {
+		blackhole.consume(backlog.indexOf(states[nextState]));
+		nextState = (nextState + 1) & (states.length - 1);
+	}
+}
@@ -0,0 +1,22 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The entry point of the benchmarks jar. Accepts the same arguments as the JMH main class, and always adds the GC
+ * profiler so that the allocation rates are reported along with the times.
+ */
+public class BenchmarksRunner {
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+		final var options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
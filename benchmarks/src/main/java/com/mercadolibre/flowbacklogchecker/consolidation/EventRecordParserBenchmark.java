@@ -0,0 +1,73 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversion of the stored event records to {@link TransitionEvent}s.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EventRecordParserBenchmark {
+	private static final int RECORDS_COUNT = 4096;
+
+	private EventRecordParser parser;
+
+	private ParseContext parseContext;
+
+	private EventRecord[] records;
+
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		final ObjectMapper objectMapper = new Boot().objectMapper();
+		parser = new EventRecordParser(objectMapper);
+		parseContext = new ParseContext();
+		final var entities = Fixtures.entities(RECORDS_COUNT, 1);
+		records = new EventRecord[RECORDS_COUNT];
+		for (int index = 0; index < RECORDS_COUNT; ++index) {
+			final var entity = entities[index];
+			final int step = index % (Fixtures.STATUSES.length - 1);
+			records[index] = new EventRecord(
+					index, index + 1, Instant.EPOCH, entity.id, EntityType.outboundUnit.id, 1,
+					entity.stateJson(step + 1), step == 0 ? null : entity.stateJson(step)
+			);
+		}
+	}
+
+	private EventRecord nextRecord() {
+		final var record = records[next];
+		next = (next + 1) % RECORDS_COUNT;
+		return record;
+	}
+
+	/** The stateless parse done by the parsing threads of the {@link OrderedParsingPipeline}. */
+	@Benchmark
+	public TransitionEvent parse() throws IOException, EventRecordParser.NotSupportedStructureVersion {
+		return parser.parse(nextRecord());
+	}
+
+	/** The parse followed by the resolution of the order dependent fields. */
+	@Benchmark
+	public TransitionEvent parseAndResolve() throws IOException, EventRecordParser.NotSupportedStructureVersion {
+		return parser.parse(nextRecord(), parseContext);
+	}
+}
@@ -0,0 +1,120 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+
+/**
+ * Builds the data the benchmarks work on. The values are drawn from small realistic domains with a skewed
+ * distribution, so that the number of distinct cells is similar to the one of a production backlog.
+ */
+final class Fixtures {
+	static final String[] LOGISTIC_CENTERS = {"BRSP03", "BRSP01", "ARBA01", "MXCD01", "COBO01", "CLSC01"};
+	static final String[] WORKFLOWS = {"fbm-wms-outbound", "fbm-wms-transfer", "fbm-wms-withdrawals"};
+	static final String[] AREAS = {"MZ", "RK", "HV", "BL", "PW", "RS", "PB", "SO"};
+	/** The statuses of a regular trajectory, in order. The last one is ultimate. */
+	static final String[] STATUSES = {"PENDING", "TO_PICK", "PICKED", "TO_SORT", "SORTED", "TO_GROUP", "GROUPED", "TO_PACK", "PACKED", "OUT"};
+
+	static final Instant START = Instant.parse("2021-10-01T00:00:00Z");
+
+	static final long DEADLINES_COUNT = 72;
+
+	private Fixtures() {}
+
+	/** @return an index in [0, size) where the low indexes are much more likely than the high ones. */
+	static int skewed(final Random random, final int size) {
+		final double u = random.nextDouble();
+		return (int) (size * u * u * u);
+	}
+
+	/** The entity attributes that do not change along its trajectory. */
+	static class Entity {
+		final long id;
+		final String logisticCenter;
+		final String workflow;
+		final Timestamp dateIn;
+		final Timestamp deadline;
+		final int firstArea;
+
+		Entity(final long id, final Random random) {
+			this.id = id;
+			this.logisticCenter = LOGISTIC_CENTERS[skewed(random, LOGISTIC_CENTERS.length)];
+			this.workflow = WORKFLOWS[skewed(random, WORKFLOWS.length)];
+			this.dateIn = Timestamp.from(START.plus(random.nextInt(48), ChronoUnit.HOURS));
+			this.deadline = Timestamp.from(START.plus(skewed(random, (int) DEADLINES_COUNT), ChronoUnit.HOURS));
+			this.firstArea = skewed(random, AREAS.length);
+		}
+
+		/** @return the state of this entity at the specified step of its trajectory. */
+		EntityState state(final int step) {
+			return EntityType.OutboundUnitStateV0.of(
+					logisticCenter,
+					workflow,
+					STATUSES[step],
+					dateIn,
+					AREAS[(firstArea + step / 2) % AREAS.length],
+					deadline,
+					step == STATUSES.length - 1
+			);
+		}
+
+		/** @return the JSON of the state of this entity at the specified step of its trajectory, as stored by the app. */
+		String stateJson(final int step) {
+			return "{\"warehouse_id\":\"" + logisticCenter + "\","
+					+ "\"group_type\":\"" + workflow + "\","
+					+ "\"status\":\"" + STATUSES[step] + "\","
+					+ "\"date_created\":\"" + dateIn.toInstant() + "\","
+					+ "\"storage_id\":\"" + AREAS[(firstArea + step / 2) % AREAS.length] + "-0" + step + "-12-3\","
+					+ "\"estimated_time_departure\":\"" + deadline.toInstant() + "\","
+					+ "\"inbound_shipment_id\":" + (id * 7) + ","
+					+ "\"carrier_name\":\"Mercado Envios\","
+					+ "\"priority\":" + (id % 5) + "}";
+		}
+
+		/** @return the event of the transition from the specified step to the next one, or the creation if step is -1. */
+		TransitionEvent transition(final int step, final long arrivalSerialNumber) {
+			return new EventRecordParser.TransitionEventImpl(
+					arrivalSerialNumber,
+					arrivalSerialNumber,
+					START.plusMillis(arrivalSerialNumber),
+					id,
+					state(step + 1),
+					step < 0 ? null : state(step)
+			);
+		}
+	}
+
+	/** @return the specified number of entities, with consecutive ids starting at one. */
+	static Entity[] entities(final int count, final long seed) {
+		final var random = new Random(seed);
+		final var entities = new Entity[count];
+		for (int index = 0; index < count; ++index) {
+			entities[index] = new Entity(index + 1, random);
+		}
+		return entities;
+	}
+
+	/**
+	 * Builds a backlog whose open trajectories are the ones of the specified entities, each one advanced a random
+	 * number of steps without reaching the ultimate status.
+	 *
+	 * @param brokenRatio the proportion of the trajectories that miss a link.
+	 */
+	static Backlog backlogWith(final Entity[] entities, final double brokenRatio, final long seed) {
+		final var random = new Random(seed);
+		final var backlog = new Backlog(new PartitionsCatalog(), 0, null);
+		long serial = 0;
+		for (Entity entity : entities) {
+			final int steps = 1 + random.nextInt(STATUSES.length - 2);
+			// the step of the missing transition, or an unreachable one if the trajectory is not broken
+			final int missingStep = random.nextDouble() < brokenRatio && steps > 1 ? random.nextInt(steps - 1) : steps;
+			for (int step = -1; step < steps - 1; ++step) {
+				if (step != missingStep) {
+					backlog.integrate(entity.transition(step, ++serial));
+				}
+			}
+		}
+		return backlog;
+	}
+}
@@ -0,0 +1,81 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the grouping queries over a backlog with a realistic number of cells and open trajectories, some of them
+ * broken.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class QueriesBenchmark {
+
+	@Param({"100000", "1000000"})
+	public int openTrajectories;
+
+	@Param({"0.01"})
+	public double brokenRatio;
+
+	private Queries queries;
+
+	private Backlog.Trajectory.Comparator comparator;
+
+	@Setup
+	public void setup() {
+		final var backlog = Fixtures.backlogWith(Fixtures.entities(openTrajectories, 6), brokenRatio, 7);
+		backlog.registerRollup(0, 1, 3);
+		queries = new Queries(backlog);
+		comparator = Queries.buildStateComparator(0, 1, 2, 3, 4, 5);
+	}
+
+	/** The population by logistic center, workflow and status. */
+	@Benchmark
+	public Map<Queries.Key, Queries.IntAccum> cellBasedPopulationGrouped() {
+		return queries.cellBasedPopulationGrouped(coordinates -> true, content -> content.population > 0, 0, 1, 3);
+	}
+
+	/** The same population, read from its rollup. */
+	@Benchmark
+	public Map<Queries.Key, Queries.IntAccum> populationGroupedByRollup() {
+		return queries.populationGrouped(groupValues -> true, 0, 1, 3);
+	}
+
+	/** The same population, filtered and aggregated by the columnar kernels. */
+	@Benchmark
+	public Map<Queries.Key, Queries.IntAccum> columnarPopulationGrouped() {
+		return queries.columnarPopulationGrouped(
+				new CellColumns.Filter().whereContent((population, variation, accumulated) -> population > 0),
+				0, 1, 3
+		);
+	}
+
+	/** The healthy trajectories by logistic center, status and deadline. */
+	@Benchmark
+	public Map<Queries.Key, List<Backlog.Trajectory>> healthyTrajectoryGrouping() {
+		return queries.healthyTrajectoryGrouping(trajectory -> true, comparator, 0, 3, 5);
+	}
+
+	/** The broken trajectories by the last good link, as {@link Queries#genericA} does. */
+	@Benchmark
+	public Map<Queries.Key, List<Backlog.Trajectory>> brokenTrajectoriesGrouping() {
+		return queries.brokenTrajectoriesGrouping(brokenTrajectoryInfo -> true, comparator, true, 0, 1, 3, 5);
+	}
+}
@@ -0,0 +1,84 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Backlog.Trajectory#getLastState} on regular chains, on chains whose links arrived out of order, and
+ * on chains with a missing link.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TrajectoryBenchmark {
+
+	@Param({"4", "9"})
+	public int length;
+
+	private Backlog.Trajectory regular;
+
+	private Backlog.Trajectory outOfOrder;
+
+	private Backlog.Trajectory broken;
+
+	private Backlog.Trajectory.Comparator comparator;
+
+	@Setup
+	public void setup() {
+		final var entity = Fixtures.entities(1, 4)[0];
+		regular = new Backlog.Trajectory(new StateDictionary(), entity.id);
+		outOfOrder = new Backlog.Trajectory(new StateDictionary(), entity.id);
+		broken = new Backlog.Trajectory(new StateDictionary(), entity.id);
+		final var events = new ArrayList<TransitionEvent>();
+		for (int step = -1; step < length - 1; ++step) {
+			final var event = entity.transition(step, step + 2);
+			events.add(event);
+			regular.add(event);
+			if (step != length / 2) {
+				broken.add(event);
+			}
+		}
+		Collections.shuffle(events.subList(1, events.size()), new Random(5));
+		events.forEach(outOfOrder::add);
+		// the comparator used by the queries: all the partitions
+		comparator = Queries.buildStateComparator(0, 1, 2, 3, 4, 5);
+	}
+
+	@Benchmark
+	public Backlog.LastState regular() {
+		return regular.getLastState(comparator);
+	}
+
+	@Benchmark
+	public Backlog.LastState outOfOrder() {
+		return outOfOrder.getLastState(comparator);
+	}
+
+	@Benchmark
+	public Backlog.LastState broken() {
+		return broken.getLastState(comparator);
+	}
+
+	/** The last state according to the states equality, whose reconstruction is maintained as the events are added. */
+	@Benchmark
+	public Backlog.LastState brokenTracked() {
+		return broken.getLastState();
+	}
+}
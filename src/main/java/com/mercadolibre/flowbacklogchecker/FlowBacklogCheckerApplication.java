@@ -1,6 +1,7 @@
 package com.mercadolibre.flowbacklogchecker;
 
 import com.mercadolibre.flowbacklogchecker.consolidation.Boot;
+import com.mercadolibre.flowbacklogchecker.consolidation.SyntheticEventsGenerator;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 @SpringBootApplication
@@ -8,7 +9,21 @@ public class FlowBacklogCheckerApplication {
 
 	public static void main(String[] args) {
 		var boot = new Boot();
-		boot.start(Long.parseLong(args[0]));
+		if (args.length > 0 && args[0].equals("--synthetic")) {
+			// load test: --synthetic [open entities] [events count]
+			final var settings = new SyntheticEventsGenerator.Settings();
+			if (args.length > 1) {
+				settings.openEntities = Integer.parseInt(args[1]);
+			}
+			if (args.length > 2) {
+				settings.eventsCount = Long.parseLong(args[2]);
+			}
+			boot.startSynthetic(settings);
+		} else if (args.length > 0) {
+			boot.start(Long.parseLong(args[0]));
+		} else {
+			boot.start();
+		}
 	}
 
 }
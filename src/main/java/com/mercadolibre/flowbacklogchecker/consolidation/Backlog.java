@@ -7,15 +7,20 @@ import lombok.NoArgsConstructor;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.time.Instant;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Counts how many entities are in each of the discriminated state subsets, for all entities whose
@@ -39,10 +44,69 @@ public class Backlog {
 
 	public Instant lastEventArrivalDate;
 
-	public final Map<Coordinates, CellContent> cells;
+	public final CellStore cells;
 
+	/**
+	 * The open trajectories whose events are continuous in arrival order, which are the vast majority, stored off-heap.
+	 * See {@link TrajectoryArena}.
+	 */
+	public final TrajectoryArena continuousTrajectories;
+
+	/**
+	 * The open trajectories whose events are not continuous in arrival order, which keep on heap the state of the
+	 * reconstruction of their chain. A trajectory is moved here from {@link #continuousTrajectories} when it receives
+	 * its first event that does not link to the previous one.
+	 */
 	public final LongObjectHashMap<Trajectory> trajectoriesByEntity;
 
+	/** The dictionary of the states referenced by the trajectories. */
+	public final StateDictionary states = new StateDictionary();
+
+	/**
+	 * The cold tier: the open trajectories that were spilled to disk, which are neither in {@link
+	 * #continuousTrajectories} nor in {@link #trajectoriesByEntity}. Null if the tier is disabled. See {@link
+	 * #enableColdTier(ColdTrajectoryStore.Settings)}.
+	 */
+	private ColdTrajectoryStore coldTrajectories = null;
+
+	private ColdTrajectoryStore.Settings coldTierSettings = null;
+
+	/** The number of events integrated since the last sweep of the trajectories kept on heap. */
+	private int eventsSinceSweep = 0;
+
+	/** The history of the cells, or null if it is disabled. See {@link #enableCellHistory(CellHistory.Settings)}. */
+	private CellHistory cellHistory = null;
+
+	/** The log of the changes of the cells, or null if it is disabled. See {@link #enableCellChanges()}. */
+	private CellChanges cellChanges = null;
+
+	/** The registered rollups, updated with every change of the cells. See {@link #registerRollup(int...)}. */
+	private Rollup[] rollups = new Rollup[0];
+
+	/** The last published snapshot, or null if none was. See {@link #publishSnapshot()}. */
+	private volatile BacklogSnapshot latestSnapshot = null;
+
+	/** The open trajectories as of the last published snapshot, or null if they are not versioned. */
+	private BacklogSnapshot.TrajectoryTable snapshotTrajectories = null;
+
+	/**
+	 * The entities whose trajectory may have changed since the last published snapshot, as keys. Null if the
+	 * trajectories are not versioned.
+	 */
+	private LongLongHashMap touchedEntities = null;
+
+	/**
+	 * The trajectories of {@link #trajectoriesByEntity} as of the last checkpoint capture, or null if none was captured.
+	 * See {@link #checkpointTrajectories()}.
+	 */
+	private BacklogSnapshot.TrajectoryTable checkpointTrajectories = null;
+
+	/**
+	 * The entities whose trajectory may have changed since the last checkpoint capture, as keys. Null if none was
+	 * captured.
+	 */
+	private LongLongHashMap checkpointTouchedEntities = null;
+
 	/** the amount of entities that where created */
 	public int created = 0;
 	/** the amount of entities that where destroyed */
@@ -51,6 +115,13 @@ public class Backlog {
 	public int discardedEvents = 0;
 
 	public int irregularTrajectories = 0;
+
+	/**
+	 * The epoch millis of the greatest creation date of the states of the logistic center of this backlog that were parsed
+	 * up to the last integrated event, as given by {@link ParseContext#getLastDateCreated(String)}. Kept by the
+	 * checkpoints, so that the {@link ParseContext} of the restored backlog resumes where it was. Zero if unknown.
+	 */
+	public long lastDateCreated = 0;
 	/**
 	 * Creates an under construction {@link Backlog} designed to be completed, by means of the loadCell method, with all the cells of a photo of a previous backlog.
 	 *
@@ -69,8 +140,223 @@ public class Backlog {
 		this.lastEventArrivalSerialNumber = lastEventArrivalSerialNumber;
 		this.lastEventArrivalDate = lastEventArrivalDate;
 
-		this.cells = new HashMap<>(CELLS_HASH_MAP_INITIAL_CAPACITY);
-		this.trajectoriesByEntity = new LongObjectHashMap<>(65536);
+		this.cells = new CellStore(partitionsCatalog.getPartitions(), CELLS_HASH_MAP_INITIAL_CAPACITY);
+		this.continuousTrajectories = new TrajectoryArena(65536);
+		this.trajectoriesByEntity = new LongObjectHashMap<>(1024);
+	}
+
+	/**
+	 * Adds the content of a cell of a photo of a previous backlog to this instance.
+	 *
+	 * @param coordinates the coordinates of the cell, as given by {@link Cell#getCoordinates()}.
+	 * @param content the content of the cell.
+	 */
+	public void loadCell(final Object[] coordinates, final CellContent content) {
+		final long key = this.cells.keyOf(coordinates);
+		this.cells.add(key, content);
+		for (Rollup rollup : rollups) {
+			rollup.add(key, content.population);
+		}
+	}
+
+	/**
+	 * Registers the rollup of the population grouped by the specified partitions, if not registered yet. It is built from
+	 * the current cells and maintained incrementally afterwards, so that {@link Queries#populationGrouped} reads it
+	 * instead of scanning the cells.
+	 *
+	 * @param partitionOrdinals the ordinals of the partitions to group by, in the order the group values are given.
+	 * @return the registered rollup.
+	 */
+	public Rollup registerRollup(final int... partitionOrdinals) {
+		final Rollup registered = rollupOf(partitionOrdinals);
+		if (registered != null) {
+			return registered;
+		}
+		final var rollup = new Rollup(cells, partitionOrdinals);
+		rollups = Arrays.copyOf(rollups, rollups.length + 1);
+		rollups[rollups.length - 1] = rollup;
+		return rollup;
+	}
+
+	/** @return the registered rollup that groups by the specified partitions, in the specified order, or null. */
+	public Rollup rollupOf(final int... partitionOrdinals) {
+		for (Rollup rollup : rollups) {
+			if (rollup.groupsBy(partitionOrdinals)) {
+				return rollup;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Includes the open trajectories in the snapshots published from now on. The first publication copies all of them,
+	 * and the following ones only the trajectories of the entities touched since the previous one. See {@link
+	 * BacklogSnapshot}.
+	 */
+	public void enableTrajectorySnapshots() {
+		if (touchedEntities == null) {
+			touchedEntities = new LongLongHashMap(1024);
+			snapshotTrajectories = BacklogSnapshot.TrajectoryTable.of(trajectories());
+		}
+	}
+
+	/**
+	 * Publishes a snapshot of the current content of this backlog, which can be read by any thread, through {@link
+	 * #latestSnapshot()}, while this backlog keeps changing. Must be called by the thread that integrates the events.
+	 *
+	 * @return the published snapshot.
+	 */
+	public BacklogSnapshot publishSnapshot() {
+		if (touchedEntities != null && touchedEntities.size() > 0) {
+			snapshotTrajectories = snapshotTrajectories.with(touchedEntities, this::getTrajectory);
+			touchedEntities = new LongLongHashMap(1024);
+		}
+		final var snapshot = new BacklogSnapshot(this, rollups, snapshotTrajectories);
+		latestSnapshot = snapshot;
+		return snapshot;
+	}
+
+	/** @return the last published snapshot, or null if none was. May be called by any thread. */
+	public BacklogSnapshot latestSnapshot() {
+		return latestSnapshot;
+	}
+
+	/**
+	 * @return the images of the not continuous trajectories, which are copied only if touched since the previous call,
+	 *     like the ones of the snapshots. Used by {@link BacklogCheckpoint#capture(Backlog)}. Must be called by the
+	 *     thread that integrates the events.
+	 */
+	BacklogSnapshot.TrajectoryTable checkpointTrajectories() {
+		if (checkpointTouchedEntities == null) {
+			checkpointTrajectories = BacklogSnapshot.TrajectoryTable.of(trajectoriesByEntity.values().stream());
+		} else if (checkpointTouchedEntities.size() > 0) {
+			checkpointTrajectories = checkpointTrajectories.with(checkpointTouchedEntities, trajectoriesByEntity::get);
+		}
+		checkpointTouchedEntities = new LongLongHashMap(1024);
+		return checkpointTrajectories;
+	}
+
+	/** @return a bulk copy of the continuous trajectories. Must be called by the thread that integrates the events. */
+	TrajectoryArena.Image continuousTrajectoriesImage() {
+		return continuousTrajectories.image();
+	}
+
+	/**
+	 * @return a view of the cold tier that any thread can read, which must be closed; or null if the tier is disabled.
+	 *     Must be called by the thread that integrates the events.
+	 */
+	ColdTrajectoryStore.Image coldTrajectoriesImage() {
+		return coldTrajectories == null ? null : coldTrajectories.image();
+	}
+
+	/**
+	 * Records that the trajectory of the specified entity may change, if the trajectories are versioned or were
+	 * captured by a checkpoint.
+	 */
+	private void touch(final long entityId) {
+		if (touchedEntities != null) {
+			touchedEntities.put(entityId, 1);
+		}
+		if (checkpointTouchedEntities != null) {
+			checkpointTouchedEntities.put(entityId, 1);
+		}
+	}
+
+	/**
+	 * Enables the cold tier: from now on, the open trajectories that are not touched for the configured age, or the
+	 * least recently touched ones beyond the configured budget, are periodically spilled from memory to a {@link
+	 * ColdTrajectoryStore}. They are faulted back in when an event of their entity
+	 * arrives, and are included by {@link #trajectories()}.
+	 *
+	 * @throws IOException if the store could not be created.
+	 */
+	public void enableColdTier(final ColdTrajectoryStore.Settings settings) throws IOException {
+		assert coldTrajectories == null;
+		this.coldTrajectories = new ColdTrajectoryStore(settings.directory, settings.segmentSize);
+		this.coldTierSettings = settings;
+	}
+
+	/** Closes the cold tier, if enabled, deleting its files. The spilled trajectories are lost. */
+	public void closeColdTier() {
+		if (coldTrajectories != null) {
+			coldTrajectories.close();
+		}
+	}
+
+	/**
+	 * Enables the history of the cells: from now on, the changes of the cells are recorded to a {@link CellHistory}
+	 * from which the cells can be reconstructed as they were after any integrated event. Starts with a keyframe of the
+	 * current cells.
+	 *
+	 * @param settings the settings of this backlog's part of the history. See {@link
+	 *     CellHistory.Settings#forPart(long, String)}.
+	 * @throws IOException if the history could not be started.
+	 */
+	public void enableCellHistory(final CellHistory.Settings settings) throws IOException {
+		assert cellHistory == null;
+		this.cellHistory = new CellHistory(settings, cells, lastEventArrivalSerialNumber, lastEventArrivalDate);
+	}
+
+	/**
+	 * Enables the log of the changes of the cells, which {@link #drainCellChanges()} gives. Used by the shards of a
+	 * {@link ShardedBacklog}, whose cells are merged by replaying said changes.
+	 */
+	void enableCellChanges() {
+		if (cellChanges == null) {
+			cellChanges = new CellChanges();
+		}
+	}
+
+	/** @return the changes of the cells since the previous call. Must be called by the thread that integrates the events. */
+	CellChanges.Drained drainCellChanges() {
+		return cellChanges.drain();
+	}
+
+	/** Writes the buffered changes of the cells to the history, if enabled, so that the reconstruction sees them. */
+	public void flushCellHistory() {
+		if (cellHistory != null) {
+			cellHistory.flush();
+		}
+	}
+
+	/** Closes the history of the cells, if enabled. Its files are kept. */
+	public void closeCellHistory() {
+		if (cellHistory != null) {
+			cellHistory.close();
+		}
+	}
+
+	/** @return the number of open trajectories kept in memory, on heap or off-heap. */
+	public int hotTrajectoriesCount() {
+		return continuousTrajectories.size() + trajectoriesByEntity.size();
+	}
+
+	/** @return the number of open trajectories, the spilled ones included. */
+	public int openTrajectoriesCount() {
+		return hotTrajectoriesCount() + (coldTrajectories == null ? 0 : coldTrajectories.size());
+	}
+
+	/**
+	 * @return all the open trajectories: the not continuous ones, the continuous ones, which are copied from off-heap
+	 *     lazily, and the spilled ones, which are read from disk lazily and reference their states through a scratch
+	 *     dictionary. The stream must be consumed before the next event is integrated.
+	 */
+	public Stream<Trajectory> trajectories() {
+		final Stream<Trajectory> hot = Stream.concat(
+				trajectoriesByEntity.values().stream(),
+				Arrays.stream(continuousTrajectories.addresses()).mapToObj(this::continuousTrajectoryAt)
+		);
+		if (coldTrajectories == null || coldTrajectories.size() == 0) {
+			return hot;
+		}
+		return Stream.concat(
+				hot,
+				StreamSupport.stream(Spliterators.spliterator(
+						coldTrajectories.iterator(new StateDictionary()),
+						coldTrajectories.size(),
+						Spliterator.NONNULL
+				), false)
+		);
 	}
 
 	/**
@@ -106,43 +392,264 @@ public class Backlog {
 		this.lastEventArrivalSerialNumber = transitionEvent.getArrivalSerialNumber();
 		this.lastEventArrivalDate = transitionEvent.getArrivalDate();
 
-		var trajectory = trajectoriesByEntity.get(transitionEvent.getEntityId());
-		if (trajectory != null || transitionEvent.getOldState() == null) {
-			if (trajectory == null) {
-				trajectory = new Trajectory();
-				trajectoriesByEntity.put(transitionEvent.getEntityId(), trajectory);
+		final long entityId = transitionEvent.getEntityId();
+		touch(entityId);
+		var trajectory = trajectoriesByEntity.get(entityId);
+		long address = trajectory == null ? continuousTrajectories.addressOf(entityId) : TrajectoryArena.NONE;
+		if (trajectory == null && address == TrajectoryArena.NONE && coldTrajectories != null) {
+			final Trajectory faulted = coldTrajectories.take(entityId, states);
+			if (faulted != null) {
+				adopt(faulted);
+				trajectory = trajectoriesByEntity.get(entityId);
+				address = trajectory == null ? continuousTrajectories.addressOf(entityId) : TrajectoryArena.NONE;
+			}
+		}
+		if (trajectory != null || address != TrajectoryArena.NONE || transitionEvent.getOldState() == null) {
+			final int newStateId = states.acquire(transitionEvent.getNewState());
+			final int oldStateId = states.acquire(transitionEvent.getOldState());
+			if (address != TrajectoryArena.NONE
+					&& oldStateId != continuousTrajectories.newStateIdAt(address, continuousTrajectories.size(address) - 1)) {
+				trajectory = toDiscontinuous(address);
+			} else if (trajectory == null && address == TrajectoryArena.NONE) {
+				address = continuousTrajectories.create(entityId);
+			}
+			final long arrivalDate = Trajectory.epochNanosOf(transitionEvent.getArrivalDate());
+			if (trajectory != null) {
+				trajectory.append(transitionEvent.getArrivalSerialNumber(), transitionEvent.getEventId(), arrivalDate, newStateId, oldStateId);
+			} else {
+				address = continuousTrajectories.append(
+						address, transitionEvent.getArrivalSerialNumber(), transitionEvent.getEventId(), arrivalDate, newStateId, oldStateId);
 			}
-			trajectory.events.add(transitionEvent);
 
+			// both keys are resolved before the cells change, given a removed cell may lose its dictionary ids
 			final EntityState oldState = transitionEvent.getOldState();
+			final EntityState newState = transitionEvent.getNewState();
+			final long decrementedKey = oldState == null ? CellHistory.NO_KEY : indexOf(oldState);
+			final long incrementedKey = newState == null ? CellHistory.NO_KEY : indexOf(newState);
 			if (oldState != null) {
-				final Coordinates fromIndex = indexOf(oldState);
-				if (this.getCellContent(fromIndex).decrement(1)) {
-					this.cells.remove(fromIndex);
+				final long key = decrementedKey;
+				this.cells.decrement(key, 1);
+				for (Rollup rollup : rollups) {
+					rollup.add(key, -1);
 				}
 			} else {
 				created += 1;
 			}
 
-			final EntityState newState = transitionEvent.getNewState();
 			if (newState != null) {
-				final Coordinates toIndex = indexOf(newState);
-				this.getCellContent(toIndex).increment(1);
+				final long key = incrementedKey;
+				this.cells.increment(key, 1);
+				for (Rollup rollup : rollups) {
+					rollup.add(key, 1);
+				}
 
 				if (newState.isUltimate()) {
-					trajectory.isCompleted = true;
-					if (trajectory.getLastState(Object::equals) instanceof BrokenTrajectoryInfo) {
-						irregularTrajectories += 1;
-						log.warn("Irregular trajectory #{}: {}", irregularTrajectories, trajectory);
-					} else {
+					if (trajectory == null) {
+						// a continuous trajectory is never broken
 						terminatedSuccessfully += 1;
-						trajectoriesByEntity.remove(transitionEvent.getEntityId());
+						removeContinuousTrajectory(address);
+					} else {
+						trajectory.isCompleted = true;
+						if (trajectory.isBroken()) {
+							irregularTrajectories += 1;
+							log.warn("Irregular trajectory #{}: {}", irregularTrajectories, trajectory);
+						} else {
+							terminatedSuccessfully += 1;
+							trajectoriesByEntity.remove(entityId);
+							trajectory.release();
+						}
 					}
 				}
 			}
+			if (cellHistory != null) {
+				cellHistory.record(lastEventArrivalSerialNumber, lastEventArrivalDate, decrementedKey, incrementedKey);
+			}
+			if (cellChanges != null) {
+				cellChanges.record(lastEventArrivalSerialNumber, oldState, newState);
+			}
 		} else {
 			discardedEvents += 1;
 		}
+
+		if (coldTrajectories != null && ++eventsSinceSweep >= coldTierSettings.sweepInterval) {
+			eventsSinceSweep = 0;
+			spillColdTrajectories();
+		}
+	}
+
+	/**
+	 * Spills to the cold tier the trajectories whose last event arrived the configured age before the last integrated
+	 * event. If the remaining ones exceed the configured budget, the least recently touched are spilled too.
+	 */
+	private void spillColdTrajectories() {
+		if (lastEventArrivalDate == null) {
+			return;
+		}
+		long threshold = Trajectory.epochNanosOf(lastEventArrivalDate) - coldTierSettings.age.toNanos();
+		final long[] addresses = continuousTrajectories.addresses();
+		final int hotCount = hotTrajectoriesCount();
+		final int budget = coldTierSettings.hotTrajectoriesBudget;
+		if (hotCount > budget) {
+			final var lastTouches = new long[hotCount];
+			int index = 0;
+			for (long address : addresses) {
+				lastTouches[index] = lastTouchOf(address);
+				index += 1;
+			}
+			for (Trajectory trajectory : trajectoriesByEntity.values()) {
+				lastTouches[index] = trajectory.lastTouch();
+				index += 1;
+			}
+			Arrays.sort(lastTouches);
+			// down to nine tenths of the budget, so that the sorting is not repeated on every sweep
+			threshold = Math.max(threshold, lastTouches[hotCount - budget + budget / 10]);
+		}
+		int spilledCount = 0;
+		for (long address : addresses) {
+			if (lastTouchOf(address) < threshold) {
+				coldTrajectories.put(continuousTrajectoryAt(address));
+				removeContinuousTrajectory(address);
+				spilledCount += 1;
+			}
+		}
+		final var spilled = new ArrayList<Trajectory>();
+		for (Trajectory trajectory : trajectoriesByEntity.values()) {
+			if (trajectory.lastTouch() < threshold) {
+				spilled.add(trajectory);
+			}
+		}
+		for (Trajectory trajectory : spilled) {
+			touch(trajectory.entityId);
+			coldTrajectories.put(trajectory);
+			trajectoriesByEntity.remove(trajectory.entityId);
+			trajectory.release();
+		}
+		spilledCount += spilled.size();
+		if (spilledCount > 0) {
+			log.info(
+					"{} trajectories were spilled to the cold tier, which has {} trajectories in {} MB. {} remain in memory",
+					spilledCount, coldTrajectories.size(), coldTrajectories.diskBytes() >> 20, hotTrajectoriesCount()
+			);
+		}
+	}
+
+	private long lastTouchOf(final long address) {
+		return continuousTrajectories.arrivalDateAt(address, continuousTrajectories.size(address) - 1);
+	}
+
+	/**
+	 * Adds the specified trajectory, whose states are referenced through the dictionary of this backlog, to the open
+	 * ones. Its entity must have no open trajectory. If it is continuous, its records and its states references are
+	 * moved off-heap, and it must not be used afterwards.
+	 */
+	void adopt(final Trajectory trajectory) {
+		assert trajectory.states == states;
+		touch(trajectory.entityId);
+		if (trajectory.isContinuous() && !trajectory.isCompleted) {
+			long address = continuousTrajectories.create(trajectory.entityId);
+			for (int index = 0; index < trajectory.size(); ++index) {
+				address = continuousTrajectories.append(
+						address,
+						trajectory.arrivalSerialNumberAt(index),
+						trajectory.eventIdAt(index),
+						trajectory.arrivalDateNanosAt(index),
+						trajectory.newStateIdAt(index),
+						trajectory.oldStateIdAt(index)
+				);
+			}
+		} else {
+			trajectoriesByEntity.put(trajectory.entityId, trajectory);
+		}
+	}
+
+	/**
+	 * @return the open trajectory of the specified entity, which is a copy if it is continuous or spilled to the cold
+	 *     tier; or null if there is none. It must not be modified, and must be used before the next event is integrated.
+	 */
+	public Trajectory getTrajectory(final long entityId) {
+		final Trajectory trajectory = trajectoriesByEntity.get(entityId);
+		if (trajectory != null) {
+			return trajectory;
+		}
+		final long address = continuousTrajectories.addressOf(entityId);
+		if (address != TrajectoryArena.NONE) {
+			return continuousTrajectoryAt(address);
+		}
+		return coldTrajectories == null ? null : coldTrajectories.get(entityId, new StateDictionary());
+	}
+
+	/** Removes the open trajectory of the specified entity, if any, releasing its states. The cells are not affected. */
+	void discardTrajectory(final long entityId) {
+		touch(entityId);
+		final Trajectory trajectory = trajectoriesByEntity.remove(entityId);
+		if (trajectory != null) {
+			trajectory.release();
+			return;
+		}
+		final long address = continuousTrajectories.addressOf(entityId);
+		if (address != TrajectoryArena.NONE) {
+			removeContinuousTrajectory(address);
+		} else if (coldTrajectories != null) {
+			final Trajectory spilled = coldTrajectories.take(entityId, states);
+			if (spilled != null) {
+				spilled.release();
+			}
+		}
+	}
+
+	/**
+	 * Removes the last event of the open trajectory of the specified entity, which must be in memory, releasing its
+	 * states. The cells are not affected.
+	 */
+	void removeLastEvent(final long entityId) {
+		touch(entityId);
+		final Trajectory trajectory = trajectoriesByEntity.get(entityId);
+		if (trajectory != null) {
+			trajectory.removeLast();
+		} else {
+			final long address = continuousTrajectories.addressOf(entityId);
+			final int last = continuousTrajectories.size(address) - 1;
+			states.release(continuousTrajectories.newStateIdAt(address, last));
+			states.release(continuousTrajectories.oldStateIdAt(address, last));
+			continuousTrajectories.removeLast(address);
+		}
+	}
+
+	/**
+	 * @return a copy, on heap, of the continuous trajectory at the specified address. It borrows the states references
+	 *     of the original, so it must not be released nor used after the original changes.
+	 */
+	private Trajectory continuousTrajectoryAt(final long address) {
+		final var trajectory = new Trajectory(states, continuousTrajectories.entityIdOf(address));
+		final int size = continuousTrajectories.size(address);
+		for (int index = 0; index < size; ++index) {
+			trajectory.append(
+					continuousTrajectories.arrivalSerialNumberAt(address, index),
+					continuousTrajectories.eventIdAt(address, index),
+					continuousTrajectories.arrivalDateAt(address, index),
+					continuousTrajectories.newStateIdAt(address, index),
+					continuousTrajectories.oldStateIdAt(address, index)
+			);
+		}
+		return trajectory;
+	}
+
+	/** Moves the continuous trajectory at the specified address, and its states references, to the heap. */
+	private Trajectory toDiscontinuous(final long address) {
+		final Trajectory trajectory = continuousTrajectoryAt(address);
+		continuousTrajectories.remove(address);
+		trajectoriesByEntity.put(trajectory.entityId, trajectory);
+		return trajectory;
+	}
+
+	/** Removes the continuous trajectory at the specified address, releasing its states. */
+	private void removeContinuousTrajectory(final long address) {
+		final int size = continuousTrajectories.size(address);
+		for (int index = 0; index < size; ++index) {
+			states.release(continuousTrajectories.newStateIdAt(address, index));
+			states.release(continuousTrajectories.oldStateIdAt(address, index));
+		}
+		continuousTrajectories.remove(address);
 	}
 
 	/**
@@ -151,36 +658,20 @@ public class Backlog {
 	 *     traversed by an entity whose state transitions have been merged to this instance.
 	 */
 	public Stream<Cell> getCells() {
-		return this.cells.entrySet().stream()
-				.map(
-						e ->
-								new Cell(
-										e.getKey().indexValues,
-										e.getValue().population,
-										e.getValue().variation,
-										e.getValue().accumulatedPopulation));
+		return this.cells.toCells().stream();
 	}
 
 	/**
-	 * Finds out the {@link Coordinates} of the {@link Cell} corresponding to the specified {@link
-	 * EntityState}.
+	 * Finds out the packed key of the {@link Cell} corresponding to the specified {@link EntityState}. Use {@link
+	 * CellStore#coordinatesOf(long)} to decode it to the {@link Coordinates} values.
 	 */
-	public Coordinates indexOf(EntityState ite) {
-		final var partitionParts = new Object[partitionsCatalog.getPartitions().size()];
-		for (Partition partition : partitionsCatalog.getPartitions()) {
-			partitionParts[partition.getOrdinal()] = partition.discriminator().apply(ite);
-		}
-		return new Coordinates(partitionParts);
+	public long indexOf(EntityState ite) {
+		return this.cells.keyOf(ite);
 	}
 
-	/** Gives the {@link CellContent} pointed by the specified {@link Coordinates} */
+	/** Gives a copy of the {@link CellContent} pointed by the specified {@link Coordinates}, or null if the cell is empty. */
 	public CellContent getCellContent(Coordinates index) {
-		CellContent cell = this.cells.get(index);
-		if (cell == null) {
-			cell = new CellContent();
-			this.cells.put(index, cell);
-		}
-		return cell;
+		return this.cells.get(this.cells.findKeyOf(index.indexValues));
 	}
 
 	/**
@@ -275,47 +766,365 @@ public class Backlog {
 		final List<TransitionEvent> looseLinks;
 	}
 
+	/**
+	 * The events integrated for an entity, stored as compact primitive records: the arrival serial number, the event
+	 * id, the arrival date and the ids, given by the {@link StateDictionary} of the backlog, of the new and old states.
+	 * The {@link TransitionEvent}s are materialized on demand, by {@link #get(int)} and {@link #events()}, only when the
+	 * queries or the irregular trajectories log need them.
+	 *
+	 * <p>A trajectory holds a reference to each of the states of its events. They must be released, with {@link
+	 * #release()}, when the trajectory is discarded.
+	 *
+	 * <p>The open trajectories of a backlog are instances of this class only while their events are not continuous: the
+	 * continuous ones are stored off-heap by a {@link TrajectoryArena}, and copied to instances of this class on demand.
+	 *
+	 * <p>The continuity of the chain of events and the reconstruction done by {@link #getLastState(Comparator)} with
+	 * the states equality are maintained incrementally as the events are appended, so that {@link #getLastState()} and
+	 * {@link #isBroken()} cost O(1) for the regular trajectories.
+	 */
 	public static class Trajectory {
-		List<TransitionEvent> events = new ArrayList<>(16);
+		/** The number of longs of each event record. */
+		private static final int RECORD_LONGS = 4;
+		private static final int SERIAL = 0;
+		private static final int EVENT_ID = 1;
+		private static final int ARRIVAL_DATE = 2;
+		/** The id of the new state in the high half and the id of the old state in the low half. */
+		private static final int STATE_IDS = 3;
+
+		/** The arrival date, in epoch nanos, that represents the absence of date. */
+		static final long NULL_DATE = Long.MIN_VALUE;
+
+		private static final int INITIAL_CAPACITY = 4;
+
+		final StateDictionary states;
+		final long entityId;
+		private long[] records;
+		private int size = 0;
 		boolean isCompleted = false;
 
+		/**
+		 * The reconstruction of the chain, with the states equality, since the first event that is not linked to the
+		 * previous one in arrival order. Null while the chain is continuous.
+		 */
+		private ChainReconstruction reconstruction = null;
+
+		public Trajectory(final StateDictionary states, final long entityId) {
+			this.states = states;
+			this.entityId = entityId;
+			this.records = new long[INITIAL_CAPACITY * RECORD_LONGS];
+		}
+
+		/**
+		 * Creates a copy of the specified trajectory, whose records array is trimmed to the events count. The copy
+		 * references no dictionary, so its states are not accessible: only the ones of the original, while it is not
+		 * modified, tell them.
+		 */
+		Trajectory(final Trajectory original) {
+			this.states = null;
+			this.entityId = original.entityId;
+			this.records = Arrays.copyOf(original.records, original.size * RECORD_LONGS);
+			this.size = original.size;
+			this.isCompleted = original.isCompleted;
+		}
+
+		/** Creates a copy of the specified trajectory whose states are referenced through the specified dictionary. */
+		Trajectory(final StateDictionary states, final Trajectory original) {
+			this(states, original.entityId);
+			for (int index = 0; index < original.size; ++index) {
+				final int offset = index * RECORD_LONGS;
+				append(original.records[offset + SERIAL], original.records[offset + EVENT_ID], original.records[offset + ARRIVAL_DATE],
+						states.acquire(original.newStateAt(index)), states.acquire(original.oldStateAt(index)));
+			}
+			this.isCompleted = original.isCompleted;
+		}
+
+		/** Appends the specified event, which must be of the entity of this trajectory. */
+		public void add(final TransitionEvent event) {
+			assert event.getEntityId() == entityId;
+			add(event.getArrivalSerialNumber(), event.getEventId(), event.getArrivalDate(), event.getNewState(), event.getOldState());
+		}
+
+		/** Appends an event with the specified values. */
+		void add(final long arrivalSerialNumber, final long eventId, final Instant arrivalDate, final EntityState newState, final EntityState oldState) {
+			add(arrivalSerialNumber, eventId, epochNanosOf(arrivalDate), newState, oldState);
+		}
+
+		/** Appends an event with the specified values. The arrival date is in epoch nanos, as {@link #arrivalDateNanosAt(int)} tells it. */
+		void add(final long arrivalSerialNumber, final long eventId, final long arrivalDate, final EntityState newState, final EntityState oldState) {
+			append(arrivalSerialNumber, eventId, arrivalDate, states.acquire(newState), states.acquire(oldState));
+		}
+
+		/** @return the specified date in epoch nanos, or {@link #NULL_DATE} if it is null. */
+		static long epochNanosOf(final Instant date) {
+			return date == null ? NULL_DATE : date.getEpochSecond() * 1_000_000_000L + date.getNano();
+		}
+
+		private void append(final long arrivalSerialNumber, final long eventId, final long arrivalDate, final int newStateId, final int oldStateId) {
+			final int offset = size * RECORD_LONGS;
+			if (offset == records.length) {
+				records = Arrays.copyOf(records, records.length * 2);
+			}
+			records[offset + SERIAL] = arrivalSerialNumber;
+			records[offset + EVENT_ID] = eventId;
+			records[offset + ARRIVAL_DATE] = arrivalDate;
+			records[offset + STATE_IDS] = (long) newStateId << 32 | (oldStateId & 0xFFFFFFFFL);
+			size += 1;
+			track(size - 1);
+		}
+
+		/** Updates the continuity status and the reconstruction of the chain with the event at the specified index. */
+		private void track(final int index) {
+			if (reconstruction == null) {
+				if (index == 0 || oldStateIdAt(index) == newStateIdAt(index - 1)) {
+					return;
+				}
+				// the chain of the previous events is continuous, so the reconstruction of them links them all
+				reconstruction = new ChainReconstruction(new ChainReconstruction.Keys() {
+					@Override
+					public int oldStateKeyOf(final int event) {
+						return oldStateIdAt(event);
+					}
+
+					@Override
+					public int newStateKeyOf(final int event) {
+						return newStateIdAt(event);
+					}
+				}, index - 1, 0);
+			}
+			reconstruction.append(index);
+		}
+
+		/** Removes the last event. */
+		void removeLast() {
+			size -= 1;
+			states.release(newStateIdAt(size));
+			states.release(oldStateIdAt(size));
+			reconstruction = null;
+			for (int index = 1; index < size; ++index) {
+				track(index);
+			}
+		}
+
+		/** Releases the references to the states of the events. This trajectory must not be used afterwards. */
+		public void release() {
+			for (int index = 0; index < size; ++index) {
+				states.release(newStateIdAt(index));
+				states.release(oldStateIdAt(index));
+			}
+			size = 0;
+		}
+
+		/** @return the number of events of this trajectory. */
+		public int size() {
+			return size;
+		}
+
+		/** @return the arrival date of the last appended event in epoch nanos, or {@link #NULL_DATE} if absent. */
+		long lastTouch() {
+			return arrivalDateNanosAt(size - 1);
+		}
+
+		/** @return the new state of the last appended event. */
+		public EntityState getHeadState() {
+			return newStateAt(size - 1);
+		}
+
+		/** Tells if the old state of each event is the new state of the previous one, in arrival order. */
+		public boolean isContinuous() {
+			return reconstruction == null;
+		}
+
+		/** Tells if {@link #getLastState()} gives a {@link BrokenTrajectoryInfo}. */
+		public boolean isBroken() {
+			return reconstruction != null && reconstruction.looseLinksCount() > 0;
+		}
+
+		/** @return the {@link StateDictionary} id of the new state of the event at the specified index. */
+		public int newStateIdAt(final int index) {
+			return (int) (records[index * RECORD_LONGS + STATE_IDS] >> 32);
+		}
+
+		/** @return the {@link StateDictionary} id of the old state of the event at the specified index. */
+		public int oldStateIdAt(final int index) {
+			return (int) records[index * RECORD_LONGS + STATE_IDS];
+		}
+
+		public EntityState newStateAt(final int index) {
+			return states.get(newStateIdAt(index));
+		}
+
+		public EntityState oldStateAt(final int index) {
+			return states.get(oldStateIdAt(index));
+		}
+
+		public long arrivalSerialNumberAt(final int index) {
+			return records[index * RECORD_LONGS + SERIAL];
+		}
+
+		public long eventIdAt(final int index) {
+			return records[index * RECORD_LONGS + EVENT_ID];
+		}
+
+		public Instant arrivalDateAt(final int index) {
+			final long arrivalDate = arrivalDateNanosAt(index);
+			return arrivalDate == NULL_DATE ? null : Instant.ofEpochSecond(0, arrivalDate);
+		}
+
+		/** @return the arrival date of the event at the specified index in epoch nanos, or {@link #NULL_DATE} if absent. */
+		long arrivalDateNanosAt(final int index) {
+			return records[index * RECORD_LONGS + ARRIVAL_DATE];
+		}
+
+		/** Materializes the event at the specified index. */
+		public TransitionEvent get(final int index) {
+			return new EventRecordParser.TransitionEventImpl(
+					eventIdAt(index),
+					arrivalSerialNumberAt(index),
+					arrivalDateAt(index),
+					entityId,
+					newStateAt(index),
+					oldStateAt(index)
+			);
+		}
+
+		/** @return a read only view of the events of this trajectory, which are materialized when accessed. */
+		public List<TransitionEvent> events() {
+			return new AbstractList<>() {
+				@Override
+				public TransitionEvent get(final int index) {
+					Objects.checkIndex(index, size);
+					return Trajectory.this.get(index);
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+		/** Must tell that equal states are equal. */
 		public interface Comparator {
 			boolean areEqual(EntityState a, EntityState b);
 		}
 
+		/**
+		 * A {@link Comparator} that considers equal the states whose keys are equal. Allows the reconstruction of the
+		 * chains in linear time.
+		 */
+		public interface KeyedComparator extends Comparator {
+			/** @return the key of the specified state, which may be null. */
+			Object keyOf(EntityState state);
+
+			@Override
+			default boolean areEqual(final EntityState a, final EntityState b) {
+				return a == b || Objects.equals(keyOf(a), keyOf(b));
+			}
+		}
+
+		/** Like {@link #getLastState(Comparator)} with the states equality, but from the incrementally tracked status. */
+		public LastState getLastState() {
+			return reconstruction == null ? new LastStateSuccess(getHeadState()) : lastStateOf(reconstruction);
+		}
+
+		/**
+		 * Finds out the last state of the entity according to the specified comparator: the new state of the last event
+		 * if the chain of events is continuous in arrival order. Otherwise, the chain is reconstructed starting from the
+		 * first event and the result tells the ends of the chain and the links that could not be linked to it, if any.
+		 */
 		public LastState getLastState(Comparator comparator) {
-			for (int i = 1; i < events.size(); ++i) {
-				if (!comparator.areEqual(events.get(i).getOldState(), events.get(i - 1).getNewState())) {
-					LinkedList<TransitionEvent> looseLinks = new LinkedList<>(events);
+			if (reconstruction == null) {
+				// continuous according to the states equality implies continuous according to the comparator
+				return new LastStateSuccess(getHeadState());
+			}
+			if (comparator instanceof KeyedComparator) {
+				return getLastStateByKeys((KeyedComparator) comparator);
+			}
+			for (int i = 1; i < size; ++i) {
+				if (!comparator.areEqual(oldStateAt(i), newStateAt(i - 1))) {
+					LinkedList<TransitionEvent> looseLinks = new LinkedList<>(events());
 					var first = looseLinks.pollFirst();
 					assert first != null;
 					return getLastStateOf_loop(comparator, first.getNewState(), first.getOldState(), looseLinks);
 				}
 			}
-			return new LastStateSuccess(events.get(events.size() - 1).getNewState());
+			return new LastStateSuccess(newStateAt(size - 1));
+		}
+
+		/** Does the same as {@link #getLastState(Comparator)} in linear time, indexing the states by their keys. */
+		private LastState getLastStateByKeys(final KeyedComparator comparator) {
+			final var keysIds = new HashMap<Object, Integer>();
+			final var oldStateKeys = new int[size];
+			final var newStateKeys = new int[size];
+			boolean isContinuousByKeys = true;
+			for (int index = 0; index < size; ++index) {
+				oldStateKeys[index] = keysIds.computeIfAbsent(comparator.keyOf(oldStateAt(index)), key -> keysIds.size());
+				newStateKeys[index] = keysIds.computeIfAbsent(comparator.keyOf(newStateAt(index)), key -> keysIds.size());
+				isContinuousByKeys &= index == 0 || oldStateKeys[index] == newStateKeys[index - 1];
+			}
+			if (isContinuousByKeys) {
+				return new LastStateSuccess(getHeadState());
+			}
+			final var keyedReconstruction = new ChainReconstruction(new ChainReconstruction.Keys() {
+				@Override
+				public int oldStateKeyOf(final int event) {
+					return oldStateKeys[event];
+				}
+
+				@Override
+				public int newStateKeyOf(final int event) {
+					return newStateKeys[event];
+				}
+			});
+			for (int index = 1; index < size; ++index) {
+				keyedReconstruction.append(index);
+			}
+			return lastStateOf(keyedReconstruction);
 		}
 
-		public LastState getLastStateOf_loop(final Comparator comparator, final EntityState newerSide, final EntityState olderSide, LinkedList<TransitionEvent> looseLinks) {
-			if (looseLinks.isEmpty()) {
+		private LastState lastStateOf(final ChainReconstruction chain) {
+			final EntityState olderSide = oldStateAt(chain.olderSideEvent);
+			if (chain.looseLinksCount() == 0) {
 				return new LastStateSuccess(olderSide);
-			} else {
+			}
+			final var looseLinks = new ArrayList<TransitionEvent>(chain.looseLinksCount());
+			for (int link : chain.looseLinks()) {
+				looseLinks.add(get(link));
+			}
+			return new BrokenTrajectoryInfo(this, newStateAt(chain.newerSideEvent), olderSide, looseLinks.get(looseLinks.size() - 1), looseLinks);
+		}
+
+		/**
+		 * Reconstructs the chain from the specified ends, linking to them the specified loose links, which are consumed.
+		 * Each step scans the loose links, so it costs quadratic time. Prefer a {@link KeyedComparator}.
+		 */
+		public LastState getLastStateOf_loop(final Comparator comparator, EntityState newerSide, EntityState olderSide, LinkedList<TransitionEvent> looseLinks) {
+			while (!looseLinks.isEmpty()) {
 				var lastTransition = looseLinks.getLast();
-				for (var link : looseLinks) {
+				boolean isLinked = false;
+				for (var iterator = looseLinks.iterator(); iterator.hasNext() && !isLinked; ) {
+					var link = iterator.next();
 					if (comparator.areEqual(link.getOldState(), newerSide)) {
-						looseLinks.removeFirstOccurrence(link);
-						return getLastStateOf_loop(comparator, link.getNewState(), olderSide, looseLinks);
+						newerSide = link.getNewState();
+						isLinked = true;
 					} else if (comparator.areEqual(link.getNewState(), olderSide)) {
-						looseLinks.removeFirstOccurrence(link);
-						return getLastStateOf_loop(comparator, newerSide, link.getOldState(), looseLinks);
+						olderSide = link.getOldState();
+						isLinked = true;
 					}
+					if (isLinked) {
+						iterator.remove();
+					}
+				}
+				if (!isLinked) {
+					return new BrokenTrajectoryInfo(this, newerSide, olderSide, lastTransition, looseLinks);
 				}
-				return new BrokenTrajectoryInfo(this, newerSide, olderSide, lastTransition, looseLinks);
 			}
+			return new LastStateSuccess(olderSide);
 		}
 
 		@Override
 		public String toString() {
-			var x = events.stream().map(TransitionEvent::toString).collect(Collectors.joining("\n\t", "[\n\t", "]"));
+			var x = events().stream().map(TransitionEvent::toString).collect(Collectors.joining("\n\t", "[\n\t", "]"));
 			return String.format("{isComplete:%b, events:%s", isCompleted, x);
 		}
 	}
@@ -0,0 +1,633 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Writes and reads the whole content of a {@link Backlog}, including the open trajectories, to and from a local file
+ * with a compact binary format.
+ *
+ * <p>Both directions go through memory mapped regions of the file, so that reading a checkpoint costs little more than
+ * copying its bytes. The file layout is:
+ * <ol>
+ *   <li>a header with the magic number, the format version, the last event arrival serial number and date, the
+ *   counters, and the last creation date of the {@link ParseContext};</li>
+ *   <li>the table of the distinct values (strings and timestamps) referenced by the following sections;</li>
+ *   <li>the table of the distinct entity states, as value table indexes;</li>
+ *   <li>the cells, as value table indexes and contents;</li>
+ *   <li>the trajectories, with their events referencing the states table.</li>
+ * </ol>
+ */
+@Slf4j
+public class BacklogCheckpoint {
+	private static final int MAGIC = 0x424c434b; // "BLCK"
+	private static final int FORMAT_VERSION = 2;
+
+	/** The first format version whose header has the last creation date. The previous ones are still read. */
+	private static final int LAST_DATE_CREATED_VERSION = 2;
+
+	private static final byte NULL_TAG = 0;
+	private static final byte STRING_TAG = 1;
+	private static final byte TIMESTAMP_TAG = 2;
+
+	/** The index that represents a null state in the states table. */
+	private static final int NULL_STATE = -1;
+
+	/** The size of the file regions mapped at once. */
+	private static final int REGION_SIZE = 64 * 1024 * 1024;
+
+	private BacklogCheckpoint() {}
+
+	/**
+	 * The content of a backlog at some point in time, captured by {@link #capture(Backlog)}. It may reference files of
+	 * the cold tier, so it must be released once written.
+	 */
+	@RequiredArgsConstructor
+	public static class Snapshot {
+		final long lastEventArrivalSerialNumber;
+		final Instant lastEventArrivalDate;
+		final int created;
+		final int terminatedSuccessfully;
+		final int discardedEvents;
+		final int irregularTrajectories;
+		final List<Backlog.Cell> cells;
+		/** The open trajectories of each captured backlog, one element per shard. */
+		final List<OpenTrajectories> trajectories;
+
+		/**
+		 * The {@link Backlog#lastDateCreated} as of the last event. Given it is known by the thread that parses the
+		 * events, not by the shards, it is set by whoever requests the snapshot, see {@link BacklogCheckpointer}.
+		 */
+		long lastDateCreated;
+
+		public long getLastEventArrivalSerialNumber() {
+			return lastEventArrivalSerialNumber;
+		}
+
+		/** @return the number of open trajectories. */
+		public int trajectoriesCount() {
+			return trajectories.stream().mapToInt(OpenTrajectories::size).sum();
+		}
+
+		/** Deletes the links to the files of the cold tiers. This snapshot must not be written afterwards. */
+		public void release() {
+			for (OpenTrajectories part : trajectories) {
+				if (part.cold != null) {
+					part.cold.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The open trajectories of a backlog at some point in time, as captured by the thread that integrates the events into
+	 * it, in a form that another thread can encode: the images of the not continuous ones, a copy of the off-heap
+	 * storage of the continuous ones together with the states their ids stand for, and a view of the cold tier.
+	 */
+	@RequiredArgsConstructor
+	static class OpenTrajectories {
+		final BacklogSnapshot.TrajectoryTable discontinuous;
+		final TrajectoryArena.Image continuous;
+		/** The states referenced by the {@link #continuous} trajectories, indexed by their {@link StateDictionary} id. */
+		final EntityState[] statesById;
+		/** The view of the cold tier, or null if it is disabled. */
+		final ColdTrajectoryStore.Image cold;
+
+		int size() {
+			return discontinuous.size() + continuous.size() + (cold == null ? 0 : cold.size());
+		}
+
+		EntityState stateOf(final int id) {
+			return id == StateDictionary.NULL_ID ? null : statesById[id];
+		}
+	}
+
+	/**
+	 * The events of an open trajectory, captured together with their states so that they can be encoded by a thread
+	 * other than the owner of the {@link StateDictionary} of the trajectory.
+	 */
+	static class TrajectoryImage {
+		/** A copy of the trajectory, whose states are not accessible. */
+		final Backlog.Trajectory records;
+		/** The new and old states of each event, interleaved. */
+		final EntityState[] states;
+
+		TrajectoryImage(final Backlog.Trajectory trajectory) {
+			this.records = new Backlog.Trajectory(trajectory);
+			this.states = new EntityState[2 * trajectory.size()];
+			for (int index = 0; index < trajectory.size(); ++index) {
+				states[2 * index] = trajectory.newStateAt(index);
+				states[2 * index + 1] = trajectory.oldStateAt(index);
+			}
+		}
+
+		/** @return a trajectory equal to the captured one, whose states are referenced through the specified dictionary. */
+		Backlog.Trajectory toTrajectory(final StateDictionary dictionary) {
+			final var trajectory = new Backlog.Trajectory(dictionary, records.entityId);
+			for (int index = 0; index < records.size(); ++index) {
+				trajectory.add(
+						records.arrivalSerialNumberAt(index),
+						records.eventIdAt(index),
+						records.arrivalDateNanosAt(index),
+						states[2 * index],
+						states[2 * index + 1]
+				);
+			}
+			trajectory.isCompleted = records.isCompleted;
+			return trajectory;
+		}
+	}
+
+	/**
+	 * Captures the content of the specified backlog. Must be called by the thread that integrates the events into it,
+	 * whose stall is kept short: the not continuous trajectories are copied only if touched since the previous capture,
+	 * the off-heap storage of the continuous ones is copied in bulk, and the files of the cold tier are linked instead of
+	 * read. The decoding and the encoding are left to {@link #write(Snapshot, Path)}.
+	 */
+	public static Snapshot capture(final Backlog backlog) {
+		return capture(backlog, backlog.getCells().collect(Collectors.toList()));
+	}
+
+	/**
+	 * Like {@link #capture(Backlog)}, but the cells are not captured. Used by the shards of a {@link ShardedBacklog},
+	 * whose cells are not the ones of the whole.
+	 */
+	static Snapshot captureTrajectories(final Backlog backlog) {
+		return capture(backlog, List.of());
+	}
+
+	private static Snapshot capture(final Backlog backlog, final List<Backlog.Cell> cells) {
+		final var trajectories = new OpenTrajectories(
+				backlog.checkpointTrajectories(),
+				backlog.continuousTrajectoriesImage(),
+				backlog.states.statesById(),
+				backlog.coldTrajectoriesImage()
+		);
+		final var snapshot = new Snapshot(
+				backlog.lastEventArrivalSerialNumber,
+				backlog.lastEventArrivalDate,
+				backlog.created,
+				backlog.terminatedSuccessfully,
+				backlog.discardedEvents,
+				backlog.irregularTrajectories,
+				cells,
+				List.of(trajectories)
+		);
+		snapshot.lastDateCreated = backlog.lastDateCreated;
+		return snapshot;
+	}
+
+	/**
+	 * Merges the snapshots of disjoint parts of a backlog, like the shards of a {@link ShardedBacklog}, into a snapshot
+	 * of the whole.
+	 *
+	 * @param lastEventArrivalSerialNumber the arrival serial number of the last event integrated into the whole.
+	 * @param lastEventArrivalDate the arrival date of said event.
+	 * @param cells the cells of the whole, at the same point of the event stream. The ones of the parts are ignored.
+	 * @param parts the snapshots of the parts, all captured at the same point of the event stream.
+	 */
+	public static Snapshot merge(
+			final long lastEventArrivalSerialNumber,
+			final Instant lastEventArrivalDate,
+			final List<Backlog.Cell> cells,
+			final List<Snapshot> parts
+	) {
+		int created = 0;
+		int terminatedSuccessfully = 0;
+		int discardedEvents = 0;
+		int irregularTrajectories = 0;
+		long lastDateCreated = 0;
+		final var trajectories = new ArrayList<OpenTrajectories>();
+		for (Snapshot part : parts) {
+			lastDateCreated = Math.max(lastDateCreated, part.lastDateCreated);
+			created += part.created;
+			terminatedSuccessfully += part.terminatedSuccessfully;
+			discardedEvents += part.discardedEvents;
+			irregularTrajectories += part.irregularTrajectories;
+			trajectories.addAll(part.trajectories);
+		}
+		final var snapshot = new Snapshot(
+				lastEventArrivalSerialNumber,
+				lastEventArrivalDate,
+				created,
+				terminatedSuccessfully,
+				discardedEvents,
+				irregularTrajectories,
+				cells,
+				trajectories
+		);
+		snapshot.lastDateCreated = lastDateCreated;
+		return snapshot;
+	}
+
+	/**
+	 * Writes the specified snapshot to the specified file. The content is written to a temporary file first, which
+	 * then replaces the specified one atomically. The cold tiers are decoded twice, once to gather the distinct states
+	 * and once to write the trajectories, so that they are never all on heap.
+	 */
+	public static void write(final Snapshot snapshot, final Path file) throws IOException {
+		final Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		final var values = new Table<Object>();
+		final var states = new Table<EntityState>();
+		for (OpenTrajectories part : snapshot.trajectories) {
+			part.discontinuous.images().forEach(image -> {
+				for (EntityState state : image.states) {
+					registerState(state, values, states);
+				}
+			});
+			// the dictionary may know states that no trajectory references anymore, which only cost their table entries
+			for (EntityState state : part.statesById) {
+				registerState(state, values, states);
+			}
+			if (part.cold != null) {
+				part.cold.forEach(new StateDictionary(), trajectory -> {
+					for (int index = 0; index < trajectory.size(); ++index) {
+						registerState(trajectory.newStateAt(index), values, states);
+						registerState(trajectory.oldStateAt(index), values, states);
+					}
+					trajectory.release();
+				});
+			}
+		}
+		for (Backlog.Cell cell : snapshot.cells) {
+			for (Object coordinate : cell.coordinates) {
+				values.indexOf(coordinate);
+			}
+		}
+
+		try (var output = new MappedOutput(temporaryFile)) {
+			output.putInt(MAGIC);
+			output.putInt(FORMAT_VERSION);
+			output.putLong(snapshot.lastEventArrivalSerialNumber);
+			output.putInstant(snapshot.lastEventArrivalDate);
+			output.putInt(snapshot.created);
+			output.putInt(snapshot.terminatedSuccessfully);
+			output.putInt(snapshot.discardedEvents);
+			output.putInt(snapshot.irregularTrajectories);
+			output.putLong(snapshot.lastDateCreated);
+
+			output.putInt(values.elements.size());
+			for (Object value : values.elements) {
+				if (value == null) {
+					output.putByte(NULL_TAG);
+				} else if (value instanceof String) {
+					output.putByte(STRING_TAG);
+					output.putString((String) value);
+				} else if (value instanceof Timestamp) {
+					output.putByte(TIMESTAMP_TAG);
+					output.putLong(((Timestamp) value).getTime());
+					output.putInt(((Timestamp) value).getNanos());
+				} else {
+					throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+				}
+			}
+
+			output.putInt(states.elements.size());
+			for (EntityState state : states.elements) {
+				output.putInt(values.indexOf(state.getLogisticCenter()));
+				output.putInt(values.indexOf(state.getWorkflow()));
+				output.putInt(values.indexOf(state.getStatus()));
+				output.putInt(values.indexOf(state.getDateIn()));
+				output.putInt(values.indexOf(state.getArea()));
+				output.putInt(values.indexOf(state.getDeadline()));
+				output.putByte((byte) (state.isUltimate() ? 1 : 0));
+			}
+
+			output.putInt(snapshot.cells.size());
+			for (Backlog.Cell cell : snapshot.cells) {
+				output.putInt(cell.coordinates.length);
+				for (Object coordinate : cell.coordinates) {
+					output.putInt(values.indexOf(coordinate));
+				}
+				output.putInt(cell.population);
+				output.putInt(cell.variation);
+				output.putInt(cell.accumulatedPopulation);
+			}
+
+			output.putInt(snapshot.trajectoriesCount());
+			for (OpenTrajectories part : snapshot.trajectories) {
+				final Iterator<TrajectoryImage> images = part.discontinuous.images().iterator();
+				while (images.hasNext()) {
+					final TrajectoryImage image = images.next();
+					final Backlog.Trajectory trajectory = image.records;
+					output.putLong(trajectory.entityId);
+					output.putByte((byte) (trajectory.isCompleted ? 1 : 0));
+					output.putInt(trajectory.size());
+					for (int index = 0; index < trajectory.size(); ++index) {
+						output.putLong(trajectory.eventIdAt(index));
+						output.putLong(trajectory.arrivalSerialNumberAt(index));
+						output.putEpochNanos(trajectory.arrivalDateNanosAt(index));
+						output.putInt(indexOf(image.states[2 * index], states));
+						output.putInt(indexOf(image.states[2 * index + 1], states));
+					}
+				}
+				part.continuous.forEach(chunk -> {
+					// a continuous trajectory is removed when completed
+					output.putLong(chunk.entityId());
+					output.putByte((byte) 0);
+					output.putInt(chunk.size());
+					for (int index = 0; index < chunk.size(); ++index) {
+						output.putLong(chunk.eventIdAt(index));
+						output.putLong(chunk.arrivalSerialNumberAt(index));
+						output.putEpochNanos(chunk.arrivalDateAt(index));
+						output.putInt(indexOf(part.stateOf(chunk.newStateIdAt(index)), states));
+						output.putInt(indexOf(part.stateOf(chunk.oldStateIdAt(index)), states));
+					}
+				});
+				if (part.cold != null) {
+					part.cold.forEach(new StateDictionary(), trajectory -> {
+						output.putLong(trajectory.entityId);
+						output.putByte((byte) (trajectory.isCompleted ? 1 : 0));
+						output.putInt(trajectory.size());
+						for (int index = 0; index < trajectory.size(); ++index) {
+							output.putLong(trajectory.eventIdAt(index));
+							output.putLong(trajectory.arrivalSerialNumberAt(index));
+							output.putEpochNanos(trajectory.arrivalDateNanosAt(index));
+							output.putInt(indexOf(trajectory.newStateAt(index), states));
+							output.putInt(indexOf(trajectory.oldStateAt(index), states));
+						}
+						trajectory.release();
+					});
+				}
+			}
+		}
+		Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static int indexOf(final EntityState state, final Table<EntityState> states) {
+		return state == null ? NULL_STATE : states.indexOf(state);
+	}
+
+	/**
+	 * Reads the checkpoint contained in the specified file.
+	 *
+	 * @return a backlog equivalent to the one whose snapshot was written to the specified file.
+	 */
+	public static Backlog read(final Path file, final PartitionsCatalog partitionsCatalog) throws IOException {
+		try (var input = new MappedInput(file)) {
+			final int magic = input.getInt();
+			final int formatVersion = input.getInt();
+			if (magic != MAGIC || formatVersion < 1 || formatVersion > FORMAT_VERSION) {
+				throw new IOException("The file is not a backlog checkpoint of a supported version: " + file);
+			}
+			final var backlog = new Backlog(partitionsCatalog, input.getLong(), input.getInstant());
+			backlog.created = input.getInt();
+			backlog.terminatedSuccessfully = input.getInt();
+			backlog.discardedEvents = input.getInt();
+			backlog.irregularTrajectories = input.getInt();
+			if (formatVersion >= LAST_DATE_CREATED_VERSION) {
+				backlog.lastDateCreated = input.getLong();
+			}
+
+			final var values = new Object[input.getInt()];
+			for (int index = 0; index < values.length; ++index) {
+				final byte tag = input.getByte();
+				switch (tag) {
+					case NULL_TAG:
+						values[index] = null;
+						break;
+					case STRING_TAG:
+						values[index] = input.getString();
+						break;
+					case TIMESTAMP_TAG:
+						final var timestamp = new Timestamp(input.getLong());
+						timestamp.setNanos(input.getInt());
+						values[index] = timestamp;
+						break;
+					default:
+						throw new IOException("Unknown value tag " + tag + " in " + file);
+				}
+			}
+
+			final var states = new EntityState[input.getInt()];
+			for (int index = 0; index < states.length; ++index) {
+				states[index] = EntityType.OutboundUnitStateV0.of(
+						(String) values[input.getInt()],
+						(String) values[input.getInt()],
+						(String) values[input.getInt()],
+						(Timestamp) values[input.getInt()],
+						(String) values[input.getInt()],
+						(Timestamp) values[input.getInt()],
+						input.getByte() != 0
+				);
+			}
+
+			final int cellsCount = input.getInt();
+			for (int cellIndex = 0; cellIndex < cellsCount; ++cellIndex) {
+				final var coordinates = new Object[input.getInt()];
+				for (int ordinal = 0; ordinal < coordinates.length; ++ordinal) {
+					coordinates[ordinal] = values[input.getInt()];
+				}
+				final var content = new Backlog.CellContent();
+				content.population = input.getInt();
+				content.variation = input.getInt();
+				content.accumulatedPopulation = input.getInt();
+				backlog.loadCell(coordinates, content);
+			}
+
+			final int trajectoriesCount = input.getInt();
+			for (int trajectoryIndex = 0; trajectoryIndex < trajectoriesCount; ++trajectoryIndex) {
+				final long entityId = input.getLong();
+				final var trajectory = new Backlog.Trajectory(backlog.states, entityId);
+				trajectory.isCompleted = input.getByte() != 0;
+				final int eventsCount = input.getInt();
+				for (int eventIndex = 0; eventIndex < eventsCount; ++eventIndex) {
+					final long eventId = input.getLong();
+					final long arrivalSerialNumber = input.getLong();
+					final Instant arrivalDate = input.getInstant();
+					final int newStateIndex = input.getInt();
+					final int oldStateIndex = input.getInt();
+					trajectory.add(
+							arrivalSerialNumber,
+							eventId,
+							arrivalDate,
+							newStateIndex != NULL_STATE ? states[newStateIndex] : null,
+							oldStateIndex != NULL_STATE ? states[oldStateIndex] : null
+					);
+				}
+				backlog.adopt(trajectory);
+			}
+			log.info(
+					"The checkpoint {} with {} cells and {} trajectories, tagged with the serial number {}, was loaded",
+					file, cellsCount, trajectoriesCount, backlog.getLastEventArrivalSerialNumber()
+			);
+			return backlog;
+		}
+	}
+
+	private static void registerState(final EntityState state, final Table<Object> values, final Table<EntityState> states) {
+		if (state != null) {
+			states.indexOf(state);
+			values.indexOf(state.getLogisticCenter());
+			values.indexOf(state.getWorkflow());
+			values.indexOf(state.getStatus());
+			values.indexOf(state.getDateIn());
+			values.indexOf(state.getArea());
+			values.indexOf(state.getDeadline());
+		}
+	}
+
+	/** Assigns consecutive indexes to distinct elements. */
+	private static class Table<T> {
+		final Map<T, Integer> indexes = new HashMap<>();
+		final List<T> elements = new ArrayList<>();
+
+		int indexOf(final T element) {
+			return indexes.computeIfAbsent(element, e -> {
+				elements.add(e);
+				return elements.size() - 1;
+			});
+		}
+	}
+
+	/** Writes primitives sequentially to consecutive memory mapped regions of a file. */
+	private static class MappedOutput implements AutoCloseable {
+		private final FileChannel channel;
+		private long regionPosition = 0;
+		private MappedByteBuffer region;
+
+		MappedOutput(final Path file) throws IOException {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+			this.channel = FileChannel.open(
+					file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+		}
+
+		/** Ensures the current region has room for the specified number of bytes, mapping the next one if not. */
+		private void ensure(final int bytes) throws IOException {
+			if (region.remaining() < bytes) {
+				region.force();
+				regionPosition += region.position();
+				region = channel.map(FileChannel.MapMode.READ_WRITE, regionPosition, REGION_SIZE);
+			}
+		}
+
+		void putByte(final byte value) throws IOException {
+			ensure(Byte.BYTES);
+			region.put(value);
+		}
+
+		void putInt(final int value) throws IOException {
+			ensure(Integer.BYTES);
+			region.putInt(value);
+		}
+
+		void putLong(final long value) throws IOException {
+			ensure(Long.BYTES);
+			region.putLong(value);
+		}
+
+		void putInstant(final Instant value) throws IOException {
+			if (value == null) {
+				putLong(Long.MIN_VALUE);
+			} else {
+				putLong(value.getEpochSecond());
+				putInt(value.getNano());
+			}
+		}
+
+		/** Like {@link #putInstant(Instant)} with the date in epoch nanos, or {@link Backlog.Trajectory#NULL_DATE}. */
+		void putEpochNanos(final long value) throws IOException {
+			if (value == Backlog.Trajectory.NULL_DATE) {
+				putLong(Long.MIN_VALUE);
+			} else {
+				putLong(Math.floorDiv(value, 1_000_000_000L));
+				putInt((int) Math.floorMod(value, 1_000_000_000L));
+			}
+		}
+
+		void putString(final String value) throws IOException {
+			putInt(value.length());
+			for (int index = 0; index < value.length(); ++index) {
+				ensure(Character.BYTES);
+				region.putChar(value.charAt(index));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				region.force();
+				channel.truncate(regionPosition + region.position());
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	/** Reads primitives sequentially from consecutive memory mapped regions of a file. */
+	private static class MappedInput implements AutoCloseable {
+		private final FileChannel channel;
+		private final long size;
+		private long regionPosition = 0;
+		private MappedByteBuffer region;
+
+		MappedInput(final Path file) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.READ);
+			this.size = channel.size();
+			this.region = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, REGION_SIZE));
+		}
+
+		/** Ensures the current region contains the specified number of bytes, mapping the next one if not. */
+		private void ensure(final int bytes) throws IOException {
+			if (region.remaining() < bytes) {
+				regionPosition += region.position();
+				if (regionPosition + bytes > size) {
+					throw new IOException("Unexpected end of the checkpoint file");
+				}
+				region = channel.map(FileChannel.MapMode.READ_ONLY, regionPosition, Math.min(size - regionPosition, REGION_SIZE));
+			}
+		}
+
+		byte getByte() throws IOException {
+			ensure(Byte.BYTES);
+			return region.get();
+		}
+
+		int getInt() throws IOException {
+			ensure(Integer.BYTES);
+			return region.getInt();
+		}
+
+		long getLong() throws IOException {
+			ensure(Long.BYTES);
+			return region.getLong();
+		}
+
+		Instant getInstant() throws IOException {
+			final long epochSecond = getLong();
+			return epochSecond == Long.MIN_VALUE ? null : Instant.ofEpochSecond(epochSecond, getInt());
+		}
+
+		String getString() throws IOException {
+			final var chars = new char[getInt()];
+			for (int index = 0; index < chars.length; ++index) {
+				ensure(Character.BYTES);
+				chars[index] = region.getChar();
+			}
+			return new String(chars);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
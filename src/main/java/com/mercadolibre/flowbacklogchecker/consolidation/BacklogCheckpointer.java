@@ -0,0 +1,98 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+/**
+ * Writes {@link BacklogCheckpoint}s of a {@link ShardedBacklog} periodically to a local file.
+ *
+ * <p>The snapshots are captured by the shard threads at the same point of the event stream, and merged, encoded and
+ * written by a background thread. See {@link BacklogCheckpoint#capture(Backlog)} for what the shards copy.
+ */
+@Slf4j
+public class BacklogCheckpointer implements AutoCloseable {
+
+	/** The number of integrated events between consecutive checks of the clock. */
+	private static final int EVENTS_BETWEEN_CLOCK_CHECKS = 1000;
+
+	private final Path file;
+
+	private final long intervalNanos;
+
+	private final LongSupplier lastDateCreated;
+
+	private final ExecutorService writer;
+
+	private long nextCheckpointNanos;
+
+	private int eventsSinceLastClockCheck = 0;
+
+	private CompletableFuture<Void> checkpointUnderWriting;
+
+	/**
+	 * @param file the file where the checkpoints are written.
+	 * @param interval the minimum time between checkpoints.
+	 * @param lastDateCreated gives the {@link ParseContext#getLastDateCreated(String)} of the logistic center of the
+	 *     backlog, which is checkpointed with it. Called by the dispatcher thread, which owns said context.
+	 */
+	public BacklogCheckpointer(final Path file, final Duration interval, final LongSupplier lastDateCreated) {
+		this.file = file;
+		this.intervalNanos = interval.toNanos();
+		this.lastDateCreated = lastDateCreated;
+		this.nextCheckpointNanos = System.nanoTime() + intervalNanos;
+		this.writer = Executors.newSingleThreadExecutor(runnable -> {
+			final var thread = new Thread(runnable, "checkpointer-" + file.getFileName());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Should be called after each event dispatch, by the dispatcher thread. Captures a snapshot of the specified backlog
+	 * if the interval since the previous one has elapsed and the previous one was already written.
+	 */
+	public void onIntegrated(final ShardedBacklog backlog) {
+		if (++eventsSinceLastClockCheck < EVENTS_BETWEEN_CLOCK_CHECKS) {
+			return;
+		}
+		eventsSinceLastClockCheck = 0;
+		final long now = System.nanoTime();
+		if (now - nextCheckpointNanos >= 0 && (checkpointUnderWriting == null || checkpointUnderWriting.isDone())) {
+			nextCheckpointNanos = now + intervalNanos;
+			// the snapshot is dispatched right away, at the same point of the event stream than this value
+			final long snapshotLastDateCreated = lastDateCreated.getAsLong();
+			checkpointUnderWriting = backlog.checkpointSnapshot()
+					.thenAcceptAsync(snapshot -> {
+						snapshot.lastDateCreated = snapshotLastDateCreated;
+						write(snapshot);
+					}, writer);
+		}
+	}
+
+	private void write(final BacklogCheckpoint.Snapshot snapshot) {
+		final long start = System.currentTimeMillis();
+		try {
+			BacklogCheckpoint.write(snapshot, file);
+			log.info(
+					"The checkpoint tagged with the serial number {} was written in {} ms",
+					snapshot.getLastEventArrivalSerialNumber(), System.currentTimeMillis() - start
+			);
+		} catch (IOException | RuntimeException e) {
+			log.error("The checkpoint tagged with the serial number {} could not be written", snapshot.getLastEventArrivalSerialNumber(), e);
+		} finally {
+			snapshot.release();
+		}
+	}
+
+	@Override
+	public void close() {
+		writer.shutdown();
+	}
+}
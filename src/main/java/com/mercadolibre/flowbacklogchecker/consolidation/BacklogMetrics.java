@@ -0,0 +1,205 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * The meters of the ingestion of the events, of the state of the backlogs and of their queries, registered in a {@link
+ * MeterRegistry}.
+ *
+ * <p>The meters recorded once per event, the parse and integrate timers, are resolved beforehand and recorded with a
+ * primitive duration, so that said recording allocates nothing. They must be registered directly in the registry that
+ * publishes them, not in a composite one, whose meters allocate on each recording.
+ *
+ * <p>The state of a backlog is read from its {@link ShardedBacklog#latestSnapshot()} when the registry is scraped,
+ * which involves no shard thread. Hence it is as old as said snapshot. The number of cells is the one of the merged
+ * cells, see {@link ShardedBacklog#getCellsCount()}.
+ *
+ * <p>This class is thread safe.
+ */
+public class BacklogMetrics {
+	/** The metrics that record nothing. */
+	public static final BacklogMetrics DISABLED = new BacklogMetrics(null);
+
+	/** The struct versions greater than this one share the parse timer tagged "other", to bound the number of meters. */
+	private static final int MAX_TAGGED_STRUCT_VERSION = 255;
+
+	private static final String LOGISTIC_CENTER_TAG = "logisticCenter";
+
+	/** The registry, or null if nothing is recorded. */
+	private final MeterRegistry registry;
+
+	private final Timer catchUpPageFetch;
+
+	private final Timer tailPageFetch;
+
+	private final Counter fetchedEvents;
+
+	private final Queries.Timers queryTimers;
+
+	/** The parse timers of each entity type, by struct version. Each array is replaced, never modified, when it grows. */
+	private final ConcurrentHashMap<String, Timer[]> parseTimers = new ConcurrentHashMap<>();
+
+	/** @param registry the registry where the meters are registered, or null to record nothing. */
+	public BacklogMetrics(final MeterRegistry registry) {
+		this.registry = registry;
+		this.queryTimers = new Queries.Timers(registry);
+		if (registry == null) {
+			this.catchUpPageFetch = null;
+			this.tailPageFetch = null;
+			this.fetchedEvents = null;
+		} else {
+			this.catchUpPageFetch = pageFetchTimer("catchUp");
+			this.tailPageFetch = pageFetchTimer("tail");
+			this.fetchedEvents = Counter.builder("backlog.events.fetched")
+					.description("The incoming events read from the database")
+					.register(registry);
+		}
+	}
+
+	/** @return the timers of the {@link Queries}, registered in the registry of these metrics. */
+	public Queries.Timers queryTimers() {
+		return queryTimers;
+	}
+
+	/** Records the fetch of a page of incoming events by a {@link StoredEventsSource}. */
+	public void recordPageFetch(final boolean tailMode, final int events, final long nanos) {
+		if (registry != null) {
+			(tailMode ? tailPageFetch : catchUpPageFetch).record(nanos, TimeUnit.NANOSECONDS);
+			fetchedEvents.increment(events);
+		}
+	}
+
+	/** Records an incoming event read from the database one by one, like the {@link BinlogEventsSource} does. */
+	public void recordFetchedEvent() {
+		if (registry != null) {
+			fetchedEvents.increment();
+		}
+	}
+
+	/** Records the parse of an incoming event. May be called by several threads concurrently. */
+	public void recordParse(final String entityType, final int structVersion, final long nanos) {
+		if (registry != null) {
+			parseTimerOf(entityType, structVersion).record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Registers the meters of the state of the specified backlog, tagged with the specified logistic center, and makes
+	 * its shards time the integration of each event, and its queries their evaluation.
+	 */
+	public void bind(final ShardedBacklog backlog, final String logisticCenter) {
+		if (registry == null) {
+			return;
+		}
+		backlog.timeQueries(queryTimers);
+		backlog.timeIntegrations(Timer.builder("backlog.events.integrate")
+				.description("The integration of an event into the shard of the backlog that owns its entity")
+				.tag(LOGISTIC_CENTER_TAG, logisticCenter)
+				.publishPercentileHistogram()
+				.register(registry));
+		// the cells of the shards overlap, so the ones of the whole are counted instead of summed
+		Gauge.builder("backlog.cells", backlog, sharded -> sharded.latestSnapshot() == null ? Double.NaN : sharded.getCellsCount())
+				.description("The cells with population")
+				.tag(LOGISTIC_CENTER_TAG, logisticCenter)
+				.strongReference(true)
+				.register(registry);
+		registerGauge("backlog.trajectories.open", "The open trajectories, the spilled ones included", backlog, logisticCenter, snapshot -> snapshot.openTrajectories);
+		registerGauge("backlog.trajectories.discontinuous", "The open trajectories whose events are not continuous in arrival order", backlog, logisticCenter, snapshot -> snapshot.discontinuousTrajectories);
+		registerCounter("backlog.entities.created", "The entities whose first event was integrated", backlog, logisticCenter, snapshot -> snapshot.created);
+		registerCounter("backlog.entities.terminated", "The entities that reached a final state", backlog, logisticCenter, snapshot -> snapshot.terminatedSuccessfully);
+		registerCounter("backlog.events.discarded", "The integrated events that were discarded", backlog, logisticCenter, snapshot -> snapshot.discardedEvents);
+		registerCounter("backlog.trajectories.irregular", "The trajectories that received an event that does not link to the previous one", backlog, logisticCenter, snapshot -> snapshot.irregularTrajectories);
+	}
+
+	/** Registers the gauge of the specified lag. */
+	public void bind(final IntegrationLag integrationLag) {
+		if (registry != null) {
+			TimeGauge.builder("backlog.integration.lag", integrationLag, TimeUnit.MILLISECONDS, IntegrationLag::getLagMillis)
+					.description("The time between the arrival of the last integrated event and its integration")
+					.register(registry);
+		}
+	}
+
+	private Timer pageFetchTimer(final String mode) {
+		return Timer.builder("backlog.events.page.fetch")
+				.description("The query of a page of incoming events")
+				.tag("mode", mode)
+				.publishPercentileHistogram()
+				.register(registry);
+	}
+
+	private Timer parseTimerOf(final String entityType, final int structVersion) {
+		final int index = structVersion < 0 || structVersion > MAX_TAGGED_STRUCT_VERSION ? MAX_TAGGED_STRUCT_VERSION + 1 : structVersion;
+		final Timer[] timers = parseTimers.get(entityType);
+		if (timers != null && index < timers.length && timers[index] != null) {
+			return timers[index];
+		}
+		return registerParseTimer(entityType, index);
+	}
+
+	/** The slow path of {@link #parseTimerOf(String, int)}, taken once per entity type and struct version. */
+	private synchronized Timer registerParseTimer(final String entityType, final int index) {
+		final Timer[] timers = parseTimers.get(entityType);
+		if (timers != null && index < timers.length && timers[index] != null) {
+			return timers[index];
+		}
+		final Timer[] grownTimers = timers == null ? new Timer[index + 1] : Arrays.copyOf(timers, Math.max(timers.length, index + 1));
+		grownTimers[index] = Timer.builder("backlog.events.parse")
+				.description("The parse of an incoming event")
+				.tag("entityType", entityType)
+				.tag("structVersion", index > MAX_TAGGED_STRUCT_VERSION ? "other" : Integer.toString(index))
+				.publishPercentileHistogram()
+				.register(registry);
+		parseTimers.put(entityType, grownTimers);
+		return grownTimers[index];
+	}
+
+	private void registerGauge(
+			final String name,
+			final String description,
+			final ShardedBacklog backlog,
+			final String logisticCenter,
+			final ToIntFunction<BacklogSnapshot> value
+	) {
+		Gauge.builder(name, backlog, sumOfLatestSnapshot(value, Double.NaN))
+				.description(description)
+				.tag(LOGISTIC_CENTER_TAG, logisticCenter)
+				.strongReference(true)
+				.register(registry);
+	}
+
+	private void registerCounter(
+			final String name,
+			final String description,
+			final ShardedBacklog backlog,
+			final String logisticCenter,
+			final ToIntFunction<BacklogSnapshot> value
+	) {
+		FunctionCounter.builder(name, backlog, sumOfLatestSnapshot(value, 0))
+				.description(description)
+				.tag(LOGISTIC_CENTER_TAG, logisticCenter)
+				.register(registry);
+	}
+
+	/**
+	 * @return a function that sums the specified value of the latest snapshots of the shards of a backlog, or gives the
+	 *     specified default if none was published yet.
+	 */
+	private static ToDoubleFunction<ShardedBacklog> sumOfLatestSnapshot(final ToIntFunction<BacklogSnapshot> value, final double noSnapshot) {
+		return backlog -> {
+			final var snapshots = backlog.latestSnapshot();
+			return snapshots == null ? noSnapshot : snapshots.values.stream().mapToInt(value).sum();
+		};
+	}
+}
@@ -0,0 +1,65 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * An immutable copy of the cells of a {@link Backlog}, tagged with the arrival serial number of the last event
+ * integrated into it.
+ */
+@Getter
+@RequiredArgsConstructor
+public class BacklogPhoto {
+
+	final long lastEventArrivalSerialNumber;
+
+	final Instant lastEventArrivalDate;
+
+	final List<Backlog.Cell> cells;
+
+	/**
+	 * Takes a photo of the specified backlog. Must be called by the thread that integrates events into it.
+	 */
+	public static BacklogPhoto of(final Backlog backlog) {
+		return new BacklogPhoto(
+				backlog.getLastEventArrivalSerialNumber(),
+				backlog.getLastEventArrivalDate(),
+				backlog.getCells().collect(Collectors.toList())
+		);
+	}
+
+	/**
+	 * Takes a photo of the specified cells, which were the ones of a backlog just after the integration of the specified
+	 * event. Must be called by the owner of the cells.
+	 */
+	static BacklogPhoto of(final long lastEventArrivalSerialNumber, final Instant lastEventArrivalDate, final CellStore cells) {
+		return new BacklogPhoto(lastEventArrivalSerialNumber, lastEventArrivalDate, cells.toCells());
+	}
+
+	/** @return a new {@link CellStore} with the cells of this photo. */
+	public CellStore toCellStore(final PartitionsCatalog partitionsCatalog) {
+		final var cells = new CellStore(partitionsCatalog.getPartitions(), 1024);
+		for (Backlog.Cell cell : this.cells) {
+			final var content = new Backlog.CellContent(cell.population, cell.accumulatedPopulation);
+			content.variation = cell.variation;
+			cells.add(cells.keyOf(cell.coordinates), content);
+		}
+		return cells;
+	}
+
+	/**
+	 * Creates a {@link Backlog} whose cells are the ones of this photo. Note that the trajectories of the entities
+	 * are not part of the photo.
+	 */
+	public Backlog restore(final PartitionsCatalog partitionsCatalog) {
+		final var backlog = new Backlog(partitionsCatalog, lastEventArrivalSerialNumber, lastEventArrivalDate);
+		for (Backlog.Cell cell : cells) {
+			backlog.loadCell(cell.coordinates, new Backlog.CellContent(cell.population, cell.accumulatedPopulation));
+		}
+		return backlog;
+	}
+}
@@ -0,0 +1,175 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Stores and retrieves {@link BacklogPhoto}s into/from the "backlog_photo" and "backlog_photo_cell" tables. Each
+ * logistic center has its own sequence of photos.
+ */
+@Slf4j
+public class BacklogPhotoRepository {
+
+	/** The number of cells inserted by each multi-row insert statement. */
+	private static final int ROWS_PER_INSERT = 500;
+
+	private final Connection connection;
+
+	private final List<Partition> partitions;
+
+	/** The number of columns of the "backlog_photo_cell" table. */
+	private final int columnsPerRow;
+
+	public BacklogPhotoRepository(final Connection connection, final PartitionsCatalog partitionsCatalog) {
+		this.connection = connection;
+		this.partitions = partitionsCatalog.getPartitions();
+		this.columnsPerRow = partitions.size() + 4;
+	}
+
+	/**
+	 * Saves the specified photo of the backlog of the specified logistic center in a single transaction.
+	 *
+	 * @return the id of the saved photo.
+	 */
+	public long save(final String logisticCenter, final BacklogPhoto photo) throws SQLException {
+		final boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try {
+			final long photoId = insertPhoto(logisticCenter, photo);
+			final List<Backlog.Cell> cells = photo.getCells();
+			final int fullInsertsCount = cells.size() / ROWS_PER_INSERT;
+			if (fullInsertsCount > 0) {
+				try (var ps = connection.prepareStatement(buildCellsInsert(ROWS_PER_INSERT))) {
+					for (int insertIndex = 0; insertIndex < fullInsertsCount; ++insertIndex) {
+						bindCells(ps, photoId, cells.subList(insertIndex * ROWS_PER_INSERT, (insertIndex + 1) * ROWS_PER_INSERT));
+						ps.executeUpdate();
+					}
+				}
+			}
+			final int remainingRows = cells.size() % ROWS_PER_INSERT;
+			if (remainingRows > 0) {
+				try (var ps = connection.prepareStatement(buildCellsInsert(remainingRows))) {
+					bindCells(ps, photoId, cells.subList(cells.size() - remainingRows, cells.size()));
+					ps.executeUpdate();
+				}
+			}
+			connection.commit();
+			return photoId;
+		} catch (SQLException | RuntimeException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * @return the photo of the backlog of the specified logistic center with the greatest last event arrival serial
+	 *     number, or null if there is none.
+	 */
+	public BacklogPhoto findLatest(final String logisticCenter) throws SQLException {
+		final long photoId;
+		final long lastEventArrivalSerialNumber;
+		final Instant lastEventArrivalDate;
+		try (var ps = connection.prepareStatement(
+				"SELECT id, last_event_arrival_serial_number, last_event_arrival_date "
+						+ "FROM backlog_photo "
+						+ "WHERE logistic_center_id = ? "
+						+ "ORDER BY last_event_arrival_serial_number DESC "
+						+ "LIMIT 1"
+		)) {
+			ps.setString(1, logisticCenter);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				photoId = rs.getLong("id");
+				lastEventArrivalSerialNumber = rs.getLong("last_event_arrival_serial_number");
+				final Timestamp arrivalDate = rs.getTimestamp("last_event_arrival_date");
+				lastEventArrivalDate = arrivalDate != null ? arrivalDate.toInstant() : null;
+			}
+		}
+
+		final var cells = new ArrayList<Backlog.Cell>();
+		try (var ps = connection.prepareStatement(
+				"SELECT " + partitionColumns() + ", population, variation, accumulated_population "
+						+ "FROM backlog_photo_cell "
+						+ "WHERE photo_id = ?"
+		)) {
+			ps.setLong(1, photoId);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					final var coordinates = new Object[partitions.size()];
+					for (Partition partition : partitions) {
+						coordinates[partition.getOrdinal()] = rs.getObject(partition.getColumnName(), partition.getValueType());
+					}
+					cells.add(new Backlog.Cell(
+							coordinates,
+							rs.getInt("population"),
+							rs.getInt("variation"),
+							rs.getInt("accumulated_population")
+					));
+				}
+			}
+		}
+		log.info(
+				"The photo {} of {} with {} cells, tagged with the serial number {}, was loaded",
+				photoId, logisticCenter, cells.size(), lastEventArrivalSerialNumber
+		);
+		return new BacklogPhoto(lastEventArrivalSerialNumber, lastEventArrivalDate, Collections.unmodifiableList(cells));
+	}
+
+	private long insertPhoto(final String logisticCenter, final BacklogPhoto photo) throws SQLException {
+		try (var ps = connection.prepareStatement(
+				"INSERT INTO backlog_photo (logistic_center_id, last_event_arrival_serial_number, last_event_arrival_date, cells_count, date_created) "
+						+ "VALUES (?, ?, ?, ?, ?)",
+				Statement.RETURN_GENERATED_KEYS
+		)) {
+			ps.setString(1, logisticCenter);
+			ps.setLong(2, photo.getLastEventArrivalSerialNumber());
+			ps.setTimestamp(3, photo.getLastEventArrivalDate() != null ? Timestamp.from(photo.getLastEventArrivalDate()) : null);
+			ps.setInt(4, photo.getCells().size());
+			ps.setTimestamp(5, Timestamp.from(Instant.now()));
+			ps.executeUpdate();
+			try (var keys = ps.getGeneratedKeys()) {
+				keys.next();
+				return keys.getLong(1);
+			}
+		}
+	}
+
+	private String buildCellsInsert(final int rowsCount) {
+		final String rowPlaceholders = Collections.nCopies(columnsPerRow, "?").stream()
+				.collect(Collectors.joining(", ", "(", ")"));
+		return "INSERT INTO backlog_photo_cell (photo_id, " + partitionColumns() + ", population, variation, accumulated_population) "
+				+ "VALUES " + String.join(", ", Collections.nCopies(rowsCount, rowPlaceholders));
+	}
+
+	private void bindCells(final PreparedStatement ps, final long photoId, final List<Backlog.Cell> cells) throws SQLException {
+		int parameterIndex = 1;
+		for (Backlog.Cell cell : cells) {
+			ps.setLong(parameterIndex++, photoId);
+			for (Partition partition : partitions) {
+				ps.setObject(parameterIndex++, cell.coordinates[partition.getOrdinal()]);
+			}
+			ps.setInt(parameterIndex++, cell.population);
+			ps.setInt(parameterIndex++, cell.variation);
+			ps.setInt(parameterIndex++, cell.accumulatedPopulation);
+		}
+	}
+
+	private String partitionColumns() {
+		return partitions.stream().map(Partition::getColumnName).collect(Collectors.joining(", "));
+	}
+}
@@ -0,0 +1,120 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Takes photos of a {@link ShardedBacklog} periodically and saves them with a {@link BacklogPhotoRepository}.
+ *
+ * <p>The photos are requested by the thread that dispatches the events to the backlog, so that all the shards take
+ * their part at the same point of the event stream, and saved by a background thread so that the integration is not
+ * stalled by the database.
+ */
+@Slf4j
+public class BacklogPhotographer implements AutoCloseable {
+
+	/** The number of integrated events between consecutive checks of the clock. */
+	private static final int EVENTS_BETWEEN_CLOCK_CHECKS = 1000;
+
+	/** Provides a new connection to the database where the photos are saved. */
+	@FunctionalInterface
+	public interface Connector {
+		Connection connect() throws SQLException;
+	}
+
+	private final Connector connector;
+
+	private final String logisticCenter;
+
+	private final PartitionsCatalog partitionsCatalog;
+
+	private final long intervalNanos;
+
+	private final ExecutorService writer;
+
+	private long nextPhotoNanos;
+
+	private int eventsSinceLastClockCheck = 0;
+
+	private CompletableFuture<Void> photoUnderWriting;
+
+	/** The arrival serial number of the last event of the last saved photo. */
+	private volatile long lastSavedPhotoSerialNumber;
+
+	/**
+	 * @param connector provider of the connections used to save the photos.
+	 * @param logisticCenter the logistic center of the photographed backlog.
+	 * @param partitionsCatalog the partitions of the photographed backlog.
+	 * @param interval the minimum time between photos.
+	 * @param initialPhotoSerialNumber the arrival serial number of the last event of the photo from which the
+	 *     photographed backlog was restored.
+	 */
+	public BacklogPhotographer(
+			final Connector connector,
+			final String logisticCenter,
+			final PartitionsCatalog partitionsCatalog,
+			final Duration interval,
+			final long initialPhotoSerialNumber
+	) {
+		this.connector = connector;
+		this.logisticCenter = logisticCenter;
+		this.partitionsCatalog = partitionsCatalog;
+		this.intervalNanos = interval.toNanos();
+		this.nextPhotoNanos = System.nanoTime() + intervalNanos;
+		this.lastSavedPhotoSerialNumber = initialPhotoSerialNumber;
+		this.writer = Executors.newSingleThreadExecutor(runnable -> {
+			final var thread = new Thread(runnable, "photographer-" + logisticCenter);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/** @return the arrival serial number of the last event of the last saved photo. */
+	public long getLastSavedPhotoSerialNumber() {
+		return lastSavedPhotoSerialNumber;
+	}
+
+	/**
+	 * Should be called after each event dispatch, by the dispatcher thread. Takes a photo of the specified backlog if the
+	 * interval since the previous one has elapsed and the previous one was already saved.
+	 */
+	public void onIntegrated(final ShardedBacklog backlog) {
+		if (++eventsSinceLastClockCheck < EVENTS_BETWEEN_CLOCK_CHECKS) {
+			return;
+		}
+		eventsSinceLastClockCheck = 0;
+		final long now = System.nanoTime();
+		if (now - nextPhotoNanos >= 0 && (photoUnderWriting == null || photoUnderWriting.isDone())) {
+			nextPhotoNanos = now + intervalNanos;
+			photoUnderWriting = backlog.photo().thenAcceptAsync(this::save, writer);
+		}
+	}
+
+	private void save(final BacklogPhoto photo) {
+		final long start = System.currentTimeMillis();
+		try (var connection = connector.connect()) {
+			final long photoId = new BacklogPhotoRepository(connection, partitionsCatalog).save(logisticCenter, photo);
+			lastSavedPhotoSerialNumber = photo.getLastEventArrivalSerialNumber();
+			log.info(
+					"The photo {} of {} with {} cells, tagged with the serial number {}, was saved in {} ms",
+					photoId, logisticCenter, photo.getCells().size(), photo.getLastEventArrivalSerialNumber(), System.currentTimeMillis() - start
+			);
+		} catch (SQLException e) {
+			log.error(
+					"The photo of {} tagged with the serial number {} could not be saved",
+					logisticCenter, photo.getLastEventArrivalSerialNumber(), e
+			);
+		}
+	}
+
+	@Override
+	public void close() {
+		writer.shutdown();
+	}
+}
@@ -0,0 +1,583 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.Trajectory;
+import com.mercadolibre.flowbacklogchecker.consolidation.PartitionsCatalog.PartitionsDb;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.web.reactive.function.server.HandlerStrategies;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A non-blocking HTTP API that evaluates the {@link Queries} on the live backlogs of the monitored logistic centers.
+ *
+ * <p>The queries read the {@link ShardedBacklog#latestSnapshot()} of the backlog, which involves no shard thread: until
+ * one is published, they are answered with the 503 status, and so are the queries about the trajectories until one
+ * that contains them is. The {@link CellColumns} of the cells are copied once per snapshot, see {@link
+ * BacklogSnapshot#columns()}, except for the population grouped by the partitions of a registered rollup with no
+ * partition filter, which is read from the rollups of the snapshot. See {@link Backlog#registerRollup(int...)}. The
+ * filtering, grouping and sorting are done on a bounded scheduler, so the query load never runs on the threads that
+ * integrate the events. The requests that exceed the queue of said scheduler are rejected with the 503 status.
+ *
+ * <p>The endpoints, all of them GET:
+ * <ul>
+ *     <li>{@code /backlogs/{logisticCenter}/population}: the population grouped by partitions.</li>
+ *     <li>{@code /backlogs/{logisticCenter}/trajectories/healthy}: the not broken trajectories grouped by the
+ *     partitions of their last state.</li>
+ *     <li>{@code /backlogs/{logisticCenter}/trajectories/broken}: the broken trajectories grouped by the partitions of
+ *     their last good link, or of their first bad link if the {@code side} parameter is {@code firstBad}.</li>
+ * </ul>
+ *
+ * <p>The parameters, all of them optional, are the names of {@link PartitionsDb}:
+ * <ul>
+ *     <li>{@code groupBy}: the comma separated partitions to group by. None by default.</li>
+ *     <li>{@code compareBy}: the comma separated partitions whose equality tells if two states are the same one, for
+ *     the trajectories. All by default.</li>
+ *     <li>{@code <partition>}: the comma separated values the partition must have. The dates in ISO-8601.</li>
+ *     <li>{@code <partition>.from} and {@code <partition>.to}: the inclusive and exclusive bounds of the values of the
+ *     partition.</li>
+ *     <li>{@code sla}: the deadline, in ISO-8601, of a new state of the trajectories.</li>
+ *     <li>{@code offset} and {@code limit}: the page of groups, in the order of their keys.</li>
+ *     <li>{@code trajectoriesPerGroup}: the maximum number of trajectories of each group that are listed.</li>
+ *     <li>{@code asOfSerial} or {@code asOfDate}: the arrival serial number, or the ISO-8601 arrival date, of the last
+ *     event integrated into the population, which is then reconstructed from the {@link CellHistory} instead of read
+ *     from the live backlog.</li>
+ * </ul>
+ * The partition filters apply to the cells, and to the head state of the trajectories.
+ *
+ * <p>If {@link #exposeMetrics(PrometheusMeterRegistry)} was called, the meters of the registry are exposed at {@code
+ * /actuator/prometheus}, in the Prometheus text format, and the latency of each endpoint is recorded in it.
+ *
+ * <p>The groups are streamed as a JSON array, or as newline delimited JSON if the request accepts {@code
+ * application/x-ndjson}.
+ */
+@Slf4j
+public class BacklogQueryApi implements AutoCloseable {
+	private static final int DEFAULT_LIMIT = 1_000;
+
+	private static final int MAX_LIMIT = 10_000;
+
+	private static final int DEFAULT_TRAJECTORIES_PER_GROUP = 100;
+
+	private static final String FROM_SUFFIX = ".from";
+
+	private static final String TO_SUFFIX = ".to";
+
+	private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final int[] ALL_PARTITIONS = Arrays.stream(PartitionsDb.values()).mapToInt(PartitionsDb::ordinal).toArray();
+
+	private final Map<String, ShardedBacklog> backlogs;
+
+	private final ObjectMapper objectMapper;
+
+	/** Where the queries are evaluated, out of the shard threads. */
+	private final Scheduler queryScheduler;
+
+	private DisposableServer server = null;
+
+	/** The timers of the queries the endpoints evaluate. */
+	private final Queries.Timers queryTimers;
+
+	/** The registry whose meters are exposed, or null if none is. */
+	private PrometheusMeterRegistry metricsRegistry = null;
+
+	/** The latency of each endpoint, by name, registered in {@link #metricsRegistry}. */
+	private Map<String, Timer> endpointTimers = Map.of();
+
+	/**
+	 * @param backlogs the backlog of each monitored logistic center.
+	 * @param queryTimers where the latency of the queries is recorded. See {@link BacklogMetrics#queryTimers()}.
+	 * @param queryThreads the maximum number of queries evaluated concurrently.
+	 * @param queuedQueries the maximum number of queries waiting for a thread. The following ones are rejected.
+	 */
+	public BacklogQueryApi(
+			final Map<String, ShardedBacklog> backlogs,
+			final ObjectMapper objectMapper,
+			final Queries.Timers queryTimers,
+			final int queryThreads,
+			final int queuedQueries
+	) {
+		this.backlogs = backlogs;
+		this.objectMapper = objectMapper;
+		this.queryTimers = queryTimers;
+		this.queryScheduler = Schedulers.newBoundedElastic(queryThreads, queuedQueries, "backlog-queries");
+	}
+
+	/** Exposes the meters of the specified registry, and records the latency of the endpoints in it. Must be called before {@link #start(int)}. */
+	public void exposeMetrics(final PrometheusMeterRegistry registry) {
+		this.metricsRegistry = registry;
+		this.endpointTimers = Map.of(
+				"population", endpointTimer(registry, "population"),
+				"healthyTrajectories", endpointTimer(registry, "healthyTrajectories"),
+				"brokenTrajectories", endpointTimer(registry, "brokenTrajectories")
+		);
+	}
+
+	private static Timer endpointTimer(final MeterRegistry registry, final String endpoint) {
+		return Timer.builder("backlog.api.requests")
+				.description("The evaluation of a request of the query API, until its response starts")
+				.tag("endpoint", endpoint)
+				.publishPercentileHistogram()
+				.register(registry);
+	}
+
+	/** Starts listening the specified port. */
+	public void start(final int port) {
+		final var strategies = HandlerStrategies.builder()
+				.codecs(configurer -> configurer.defaultCodecs().jackson2JsonEncoder(new Jackson2JsonEncoder(objectMapper)))
+				.build();
+		server = HttpServer.create()
+				.port(port)
+				.handle(new ReactorHttpHandlerAdapter(RouterFunctions.toHttpHandler(routes(), strategies)))
+				.bindNow();
+		log.info("The query API is listening the port {}", server.port());
+	}
+
+	/** Stops listening and releases the query threads. */
+	@Override
+	public void close() {
+		if (server != null) {
+			server.disposeNow();
+		}
+		queryScheduler.dispose();
+	}
+
+	public RouterFunction<ServerResponse> routes() {
+		final var routes = RouterFunctions.route()
+				.GET("/backlogs/{logisticCenter}/population", this::population)
+				.GET("/backlogs/{logisticCenter}/trajectories/healthy", this::healthyTrajectories)
+				.GET("/backlogs/{logisticCenter}/trajectories/broken", this::brokenTrajectories);
+		if (metricsRegistry != null) {
+			routes.GET("/actuator/prometheus", this::prometheus);
+		}
+		return routes.build();
+	}
+
+	/** A group of cells and its population. */
+	public static class PopulationGroup {
+		/** The value of each grouped partition, by partition name. */
+		public final Map<String, Object> group;
+
+		public final int population;
+
+		PopulationGroup(final Map<String, Object> group, final int population) {
+			this.group = group;
+			this.population = population;
+		}
+	}
+
+	/** A group of trajectories, and the first ones of them. */
+	public static class TrajectoryGroup {
+		/** The value of each grouped partition, by partition name. */
+		public final Map<String, Object> group;
+
+		/** The number of trajectories of the group. */
+		public final int count;
+
+		public final List<TrajectorySummary> trajectories;
+
+		TrajectoryGroup(final Map<String, Object> group, final int count, final List<TrajectorySummary> trajectories) {
+			this.group = group;
+			this.count = count;
+			this.trajectories = trajectories;
+		}
+	}
+
+	/** The entity of a trajectory, and its last event. */
+	public static class TrajectorySummary {
+		public final long entityId;
+
+		public final int events;
+
+		public final long lastEventId;
+
+		public final Instant lastEventArrivalDate;
+
+		public final EntityState headState;
+
+		TrajectorySummary(final Trajectory trajectory) {
+			this.entityId = trajectory.entityId;
+			this.events = trajectory.size();
+			this.lastEventId = trajectory.eventIdAt(trajectory.size() - 1);
+			this.lastEventArrivalDate = trajectory.arrivalDateAt(trajectory.size() - 1);
+			this.headState = trajectory.getHeadState();
+		}
+	}
+
+	private Mono<ServerResponse> prometheus(final ServerRequest request) {
+		return Mono.fromCallable(metricsRegistry::scrape)
+				.subscribeOn(queryScheduler)
+				.flatMap(scrape -> ServerResponse.ok().contentType(MediaType.parseMediaType(PROMETHEUS_CONTENT_TYPE)).bodyValue(scrape));
+	}
+
+	private Mono<ServerResponse> population(final ServerRequest request) {
+		return handle(request, "population", backlog -> {
+			final var parameters = new Parameters(request);
+			final CompletableFuture<Map<Queries.Key, Queries.IntAccum>> groups;
+			if (parameters.asOfSerial != null || parameters.asOfDate != null) {
+				groups = pastCells(backlog, parameters).thenApplyAsync(
+						photo -> columnarPopulation(List.of(photo.toCellStore(backlog.partitionsCatalog).toColumns()), parameters),
+						queryScheduler::schedule
+				);
+			} else {
+				final var snapshot = publishedSnapshot(backlog);
+				final boolean rolledUp = parameters.valueFilters.isEmpty()
+						&& snapshot.values.stream().allMatch(shardSnapshot -> shardSnapshot.rollupOf(parameters.groupBy) != null);
+				groups = CompletableFuture.supplyAsync(
+						() -> rolledUp
+								? rollupPopulation(snapshot.values, parameters)
+								: columnarPopulation(snapshot.values.stream().map(BacklogSnapshot::columns).collect(Collectors.toList()), parameters),
+						queryScheduler::schedule
+				);
+			}
+			return groups.thenApply(acc -> page(acc, parameters, (key, intAccum) -> new PopulationGroup(parameters.groupOf(key), intAccum.register)));
+		}, PopulationGroup.class);
+	}
+
+	/** @return the population of the specified columns of the shards, filtered and grouped as the parameters tell. */
+	private static Map<Queries.Key, Queries.IntAccum> columnarPopulation(final List<CellColumns> columnsOfShards, final Parameters parameters) {
+		final var filter = new CellColumns.Filter();
+		parameters.valueFilters.forEach((partition, valueFilter) -> filter.where(partition.ordinal(), valueFilter));
+		final var acc = new TreeMap<Queries.Key, Queries.IntAccum>();
+		for (CellColumns columns : columnsOfShards) {
+			columns.populationGrouped(filter, parameters.groupBy, (groupValues, population) ->
+					acc.computeIfAbsent(new Queries.Key(groupValues), key -> new Queries.IntAccum()).register += population
+			);
+		}
+		acc.values().removeIf(intAccum -> intAccum.register == 0);
+		return acc;
+	}
+
+	/**
+	 * @return the population of the specified snapshots of the shards grouped as the parameters tell, read from their
+	 *     rollups of the grouped partitions, in time proportional to the number of groups. The parameters must have no
+	 *     value filter.
+	 */
+	private static Map<Queries.Key, Queries.IntAccum> rollupPopulation(final List<BacklogSnapshot> shardsSnapshots, final Parameters parameters) {
+		final var acc = new TreeMap<Queries.Key, Queries.IntAccum>();
+		for (BacklogSnapshot shardSnapshot : shardsSnapshots) {
+			shardSnapshot.rollupOf(parameters.groupBy).forEach((groupValues, population) ->
+					acc.computeIfAbsent(new Queries.Key(groupValues), key -> new Queries.IntAccum()).register += population
+			);
+		}
+		acc.values().removeIf(intAccum -> intAccum.register == 0);
+		return acc;
+	}
+
+	private Mono<ServerResponse> healthyTrajectories(final ServerRequest request) {
+		return handle(request, "healthyTrajectories", backlog -> {
+			final var parameters = new Parameters(request);
+			return detachedTrajectories(backlog, parameters)
+					.thenApplyAsync(trajectories -> {
+						final var groups = Queries.healthyTrajectoryGrouping(
+								queryTimers,
+								trajectories.stream(),
+								trajectory -> true,
+								Queries.buildStateComparator(parameters.compareBy),
+								parameters.groupBy
+						);
+						return page(groups, parameters, (key, group) -> parameters.trajectoryGroupOf(key, group));
+					}, queryScheduler::schedule);
+		}, TrajectoryGroup.class);
+	}
+
+	private Mono<ServerResponse> brokenTrajectories(final ServerRequest request) {
+		return handle(request, "brokenTrajectories", backlog -> {
+			final var parameters = new Parameters(request);
+			final String side = request.queryParam("side").orElse("lastGood");
+			if (!side.equals("lastGood") && !side.equals("firstBad")) {
+				throw new IllegalArgumentException("The side must be lastGood or firstBad: " + side);
+			}
+			return detachedTrajectories(backlog, parameters)
+					.thenApplyAsync(trajectories -> {
+						final var groups = Queries.brokenTrajectoriesGrouping(
+								queryTimers,
+								trajectories.stream(),
+								brokenTrajectoryInfo -> true,
+								Queries.buildStateComparator(parameters.compareBy),
+								side.equals("lastGood"),
+								parameters.groupBy
+						);
+						return page(groups, parameters, (key, group) -> parameters.trajectoryGroupOf(key, group));
+					}, queryScheduler::schedule);
+		}, TrajectoryGroup.class);
+	}
+
+	/**
+	 * Evaluates the specified query on the backlog of the requested logistic center, and streams the groups it gives.
+	 * The invalid parameters are answered with the 400 status, the unknown logistic centers with the 404 status, and
+	 * the rejected queries and the ones about a backlog, or trajectories, not published yet with the 503 status.
+	 *
+	 * @param endpoint the name of the endpoint, which tags its latency.
+	 */
+	private <T> Mono<ServerResponse> handle(
+			final ServerRequest request,
+			final String endpoint,
+			final Function<ShardedBacklog, CompletableFuture<List<T>>> query,
+			final Class<T> groupClass
+	) {
+		final ShardedBacklog backlog = backlogs.get(request.pathVariable("logisticCenter"));
+		if (backlog == null) {
+			return ServerResponse.notFound().build();
+		}
+		final MediaType mediaType = request.headers().accept().contains(MediaType.APPLICATION_NDJSON)
+				? MediaType.APPLICATION_NDJSON
+				: MediaType.APPLICATION_JSON;
+		final Mono<ServerResponse> response = Mono.defer(() -> Mono.fromFuture(query.apply(backlog)))
+				.flatMap(groups -> ServerResponse.ok().contentType(mediaType).body(Flux.fromIterable(groups), groupClass))
+				.onErrorResume(IllegalArgumentException.class, e -> ServerResponse.badRequest().bodyValue(e.getMessage()))
+				.onErrorResume(
+						e -> e instanceof RejectedExecutionException || e.getCause() instanceof RejectedExecutionException,
+						e -> ServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE).bodyValue("Too many queries")
+				)
+				.onErrorResume(
+						NotPublished.class,
+						e -> ServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE).bodyValue(e.getMessage())
+				);
+		final Timer timer = endpointTimers.get(endpoint);
+		if (timer == null) {
+			return response;
+		}
+		return Mono.defer(() -> {
+			final Timer.Sample sample = Timer.start(metricsRegistry);
+			return response.doFinally(signal -> sample.stop(timer));
+		});
+	}
+
+	/** Reconstructs, on the query scheduler, the cells as of the event the {@code asOf} parameters tell. */
+	private CompletableFuture<BacklogPhoto> pastCells(final ShardedBacklog backlog, final Parameters parameters) {
+		if (!backlog.hasCellHistory()) {
+			throw new IllegalArgumentException("The history of the cells of this backlog is disabled");
+		}
+		return parameters.asOfSerial != null
+				? backlog.cellsAt(parameters.asOfSerial, queryScheduler::schedule)
+				: backlog.cellsAt(parameters.asOfDate, queryScheduler::schedule);
+	}
+
+	/**
+	 * Gives, on the query scheduler, the trajectories of the latest snapshot that pass the partition and SLA filters of
+	 * the specified parameters. The shard threads are never involved: scanning and copying all the trajectories would
+	 * stall the integration of the events.
+	 *
+	 * @throws NotPublished if no snapshot with the trajectories was published yet. See {@link
+	 *     ShardedBacklog#enableTrajectorySnapshots()}.
+	 */
+	private CompletableFuture<List<Trajectory>> detachedTrajectories(final ShardedBacklog backlog, final Parameters parameters) {
+		final Predicate<Trajectory> filter = parameters.trajectoryFilter();
+		final var snapshot = publishedSnapshot(backlog);
+		if (!snapshot.values.stream().allMatch(BacklogSnapshot::hasTrajectories)) {
+			throw new NotPublished("The trajectories are not published yet");
+		}
+		return CompletableFuture.supplyAsync(
+				() -> snapshot.values.stream()
+						.flatMap(shardSnapshot -> shardSnapshot.trajectories().filter(filter))
+						.collect(Collectors.toList()),
+				queryScheduler::schedule
+		);
+	}
+
+	/**
+	 * @return the latest snapshots of the shards of the specified backlog.
+	 * @throws NotPublished if none were published yet.
+	 */
+	private static ShardedBacklog.ShardsResults<BacklogSnapshot> publishedSnapshot(final ShardedBacklog backlog) {
+		final var snapshot = backlog.latestSnapshot();
+		if (snapshot == null) {
+			throw new NotPublished("The backlog is not published yet");
+		}
+		return snapshot;
+	}
+
+	/** Thrown when a backlog, or its trajectories, are queried before a snapshot of them is published. */
+	private static class NotPublished extends RuntimeException {
+		NotPublished(final String message) {
+			super(message);
+		}
+	}
+
+	private static <V, T> List<T> page(
+			final Map<Queries.Key, V> groups,
+			final Parameters parameters,
+			final BiFunction<Queries.Key, V, T> toGroup
+	) {
+		return groups.entrySet().stream()
+				.skip(parameters.offset)
+				.limit(parameters.limit)
+				.map(entry -> toGroup.apply(entry.getKey(), entry.getValue()))
+				.collect(Collectors.toList());
+	}
+
+	/** The parsed parameters of a request. */
+	private static class Parameters {
+		final int[] groupBy;
+
+		final int[] compareBy;
+
+		/** The filter of the values of each filtered partition. */
+		final Map<PartitionsDb, Predicate<Object>> valueFilters = new LinkedHashMap<>();
+
+		final Instant sla;
+
+		final long offset;
+
+		final int limit;
+
+		final int trajectoriesPerGroup;
+
+		/** The arrival serial number of the last event of the queried past population, or null for the live one. */
+		final Long asOfSerial;
+
+		/** The arrival date of the last event of the queried past population, or null for the live one. */
+		final Instant asOfDate;
+
+		Parameters(final ServerRequest request) {
+			this.groupBy = request.queryParam("groupBy").map(Parameters::parsePartitions).orElse(new int[0]);
+			this.compareBy = request.queryParam("compareBy").map(Parameters::parsePartitions).orElse(ALL_PARTITIONS);
+			this.sla = request.queryParam("sla").map(Parameters::parseInstant).orElse(null);
+			this.offset = request.queryParam("offset").map(Parameters::parseNatural).orElse(0);
+			this.limit = Math.min(MAX_LIMIT, request.queryParam("limit").map(Parameters::parseNatural).orElse(DEFAULT_LIMIT));
+			this.trajectoriesPerGroup = request.queryParam("trajectoriesPerGroup")
+					.map(Parameters::parseNatural)
+					.orElse(DEFAULT_TRAJECTORIES_PER_GROUP);
+			this.asOfSerial = request.queryParam("asOfSerial").map(Parameters::parseSerial).orElse(null);
+			this.asOfDate = request.queryParam("asOfDate").map(Parameters::parseInstant).orElse(null);
+			if (asOfSerial != null && asOfDate != null) {
+				throw new IllegalArgumentException("Only one of asOfSerial and asOfDate may be specified");
+			}
+			for (PartitionsDb partition : PartitionsDb.values()) {
+				final String name = partition.name();
+				request.queryParam(name).ifPresent(values -> {
+					final Set<Object> accepted = new HashSet<>();
+					for (String value : values.split(",")) {
+						accepted.add(parseValue(partition, value.trim()));
+					}
+					addValueFilter(partition, accepted::contains);
+				});
+				request.queryParam(name + FROM_SUFFIX).ifPresent(from -> {
+					final Comparable<Object> bound = parseValue(partition, from);
+					addValueFilter(partition, value -> value != null && bound.compareTo(value) <= 0);
+				});
+				request.queryParam(name + TO_SUFFIX).ifPresent(to -> {
+					final Comparable<Object> bound = parseValue(partition, to);
+					addValueFilter(partition, value -> value != null && bound.compareTo(value) > 0);
+				});
+			}
+		}
+
+		/** The filter of the trajectories by the partitions of their head state, and by the SLA. */
+		Predicate<Trajectory> trajectoryFilter() {
+			Predicate<Trajectory> filter = sla == null ? trajectory -> true : Queries.buildTrajectorySlaFilter(sla);
+			for (var entry : valueFilters.entrySet()) {
+				final Function<EntityState, Object> valueGetter = entry.getKey().valueGetter;
+				final Predicate<Object> valueFilter = entry.getValue();
+				filter = filter.and(trajectory -> valueFilter.test(valueGetter.apply(trajectory.getHeadState())));
+			}
+			return filter;
+		}
+
+		Map<String, Object> groupOf(final Queries.Key key) {
+			final var group = new LinkedHashMap<String, Object>();
+			for (int index = 0; index < groupBy.length; ++index) {
+				group.put(PartitionsDb.values()[groupBy[index]].name(), key.key[index]);
+			}
+			return group;
+		}
+
+		TrajectoryGroup trajectoryGroupOf(final Queries.Key key, final List<Trajectory> trajectories) {
+			return new TrajectoryGroup(
+					groupOf(key),
+					trajectories.size(),
+					trajectories.stream().limit(trajectoriesPerGroup).map(TrajectorySummary::new).collect(Collectors.toList())
+			);
+		}
+
+		private void addValueFilter(final PartitionsDb partition, final Predicate<Object> valueFilter) {
+			valueFilters.merge(partition, valueFilter, Predicate::and);
+		}
+
+		private static int[] parsePartitions(final String names) {
+			if (names.isBlank()) {
+				return new int[0];
+			}
+			return Arrays.stream(names.split(","))
+					.map(String::trim)
+					.mapToInt(name -> {
+						try {
+							return PartitionsDb.valueOf(name).ordinal();
+						} catch (IllegalArgumentException e) {
+							throw new IllegalArgumentException("Unknown partition: " + name);
+						}
+					})
+					.toArray();
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Comparable<Object> parseValue(final PartitionsDb partition, final String value) {
+			if (partition.valueType == Timestamp.class) {
+				return (Comparable<Object>) (Comparable<?>) Timestamp.from(parseInstant(value));
+			}
+			return (Comparable<Object>) (Comparable<?>) value;
+		}
+
+		private static Instant parseInstant(final String value) {
+			try {
+				return Instant.parse(value);
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("Invalid ISO-8601 instant: " + value);
+			}
+		}
+
+		private static int parseNatural(final String value) {
+			try {
+				final int natural = Integer.parseInt(value);
+				if (natural >= 0) {
+					return natural;
+				}
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+			throw new IllegalArgumentException("Invalid natural number: " + value);
+		}
+
+		private static long parseSerial(final String value) {
+			try {
+				return Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid arrival serial number: " + value);
+			}
+		}
+	}
+}
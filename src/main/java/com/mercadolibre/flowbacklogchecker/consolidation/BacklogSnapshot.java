@@ -0,0 +1,220 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.Trajectory;
+import com.mercadolibre.flowbacklogchecker.consolidation.BacklogCheckpoint.TrajectoryImage;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+
+/**
+ * An immutable view of a {@link Backlog} as it was just after the event with the arrival serial number {@link
+ * #lastEventArrivalSerialNumber} was integrated. Snapshots are published by the thread that integrates the events,
+ * with {@link Backlog#publishSnapshot()}, and can be read by any number of threads without locks while the backlog
+ * keeps changing.
+ *
+ * <p>The cells and the rollups are copied on each publication, given they are small. The open trajectories, which are
+ * not, are versioned only if {@link Backlog#enableTrajectorySnapshots()} was called: they are kept in a {@link
+ * TrajectoryTable} whose buckets are shared by consecutive versions, and only the buckets of the entities touched since
+ * the previous publication are copied. Hence a publication costs time proportional to the number of cells plus the
+ * number of touched entities.
+ *
+ * <p>A version is reclaimed by the garbage collector once neither a reader nor a newer version references it, so the
+ * readers need no epoch registration: holding the reference is what keeps the version alive.
+ */
+public final class BacklogSnapshot {
+	/** The arrival serial number of the last event integrated before this snapshot was taken. */
+	public final long lastEventArrivalSerialNumber;
+
+	public final Instant lastEventArrivalDate;
+
+	public final int created;
+	public final int terminatedSuccessfully;
+	public final int discardedEvents;
+	public final int irregularTrajectories;
+
+	/** The number of open trajectories, the spilled ones included. */
+	public final int openTrajectories;
+
+	/** The number of open trajectories whose events are not continuous in arrival order. */
+	public final int discontinuousTrajectories;
+
+	/** A copy of the cells. It must not be modified. */
+	public final CellStore cells;
+
+	/** The columnar copy of {@link #cells}, made by the first {@link #columns()} call. */
+	private volatile CellColumns columns = null;
+
+	/** The copies of the registered rollups, which decode their groups with {@link #cells}. */
+	private final Rollup[] rollups;
+
+	/** The open trajectories, or null if they are not versioned. */
+	private final TrajectoryTable trajectories;
+
+	BacklogSnapshot(final Backlog backlog, final Rollup[] rollups, final TrajectoryTable trajectories) {
+		this.lastEventArrivalSerialNumber = backlog.lastEventArrivalSerialNumber;
+		this.lastEventArrivalDate = backlog.lastEventArrivalDate;
+		this.created = backlog.created;
+		this.terminatedSuccessfully = backlog.terminatedSuccessfully;
+		this.discardedEvents = backlog.discardedEvents;
+		this.irregularTrajectories = backlog.irregularTrajectories;
+		this.openTrajectories = backlog.openTrajectoriesCount();
+		this.discontinuousTrajectories = backlog.trajectoriesByEntity.size();
+		this.cells = new CellStore(backlog.cells);
+		this.rollups = new Rollup[rollups.length];
+		for (int index = 0; index < rollups.length; ++index) {
+			this.rollups[index] = new Rollup(rollups[index], cells);
+		}
+		this.trajectories = trajectories;
+	}
+
+	/**
+	 * @return the columnar copy of the cells, which is made by the first call and shared by the following ones, so that
+	 *     the columnar queries of a snapshot pay for it once.
+	 */
+	public CellColumns columns() {
+		CellColumns copy = columns;
+		if (copy == null) {
+			synchronized (this) {
+				copy = columns;
+				if (copy == null) {
+					copy = cells.toColumns();
+					columns = copy;
+				}
+			}
+		}
+		return copy;
+	}
+
+	/** @return the rollup that groups by the specified partitions, in the specified order, or null if there is none. */
+	public Rollup rollupOf(final int... partitionOrdinals) {
+		for (Rollup rollup : rollups) {
+			if (rollup.groupsBy(partitionOrdinals)) {
+				return rollup;
+			}
+		}
+		return null;
+	}
+
+	/** Tells if this snapshot contains the open trajectories. See {@link Backlog#enableTrajectorySnapshots()}. */
+	public boolean hasTrajectories() {
+		return trajectories != null;
+	}
+
+	/** @return the number of open trajectories. */
+	public int trajectoriesCount() {
+		checkTrajectories();
+		return trajectories.size;
+	}
+
+	/**
+	 * @return the open trajectories, in no particular order. They are materialized lazily, and reference their states
+	 *     through a dictionary of the stream, so the stream must be consumed by a single thread.
+	 */
+	public Stream<Trajectory> trajectories() {
+		checkTrajectories();
+		final var states = new StateDictionary();
+		return trajectories.images().map(image -> image.toTrajectory(states));
+	}
+
+	/** @return the open trajectory of the specified entity, or null if there is none. */
+	public Trajectory getTrajectory(final long entityId) {
+		checkTrajectories();
+		for (TrajectoryImage image : trajectories.buckets[TrajectoryTable.bucketOf(entityId)]) {
+			if (image.records.entityId == entityId) {
+				return image.toTrajectory(new StateDictionary());
+			}
+		}
+		return null;
+	}
+
+	private void checkTrajectories() {
+		if (trajectories == null) {
+			throw new IllegalStateException("The trajectories are not included in the snapshots of this backlog");
+		}
+	}
+
+	/**
+	 * An immutable set of {@link TrajectoryImage}s, one per entity, split in buckets by the hash of the entity id so
+	 * that a new version shares with the previous one all the buckets that were not touched.
+	 */
+	static final class TrajectoryTable {
+		private static final int BUCKETS_BITS = 16;
+
+		private static final TrajectoryImage[] EMPTY_BUCKET = new TrajectoryImage[0];
+
+		private final TrajectoryImage[][] buckets;
+
+		private final int size;
+
+		private TrajectoryTable(final TrajectoryImage[][] buckets, final int size) {
+			this.buckets = buckets;
+			this.size = size;
+		}
+
+		/** @return the table of the specified trajectories, which must be of distinct entities. */
+		static TrajectoryTable of(final Stream<Trajectory> trajectories) {
+			final TrajectoryImage[] images = trajectories.map(TrajectoryImage::new).toArray(TrajectoryImage[]::new);
+			final var bucketsLengths = new int[1 << BUCKETS_BITS];
+			for (TrajectoryImage image : images) {
+				bucketsLengths[bucketOf(image.records.entityId)] += 1;
+			}
+			final var buckets = new TrajectoryImage[bucketsLengths.length][];
+			for (int bucket = 0; bucket < buckets.length; ++bucket) {
+				buckets[bucket] = bucketsLengths[bucket] == 0 ? EMPTY_BUCKET : new TrajectoryImage[bucketsLengths[bucket]];
+				bucketsLengths[bucket] = 0;
+			}
+			for (TrajectoryImage image : images) {
+				final int bucket = bucketOf(image.records.entityId);
+				buckets[bucket][bucketsLengths[bucket]++] = image;
+			}
+			return new TrajectoryTable(buckets, images.length);
+		}
+
+		/**
+		 * @param touchedEntities the entities whose trajectory may have changed since this version was built.
+		 * @param currentTrajectory gives the current trajectory of an entity, or null if it has none.
+		 * @return the next version of this table, which shares the buckets of the entities that were not touched.
+		 */
+		TrajectoryTable with(final LongLongHashMap touchedEntities, final LongFunction<Trajectory> currentTrajectory) {
+			final var buckets = this.buckets.clone();
+			final var touchedBuckets = new boolean[buckets.length];
+			final int[] size = {this.size};
+			touchedEntities.forEach((entityId, ignored) -> {
+				final int bucket = bucketOf(entityId);
+				if (!touchedBuckets[bucket]) {
+					// the first touch of the bucket removes the images of all the touched entities of the bucket
+					touchedBuckets[bucket] = true;
+					final int previousLength = buckets[bucket].length;
+					buckets[bucket] = Arrays.stream(buckets[bucket])
+							.filter(image -> touchedEntities.get(image.records.entityId) == LongLongHashMap.NO_VALUE)
+							.toArray(TrajectoryImage[]::new);
+					size[0] -= previousLength - buckets[bucket].length;
+				}
+				final Trajectory trajectory = currentTrajectory.apply(entityId);
+				if (trajectory != null) {
+					buckets[bucket] = Arrays.copyOf(buckets[bucket], buckets[bucket].length + 1);
+					buckets[bucket][buckets[bucket].length - 1] = new TrajectoryImage(trajectory);
+					size[0] += 1;
+				}
+			});
+			return new TrajectoryTable(buckets, size[0]);
+		}
+
+		/** @return the number of trajectories of this table. */
+		int size() {
+			return size;
+		}
+
+		/** @return the images of the trajectories of this table, in no particular order. */
+		Stream<TrajectoryImage> images() {
+			return Arrays.stream(buckets).flatMap(Arrays::stream);
+		}
+
+		static int bucketOf(final long entityId) {
+			final long mixed = entityId * 0x9E3779B97F4A7C15L;
+			return (int) (mixed >>> (Long.SIZE - BUCKETS_BITS));
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Publishes {@link BacklogSnapshot}s of a {@link ShardedBacklog} periodically, so that the readers of {@link
+ * ShardedBacklog#latestSnapshot()} see a recent state of the backlog without involving the shard threads.
+ *
+ * <p>The clock is checked every {@link #EVENTS_BETWEEN_CLOCK_CHECKS} events while they flow, and on every idle
+ * notification, so that the last events of a burst, or the ones of a center with few events, are published too.
+ */
+public class BacklogSnapshotPublisher {
+
+	/** The number of integrated events between consecutive checks of the clock. */
+	private static final int EVENTS_BETWEEN_CLOCK_CHECKS = 1000;
+
+	private final long intervalNanos;
+
+	private long nextPublicationNanos;
+
+	private int eventsSinceLastClockCheck = 0;
+
+	private CompletableFuture<?> publicationUnderWay;
+
+	/** The arrival serial number of the last event of the last requested publication. */
+	private long publishedSerialNumber = Long.MIN_VALUE;
+
+	/** @param interval the minimum time between publications. */
+	public BacklogSnapshotPublisher(final Duration interval) {
+		this.intervalNanos = interval.toNanos();
+		this.nextPublicationNanos = System.nanoTime() + intervalNanos;
+	}
+
+	/**
+	 * Should be called after each event dispatch, by the dispatcher thread. Publishes a snapshot of the specified
+	 * backlog if the interval since the previous one has elapsed and the previous one was already published.
+	 */
+	public void onIntegrated(final ShardedBacklog backlog) {
+		if (++eventsSinceLastClockCheck < EVENTS_BETWEEN_CLOCK_CHECKS) {
+			return;
+		}
+		eventsSinceLastClockCheck = 0;
+		publishIfDue(backlog);
+	}
+
+	/**
+	 * Should be called when the dispatcher is idle, by the dispatcher thread. Publishes a snapshot of the specified
+	 * backlog if the interval since the previous one has elapsed, the previous one was already published, and events
+	 * were integrated since then.
+	 */
+	public void onIdle(final ShardedBacklog backlog) {
+		if (backlog.getLastEventArrivalSerialNumber() != publishedSerialNumber) {
+			publishIfDue(backlog);
+		}
+	}
+
+	private void publishIfDue(final ShardedBacklog backlog) {
+		final long now = System.nanoTime();
+		if (now - nextPublicationNanos >= 0 && (publicationUnderWay == null || publicationUnderWay.isDone())) {
+			nextPublicationNanos = now + intervalNanos;
+			publishedSerialNumber = backlog.getLastEventArrivalSerialNumber();
+			publicationUnderWay = backlog.publishSnapshot();
+		}
+	}
+}
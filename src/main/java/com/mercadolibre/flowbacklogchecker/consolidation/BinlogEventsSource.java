@@ -0,0 +1,335 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.github.shyiko.mysql.binlog.BinaryLogClient;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * An {@link EventsSource} that tails the MySQL binary log of the replica: the rows inserted into the "incoming_events"
+ * table are pushed to the sink as soon as their transaction is replicated, decoded by a {@link BinlogRowsDecoder}, with
+ * no query to the table. Unlike {@link StoredEventsSource}, which must poll the table once it is caught up, the provision
+ * never runs out of events: it returns only when the sink asks to stop or the stream fails.
+ *
+ * <p>The server sends a heartbeat every {@link Settings#heartbeatInterval} while there are no events to send, so that an
+ * idle stream is told apart from a lost connection. When neither events nor heartbeats arrive for a {@link
+ * Settings#keepAliveInterval}, the connection is restored from the last position read, without interrupting the
+ * provision.
+ *
+ * <p>The server must log in row format, and the user needs the REPLICATION SLAVE and REPLICATION CLIENT privileges.
+ *
+ * <p>The binary log positions are checkpointed apart from the backlogs: at most once per {@link
+ * Settings#positionsInterval}, the position of the end of a transaction is saved to a local file together with the
+ * greatest arrival serial number read up to it. The provision from an arrival serial number starts at the latest saved
+ * position whose arrival serial number is not greater, skipping the rows already integrated. If there is none, like on
+ * the first run, the table is read with a {@link StoredEventsSource} until it is caught up, and the binary log is tailed
+ * from the position it had before said reading.
+ */
+@Slf4j
+public class BinlogEventsSource implements EventsSource, AutoCloseable {
+
+	/** The settings of a {@link BinlogEventsSource}. */
+	public static class Settings {
+		public String hostname;
+
+		public int port = 3306;
+
+		public String username;
+
+		public String password;
+
+		/** The id this client uses as a replica. Must be distinct from the ids of the other replicas of the server. */
+		public long serverId = 65_535;
+
+		public String schema = "backlogprd";
+
+		public String table = "incoming_events";
+
+		/** The local file where the binary log positions are checkpointed. */
+		public Path positionsFile = Path.of("binlog-positions");
+
+		/** The minimum time between the checkpoints of the binary log position. */
+		public Duration positionsInterval = Duration.ofSeconds(10);
+
+		/** The number of checkpointed positions kept in the file. */
+		public int retainedPositions = 1_000;
+
+		/** The interval of the heartbeats the server sends while there are no events to send. */
+		public Duration heartbeatInterval = Duration.ofSeconds(5);
+
+		/**
+		 * The time without events nor heartbeats after which the connection is considered lost and restored. Must be
+		 * greater than the {@link #heartbeatInterval}.
+		 */
+		public Duration keepAliveInterval = Duration.ofSeconds(30);
+	}
+
+	private final Settings settings;
+
+	/** The connection to the replica, used to read the layout of the table and the rows older than any position. */
+	private final Connection connection;
+
+	private final PositionsLedger positions;
+
+	private final BacklogMetrics metrics;
+
+	/** The client of the current provision, or null if there is none. */
+	private volatile BinaryLogClient client;
+
+	/** Completed when the current provision must end, or null if there is none. */
+	private volatile CompletableFuture<Void> end;
+
+	private volatile boolean closed = false;
+
+	/** @throws IOException if the checkpointed positions could not be read. */
+	public BinlogEventsSource(final Settings settings, final Connection connection) throws IOException {
+		this(settings, connection, BacklogMetrics.DISABLED);
+	}
+
+	/**
+	 * @param metrics where the number of events read is recorded.
+	 * @throws IOException if the checkpointed positions could not be read.
+	 */
+	public BinlogEventsSource(final Settings settings, final Connection connection, final BacklogMetrics metrics) throws IOException {
+		this.settings = settings;
+		this.connection = connection;
+		this.positions = new PositionsLedger(settings);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Pushes the rows inserted after the specified arrival serial number, blocking the calling thread, until the sink
+	 * returns false or this source is closed.
+	 *
+	 * @throws SQLException if the table or the binary log could not be read, or the binary log stream failed.
+	 */
+	@Override
+	public void provideWhile(final long startingEventArrivalSerialNumberExclusive, final Sink sink) throws SQLException {
+		final List<String> columnNames = columnNamesOf(settings.schema, settings.table);
+		Position start = positions.floor(startingEventArrivalSerialNumberExclusive);
+		long startingSerial = startingEventArrivalSerialNumberExclusive;
+		if (start == null) {
+			start = currentPosition();
+			// the rows committed before said position are visible to the queries
+			final long[] lastProvided = {startingSerial};
+			final boolean[] stopped = {false};
+			new StoredEventsSource(connection, null, null, metrics).provideWhile(startingSerial, eventRecord -> {
+				lastProvided[0] = eventRecord.getArrivalSerialNumber();
+				stopped[0] = !sink.accept(eventRecord);
+				return !stopped[0];
+			});
+			if (stopped[0]) {
+				return;
+			}
+			startingSerial = lastProvided[0];
+			log.info("Caught up with the stored events up to #{}. Tailing the binary log from {}", startingSerial, start);
+		} else {
+			log.info("Tailing the binary log from {}, after the event #{}", start, startingSerial);
+		}
+		tail(start, startingSerial, columnNames, sink);
+	}
+
+	/** Stops the current provision, if any. */
+	@Override
+	public void close() {
+		closed = true;
+		final CompletableFuture<Void> currentEnd = end;
+		if (currentEnd != null) {
+			currentEnd.complete(null);
+		}
+		final BinaryLogClient currentClient = client;
+		if (currentClient != null) {
+			disconnect(currentClient);
+		}
+	}
+
+	private void tail(final Position start, final long startingSerial, final List<String> columnNames, final Sink sink) throws SQLException {
+		final var binaryLogClient = new BinaryLogClient(settings.hostname, settings.port, settings.username, settings.password);
+		binaryLogClient.setServerId(settings.serverId);
+		binaryLogClient.setKeepAlive(true);
+		binaryLogClient.setHeartbeatInterval(settings.heartbeatInterval.toMillis());
+		binaryLogClient.setKeepAliveInterval(settings.keepAliveInterval.toMillis());
+		binaryLogClient.setBinlogFilename(start.binlogFilename);
+		binaryLogClient.setBinlogPosition(start.binlogPosition);
+		binaryLogClient.setEventDeserializer(BinlogRowsDecoder.eventDeserializer());
+		final var decoder = new BinlogRowsDecoder(
+				settings.schema,
+				settings.table,
+				columnNames,
+				startingSerial,
+				start.binlogFilename,
+				positions::onCommit
+		);
+		final Sink countingSink = eventRecord -> {
+			metrics.recordFetchedEvent();
+			return sink.accept(eventRecord);
+		};
+		// completed when the sink asks to stop, and exceptionally when an event could not be decoded
+		final var provisionEnd = new CompletableFuture<Void>();
+		binaryLogClient.registerEventListener(event -> {
+			if (provisionEnd.isDone()) {
+				return;
+			}
+			try {
+				if (!decoder.decode(event, countingSink)) {
+					provisionEnd.complete(null);
+				}
+			} catch (IOException | RuntimeException e) {
+				provisionEnd.completeExceptionally(e);
+			}
+		});
+		binaryLogClient.registerLifecycleListener(new BinaryLogClient.AbstractLifecycleListener() {
+			@Override
+			public void onCommunicationFailure(final BinaryLogClient failedClient, final Exception e) {
+				log.warn("The binary log stream failed after the event #{}. The connection will be restored", decoder.getLastArrivalSerialNumber(), e);
+			}
+
+			@Override
+			public void onEventDeserializationFailure(final BinaryLogClient failedClient, final Exception e) {
+				provisionEnd.completeExceptionally(e);
+			}
+		});
+		this.client = binaryLogClient;
+		this.end = provisionEnd;
+		try {
+			if (!closed) {
+				// returns when the connection is lost too, in which case the keepalive thread restores it and keeps the provision
+				binaryLogClient.connect();
+				provisionEnd.get();
+			}
+		} catch (IOException e) {
+			throw new SQLException("Could not connect to the binary log at " + start, e);
+		} catch (ExecutionException e) {
+			throw new SQLException("The binary log stream failed after the event #" + decoder.getLastArrivalSerialNumber(), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while tailing the binary log after the event #" + decoder.getLastArrivalSerialNumber(), e);
+		} finally {
+			this.client = null;
+			this.end = null;
+			// stops the keepalive thread too
+			disconnect(binaryLogClient);
+		}
+	}
+
+	private List<String> columnNamesOf(final String schema, final String table) throws SQLException {
+		try (var ps = connection.prepareStatement(
+				"SELECT column_name FROM information_schema.columns WHERE table_schema = ? AND table_name = ? ORDER BY ordinal_position"
+		)) {
+			ps.setString(1, schema);
+			ps.setString(2, table);
+			final var columnNames = new ArrayList<String>();
+			try (var rs = ps.executeQuery()) {
+				while (rs.next()) {
+					columnNames.add(rs.getString(1).toLowerCase());
+				}
+			}
+			return columnNames;
+		}
+	}
+
+	private Position currentPosition() throws SQLException {
+		try (var statement = connection.createStatement(); var rs = statement.executeQuery("SHOW MASTER STATUS")) {
+			if (!rs.next()) {
+				throw new SQLException("The binary log of the server is disabled");
+			}
+			return new Position(rs.getString("File"), rs.getLong("Position"));
+		}
+	}
+
+	private static void disconnect(final BinaryLogClient binaryLogClient) {
+		try {
+			binaryLogClient.disconnect();
+		} catch (IOException e) {
+			log.warn("Could not disconnect from the binary log", e);
+		}
+	}
+
+	/** A position of the binary log. */
+	private static class Position {
+		final String binlogFilename;
+		final long binlogPosition;
+
+		Position(final String binlogFilename, final long binlogPosition) {
+			this.binlogFilename = binlogFilename;
+			this.binlogPosition = binlogPosition;
+		}
+
+		@Override
+		public String toString() {
+			return binlogFilename + ":" + binlogPosition;
+		}
+	}
+
+	/**
+	 * The checkpointed positions of the binary log, by the greatest arrival serial number read up to them. The file has a
+	 * line per position, with the arrival serial number, the file name and the position separated by spaces, and is
+	 * replaced atomically on each checkpoint.
+	 */
+	private static class PositionsLedger {
+		private final Path file;
+
+		private final long intervalNanos;
+
+		private final int retainedPositions;
+
+		private final TreeMap<Long, Position> positions = new TreeMap<>();
+
+		private long nextCheckpointNanos = System.nanoTime();
+
+		PositionsLedger(final Settings settings) throws IOException {
+			this.file = settings.positionsFile;
+			this.intervalNanos = settings.positionsInterval.toNanos();
+			this.retainedPositions = settings.retainedPositions;
+			if (Files.exists(file)) {
+				for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+					final String[] fields = line.split(" ");
+					if (fields.length == 3) {
+						positions.put(Long.parseLong(fields[0]), new Position(fields[1], Long.parseLong(fields[2])));
+					}
+				}
+			}
+		}
+
+		/** May be called by any thread. */
+		synchronized Position floor(final long arrivalSerialNumber) {
+			final Map.Entry<Long, Position> entry = positions.floorEntry(arrivalSerialNumber);
+			return entry == null ? null : entry.getValue();
+		}
+
+		/** Checkpoints the specified position if the interval since the previous checkpoint has elapsed. */
+		synchronized void onCommit(final String binlogFilename, final long binlogPosition, final long lastArrivalSerialNumber) {
+			final long now = System.nanoTime();
+			if (now - nextCheckpointNanos < 0) {
+				return;
+			}
+			nextCheckpointNanos = now + intervalNanos;
+			positions.put(lastArrivalSerialNumber, new Position(binlogFilename, binlogPosition));
+			while (positions.size() > retainedPositions) {
+				positions.pollFirstEntry();
+			}
+			final var lines = new ArrayList<String>(positions.size());
+			positions.forEach((serial, position) -> lines.add(serial + " " + position.binlogFilename + " " + position.binlogPosition));
+			final Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+			try {
+				Files.write(temporaryFile, lines, StandardCharsets.UTF_8);
+				Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				log.warn("Could not checkpoint the binary log position {}", binlogPosition, e);
+			}
+		}
+	}
+}
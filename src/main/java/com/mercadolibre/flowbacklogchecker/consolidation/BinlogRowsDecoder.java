@@ -0,0 +1,224 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.github.shyiko.mysql.binlog.event.Event;
+import com.github.shyiko.mysql.binlog.event.EventHeaderV4;
+import com.github.shyiko.mysql.binlog.event.EventType;
+import com.github.shyiko.mysql.binlog.event.RotateEventData;
+import com.github.shyiko.mysql.binlog.event.TableMapEventData;
+import com.github.shyiko.mysql.binlog.event.WriteRowsEventData;
+import com.github.shyiko.mysql.binlog.event.deserialization.ColumnType;
+import com.github.shyiko.mysql.binlog.event.deserialization.EventDeserializer;
+import com.github.shyiko.mysql.binlog.event.deserialization.json.JsonBinary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Decodes the rows inserted into the "incoming_events" table from the events of a MySQL binary log in row format,
+ * directly into {@link EventRecord}s, with no query to the database. Used by the {@link EventsSource}s that read the
+ * binary log: {@link BinlogEventsSource} and {@link RecordedBinlogEventsSource}.
+ *
+ * <p>The rows of the binary log have no column names, so the columns are located by their position in the table, which
+ * is given by the names of the columns in table order. Like the queries of {@link StoredEventsSource}, only the rows of
+ * the "outbound-unit" entity type are provided.
+ *
+ * <p>The rows are provided in the order they were committed, which is the arrival serial number order except for the
+ * transactions that commit out of the order of their auto-increment ids. The rows whose id is not greater than the one of
+ * the last row provided are skipped, given the {@link Backlog} requires ascending serial numbers.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe.
+ */
+@Slf4j
+class BinlogRowsDecoder {
+	static final String ENTITY_TYPE = "outbound-unit";
+
+	/** Receives the binary log position of the end of each transaction. */
+	@FunctionalInterface
+	interface CommitListener {
+		/**
+		 * @param lastArrivalSerialNumber the greatest id among the rows decoded or skipped up to said position, which are
+		 *     all the rows that a reading started at said position should skip.
+		 */
+		void onCommit(String binlogFilename, long binlogPosition, long lastArrivalSerialNumber);
+	}
+
+	private final String schema;
+	private final String table;
+
+	private final int eventIdColumn;
+	private final int idColumn;
+	private final int dateCreatedColumn;
+	private final int entityIdColumn;
+	private final int entityTypeColumn;
+	private final int structVersionColumn;
+	private final int newStateColumn;
+	private final int oldStateColumn;
+
+	private final int columnsCount;
+
+	/** The serial number after which the rows are provided, as requested to the {@link EventsSource}. */
+	private final long startingArrivalSerialNumberExclusive;
+
+	private final CommitListener commitListener;
+
+	/** The id of the last table map of the decoded table, or -1 if none was seen yet. */
+	private long tableId = -1;
+
+	/** Tells, for each column of the decoded table, if its type is JSON, which is encoded in the MySQL binary format. */
+	private boolean[] jsonColumns = new boolean[0];
+
+	private String binlogFilename;
+
+	private long binlogPosition;
+
+	private long lastArrivalSerialNumber;
+
+	/**
+	 * @param columnNames the names of the columns of the decoded table, in table order.
+	 * @param binlogFilename the file of the binary log the events come from, until a rotation tells otherwise.
+	 * @param commitListener the listener of the transactions ends, or null.
+	 * @throws IllegalArgumentException if a column of {@link EventRecord} is missing.
+	 */
+	BinlogRowsDecoder(
+			final String schema,
+			final String table,
+			final List<String> columnNames,
+			final long startingArrivalSerialNumberExclusive,
+			final String binlogFilename,
+			final CommitListener commitListener
+	) {
+		this.schema = schema;
+		this.table = table;
+		this.eventIdColumn = indexOf(columnNames, "event_id");
+		this.idColumn = indexOf(columnNames, "id");
+		this.dateCreatedColumn = indexOf(columnNames, "date_created");
+		this.entityIdColumn = indexOf(columnNames, "entity_id");
+		this.entityTypeColumn = indexOf(columnNames, "entity_type");
+		this.structVersionColumn = indexOf(columnNames, "struct_version");
+		this.newStateColumn = indexOf(columnNames, "new_state");
+		this.oldStateColumn = indexOf(columnNames, "old_state");
+		this.columnsCount = columnNames.size();
+		this.startingArrivalSerialNumberExclusive = startingArrivalSerialNumberExclusive;
+		this.lastArrivalSerialNumber = startingArrivalSerialNumberExclusive;
+		this.binlogFilename = binlogFilename;
+		this.commitListener = commitListener;
+	}
+
+	/**
+	 * @return a deserializer of the binary log events whose temporal values are epoch microseconds and whose character
+	 *     values are the raw bytes, as this decoder expects them.
+	 */
+	static EventDeserializer eventDeserializer() {
+		final var eventDeserializer = new EventDeserializer();
+		eventDeserializer.setCompatibilityMode(
+				EventDeserializer.CompatibilityMode.DATE_AND_TIME_AS_LONG_MICRO,
+				EventDeserializer.CompatibilityMode.CHAR_AND_BINARY_AS_BYTE_ARRAY
+		);
+		return eventDeserializer;
+	}
+
+	/** @return the greatest id among the rows decoded or skipped so far. */
+	long getLastArrivalSerialNumber() {
+		return lastArrivalSerialNumber;
+	}
+
+	/**
+	 * Pushes to the specified sink the inserted rows of the specified event, if any.
+	 *
+	 * @return false if the sink asked to stop.
+	 * @throws IOException if a JSON column could not be decoded.
+	 */
+	boolean decode(final Event event, final EventsSource.Sink sink) throws IOException {
+		final EventHeaderV4 header = event.getHeader();
+		if (header.getNextPosition() > 0) {
+			binlogPosition = header.getNextPosition();
+		}
+		final EventType eventType = header.getEventType();
+		if (eventType == EventType.ROTATE) {
+			final RotateEventData rotation = event.getData();
+			binlogFilename = rotation.getBinlogFilename();
+			binlogPosition = rotation.getBinlogPosition();
+		} else if (eventType == EventType.TABLE_MAP) {
+			final TableMapEventData tableMap = event.getData();
+			if (table.equals(tableMap.getTable()) && schema.equals(tableMap.getDatabase())) {
+				mapTable(tableMap);
+			}
+		} else if (EventType.isWrite(eventType)) {
+			final WriteRowsEventData rows = event.getData();
+			if (rows.getTableId() == tableId) {
+				if (rows.getIncludedColumns().cardinality() != columnsCount) {
+					throw new IllegalStateException("The inserted rows of " + table + " must be logged with all their columns");
+				}
+				for (Serializable[] row : rows.getRows()) {
+					if (!decodeRow(row, sink)) {
+						return false;
+					}
+				}
+			}
+		} else if (eventType == EventType.XID && commitListener != null && binlogFilename != null) {
+			commitListener.onCommit(binlogFilename, binlogPosition, lastArrivalSerialNumber);
+		}
+		return true;
+	}
+
+	private void mapTable(final TableMapEventData tableMap) {
+		if (tableMap.getColumnTypes().length != columnsCount) {
+			throw new IllegalStateException(String.format(
+					"The table %s has %d columns but %d were expected", table, tableMap.getColumnTypes().length, columnsCount));
+		}
+		tableId = tableMap.getTableId();
+		jsonColumns = new boolean[columnsCount];
+		for (int column = 0; column < columnsCount; ++column) {
+			jsonColumns[column] = (tableMap.getColumnTypes()[column] & 0xFF) == ColumnType.JSON.getCode();
+		}
+	}
+
+	private boolean decodeRow(final Serializable[] row, final EventsSource.Sink sink) throws IOException {
+		final long id = ((Number) row[idColumn]).longValue();
+		if (id <= lastArrivalSerialNumber) {
+			if (id > startingArrivalSerialNumberExclusive) {
+				log.warn("The incoming event #{} was committed after the #{} and is skipped", id, lastArrivalSerialNumber);
+			}
+			return true;
+		}
+		lastArrivalSerialNumber = id;
+		if (!ENTITY_TYPE.equals(stringAt(row, entityTypeColumn))) {
+			return true;
+		}
+		final long dateCreatedMicros = ((Number) row[dateCreatedColumn]).longValue();
+		return sink.accept(new EventRecord(
+				((Number) row[eventIdColumn]).longValue(),
+				id,
+				Instant.ofEpochSecond(Math.floorDiv(dateCreatedMicros, 1_000_000L), Math.floorMod(dateCreatedMicros, 1_000_000L) * 1_000L),
+				((Number) row[entityIdColumn]).longValue(),
+				ENTITY_TYPE,
+				((Number) row[structVersionColumn]).intValue(),
+				stringAt(row, newStateColumn),
+				stringAt(row, oldStateColumn)
+		));
+	}
+
+	private String stringAt(final Serializable[] row, final int column) throws IOException {
+		final Serializable value = row[column];
+		if (value == null) {
+			return null;
+		} else if (value instanceof byte[]) {
+			final byte[] bytes = (byte[]) value;
+			return jsonColumns[column] ? JsonBinary.parseAsString(bytes) : new String(bytes, StandardCharsets.UTF_8);
+		} else {
+			return value.toString();
+		}
+	}
+
+	private static int indexOf(final List<String> columnNames, final String columnName) {
+		final int index = columnNames.indexOf(columnName);
+		if (index < 0) {
+			throw new IllegalArgumentException("The column " + columnName + " is missing from " + columnNames);
+		}
+		return index;
+	}
+}
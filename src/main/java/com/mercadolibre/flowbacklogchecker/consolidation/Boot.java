@@ -8,71 +8,514 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class Boot {
 	private static final String URL = "jdbc:mysql://proxysql.slave.meliseginf.com:6612/backlogprd?useUnicode=yes&characterEncoding=UTF-8&useSSL=false&useLegacyDatetimeCode=false&serverTimezone=UTC&autoReconnect=true&failOverReadOnly=false&maxReconnects=10";
 
+	/**
+	 * The environment variable with the JDBC URL of the database the photos are written to, which is the master while the
+	 * events are read from a replica. If unset, no photo is taken.
+	 */
+	private static final String PHOTOS_URL_VARIABLE = "PHOTOS_URL";
+
+	private static final Duration PHOTOS_INTERVAL = Duration.ofMinutes(10);
+
+	/** The local directory where the full state of the backlog of each logistic center is checkpointed. */
+	private static final Path CHECKPOINTS_DIRECTORY = Path.of("checkpoint");
+
+	private static final Duration CHECKPOINTS_INTERVAL = Duration.ofMinutes(1);
+
+	/**
+	 * The minimum time between the publications of the {@link BacklogSnapshot}s the {@link BacklogQueryApi} reads, which
+	 * contain the cells, the rollups and, given {@link ShardedBacklog#enableTrajectorySnapshots()} is called, the open
+	 * trajectories. Each publication copies the cells and the rollups, and the trajectories of the entities touched since
+	 * the previous one, on the shard threads.
+	 */
+	private static final Duration SNAPSHOTS_INTERVAL = Duration.ofSeconds(5);
+
+	/**
+	 * The local directory where the open trajectories of each logistic center that are not touched for a long time are
+	 * spilled, so that the lost units do not stay on heap forever. See {@link ColdTrajectoryStore}.
+	 */
+	private static final Path COLD_TRAJECTORIES_DIRECTORY = Path.of("cold-trajectories");
+
+	private static final Duration COLD_TRAJECTORIES_AGE = Duration.ofDays(3);
+
+	/** The maximum number of open trajectories of each logistic center kept on heap. */
+	private static final int HOT_TRAJECTORIES_BUDGET = 4_000_000;
+
+	/**
+	 * The local directory where the history of the cells of each logistic center is recorded, so that the {@link
+	 * BacklogQueryApi} can tell the population as of any past event. See {@link CellHistory}.
+	 */
+	private static final Path CELL_HISTORY_DIRECTORY = Path.of("cell-history");
+
+	/**
+	 * The partitions the dashboards group the population by, whose rollups are maintained incrementally and read by the
+	 * population endpoint of the {@link BacklogQueryApi} when it is not filtered. See {@link
+	 * Backlog#registerRollup(int...)}.
+	 */
+	private static final int[][] ROLLUPS = {
+			{
+					PartitionsCatalog.PartitionsDb.logisticCenter.ordinal(),
+					PartitionsCatalog.PartitionsDb.status.ordinal(),
+					PartitionsCatalog.PartitionsDb.deadline.ordinal()
+			}
+	};
+
+	/** The port of the {@link BacklogQueryApi}. */
+	private static final int QUERY_API_PORT = 8080;
+
+	/** The number of threads that evaluate the queries of the {@link BacklogQueryApi}, out of the shard threads. */
+	private static final int QUERY_THREADS = 2;
+
+	/** The number of queries that may wait for a query thread. The following ones are rejected. */
+	private static final int QUEUED_QUERIES = 64;
+
+	/** The total number of {@link ShardedBacklog} shards, shared by the backlogs of all the logistic centers. */
+	private static final int SHARDS = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+
+	/**
+	 * The number of threads that parse the incoming events. The other ones are for the events source, the dispatcher
+	 * and the shards.
+	 */
+	private static final int PARSING_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 2 - SHARDS);
+
+	private static final int REORDER_BUFFER_CAPACITY = 8192;
+
+	/** The environment variable with the comma separated ids of the monitored logistic centers. */
+	private static final String LOGISTIC_CENTERS_VARIABLE = "LOGISTIC_CENTERS";
+
+	private static final String DEFAULT_LOGISTIC_CENTERS = "BRSP03";
+
+	/**
+	 * The environment variable with the host of the replica whose binary log is tailed by a {@link BinlogEventsSource}.
+	 * If unset, the "incoming_events" table is polled by a {@link StoredEventsSource}.
+	 */
+	private static final String BINLOG_HOST_VARIABLE = "BINLOG_HOST";
+
+	/**
+	 * The environment variable with the R2DBC URL of the replica, like "r2dbc:mysql://host:port/database". If set, and
+	 * the binary log is not tailed, the "incoming_events" table is read by a {@link ReactiveStoredEventsSource} instead
+	 * of a {@link StoredEventsSource}.
+	 */
+	private static final String R2DBC_URL_VARIABLE = "R2DBC_URL";
+
+	/**
+	 * The time between the reads of the "incoming_events" table by the {@link ReactiveStoredEventsSource}, which stops at
+	 * the end of the table instead of tailing it.
+	 */
+	private static final Duration REACTIVE_POLL_INTERVAL = Duration.ofSeconds(1);
+
+	/** The local file where the positions of the tailed binary log are checkpointed. */
+	private static final Path BINLOG_POSITIONS_FILE = Path.of("binlog-positions");
+
+	/**
+	 * The objective of the time between the arrival of an event and its integration, which the polling of the
+	 * "incoming_events" table keeps once the backlogs are caught up with it. See {@link StoredEventsSource.TailSettings}.
+	 */
+	private static final Duration LAG_OBJECTIVE = Duration.ofSeconds(2);
+
 	public PartitionsCatalog partitionsCatalog;
+	/**
+	 * The registry of the meters of the ingestion, of the backlogs and of the queries, which the {@link BacklogQueryApi}
+	 * exposes to be scraped by Prometheus. See {@link BacklogMetrics}.
+	 */
+	public PrometheusMeterRegistry meterRegistry;
+	public BacklogMetrics metrics;
 	public EventRecordParser eventRecordParser;
+	/** The ids of the monitored logistic centers. Each one has its own backlog. */
+	public Set<String> logisticCenters;
 
 	public Boot() {
 		partitionsCatalog = new PartitionsCatalog();
-		eventRecordParser = new EventRecordParser(objectMapper());
+		meterRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+		new JvmMemoryMetrics().bindTo(meterRegistry);
+		new JvmGcMetrics().bindTo(meterRegistry);
+		metrics = new BacklogMetrics(meterRegistry);
+		eventRecordParser = new EventRecordParser(objectMapper(), metrics);
+		logisticCenters = parseLogisticCenters(System.getenv(LOGISTIC_CENTERS_VARIABLE));
 	}
 
+	/**
+	 * Restores the backlog of each monitored logistic center from its local checkpoint, or from its latest saved photo if
+	 * there is no readable checkpoint, and integrates the events that arrived after it. If there is neither, all the
+	 * events of said logistic center are integrated.
+	 */
+	public void start() {
+		try {
+			final var backlogs = new LinkedHashMap<String, Backlog>();
+			for (String logisticCenter : logisticCenters) {
+				backlogs.put(logisticCenter, restore(logisticCenter));
+			}
+			run(backlogs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Integrates the events that arrived after the specified serial number into an empty backlog for each monitored
+	 * logistic center.
+	 */
 	public void start(final long startingArrivalSerialNumber) {
-		Backlog backlog = new Backlog(partitionsCatalog, startingArrivalSerialNumber, null);
+		final var backlogs = new LinkedHashMap<String, Backlog>();
+		for (String logisticCenter : logisticCenters) {
+			backlogs.put(logisticCenter, new Backlog(partitionsCatalog, startingArrivalSerialNumber, null));
+		}
+		run(backlogs);
+	}
+
+	private Backlog restore(final String logisticCenter) throws InterruptedException {
+		final Path checkpointFile = checkpointFileOf(logisticCenter);
+		if (Files.exists(checkpointFile)) {
+			try {
+				return BacklogCheckpoint.read(checkpointFile, partitionsCatalog);
+			} catch (IOException | RuntimeException e) {
+				log.error("The checkpoint of {} could not be read. Falling back to the latest photo.", logisticCenter, e);
+			}
+		}
+		while (true) {
+			try (var connection = connectToReplica()) {
+				final BacklogPhoto photo = new BacklogPhotoRepository(connection, partitionsCatalog).findLatest(logisticCenter);
+				if (photo == null) {
+					log.warn("There is no backlog photo of {}. All its incoming events will be integrated.", logisticCenter);
+					return new Backlog(partitionsCatalog, 0, null);
+				} else {
+					return photo.restore(partitionsCatalog);
+				}
+			} catch (SQLException sqlException) {
+				log.error("The latest photo of {} could not be loaded:", logisticCenter, sqlException);
+				Thread.sleep(5_000);
+			}
+		}
+	}
+
+	private void run(final Map<String, Backlog> restoredBacklogs) {
 		log.info("Connecting...");
+		final int shardsPerBacklog = Math.max(1, SHARDS / restoredBacklogs.size());
+		final var backlogs = new LinkedHashMap<String, ShardedBacklog>();
+		final var photographers = new LinkedHashMap<String, BacklogPhotographer>();
+		final var checkpointers = new ArrayList<BacklogCheckpointer>();
+		final var integrators = new HashMap<String, OrderedParsingPipeline.Integrator>();
+		final var queryApi = new BacklogQueryApi(backlogs, objectMapper(), metrics.queryTimers(), QUERY_THREADS, QUEUED_QUERIES);
+		final var integrationLag = new IntegrationLag();
+		// resumes from the information of the events integrated into the restored backlogs
+		final var parseContext = new ParseContext();
+		restoredBacklogs.forEach((logisticCenter, restoredBacklog) ->
+				parseContext.updateLastDateCreated(logisticCenter, restoredBacklog.lastDateCreated));
+		queryApi.exposeMetrics(meterRegistry);
+		metrics.bind(integrationLag);
+		final String photosUrl = System.getenv(PHOTOS_URL_VARIABLE);
+		if (photosUrl == null || photosUrl.isBlank()) {
+			log.warn("The {} environment variable is not set. No backlog photo will be saved.", PHOTOS_URL_VARIABLE);
+		}
 		try {
-			while (true) {
-				try (var connection = DriverManager.getConnection(URL, System.getenv("DB_USER"), System.getenv("DB_PASSWORD"))) {
-					connection.setReadOnly(true);
-					log.info("Connected");
-					final StoredEventsSource storedEventsSource = new StoredEventsSource(connection);
-
-					final long serialNumberOfLastEventOfLastPhoto = backlog.getLastEventArrivalSerialNumber();
-					storedEventsSource.provideWhile(
-							serialNumberOfLastEventOfLastPhoto,
-							buildEventIntegrator(backlog, serialNumberOfLastEventOfLastPhoto)
+			restoredBacklogs.forEach((logisticCenter, restoredBacklog) -> {
+				final var backlog = new ShardedBacklog(
+						restoredBacklog,
+						shardsPerBacklog,
+						coldTierSettingsOf(logisticCenter),
+						cellHistorySettingsOf(logisticCenter)
+				);
+				for (int[] rollup : ROLLUPS) {
+					backlog.registerRollup(rollup);
+				}
+				backlogs.put(logisticCenter, backlog);
+				metrics.bind(backlog, logisticCenter);
+				final var integrationObservers = new ArrayList<Consumer<ShardedBacklog>>();
+				if (photosUrl != null && !photosUrl.isBlank()) {
+					final var photographer = new BacklogPhotographer(
+							() -> connectTo(photosUrl),
+							logisticCenter,
+							partitionsCatalog,
+							PHOTOS_INTERVAL,
+							restoredBacklog.getLastEventArrivalSerialNumber()
 					);
+					photographers.put(logisticCenter, photographer);
+					integrationObservers.add(photographer::onIntegrated);
+				}
+				final var checkpointer = new BacklogCheckpointer(
+						checkpointFileOf(logisticCenter),
+						CHECKPOINTS_INTERVAL,
+						() -> parseContext.getLastDateCreated(logisticCenter)
+				);
+				checkpointers.add(checkpointer);
+				final var snapshotPublisher = new BacklogSnapshotPublisher(SNAPSHOTS_INTERVAL);
+				// the trajectories queries are answered from the snapshots only, never by the shard threads
+				backlog.enableTrajectorySnapshots();
+				backlog.publishSnapshot();
+				integrationObservers.add(checkpointer::onIntegrated);
+				integrationObservers.add(snapshotPublisher::onIntegrated);
+				integrationObservers.add(integrationLag::onIntegrated);
+				integrators.put(logisticCenter, buildEventIntegrator(backlog, integrationObservers, List.of(snapshotPublisher::onIdle)));
+			});
+			queryApi.start(QUERY_API_PORT);
+			final var restoredSerialNumbers = new HashMap<String, Long>();
+			restoredBacklogs.forEach((logisticCenter, restoredBacklog) ->
+					restoredSerialNumbers.put(logisticCenter, restoredBacklog.getLastEventArrivalSerialNumber()));
+			final var router = new LogisticCenterRouter(integrators, restoredSerialNumbers, buildParseFailureHandler(photographers));
+			try (
+					var pipeline = new OrderedParsingPipeline(eventRecordParser, PARSING_THREADS, REORDER_BUFFER_CAPACITY, parseContext, router);
+					var reactiveEventsSource = reactiveEventsSource()
+			) {
+				while (true) {
+					final BinlogEventsSource.Settings binlogSettings = binlogSettings();
+					final boolean isReactive = binlogSettings == null && reactiveEventsSource != null;
+					// the reactive source has connections of its own, so a JDBC outage does not stall it
+					try (var connection = isReactive ? null : connectToReplica()) {
+						final EventsSource eventsSource;
+						if (isReactive) {
+							eventsSource = reactiveEventsSource;
+						} else {
+							connection.setReadOnly(true);
+							log.info("Connected");
+							eventsSource = binlogSettings != null
+									? new BinlogEventsSource(binlogSettings, connection, metrics)
+									: new StoredEventsSource(connection, tailSettings(), integrationLag, metrics);
+						}
+
+						// the events accepted by the pipeline during the previous connection must be integrated before resuming
+						pipeline.awaitIntegration();
+						// a single scan for all the logistic centers, from the one that is most behind
+						final long startingSerialNumber = backlogs.values().stream()
+								.mapToLong(ShardedBacklog::getLastEventArrivalSerialNumber)
+								.min()
+								.orElseThrow();
+						eventsSource.provideWhile(startingSerialNumber, pipeline);
+						if (isReactive) {
+							Thread.sleep(REACTIVE_POLL_INTERVAL.toMillis());
+						}
 
-				} catch (SQLException sqlException) {
-					log.error("Connection lost :", sqlException);
-					Thread.sleep(5_000);
-					log.info("Reconnecting...");
+					} catch (SQLException | IOException e) {
+						log.error("Connection lost :", e);
+						Thread.sleep(5_000);
+						log.info("Reconnecting...");
+					}
 				}
 			}
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
+		} finally {
+			queryApi.close();
+			checkpointers.forEach(BacklogCheckpointer::close);
+			photographers.values().forEach(BacklogPhotographer::close);
+			backlogs.values().forEach(ShardedBacklog::close);
 		}
 	}
 
-	/** Builds a pure effect procedure that integrates the event it receives into the specified backlog. */
-	private EventsSource.Sink buildEventIntegrator(final Backlog backlog, final long serialNumberOfLastEventOfLastPhoto) {
-		return eventRecord -> {
-			try {
-				final TransitionEvent transitionEvent = eventRecordParser.parse(eventRecord);
+	/**
+	 * Integrates the events given by a {@link SyntheticEventsGenerator} with the specified settings, as fast as possible,
+	 * through the same pipeline {@link #start()} uses but with no database: the events come from an {@link
+	 * InMemoryEventsSource} and neither photos nor checkpoints are saved. Logs the integration rate and the heap usage
+	 * periodically and at the end. Useful to find the events per second ceiling and to size the heap.
+	 */
+	public void startSynthetic(final SyntheticEventsGenerator.Settings settings) {
+		final var generator = new SyntheticEventsGenerator(settings);
+		final var syntheticLogisticCenters = generator.getLogisticCenters();
+		final int shardsPerBacklog = Math.max(1, SHARDS / syntheticLogisticCenters.size());
+		final var backlogs = new LinkedHashMap<String, ShardedBacklog>();
+		final var integrators = new HashMap<String, OrderedParsingPipeline.Integrator>();
+		final var progress = new SyntheticLoadProgress();
+		try {
+			for (String logisticCenter : syntheticLogisticCenters) {
+				final var backlog = new ShardedBacklog(new Backlog(partitionsCatalog, 0, null), shardsPerBacklog);
+				backlogs.put(logisticCenter, backlog);
+				integrators.put(logisticCenter, buildEventIntegrator(backlog, List.of(progress::onIntegrated), List.of()));
+			}
+			final var router = new LogisticCenterRouter(
+					integrators,
+					(eventRecord, e) -> log.error("The synthetic event {} could not be parsed", eventRecord.getArrivalSerialNumber(), e)
+			);
+			try (var pipeline = new OrderedParsingPipeline(eventRecordParser, PARSING_THREADS, REORDER_BUFFER_CAPACITY, router)) {
+				new InMemoryEventsSource(generator).provideWhile(0, pipeline);
+				pipeline.awaitIntegration();
+				// the pipeline must be open while the shard tasks are dispatched, which is done on the idle notifications
+				int openTrajectories = 0;
+				for (ShardedBacklog backlog : backlogs.values()) {
+					openTrajectories += backlog.sumCounter(Backlog::openTrajectoriesCount).get();
+				}
+				progress.log();
+				log.info("Synthetic load finished with {} open trajectories", openTrajectories);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			backlogs.values().forEach(ShardedBacklog::close);
+		}
+	}
+
+	/** Logs the progress of a synthetic load periodically. Accessed by the integrator thread only. */
+	private static class SyntheticLoadProgress {
+		private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+		private final long startNanos = System.nanoTime();
+
+		private long nextLogNanos = startNanos + LOG_INTERVAL_NANOS;
+
+		private long integratedEvents = 0;
+
+		void onIntegrated(final ShardedBacklog backlog) {
+			if ((++integratedEvents & 0xFFF) == 0 && System.nanoTime() - nextLogNanos >= 0) {
+				nextLogNanos += LOG_INTERVAL_NANOS;
+				log();
+			}
+		}
+
+		void log() {
+			final var runtime = Runtime.getRuntime();
+			final double seconds = (System.nanoTime() - startNanos) / 1e9;
+			log.info(
+					"{} events integrated in {} s: {} events/s, heap used {} MB",
+					integratedEvents, String.format("%.1f", seconds), (long) (integratedEvents / seconds),
+					(runtime.totalMemory() - runtime.freeMemory()) >> 20
+			);
+		}
+	}
+
+	private static Path checkpointFileOf(final String logisticCenter) {
+		return CHECKPOINTS_DIRECTORY.resolve(logisticCenter + ".ckpt");
+	}
+
+	private static ColdTrajectoryStore.Settings coldTierSettingsOf(final String logisticCenter) {
+		final var settings = new ColdTrajectoryStore.Settings();
+		settings.directory = COLD_TRAJECTORIES_DIRECTORY.resolve(logisticCenter);
+		settings.age = COLD_TRAJECTORIES_AGE;
+		settings.hotTrajectoriesBudget = HOT_TRAJECTORIES_BUDGET;
+		return settings;
+	}
+
+	private static CellHistory.Settings cellHistorySettingsOf(final String logisticCenter) {
+		final var settings = new CellHistory.Settings();
+		settings.directory = CELL_HISTORY_DIRECTORY.resolve(logisticCenter);
+		return settings;
+	}
+
+	private static StoredEventsSource.TailSettings tailSettings() {
+		final var settings = new StoredEventsSource.TailSettings();
+		settings.lagObjective = LAG_OBJECTIVE;
+		return settings;
+	}
+
+	/** @return the settings of the tailing of the binary log, or null if the table should be polled instead. */
+	private static BinlogEventsSource.Settings binlogSettings() {
+		final String host = System.getenv(BINLOG_HOST_VARIABLE);
+		if (host == null || host.isBlank()) {
+			return null;
+		}
+		final var settings = new BinlogEventsSource.Settings();
+		settings.hostname = host;
+		settings.username = System.getenv("DB_USER");
+		settings.password = System.getenv("DB_PASSWORD");
+		settings.positionsFile = BINLOG_POSITIONS_FILE;
+		return settings;
+	}
+
+	/** @return the events source that reads the table through R2DBC, or null if the JDBC one should be used instead. */
+	private static ReactiveStoredEventsSource reactiveEventsSource() {
+		final String url = System.getenv(R2DBC_URL_VARIABLE);
+		if (url == null || url.isBlank()) {
+			return null;
+		}
+		final var options = ConnectionFactoryOptions.parse(url).mutate()
+				.option(ConnectionFactoryOptions.USER, System.getenv("DB_USER"))
+				.option(ConnectionFactoryOptions.PASSWORD, System.getenv("DB_PASSWORD"))
+				.build();
+		return new ReactiveStoredEventsSource(ConnectionFactories.get(options));
+	}
+
+	private static Set<String> parseLogisticCenters(final String commaSeparatedIds) {
+		final String ids = commaSeparatedIds == null || commaSeparatedIds.isBlank() ? DEFAULT_LOGISTIC_CENTERS : commaSeparatedIds;
+		return Arrays.stream(ids.split(","))
+				.map(String::trim)
+				.filter(id -> !id.isEmpty())
+				.collect(Collectors.toCollection(LinkedHashSet::new));
+	}
+
+	private Connection connectToReplica() throws SQLException {
+		return connectTo(URL);
+	}
+
+	private static Connection connectTo(final String url) throws SQLException {
+		return DriverManager.getConnection(url, System.getenv("DB_USER"), System.getenv("DB_PASSWORD"));
+	}
+
+	/**
+	 * Builds a pure effect procedure that dispatches the parsed events it receives to the specified backlog, and
+	 * notifies the specified observers, like the photographer and the checkpointer, after each one. The idle observers
+	 * are notified after the backlog, when there are no events to integrate. The events the backlog already integrated
+	 * are discarded before, by the {@link LogisticCenterRouter}.
+	 */
+	private OrderedParsingPipeline.Integrator buildEventIntegrator(
+			final ShardedBacklog backlog,
+			final List<Consumer<ShardedBacklog>> integrationObservers,
+			final List<Consumer<ShardedBacklog>> idleObservers
+	) {
+		return new OrderedParsingPipeline.Integrator() {
+			@Override
+			public void integrate(final TransitionEvent transitionEvent) {
 				backlog.integrate(transitionEvent);
-			} catch (IOException | EventRecordParser.NotSupportedStructureVersion e) {
-				final String message = String.format(
-						"The incoming event with arrival serial number %d was discarded because the conversion form "
-								+ "EventRecord to TransitionEvent has failed. Therefore, the photo under construction may be "
-								+ "corrupted. The last serial number of the las event of the last photo not affected by this "
-								+ "problem is %d.",
-						eventRecord.getArrivalSerialNumber(), serialNumberOfLastEventOfLastPhoto
-				);
-				log.error(message, e);
-				// TODO Trigger an alarm.
+				for (var observer : integrationObservers) {
+					observer.accept(backlog);
+				}
 			}
-			return true;
+
+			@Override
+			public void onIdle() {
+				backlog.onIdle();
+				for (var observer : idleObservers) {
+					observer.accept(backlog);
+				}
+			}
+		};
+	}
+
+	private LogisticCenterRouter.ParseFailureHandler buildParseFailureHandler(final Map<String, BacklogPhotographer> photographers) {
+		return (eventRecord, e) -> {
+			final var lastSavedPhotoSerialNumbers = new TreeMap<String, Long>();
+			photographers.forEach((logisticCenter, photographer) -> lastSavedPhotoSerialNumbers.put(logisticCenter, photographer.getLastSavedPhotoSerialNumber()));
+			final String message = String.format(
+					"The incoming event with arrival serial number %d was discarded because the conversion form "
+							+ "EventRecord to TransitionEvent has failed. Therefore, the photo under construction may be "
+							+ "corrupted. The last serial numbers of the las event of the last photos not affected by this "
+							+ "problem are %s.",
+					eventRecord.getArrivalSerialNumber(), lastSavedPhotoSerialNumbers
+			);
+			log.error(message, e);
+			// TODO Trigger an alarm.
 		};
 	}
 
@@ -0,0 +1,101 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The log of the changes of the cells of a shard of a {@link ShardedBacklog}: the arrival serial number of each event
+ * that changed them, and the states whose cells said event decremented and incremented. The logs of all the shards are
+ * replayed in arrival order by {@link #replay(List, CellStore)}, so that the cells of the whole backlog are the ones a
+ * single backlog would have.
+ *
+ * <p>The variations and accumulated populations of the cells of the shards can't be summed: a cell is emptied, and
+ * hence forgotten, when its population reaches zero, which happens at different moments in each shard and in the
+ * whole. Only the populations are additive.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe: it is owned by the thread that integrates the events
+ * into the shard. The drained changes may be read by any thread, given the states are immutable.
+ */
+class CellChanges {
+	private static final int INITIAL_CAPACITY = 4096;
+
+	private long[] arrivalSerialNumbers = new long[INITIAL_CAPACITY];
+
+	/** The old and new states of each change, interleaved. */
+	private EntityState[] states = new EntityState[2 * INITIAL_CAPACITY];
+
+	private int size = 0;
+
+	/** Records the changes of the cells of the event with the specified arrival serial number. */
+	void record(final long arrivalSerialNumber, final EntityState oldState, final EntityState newState) {
+		if (size == arrivalSerialNumbers.length) {
+			arrivalSerialNumbers = Arrays.copyOf(arrivalSerialNumbers, 2 * size);
+			states = Arrays.copyOf(states, 4 * size);
+		}
+		arrivalSerialNumbers[size] = arrivalSerialNumber;
+		states[2 * size] = oldState;
+		states[2 * size + 1] = newState;
+		size += 1;
+	}
+
+	/** @return the changes recorded since the previous call, which this log forgets. */
+	Drained drain() {
+		final var drained = new Drained(Arrays.copyOf(arrivalSerialNumbers, size), Arrays.copyOf(states, 2 * size));
+		if (arrivalSerialNumbers.length > INITIAL_CAPACITY && size < arrivalSerialNumbers.length / 4) {
+			arrivalSerialNumbers = new long[arrivalSerialNumbers.length / 2];
+			states = new EntityState[arrivalSerialNumbers.length * 2];
+		} else {
+			Arrays.fill(states, 0, 2 * size, null);
+		}
+		size = 0;
+		return drained;
+	}
+
+	/**
+	 * Applies the specified changes to the specified cells in arrival order, decrementing and incrementing them like
+	 * {@link Backlog#integrate(TransitionEvent)} does.
+	 *
+	 * @param parts the changes drained from every shard at the same point of the event stream.
+	 */
+	static void replay(final List<Drained> parts, final CellStore cells) {
+		final var positions = new int[parts.size()];
+		while (true) {
+			int next = -1;
+			for (int part = 0; part < positions.length; ++part) {
+				final Drained drained = parts.get(part);
+				if (positions[part] < drained.arrivalSerialNumbers.length
+						&& (next < 0 || drained.arrivalSerialNumbers[positions[part]] < parts.get(next).arrivalSerialNumbers[positions[next]])) {
+					next = part;
+				}
+			}
+			if (next < 0) {
+				return;
+			}
+			final Drained drained = parts.get(next);
+			final EntityState oldState = drained.states[2 * positions[next]];
+			final EntityState newState = drained.states[2 * positions[next] + 1];
+			positions[next] += 1;
+			// both keys are resolved before the cells change, given a removed cell may lose its dictionary ids
+			final long decrementedKey = oldState == null ? CellStore.NO_KEY : cells.keyOf(oldState);
+			final long incrementedKey = newState == null ? CellStore.NO_KEY : cells.keyOf(newState);
+			if (oldState != null) {
+				cells.decrement(decrementedKey, 1);
+			}
+			if (newState != null) {
+				cells.increment(incrementedKey, 1);
+			}
+		}
+	}
+
+	/** The changes drained from a log, ordered by arrival serial number. */
+	static class Drained {
+		final long[] arrivalSerialNumbers;
+
+		final EntityState[] states;
+
+		Drained(final long[] arrivalSerialNumbers, final EntityState[] states) {
+			this.arrivalSerialNumbers = arrivalSerialNumbers;
+			this.states = states;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * A columnar copy of the cells of a {@link CellStore}, for ad hoc analytical queries: the dictionary ids of the values
+ * of each partition, the packed keys, and the contents, each one in its own primitive array indexed by cell.
+ *
+ * <p>The filters on the values of a partition are evaluated once per distinct value, given the values are dictionary
+ * encoded, and then applied to the cells with tight loops over the id columns, a column at a time. Big copies are
+ * split in blocks that are filtered and aggregated in parallel in the common {@link ForkJoinPool}.
+ *
+ * <p>Instances are immutable, hence they can be queried by any thread once created by {@link CellStore#toColumns()}.
+ */
+public class CellColumns {
+	/** The number of cells of the blocks the kernels process at once. */
+	private static final int BLOCK_SIZE = 4096;
+
+	/** The number of cells from which the kernels run in parallel. */
+	private static final int PARALLELISM_THRESHOLD = 64 * 1024;
+
+	/** The number of cells. */
+	public final int size;
+
+	/** The packed key of each cell, as given by {@link CellStore}. */
+	final long[] keys;
+
+	/** The dictionary id of the value of each partition of each cell, indexed by partition ordinal and cell. */
+	final int[][] ids;
+
+	final int[] populations;
+	final int[] variations;
+	final int[] accumulatedPopulations;
+
+	/** The values of the dictionary of each partition, indexed by partition ordinal and dictionary id. */
+	private final Object[][] values;
+
+	/** The position of the dictionary id of each partition in the packed keys. */
+	private final int[] shifts;
+
+	/** The mask of the dictionary id of each partition, once shifted to the least significant bits. */
+	private final long[] idMasks;
+
+	CellColumns(final int size, final Object[][] values, final int[] shifts, final long[] idMasks) {
+		this.size = size;
+		this.keys = new long[size];
+		this.ids = new int[values.length][size];
+		this.populations = new int[size];
+		this.variations = new int[size];
+		this.accumulatedPopulations = new int[size];
+		this.values = values;
+		this.shifts = shifts;
+		this.idMasks = idMasks;
+	}
+
+	/** A filter of the contents of the cells, on primitives. */
+	@FunctionalInterface
+	public interface ContentFilter {
+		boolean test(int population, int variation, int accumulatedPopulation);
+	}
+
+	/** The conjunction of filters on the values of some partitions and on the contents of the cells. */
+	public static class Filter {
+		private final Predicate<?>[] valueFilters = new Predicate<?>[PartitionsCatalog.PartitionsDb.values().length];
+
+		private ContentFilter contentFilter = null;
+
+		/** Keeps the cells whose value of the specified partition satisfies the specified filter. */
+		public Filter where(final int partitionOrdinal, final Predicate<?> valueFilter) {
+			valueFilters[partitionOrdinal] = valueFilters[partitionOrdinal] == null
+					? valueFilter
+					: and(valueFilters[partitionOrdinal], valueFilter);
+			return this;
+		}
+
+		/** Keeps the cells whose content satisfies the specified filter. */
+		public Filter whereContent(final ContentFilter contentFilter) {
+			final ContentFilter previous = this.contentFilter;
+			this.contentFilter = previous == null
+					? contentFilter
+					: (population, variation, accumulated) -> previous.test(population, variation, accumulated)
+							&& contentFilter.test(population, variation, accumulated);
+			return this;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Predicate<Object> and(final Predicate<?> a, final Predicate<?> b) {
+			return ((Predicate<Object>) a).and((Predicate<Object>) b);
+		}
+	}
+
+	/**
+	 * Sums the population of the cells that pass the specified filter, grouped by the specified partitions, and gives
+	 * each group whose population is not zero to the specified visitor, in no particular order.
+	 *
+	 * @param partitionOrdinals the partitions to group by, in the order the group values are given.
+	 */
+	public void populationGrouped(final Filter filter, final int[] partitionOrdinals, final Rollup.Visitor visitor) {
+		final var kernel = new Kernel(compile(filter), groupMaskOf(partitionOrdinals), 0, size);
+		final LongLongHashMap groups = size < PARALLELISM_THRESHOLD ? kernel.compute() : ForkJoinPool.commonPool().invoke(kernel);
+		groups.forEach((groupKey, population) -> {
+			final var groupValues = new Object[partitionOrdinals.length];
+			for (int index = 0; index < partitionOrdinals.length; ++index) {
+				final int ordinal = partitionOrdinals[index];
+				groupValues[index] = values[ordinal][(int) ((groupKey >>> shifts[ordinal]) & idMasks[ordinal])];
+			}
+			visitor.visit(groupValues, (int) population);
+		});
+	}
+
+	/** @return the number of cells that pass the specified filter. */
+	public int count(final Filter filter) {
+		final var compiledFilter = compile(filter);
+		final var selection = new boolean[BLOCK_SIZE];
+		int count = 0;
+		for (int from = 0; from < size; from += BLOCK_SIZE) {
+			final int length = Math.min(BLOCK_SIZE, size - from);
+			compiledFilter.select(from, length, selection);
+			for (int index = 0; index < length; ++index) {
+				count += selection[index] ? 1 : 0;
+			}
+		}
+		return count;
+	}
+
+	private long groupMaskOf(final int[] partitionOrdinals) {
+		long mask = 0L;
+		for (int ordinal : partitionOrdinals) {
+			mask |= idMasks[ordinal] << shifts[ordinal];
+		}
+		return mask;
+	}
+
+	/** Evaluates the value filters on the dictionaries. */
+	@SuppressWarnings("unchecked")
+	private CompiledFilter compile(final Filter filter) {
+		final var acceptedIds = new boolean[ids.length][];
+		for (int ordinal = 0; ordinal < ids.length; ++ordinal) {
+			final var valueFilter = (Predicate<Object>) filter.valueFilters[ordinal];
+			if (valueFilter != null) {
+				acceptedIds[ordinal] = new boolean[values[ordinal].length];
+				// the id zero is reserved and never used by a cell
+				for (int id = 1; id < values[ordinal].length; ++id) {
+					acceptedIds[ordinal][id] = valueFilter.test(values[ordinal][id]);
+				}
+			}
+		}
+		return new CompiledFilter(acceptedIds, filter.contentFilter);
+	}
+
+	/** A filter whose value filters are translated to the dictionary ids they accept. */
+	private class CompiledFilter {
+		/** Tells if each dictionary id of each partition is accepted, or null if the partition is not filtered. */
+		final boolean[][] acceptedIds;
+
+		final ContentFilter contentFilter;
+
+		CompiledFilter(final boolean[][] acceptedIds, final ContentFilter contentFilter) {
+			this.acceptedIds = acceptedIds;
+			this.contentFilter = contentFilter;
+		}
+
+		/** Tells, in the specified selection, which of the specified range of cells pass this filter. */
+		void select(final int from, final int length, final boolean[] selection) {
+			Arrays.fill(selection, 0, length, true);
+			for (int ordinal = 0; ordinal < acceptedIds.length; ++ordinal) {
+				final boolean[] accepted = acceptedIds[ordinal];
+				if (accepted != null) {
+					final int[] column = ids[ordinal];
+					for (int index = 0; index < length; ++index) {
+						selection[index] &= accepted[column[from + index]];
+					}
+				}
+			}
+			if (contentFilter != null) {
+				for (int index = 0; index < length; ++index) {
+					final int cell = from + index;
+					selection[index] &= contentFilter.test(populations[cell], variations[cell], accumulatedPopulations[cell]);
+				}
+			}
+		}
+	}
+
+	/** Filters and aggregates a range of cells, splitting it in halves that run in parallel while it is big. */
+	private class Kernel extends RecursiveTask<LongLongHashMap> {
+		private final CompiledFilter filter;
+
+		private final long groupMask;
+
+		private final int from;
+
+		private final int to;
+
+		Kernel(final CompiledFilter filter, final long groupMask, final int from, final int to) {
+			this.filter = filter;
+			this.groupMask = groupMask;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected LongLongHashMap compute() {
+			if (to - from > PARALLELISM_THRESHOLD) {
+				final int middle = (from + to) >>> 1;
+				final var left = new Kernel(filter, groupMask, from, middle);
+				left.fork();
+				final LongLongHashMap groups = new Kernel(filter, groupMask, middle, to).compute();
+				left.join().forEach(groups::addTo);
+				return groups;
+			}
+			final var groups = new LongLongHashMap(256);
+			final var selection = new boolean[BLOCK_SIZE];
+			for (int block = from; block < to; block += BLOCK_SIZE) {
+				final int length = Math.min(BLOCK_SIZE, to - block);
+				filter.select(block, length, selection);
+				for (int index = 0; index < length; ++index) {
+					if (selection[index]) {
+						groups.addTo(keys[block + index] & groupMask, populations[block + index]);
+					}
+				}
+			}
+			return groups;
+		}
+	}
+}
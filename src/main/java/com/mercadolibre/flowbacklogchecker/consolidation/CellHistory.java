@@ -0,0 +1,535 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * The history of the cells of a {@link Backlog} on local disk, which allows to reconstruct the cells as they were just
+ * after any integrated event, identified by its arrival serial number or by its arrival date, without replaying the
+ * events from the beginning.
+ *
+ * <p>The history is split in intervals of a fixed number of cell changing events. Each interval starts with a keyframe,
+ * a file with all the cells as of the first event of the interval, and continues with a delta log, a file to which a
+ * compact record is appended for each event: its arrival serial number and date, and the ids of the cells it
+ * decremented and incremented. The coordinates of a cell are written to the delta log once per interval, the first time
+ * the cell is touched. Hence the reconstruction loads the nearest keyframe and replays at most an interval of deltas.
+ *
+ * <p>The files of a backlog are in a directory per generation, named after the arrival serial number of the last event
+ * integrated when the history was enabled, so that every run of the process, which may restart from a checkpoint older
+ * than the last recorded event, has its own consistent history. Each part of a sharded backlog records its own cells in
+ * a subdirectory of the generation, and the reconstruction sums the parts.
+ *
+ * <p>The reconstruction by date assumes the arrival dates do not decrease with the arrival serial numbers.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe: it is owned by the thread that integrates the events
+ * into the backlog. The reconstruction, {@link #cellsAt(Path, PartitionsCatalog, long)}, may be called by any thread.
+ */
+@Slf4j
+public class CellHistory implements Closeable {
+
+	/** The settings of the cell history of a {@link Backlog}. */
+	public static class Settings {
+		/** The directory of the generations. Each backlog must have its own. */
+		public Path directory = Path.of("cell-history");
+
+		/** The number of cell changing events of each interval. Bounds the number of deltas a reconstruction replays. */
+		public int keyframeInterval = 100_000;
+
+		/** The number of keyframes, with their delta logs, that each part keeps. The older ones are deleted. */
+		public int retainedKeyframes = 2_000;
+
+		/** The number of generations kept. The older ones are deleted when a new one starts. */
+		public int retainedGenerations = 3;
+
+		/**
+		 * @return a copy of these settings for the specified part of the specified generation, whose directory is the
+		 *     one of the files of said part.
+		 */
+		public Settings forPart(final long generation, final String part) {
+			final var copy = new Settings();
+			copy.directory = directory.resolve(generationName(generation)).resolve(part);
+			copy.keyframeInterval = keyframeInterval;
+			copy.retainedKeyframes = retainedKeyframes;
+			copy.retainedGenerations = retainedGenerations;
+			return copy;
+		}
+	}
+
+	private static final String KEYFRAME_PREFIX = "keyframe-";
+	private static final String KEYFRAME_SUFFIX = ".cells";
+	private static final String DELTAS_PREFIX = "deltas-";
+	private static final String DELTAS_SUFFIX = ".log";
+
+	/** The tags of the delta log records. */
+	private static final byte CELL_RECORD = 1;
+	private static final byte EVENT_RECORD = 2;
+
+	/** The tags of the coordinates values. */
+	private static final byte NULL_TAG = 0;
+	private static final byte STRING_TAG = 1;
+	private static final byte TIMESTAMP_TAG = 2;
+
+	/** The cell id of the delta record of an event that did not decrement, or increment, any cell. */
+	private static final int NO_CELL = -1;
+
+	/** The key passed to {@link #record} for the cell an event did not decrement, or increment. Never a cell key. */
+	public static final long NO_KEY = 0L;
+
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	private final Path directory;
+
+	private final Settings settings;
+
+	/** The cells of the backlog, which this history records. */
+	private final CellStore cells;
+
+	/**
+	 * The id, in the current delta log, of each cell touched during the current interval. Forgotten when the store
+	 * reclaims dictionary ids, after which a key may identify another cell, see {@link CellStore#reclaims()}.
+	 */
+	private LongLongHashMap cellIds;
+
+	/** The id of the next cell defined in the current delta log. */
+	private int nextCellId;
+
+	/** The {@link CellStore#reclaims()} the keys of {@link #cellIds} are valid for. */
+	private int cellIdsReclaims;
+
+	private DataOutputStream deltas;
+
+	private int eventsInInterval = 0;
+
+	/**
+	 * Starts the history of the specified cells in the directory of the specified settings, with a keyframe of their
+	 * current content. The files of a previous history of the same part and generation are deleted.
+	 *
+	 * @throws IOException if the first keyframe could not be written.
+	 */
+	public CellHistory(
+			final Settings settings,
+			final CellStore cells,
+			final long lastEventArrivalSerialNumber,
+			final Instant lastEventArrivalDate
+	) throws IOException {
+		this.directory = settings.directory;
+		this.settings = settings;
+		this.cells = cells;
+		Files.createDirectories(directory);
+		try (var staleFiles = Files.newDirectoryStream(directory)) {
+			for (Path staleFile : staleFiles) {
+				Files.delete(staleFile);
+			}
+		}
+		startInterval(lastEventArrivalSerialNumber, Backlog.Trajectory.epochNanosOf(lastEventArrivalDate));
+	}
+
+	/**
+	 * Records the changes of the cells caused by the specified event. Must be called after the cells were changed.
+	 *
+	 * @param decrementedKey the key of the decremented cell, or {@link #NO_KEY} if none was.
+	 * @param incrementedKey the key of the incremented cell, or {@link #NO_KEY} if none was.
+	 */
+	public void record(
+			final long arrivalSerialNumber,
+			final Instant arrivalDate,
+			final long decrementedKey,
+			final long incrementedKey
+	) {
+		try {
+			final int decrementedId = decrementedKey == NO_KEY ? NO_CELL : cellIdOf(decrementedKey);
+			final int incrementedId = incrementedKey == NO_KEY ? NO_CELL : cellIdOf(incrementedKey);
+			final long arrivalDateNanos = Backlog.Trajectory.epochNanosOf(arrivalDate);
+			deltas.writeByte(EVENT_RECORD);
+			deltas.writeLong(arrivalSerialNumber);
+			deltas.writeLong(arrivalDateNanos);
+			deltas.writeInt(decrementedId);
+			deltas.writeInt(incrementedId);
+			if (++eventsInInterval >= settings.keyframeInterval) {
+				deltas.close();
+				startInterval(arrivalSerialNumber, arrivalDateNanos);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Writes the buffered deltas to the file, so that the reconstruction sees them. */
+	public void flush() {
+		try {
+			deltas.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Closes the current delta log. The files are kept. */
+	@Override
+	public void close() {
+		try {
+			deltas.close();
+		} catch (IOException e) {
+			log.warn("Could not close the delta log of the cell history in {}", directory, e);
+		}
+	}
+
+	private int cellIdOf(final long key) throws IOException {
+		if (cells.reclaims() != cellIdsReclaims) {
+			cellIds = new LongLongHashMap(1024);
+			cellIdsReclaims = cells.reclaims();
+		}
+		final long id = cellIds.get(key);
+		if (id != LongLongHashMap.NO_VALUE) {
+			return (int) id;
+		}
+		final int newId = nextCellId++;
+		cellIds.put(key, newId);
+		deltas.writeByte(CELL_RECORD);
+		writeCoordinates(deltas, cells.coordinatesOf(key));
+		return newId;
+	}
+
+	/** Writes a keyframe of the current cells and opens the delta log of the interval it starts. */
+	private void startInterval(final long arrivalSerialNumber, final long arrivalDateNanos) throws IOException {
+		final Path keyframe = directory.resolve(KEYFRAME_PREFIX + fileNumber(arrivalSerialNumber) + KEYFRAME_SUFFIX);
+		final Path temporaryFile = directory.resolve(keyframe.getFileName() + ".tmp");
+		try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile), OUTPUT_BUFFER_SIZE))) {
+			output.writeLong(arrivalSerialNumber);
+			output.writeLong(arrivalDateNanos);
+			output.writeInt(cells.size());
+			final IOException[] failure = {null};
+			cells.forEach((key, population, variation, accumulatedPopulation) -> {
+				try {
+					writeCoordinates(output, cells.coordinatesOf(key));
+					output.writeInt(population);
+					output.writeInt(variation);
+					output.writeInt(accumulatedPopulation);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+		Files.move(temporaryFile, keyframe, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.deltas = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(directory.resolve(DELTAS_PREFIX + fileNumber(arrivalSerialNumber) + DELTAS_SUFFIX)),
+				OUTPUT_BUFFER_SIZE
+		));
+		this.cellIds = new LongLongHashMap(1024);
+		this.nextCellId = 0;
+		this.cellIdsReclaims = cells.reclaims();
+		this.eventsInInterval = 0;
+		deleteOldKeyframes();
+	}
+
+	private void deleteOldKeyframes() throws IOException {
+		final List<Long> keyframes = new ArrayList<>(keyframesOf(directory).keySet());
+		for (int index = 0; index < keyframes.size() - settings.retainedKeyframes; ++index) {
+			Files.deleteIfExists(directory.resolve(KEYFRAME_PREFIX + fileNumber(keyframes.get(index)) + KEYFRAME_SUFFIX));
+			Files.deleteIfExists(directory.resolve(DELTAS_PREFIX + fileNumber(keyframes.get(index)) + DELTAS_SUFFIX));
+		}
+	}
+
+	/** Deletes the oldest generations of the history in the directory of the specified settings beyond the retained ones. */
+	public static void deleteOldGenerations(final Settings settings) throws IOException {
+		final List<Long> generations = new ArrayList<>(generationsOf(settings.directory).keySet());
+		for (int index = 0; index < generations.size() - settings.retainedGenerations; ++index) {
+			final Path generation = settings.directory.resolve(generationName(generations.get(index)));
+			try (Stream<Path> files = Files.walk(generation)) {
+				final Path[] paths = files.toArray(Path[]::new);
+				// the files before their directories
+				for (int pathIndex = paths.length - 1; pathIndex >= 0; --pathIndex) {
+					Files.deleteIfExists(paths[pathIndex]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reconstructs the cells of the backlog whose history is in the specified directory as they were just after the
+	 * integration of the event with the specified arrival serial number.
+	 *
+	 * @param directory the directory of the generations: the one of the settings the history was enabled with.
+	 * @return a photo of the reconstructed cells, tagged with the last cell changing event at or before the specified
+	 *     one.
+	 * @throws IllegalArgumentException if the history does not reach back to the specified event.
+	 * @throws IOException if the history could not be read.
+	 */
+	public static BacklogPhoto cellsAt(final Path directory, final PartitionsCatalog partitionsCatalog, final long arrivalSerialNumber) throws IOException {
+		final Long generation = generationsOf(directory).floorKey(arrivalSerialNumber);
+		if (generation == null) {
+			throw new IllegalArgumentException("The cell history does not reach back to the event #" + arrivalSerialNumber);
+		}
+		return reconstruct(directory.resolve(generationName(generation)), partitionsCatalog, (serial, dateNanos) -> serial <= arrivalSerialNumber);
+	}
+
+	/**
+	 * Like {@link #cellsAt(Path, PartitionsCatalog, long)}, as they were just after the integration of the last event
+	 * that arrived at or before the specified date.
+	 */
+	public static BacklogPhoto cellsAt(final Path directory, final PartitionsCatalog partitionsCatalog, final Instant arrivalDate) throws IOException {
+		final long arrivalDateNanos = Backlog.Trajectory.epochNanosOf(arrivalDate);
+		final var generations = generationsOf(directory);
+		for (Long generation : generations.descendingKeySet()) {
+			final Path generationDirectory = directory.resolve(generationName(generation));
+			if (generationStartDateNanos(generationDirectory, generation) <= arrivalDateNanos) {
+				return reconstruct(generationDirectory, partitionsCatalog, (serial, dateNanos) -> dateNanos <= arrivalDateNanos);
+			}
+		}
+		throw new IllegalArgumentException("The cell history does not reach back to " + arrivalDate);
+	}
+
+	@FunctionalInterface
+	private interface Bound {
+		boolean includes(long arrivalSerialNumber, long arrivalDateNanos);
+	}
+
+	private static BacklogPhoto reconstruct(final Path generation, final PartitionsCatalog partitionsCatalog, final Bound bound) throws IOException {
+		final List<Partition> partitions = partitionsCatalog.getPartitions();
+		final var merged = new CellStore(partitions, 1024);
+		long lastSerial = Long.MIN_VALUE;
+		long lastDateNanos = Backlog.Trajectory.NULL_DATE;
+		final Path[] parts;
+		try (Stream<Path> files = Files.list(generation)) {
+			parts = files.filter(Files::isDirectory).sorted().toArray(Path[]::new);
+		}
+		for (Path part : parts) {
+			final var replay = new PartReplay(partitions);
+			replay.run(part, bound);
+			replay.cells.forEach((key, population, variation, accumulatedPopulation) -> {
+				final var content = new Backlog.CellContent(population, accumulatedPopulation);
+				content.variation = variation;
+				merged.add(merged.keyOf(replay.cells.coordinatesOf(key)), content);
+			});
+			if (replay.lastSerial > lastSerial) {
+				lastSerial = replay.lastSerial;
+				lastDateNanos = replay.lastDateNanos;
+			}
+		}
+		if (lastSerial == Long.MIN_VALUE) {
+			throw new IllegalArgumentException("The cell history in " + generation + " has no keyframe in the requested range");
+		}
+		final var cells = new ArrayList<Backlog.Cell>(merged.size());
+		merged.forEach((key, population, variation, accumulatedPopulation) -> {
+			if (population != 0) {
+				cells.add(new Backlog.Cell(merged.coordinatesOf(key), population, variation, accumulatedPopulation));
+			}
+		});
+		return new BacklogPhoto(
+				lastSerial,
+				lastDateNanos == Backlog.Trajectory.NULL_DATE ? null : Instant.ofEpochSecond(0, lastDateNanos),
+				cells
+		);
+	}
+
+	/** The reconstruction of the cells of a part of a backlog. */
+	private static class PartReplay {
+		final CellStore cells;
+
+		final int partitionsCount;
+
+		/** The last event applied, or {@link Long#MIN_VALUE} if the part has no keyframe in the bound. */
+		long lastSerial = Long.MIN_VALUE;
+		long lastDateNanos = Backlog.Trajectory.NULL_DATE;
+
+		/**
+		 * The coordinates of each cell defined in the delta log, indexed by its id. Not their keys, which the cells
+		 * store may reclaim when the cells are removed.
+		 */
+		private Object[][] cellCoordinates = new Object[1024][];
+		private int definedCells = 0;
+
+		PartReplay(final List<Partition> partitions) {
+			this.cells = new CellStore(partitions, 1024);
+			this.partitionsCount = partitions.size();
+		}
+
+		void run(final Path part, final Bound bound) throws IOException {
+			Long keyframe = null;
+			for (Long candidate : keyframesOf(part).descendingKeySet()) {
+				try (var input = openInput(part.resolve(KEYFRAME_PREFIX + fileNumber(candidate) + KEYFRAME_SUFFIX))) {
+					if (bound.includes(input.readLong(), input.readLong())) {
+						keyframe = candidate;
+						break;
+					}
+				}
+			}
+			if (keyframe == null) {
+				return;
+			}
+			try (var input = openInput(part.resolve(KEYFRAME_PREFIX + fileNumber(keyframe) + KEYFRAME_SUFFIX))) {
+				lastSerial = input.readLong();
+				lastDateNanos = input.readLong();
+				final int count = input.readInt();
+				for (int index = 0; index < count; ++index) {
+					final long key = cells.keyOf(readCoordinates(input, partitionsCount));
+					final var content = new Backlog.CellContent(input.readInt(), 0);
+					content.variation = input.readInt();
+					content.accumulatedPopulation = input.readInt();
+					cells.add(key, content);
+				}
+			}
+			final Path deltasFile = part.resolve(DELTAS_PREFIX + fileNumber(keyframe) + DELTAS_SUFFIX);
+			if (Files.exists(deltasFile)) {
+				try (var input = openInput(deltasFile)) {
+					replayDeltas(input, bound);
+				}
+			}
+		}
+
+		private void replayDeltas(final DataInputStream input, final Bound bound) throws IOException {
+			try {
+				while (true) {
+					final byte tag = input.readByte();
+					if (tag == CELL_RECORD) {
+						if (definedCells == cellCoordinates.length) {
+							cellCoordinates = Arrays.copyOf(cellCoordinates, cellCoordinates.length * 2);
+						}
+						cellCoordinates[definedCells++] = readCoordinates(input, partitionsCount);
+					} else if (tag == EVENT_RECORD) {
+						final long serial = input.readLong();
+						final long dateNanos = input.readLong();
+						final int decrementedId = input.readInt();
+						final int incrementedId = input.readInt();
+						if (!bound.includes(serial, dateNanos)) {
+							return;
+						}
+						if (decrementedId != NO_CELL) {
+							cells.decrement(cells.keyOf(cellCoordinates[decrementedId]), 1);
+						}
+						if (incrementedId != NO_CELL) {
+							cells.increment(cells.keyOf(cellCoordinates[incrementedId]), 1);
+						}
+						lastSerial = serial;
+						lastDateNanos = dateNanos;
+					} else {
+						throw new IOException("Unknown record tag " + tag + " in a delta log");
+					}
+				}
+			} catch (EOFException e) {
+				// the end of the log, or a record that was being written
+			}
+		}
+	}
+
+	/** @return the keyframes of the specified part, by the arrival serial number of the event they follow. */
+	private static TreeMap<Long, Path> keyframesOf(final Path part) throws IOException {
+		final var keyframes = new TreeMap<Long, Path>();
+		try (var files = Files.newDirectoryStream(part, KEYFRAME_PREFIX + "*" + KEYFRAME_SUFFIX)) {
+			for (Path file : files) {
+				final String name = file.getFileName().toString();
+				keyframes.put(
+						Long.parseLong(name.substring(KEYFRAME_PREFIX.length(), name.length() - KEYFRAME_SUFFIX.length())),
+						file
+				);
+			}
+		}
+		return keyframes;
+	}
+
+	/** @return the generations in the specified directory, by the arrival serial number they start after. */
+	private static TreeMap<Long, Path> generationsOf(final Path directory) throws IOException {
+		final var generations = new TreeMap<Long, Path>();
+		if (Files.isDirectory(directory)) {
+			try (var files = Files.newDirectoryStream(directory, Files::isDirectory)) {
+				for (Path file : files) {
+					try {
+						generations.put(Long.parseLong(file.getFileName().toString()), file);
+					} catch (NumberFormatException e) {
+						log.warn("Ignoring the unexpected directory {} of the cell history", file);
+					}
+				}
+			}
+		}
+		return generations;
+	}
+
+	/** @return the arrival date of the first keyframe of the specified generation, which all its parts share. */
+	private static long generationStartDateNanos(final Path generationDirectory, final long generation) throws IOException {
+		try (Stream<Path> parts = Files.list(generationDirectory)) {
+			for (Path part : (Iterable<Path>) parts::iterator) {
+				final Path keyframe = part.resolve(KEYFRAME_PREFIX + fileNumber(generation) + KEYFRAME_SUFFIX);
+				if (Files.exists(keyframe)) {
+					try (var input = openInput(keyframe)) {
+						input.readLong();
+						return input.readLong();
+					}
+				}
+			}
+		}
+		// the first keyframes were deleted: the generation is too old to be useful
+		return Long.MAX_VALUE;
+	}
+
+	private static String generationName(final long generation) {
+		return fileNumber(generation);
+	}
+
+	private static String fileNumber(final long arrivalSerialNumber) {
+		return String.format("%020d", arrivalSerialNumber);
+	}
+
+	private static DataInputStream openInput(final Path file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), OUTPUT_BUFFER_SIZE));
+	}
+
+	private static void writeCoordinates(final DataOutputStream output, final Object[] coordinates) throws IOException {
+		for (Object value : coordinates) {
+			if (value == null) {
+				output.writeByte(NULL_TAG);
+			} else if (value instanceof String) {
+				output.writeByte(STRING_TAG);
+				output.writeUTF((String) value);
+			} else if (value instanceof Timestamp) {
+				output.writeByte(TIMESTAMP_TAG);
+				output.writeLong(((Timestamp) value).getTime());
+				output.writeInt(((Timestamp) value).getNanos());
+			} else {
+				throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+			}
+		}
+	}
+
+	private static Object[] readCoordinates(final DataInputStream input, final int partitionsCount) throws IOException {
+		final var coordinates = new Object[partitionsCount];
+		for (int ordinal = 0; ordinal < coordinates.length; ++ordinal) {
+			final byte tag = input.readByte();
+			switch (tag) {
+				case NULL_TAG:
+					coordinates[ordinal] = null;
+					break;
+				case STRING_TAG:
+					coordinates[ordinal] = input.readUTF();
+					break;
+				case TIMESTAMP_TAG:
+					final var timestamp = new Timestamp(input.readLong());
+					timestamp.setNanos(input.readInt());
+					coordinates[ordinal] = timestamp;
+					break;
+				default:
+					throw new IOException("Unknown value tag " + tag + " in the cell history");
+			}
+		}
+		return coordinates;
+	}
+}
@@ -0,0 +1,460 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A mutable map from the {@link Backlog.Coordinates} of a cell to its {@link Backlog.CellContent}, designed to avoid
+ * allocations on the integration hot path.
+ *
+ * <p>The values of each {@link Partition} are dictionary-encoded into small ints, and the dictionary ids of all the
+ * partitions are packed into a single long key. The cell contents are kept in parallel int arrays of a linear probing
+ * open addressing table indexed by said key. The keys are decoded back to {@link Backlog.Coordinates} only when the
+ * cells are read.
+ *
+ * <p>Dictionary ids start at one, so that the packed key zero never happens and can be used as the empty slot marker.
+ *
+ * <p>Each dictionary counts the cells whose key has each of its ids. When a dictionary is full, the ids no cell has
+ * anymore are reclaimed and reused, so that the values that come and go, like the dates, do not exhaust the key bits.
+ * Hence a key is valid only while its cell is in the store, or until the next {@link #keyOf} call that reclaims ids:
+ * the holders of keys of removed cells watch {@link #reclaims()}. The ids of the key returned by the last {@link
+ * #keyOf} call are never reclaimed, so that a caller may resolve two keys before changing the cells.
+ */
+public class CellStore {
+	private static final long EMPTY = 0L;
+
+	/** The key returned by {@link #findKeyOf(Object[])} when a coordinate is not known, which no cell has. */
+	public static final long NO_KEY = EMPTY;
+
+	private final List<Partition> partitions;
+
+	/** The dictionary of each partition, indexed by the partition ordinal. */
+	private final Dictionary[] dictionaries;
+
+	/** The position of the least significant bit of each partition's dictionary id in the packed key. */
+	private final int[] shifts;
+
+	private long[] keys;
+	private int[] populations;
+	private int[] variations;
+	private int[] accumulatedPopulations;
+
+	private int size;
+
+	/** The key returned by the last {@link #keyOf} call, whose ids are not reclaimed. */
+	private long lastKey = EMPTY;
+
+	/** The number of times some dictionary ids were reclaimed. */
+	private int reclaims = 0;
+
+	/**
+	 * @param partitions the partitions that divide the entities state space.
+	 * @param initialCapacity the expected number of cells. Must be a power of two.
+	 */
+	public CellStore(final List<Partition> partitions, final int initialCapacity) {
+		assert Integer.bitCount(initialCapacity) == 1;
+		this.partitions = partitions;
+		this.dictionaries = new Dictionary[partitions.size()];
+		this.shifts = new int[partitions.size()];
+		int shift = 0;
+		for (Partition partition : partitions) {
+			dictionaries[partition.getOrdinal()] = new Dictionary(partition.getKeyBits());
+			shifts[partition.getOrdinal()] = shift;
+			shift += partition.getKeyBits();
+		}
+		if (shift > Long.SIZE) {
+			throw new IllegalArgumentException("The sum of the partitions key bits exceeds 64: " + shift);
+		}
+		allocate(initialCapacity * 2);
+	}
+
+	/**
+	 * Creates a copy of the specified store, dictionaries included, that does not change when the original does. Given
+	 * nobody modifies it, the copy can be read by any thread once safely published.
+	 */
+	public CellStore(final CellStore original) {
+		this.partitions = original.partitions;
+		this.dictionaries = new Dictionary[original.dictionaries.length];
+		for (int ordinal = 0; ordinal < dictionaries.length; ++ordinal) {
+			dictionaries[ordinal] = new Dictionary(original.dictionaries[ordinal]);
+		}
+		this.shifts = original.shifts;
+		this.keys = original.keys.clone();
+		this.populations = original.populations.clone();
+		this.variations = original.variations.clone();
+		this.accumulatedPopulations = original.accumulatedPopulations.clone();
+		this.size = original.size;
+		this.lastKey = original.lastKey;
+		this.reclaims = original.reclaims;
+	}
+
+	/** @return the number of cells this store contains. */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the packed key of the cell that contains the specified {@link EntityState}. The values not known are added
+	 *     to the dictionaries, hence this is meant for the writers. The readers use {@link #findKeyOf(Object[])}.
+	 */
+	public long keyOf(final EntityState state) {
+		long key = 0L;
+		for (Partition partition : partitions) {
+			final int ordinal = partition.getOrdinal();
+			key |= ((long) idOf(ordinal, partition.discriminator().apply(state))) << shifts[ordinal];
+		}
+		lastKey = key;
+		return key;
+	}
+
+	/** Like {@link #keyOf(EntityState)}, for the cell identified by the specified coordinates. */
+	public long keyOf(final Object[] coordinates) {
+		long key = 0L;
+		for (int ordinal = 0; ordinal < coordinates.length; ++ordinal) {
+			key |= ((long) idOf(ordinal, coordinates[ordinal])) << shifts[ordinal];
+		}
+		lastKey = key;
+		return key;
+	}
+
+	/**
+	 * @return the packed key of the cell identified by the specified coordinates, or {@link #NO_KEY} if some value is
+	 *     not known, in which case no cell has them. Unlike {@link #keyOf(Object[])}, the dictionaries are not changed.
+	 */
+	public long findKeyOf(final Object[] coordinates) {
+		long key = 0L;
+		for (int ordinal = 0; ordinal < coordinates.length; ++ordinal) {
+			final Integer id = dictionaries[ordinal].ids.get(coordinates[ordinal]);
+			if (id == null) {
+				return NO_KEY;
+			}
+			key |= ((long) id) << shifts[ordinal];
+		}
+		return key;
+	}
+
+	/**
+	 * @return the number of times the ids no cell had were reclaimed, which invalidates the keys of the removed cells.
+	 *     A holder of such keys discards them when this number changes.
+	 */
+	public int reclaims() {
+		return reclaims;
+	}
+
+	/**
+	 * @return the mask that keeps, from a packed key, the dictionary ids of the partitions whose ordinals are the
+	 *     specified ones.
+	 */
+	public long maskOf(final int... partitionOrdinals) {
+		long mask = 0L;
+		for (int ordinal : partitionOrdinals) {
+			mask |= (dictionaries[ordinal].mask & 0xFFFFFFFFL) << shifts[ordinal];
+		}
+		return mask;
+	}
+
+	/** Decodes the specified packed key back to the coordinates values. */
+	public Object[] coordinatesOf(final long key) {
+		final var coordinates = new Object[dictionaries.length];
+		for (int ordinal = 0; ordinal < dictionaries.length; ++ordinal) {
+			coordinates[ordinal] = valueOf(key, ordinal);
+		}
+		return coordinates;
+	}
+
+	/** Decodes the value of the specified partition from the specified packed key. */
+	public Object valueOf(final long key, final int partitionOrdinal) {
+		final var dictionary = dictionaries[partitionOrdinal];
+		return dictionary.values.get((int) (key >>> shifts[partitionOrdinal]) & dictionary.mask);
+	}
+
+	/** Increments the population of the cell pointed by the specified key, creating it if absent. */
+	public void increment(final long key, final int quantity) {
+		final int slot = slotOf(key);
+		populations[slot] += quantity;
+		variations[slot] += quantity;
+		accumulatedPopulations[slot] += quantity;
+	}
+
+	/**
+	 * Decrements the population of the cell pointed by the specified key, creating it if absent. The cell is removed
+	 * when its population reaches zero.
+	 *
+	 * @return true if the cell was removed.
+	 */
+	public boolean decrement(final long key, final int quantity) {
+		final int slot = slotOf(key);
+		populations[slot] -= quantity;
+		variations[slot] -= quantity;
+		if (populations[slot] == 0) {
+			removeSlot(slot);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/** Adds the specified content to the cell pointed by the specified key, creating it if absent. */
+	public void add(final long key, final Backlog.CellContent content) {
+		final int slot = slotOf(key);
+		populations[slot] += content.population;
+		variations[slot] += content.variation;
+		accumulatedPopulations[slot] += content.accumulatedPopulation;
+	}
+
+	/** @return a copy of the content of the cell pointed by the specified key, or null if said cell is absent. */
+	public Backlog.CellContent get(final long key) {
+		if (key == NO_KEY) {
+			return null;
+		}
+		for (int slot = hash(key) & (keys.length - 1); keys[slot] != EMPTY; slot = (slot + 1) & (keys.length - 1)) {
+			if (keys[slot] == key) {
+				final var content = new Backlog.CellContent(populations[slot], accumulatedPopulations[slot]);
+				content.variation = variations[slot];
+				return content;
+			}
+		}
+		return null;
+	}
+
+	/** Applies the specified visitor to every cell of this store, in no particular order. */
+	public void forEach(final Visitor visitor) {
+		for (int slot = 0; slot < keys.length; ++slot) {
+			if (keys[slot] != EMPTY) {
+				visitor.visit(keys[slot], populations[slot], variations[slot], accumulatedPopulations[slot]);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	public interface Visitor {
+		void visit(long key, int population, int variation, int accumulatedPopulation);
+	}
+
+	/** @return a copy of the cells of this store, with their coordinates decoded, in no particular order. */
+	public List<Backlog.Cell> toCells() {
+		final var cells = new ArrayList<Backlog.Cell>(size);
+		forEach((key, population, variation, accumulatedPopulation) ->
+				cells.add(new Backlog.Cell(coordinatesOf(key), population, variation, accumulatedPopulation)));
+		return cells;
+	}
+
+	/**
+	 * Copies the cells of this store to a {@link CellColumns}, which is independent of this store and hence can be
+	 * queried by other threads while this store keeps changing.
+	 */
+	public CellColumns toColumns() {
+		final var values = new Object[dictionaries.length][];
+		final var idMasks = new long[dictionaries.length];
+		for (int ordinal = 0; ordinal < dictionaries.length; ++ordinal) {
+			values[ordinal] = dictionaries[ordinal].values.toArray();
+			idMasks[ordinal] = dictionaries[ordinal].mask & 0xFFFFFFFFL;
+		}
+		final var columns = new CellColumns(size, values, shifts.clone(), idMasks);
+		int cell = 0;
+		for (int slot = 0; slot < keys.length; ++slot) {
+			if (keys[slot] != EMPTY) {
+				columns.keys[cell] = keys[slot];
+				columns.populations[cell] = populations[slot];
+				columns.variations[cell] = variations[slot];
+				columns.accumulatedPopulations[cell] = accumulatedPopulations[slot];
+				cell += 1;
+			}
+		}
+		for (int ordinal = 0; ordinal < dictionaries.length; ++ordinal) {
+			final int[] column = columns.ids[ordinal];
+			final int shift = shifts[ordinal];
+			final long idMask = idMasks[ordinal];
+			for (cell = 0; cell < size; ++cell) {
+				column[cell] = (int) ((columns.keys[cell] >>> shift) & idMask);
+			}
+		}
+		return columns;
+	}
+
+	/** Finds the slot of the specified key, occupying a new one if the key is absent. */
+	private int slotOf(final long key) {
+		int slot = hash(key) & (keys.length - 1);
+		while (keys[slot] != key) {
+			if (keys[slot] == EMPTY) {
+				if (size * 2 >= keys.length) {
+					rehash(keys.length * 2);
+					return slotOf(key);
+				}
+				keys[slot] = key;
+				size += 1;
+				reference(key, 1);
+				return slot;
+			}
+			slot = (slot + 1) & (keys.length - 1);
+		}
+		return slot;
+	}
+
+	/** Removes the entry at the specified slot shifting back the following entries of the same cluster. */
+	private void removeSlot(int hole) {
+		final int mask = keys.length - 1;
+		size -= 1;
+		reference(keys[hole], -1);
+		int slot = (hole + 1) & mask;
+		while (keys[slot] != EMPTY) {
+			final int home = hash(keys[slot]) & mask;
+			// move the entry to the hole if its home slot is not in the cyclic interval (hole, slot]
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				keys[hole] = keys[slot];
+				populations[hole] = populations[slot];
+				variations[hole] = variations[slot];
+				accumulatedPopulations[hole] = accumulatedPopulations[slot];
+				hole = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[hole] = EMPTY;
+		populations[hole] = 0;
+		variations[hole] = 0;
+		accumulatedPopulations[hole] = 0;
+	}
+
+	/** Adds the specified quantity to the number of cells that have each of the dictionary ids of the specified key. */
+	private void reference(final long key, final int quantity) {
+		for (int ordinal = 0; ordinal < dictionaries.length; ++ordinal) {
+			final var dictionary = dictionaries[ordinal];
+			dictionary.references[(int) (key >>> shifts[ordinal]) & dictionary.mask] += quantity;
+		}
+	}
+
+	private int idOf(final int ordinal, final Object value) {
+		final var dictionary = dictionaries[ordinal];
+		final Integer id = dictionary.ids.get(value);
+		if (id != null) {
+			return id;
+		}
+		if (dictionary.isFull()) {
+			if (dictionary.reclaim((int) (lastKey >>> shifts[ordinal]) & dictionary.mask) == 0) {
+				throw new IllegalStateException(String.format(
+						"The dictionary of a partition is full: %d values. Increase the partition key bits.", dictionary.mask));
+			}
+			reclaims += 1;
+		}
+		return dictionary.add(value);
+	}
+
+	private void rehash(final int newCapacity) {
+		final long[] oldKeys = keys;
+		final int[] oldPopulations = populations;
+		final int[] oldVariations = variations;
+		final int[] oldAccumulatedPopulations = accumulatedPopulations;
+		allocate(newCapacity);
+		for (int oldSlot = 0; oldSlot < oldKeys.length; ++oldSlot) {
+			if (oldKeys[oldSlot] != EMPTY) {
+				int slot = hash(oldKeys[oldSlot]) & (newCapacity - 1);
+				while (keys[slot] != EMPTY) {
+					slot = (slot + 1) & (newCapacity - 1);
+				}
+				keys[slot] = oldKeys[oldSlot];
+				populations[slot] = oldPopulations[oldSlot];
+				variations[slot] = oldVariations[oldSlot];
+				accumulatedPopulations[slot] = oldAccumulatedPopulations[oldSlot];
+			}
+		}
+	}
+
+	private void allocate(final int capacity) {
+		this.keys = new long[capacity];
+		this.populations = new int[capacity];
+		this.variations = new int[capacity];
+		this.accumulatedPopulations = new int[capacity];
+	}
+
+	/** The murmur3 64 bits finalizer. */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb34fe1a85ec3L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Assigns a small int id to each distinct value of a partition, and counts the cells whose key has each id. The ids
+	 * no cell has are reclaimed only when the dictionary is full.
+	 */
+	private static class Dictionary {
+		/** The count of references of a reclaimed id, which is free to be reused. */
+		private static final int FREE = -1;
+
+		final int mask;
+		final Map<Object, Integer> ids = new HashMap<>();
+		final List<Object> values = new ArrayList<>();
+
+		/** The number of cells whose key has each id, indexed by id, or {@link #FREE}. */
+		int[] references;
+
+		/** The reclaimed ids not reused yet, in the first {@link #freeCount} positions. */
+		int[] freeIds;
+		int freeCount;
+
+		Dictionary(final int bits) {
+			this.mask = (int) ((1L << bits) - 1);
+			this.references = new int[Math.min(16, mask + 1)];
+			this.freeIds = new int[0];
+			values.add(null); // the id zero is reserved
+		}
+
+		Dictionary(final Dictionary original) {
+			this.mask = original.mask;
+			this.ids.putAll(original.ids);
+			this.values.addAll(original.values);
+			this.references = original.references.clone();
+			this.freeIds = original.freeIds.clone();
+			this.freeCount = original.freeCount;
+		}
+
+		boolean isFull() {
+			return freeCount == 0 && values.size() > mask;
+		}
+
+		/** Assigns an id to the specified value, which is not known. The dictionary must not be full. */
+		int add(final Object value) {
+			final int newId;
+			if (freeCount > 0) {
+				newId = freeIds[--freeCount];
+				values.set(newId, value);
+			} else {
+				newId = values.size();
+				values.add(value);
+				if (newId == references.length) {
+					references = Arrays.copyOf(references, Math.min(references.length * 2, mask + 1));
+				}
+			}
+			references[newId] = 0;
+			ids.put(value, newId);
+			return newId;
+		}
+
+		/**
+		 * Frees the ids no cell has, except the specified one.
+		 *
+		 * @return the number of freed ids.
+		 */
+		int reclaim(final int keptId) {
+			final int before = freeCount;
+			for (int id = 1; id < values.size(); ++id) {
+				if (references[id] == 0 && id != keptId) {
+					if (freeCount == freeIds.length) {
+						freeIds = Arrays.copyOf(freeIds, Math.max(16, freeIds.length * 2));
+					}
+					freeIds[freeCount++] = id;
+					references[id] = FREE;
+					ids.remove(values.get(id));
+					values.set(id, null);
+				}
+			}
+			return freeCount - before;
+		}
+	}
+}
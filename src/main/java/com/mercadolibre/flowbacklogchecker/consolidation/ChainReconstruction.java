@@ -0,0 +1,184 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Reconstructs the chain of states of a {@link Backlog.Trajectory} whose events did not arrive in order, the same way
+ * {@link Backlog.Trajectory#getLastStateOf_loop} does: starting from the first event, each step links to an end of the
+ * chain the first loose link, in arrival order, whose old state is the newer end or whose new state is the older end.
+ *
+ * <p>The events are identified by their index in the trajectory, and their states by int keys such that two states
+ * are considered equal if and only if their keys are. The loose links are indexed by the keys of their old and new
+ * states, so that each step costs amortized O(1) instead of a scan of the loose links.
+ *
+ * <p>The events are appended one at a time, in index order, and the chain is extended after each one. Given the
+ * appended event is the last one in arrival order, it is only tried after all the previous loose links failed to link,
+ * so the result is the same as reconstructing the whole trajectory at once.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe.
+ */
+final class ChainReconstruction {
+
+	/** Tells the keys of the states of the events of a trajectory. */
+	interface Keys {
+		int oldStateKeyOf(int event);
+
+		int newStateKeyOf(int event);
+	}
+
+	private static final int NONE = -1;
+
+	private static final int[] NO_POSITIONS = new int[0];
+
+	private final Keys keys;
+
+	/** The event whose new state is the newer end of the chain. */
+	int newerSideEvent = 0;
+
+	/** The event whose old state is the older end of the chain. */
+	int olderSideEvent = 0;
+
+	/** The loose links, in arrival order, including the ones that were linked afterwards. */
+	private int[] looseLinks = NO_POSITIONS;
+
+	private int looseLinksAdded = 0;
+
+	private int looseLinksCount = 0;
+
+	/** The next loose link, in arrival order, with the same old state key, indexed by position in {@link #looseLinks}. */
+	private int[] nextWithSameOldKey = NO_POSITIONS;
+
+	private int[] nextWithSameNewKey = NO_POSITIONS;
+
+	private boolean[] isLinked = new boolean[0];
+
+	/**
+	 * The first and last positions of the loose links with each old state key. Created with the first loose link,
+	 * given most of the reconstructions have none.
+	 */
+	private HashMap<Integer, int[]> queuesByOldKey = null;
+
+	private HashMap<Integer, int[]> queuesByNewKey = null;
+
+	/** Starts the reconstruction with the first event. */
+	ChainReconstruction(final Keys keys) {
+		this.keys = keys;
+	}
+
+	/**
+	 * Starts the reconstruction with the chain of the specified ends, which must be the result of linking all the
+	 * events before the next appended one.
+	 */
+	ChainReconstruction(final Keys keys, final int newerSideEvent, final int olderSideEvent) {
+		this.keys = keys;
+		this.newerSideEvent = newerSideEvent;
+		this.olderSideEvent = olderSideEvent;
+	}
+
+	/** @return the number of loose links that could not be linked to the chain. */
+	int looseLinksCount() {
+		return looseLinksCount;
+	}
+
+	/** @return the events of the loose links that could not be linked to the chain, in arrival order. */
+	int[] looseLinks() {
+		final var result = new int[looseLinksCount];
+		int count = 0;
+		for (int position = 0; position < looseLinksAdded; ++position) {
+			if (!isLinked[position]) {
+				result[count] = looseLinks[position];
+				count += 1;
+			}
+		}
+		return result;
+	}
+
+	/** Appends the specified event, whose index must be greater than the ones of the events appended before. */
+	void append(final int event) {
+		if (keys.oldStateKeyOf(event) == keys.newStateKeyOf(newerSideEvent)) {
+			newerSideEvent = event;
+		} else if (keys.newStateKeyOf(event) == keys.oldStateKeyOf(olderSideEvent)) {
+			olderSideEvent = event;
+		} else {
+			addLooseLink(event);
+			return;
+		}
+		linkLooseLinks();
+	}
+
+	/** Links the loose links that fit in an end of the chain, trying them in arrival order, while there is any. */
+	private void linkLooseLinks() {
+		while (looseLinksCount > 0) {
+			final int byOldKey = first(queuesByOldKey, nextWithSameOldKey, keys.newStateKeyOf(newerSideEvent));
+			final int byNewKey = first(queuesByNewKey, nextWithSameNewKey, keys.oldStateKeyOf(olderSideEvent));
+			// the first in arrival order wins, and a link that fits in both ends goes to the newer one
+			if (byOldKey != NONE && (byNewKey == NONE || byOldKey <= byNewKey)) {
+				newerSideEvent = looseLinks[byOldKey];
+				link(byOldKey);
+			} else if (byNewKey != NONE) {
+				olderSideEvent = looseLinks[byNewKey];
+				link(byNewKey);
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void addLooseLink(final int event) {
+		final int position = looseLinksAdded;
+		if (position == looseLinks.length) {
+			final int capacity = Math.max(4, position * 2);
+			looseLinks = Arrays.copyOf(looseLinks, capacity);
+			nextWithSameOldKey = Arrays.copyOf(nextWithSameOldKey, capacity);
+			nextWithSameNewKey = Arrays.copyOf(nextWithSameNewKey, capacity);
+			isLinked = Arrays.copyOf(isLinked, capacity);
+		}
+		if (queuesByOldKey == null) {
+			queuesByOldKey = new HashMap<>();
+			queuesByNewKey = new HashMap<>();
+		}
+		looseLinks[position] = event;
+		enqueue(queuesByOldKey, nextWithSameOldKey, keys.oldStateKeyOf(event), position);
+		enqueue(queuesByNewKey, nextWithSameNewKey, keys.newStateKeyOf(event), position);
+		looseLinksAdded += 1;
+		looseLinksCount += 1;
+	}
+
+	private void link(final int position) {
+		isLinked[position] = true;
+		looseLinksCount -= 1;
+	}
+
+	private static void enqueue(final HashMap<Integer, int[]> queues, final int[] next, final int key, final int position) {
+		next[position] = NONE;
+		final int[] queue = queues.get(key);
+		if (queue == null) {
+			queues.put(key, new int[] {position, position});
+		} else {
+			if (queue[0] == NONE) {
+				queue[0] = position;
+			} else {
+				next[queue[1]] = position;
+			}
+			queue[1] = position;
+		}
+	}
+
+	/**
+	 * @return the position of the first not linked loose link in the queue of the specified key, or {@link #NONE}. The
+	 *     linked ones found at the head of the queue are dropped, so each one is skipped once.
+	 */
+	private int first(final HashMap<Integer, int[]> queues, final int[] next, final int key) {
+		final int[] queue = queues.get(key);
+		if (queue == null) {
+			return NONE;
+		}
+		int head = queue[0];
+		while (head != NONE && isLinked[head]) {
+			head = next[head];
+		}
+		queue[0] = head;
+		return head;
+	}
+}
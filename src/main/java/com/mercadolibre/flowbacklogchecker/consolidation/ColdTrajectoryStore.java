@@ -0,0 +1,641 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * An append-only store of {@link Backlog.Trajectory}s on local disk: the cold tier of a {@link Backlog}. The open
+ * trajectories that were not touched for a long time, like the ones of lost units or of entities whose ultimate event
+ * was discarded, are spilled here so that they do not stay on heap forever.
+ *
+ * <p>Each trajectory is encoded, with its states inline, as a length prefixed record appended to the current segment
+ * file. A new segment is started when the current one reaches the segment size. The only on-heap part is the index from
+ * the entity id to the location of the record of its trajectory: the segment number and the offset packed into a long.
+ *
+ * <p>Taking a trajectory out of the store, when it is faulted in, leaves its record dead. The segments whose records
+ * are all dead are deleted, and the ones whose live bytes fall below a quarter of their size are compacted: their live
+ * records are appended to the current segment and the file is deleted.
+ *
+ * <p>The content does not survive the process: the segment files found when the store is opened are deleted, given the
+ * backlog is restored with all its trajectories on heap.
+ *
+ * <p>The records are never modified once appended, so an {@link Image} of the store, which other threads read, is a hard
+ * link to each segment file and a copy of the index, both taken by the owner thread.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe: it is owned by the thread that integrates the events
+ * into the backlog.
+ */
+@Slf4j
+public class ColdTrajectoryStore implements Closeable {
+
+	/** The settings of the cold tier of a {@link Backlog}. */
+	public static class Settings {
+		/** The directory of the segment files. Each backlog must have its own. */
+		public Path directory = Path.of("cold-trajectories");
+
+		/** The trajectories whose last event arrived this long before the last integrated event are spilled. */
+		public Duration age = Duration.ofDays(3);
+
+		/**
+		 * The maximum number of trajectories kept on heap. When exceeded, the least recently touched ones are spilled,
+		 * regardless of their age, down to nine tenths of it.
+		 */
+		public int hotTrajectoriesBudget = 4_000_000;
+
+		/** The number of integrated events between consecutive sweeps of the trajectories kept on heap. */
+		public int sweepInterval = 1_000_000;
+
+		public long segmentSize = 64L * 1024 * 1024;
+
+		/**
+		 * @return a copy of these settings for one of the specified number of parts of a backlog, like the shards of a
+		 *     {@link ShardedBacklog}, whose segment files are in the specified subdirectory.
+		 */
+		public Settings forPart(final String subdirectory, final int partsCount) {
+			final var copy = new Settings();
+			copy.directory = directory.resolve(subdirectory);
+			copy.age = age;
+			copy.hotTrajectoriesBudget = Math.max(1, hotTrajectoriesBudget / partsCount);
+			copy.sweepInterval = Math.max(1, sweepInterval / partsCount);
+			copy.segmentSize = segmentSize;
+			return copy;
+		}
+	}
+
+	private static final String SEGMENT_SUFFIX = ".cold";
+
+	/** The prefix of the subdirectories where the {@link Image}s link the segment files. */
+	private static final String IMAGE_PREFIX = "image-";
+
+	/** The number of low bits of a location that tell the offset of the record in its segment. */
+	private static final int OFFSET_BITS = 40;
+
+	private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+	private static final int LENGTH_PREFIX_BYTES = Integer.BYTES;
+
+	private static final int READ_WINDOW_SIZE = 64 * 1024;
+
+	/** The flags of an encoded state. */
+	private static final int PRESENT = 1;
+	private static final int ULTIMATE = 2;
+	/** The flag of the first field value that is not null. The following fields use the following bits. */
+	private static final int FIRST_VALUE_PRESENT = 4;
+
+	private final Path directory;
+
+	private final long segmentSize;
+
+	/** The location of the live record of each stored entity. */
+	private final LongLongHashMap locations = new LongLongHashMap(65536);
+
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+	/** The segment the records are appended to. */
+	private Segment current;
+
+	private ByteBuffer encoded = ByteBuffer.allocate(4096);
+
+	/** The last read bytes of a segment, so that the sequential reads of small records cost few system calls. */
+	private ByteBuffer window = ByteBuffer.allocate(READ_WINDOW_SIZE);
+
+	private Segment windowSegment = null;
+
+	private long windowOffset = 0;
+
+	/** Opens an empty store in the specified directory, deleting the segment files of a previous run. */
+	public ColdTrajectoryStore(final Path directory, final long segmentSize) throws IOException {
+		assert segmentSize < OFFSET_MASK;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		Files.createDirectories(directory);
+		try (var staleSegments = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path staleSegment : staleSegments) {
+				Files.delete(staleSegment);
+			}
+		}
+		try (var staleImages = Files.newDirectoryStream(directory, IMAGE_PREFIX + "*")) {
+			for (Path staleImage : staleImages) {
+				deleteImageDirectory(staleImage);
+			}
+		}
+		this.current = openSegment(0);
+	}
+
+	/** @return the number of stored trajectories. */
+	public int size() {
+		return locations.size();
+	}
+
+	/** @return the total size of the segment files, the dead records included. */
+	public long diskBytes() {
+		long bytes = 0;
+		for (Segment segment : segments.values()) {
+			bytes += segment.size;
+		}
+		return bytes;
+	}
+
+	/** Tells if the trajectory of the specified entity is stored. */
+	public boolean contains(final long entityId) {
+		return locations.get(entityId) != LongLongHashMap.NO_VALUE;
+	}
+
+	/** Stores the specified trajectory, replacing the stored one of the same entity, if any. */
+	public void put(final Backlog.Trajectory trajectory) {
+		try {
+			final long previousLocation = locations.remove(trajectory.entityId);
+			if (previousLocation != LongLongHashMap.NO_VALUE) {
+				final Segment previousSegment = segments.get(segmentOf(previousLocation));
+				onDead(previousSegment, read(previousSegment, offsetOf(previousLocation)).remaining());
+			}
+			encode(trajectory);
+			append(trajectory.entityId, encoded);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param states the dictionary the states of the returned trajectory are referenced through.
+	 * @return a copy of the stored trajectory of the specified entity, or null if it is not stored.
+	 */
+	public Backlog.Trajectory get(final long entityId, final StateDictionary states) {
+		final long location = locations.get(entityId);
+		if (location == LongLongHashMap.NO_VALUE) {
+			return null;
+		}
+		try {
+			return decode(read(segments.get(segmentOf(location)), offsetOf(location)), states);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Removes the trajectory of the specified entity from this store.
+	 *
+	 * @param states the dictionary the states of the returned trajectory are referenced through.
+	 * @return the removed trajectory, or null if it was not stored.
+	 */
+	public Backlog.Trajectory take(final long entityId, final StateDictionary states) {
+		final long location = locations.remove(entityId);
+		if (location == LongLongHashMap.NO_VALUE) {
+			return null;
+		}
+		try {
+			final Segment segment = segments.get(segmentOf(location));
+			final ByteBuffer record = read(segment, offsetOf(location));
+			final int recordBytes = record.remaining();
+			final Backlog.Trajectory trajectory = decode(record, states);
+			onDead(segment, recordBytes);
+			return trajectory;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Iterates the stored trajectories in storage order, reading the segments sequentially. The store must not be
+	 * modified during the iteration.
+	 *
+	 * @param states the dictionary the states of the iterated trajectories are referenced through. The references are
+	 *     never released, so it should be a scratch one, discarded with the trajectories.
+	 */
+	public Iterator<Backlog.Trajectory> iterator(final StateDictionary states) {
+		return new Iterator<>() {
+			private final Iterator<Segment> pendingSegments = new ArrayList<>(segments.values()).iterator();
+
+			private Segment segment = null;
+
+			private long offset = 0;
+
+			private Backlog.Trajectory next = null;
+
+			@Override
+			public boolean hasNext() {
+				try {
+					while (next == null) {
+						if (segment == null || offset == segment.size) {
+							if (!pendingSegments.hasNext()) {
+								return false;
+							}
+							segment = pendingSegments.next();
+							offset = 0;
+						} else {
+							final ByteBuffer record = read(segment, offset);
+							if (isLive(record, segment, offset)) {
+								next = decode(record, states);
+							}
+							offset += record.limit();
+						}
+					}
+					return true;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			@Override
+			public Backlog.Trajectory next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final Backlog.Trajectory result = next;
+				next = null;
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * @return an immutable view of the stored trajectories, which can be read by any thread while this store keeps
+	 *     changing. The segment files are hard linked instead of read, so it costs a copy of the index. It must be closed
+	 *     to delete the links.
+	 */
+	public Image image() {
+		try {
+			final Path imageDirectory = Files.createTempDirectory(directory, IMAGE_PREFIX);
+			try {
+				final var linkedSegments = new ArrayList<LinkedSegment>(segments.size());
+				for (Segment segment : segments.values()) {
+					final Path link = imageDirectory.resolve(segment.file.getFileName());
+					Files.createLink(link, segment.file);
+					linkedSegments.add(new LinkedSegment(segment.number, link, segment.size));
+				}
+				return new Image(imageDirectory, linkedSegments, new LongLongHashMap(locations));
+			} catch (IOException | RuntimeException e) {
+				deleteImageDirectory(imageDirectory);
+				throw e;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void deleteImageDirectory(final Path imageDirectory) throws IOException {
+		try (var links = Files.newDirectoryStream(imageDirectory)) {
+			for (Path link : links) {
+				Files.delete(link);
+			}
+		}
+		Files.delete(imageDirectory);
+	}
+
+	/**
+	 * The trajectories of a store at some point in time: the segment files as they were, through hard links, and the
+	 * locations of the records that were live. See {@link #image()}.
+	 */
+	public static final class Image implements Closeable {
+		private final Path directory;
+
+		private final List<LinkedSegment> segments;
+
+		private final LongLongHashMap locations;
+
+		private Image(final Path directory, final List<LinkedSegment> segments, final LongLongHashMap locations) {
+			this.directory = directory;
+			this.segments = segments;
+			this.locations = locations;
+		}
+
+		/** @return the number of trajectories of the image. */
+		public int size() {
+			return locations.size();
+		}
+
+		/**
+		 * Decodes the trajectories of the image, in storage order, and passes them to the specified visitor.
+		 *
+		 * @param states the dictionary the states of the decoded trajectories are referenced through. The visitor may
+		 *     release them.
+		 */
+		public void forEach(final StateDictionary states, final Visitor visitor) throws IOException {
+			var bytes = new byte[4096];
+			for (LinkedSegment segment : segments) {
+				try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.link), READ_WINDOW_SIZE))) {
+					long offset = 0;
+					while (offset < segment.size) {
+						final int recordBytes = LENGTH_PREFIX_BYTES + input.readInt();
+						if (bytes.length < recordBytes) {
+							bytes = new byte[Math.max(recordBytes, 2 * bytes.length)];
+						}
+						input.readFully(bytes, LENGTH_PREFIX_BYTES, recordBytes - LENGTH_PREFIX_BYTES);
+						final ByteBuffer record = ByteBuffer.wrap(bytes, 0, recordBytes);
+						if (locations.get(record.getLong(LENGTH_PREFIX_BYTES)) == ((long) segment.number << OFFSET_BITS | offset)) {
+							visitor.visit(decode(record, states));
+						}
+						offset += recordBytes;
+					}
+				}
+			}
+		}
+
+		@FunctionalInterface
+		public interface Visitor {
+			void visit(Backlog.Trajectory trajectory) throws IOException;
+		}
+
+		/** Deletes the links to the segment files. */
+		@Override
+		public void close() {
+			try {
+				deleteImageDirectory(directory);
+			} catch (IOException e) {
+				log.warn("The cold trajectories image {} could not be deleted", directory, e);
+			}
+		}
+	}
+
+	/** A segment file linked by an {@link Image}, and its size when linked. */
+	private static class LinkedSegment {
+		final int number;
+
+		final Path link;
+
+		final long size;
+
+		LinkedSegment(final int number, final Path link, final long size) {
+			this.number = number;
+			this.link = link;
+			this.size = size;
+		}
+	}
+
+	/** Closes and deletes all the segment files. */
+	@Override
+	public void close() {
+		for (Segment segment : new ArrayList<>(segments.values())) {
+			try {
+				delete(segment);
+			} catch (IOException e) {
+				log.warn("The cold trajectories segment {} could not be deleted", segment.file, e);
+			}
+		}
+	}
+
+	/**
+	 * Appends the specified encoded record, which is consumed, to the current segment, and points the location of its
+	 * entity to it. The previous record of the entity, if any, must be accounted as dead by the caller.
+	 */
+	private void append(final long entityId, final ByteBuffer record) throws IOException {
+		final int recordBytes = record.remaining();
+		if (current.size > 0 && current.size + recordBytes > segmentSize) {
+			current = openSegment(current.number + 1);
+		}
+		final long offset = current.size;
+		while (record.hasRemaining()) {
+			current.channel.write(record, offset + record.position());
+		}
+		current.size += recordBytes;
+		current.liveBytes += recordBytes;
+		locations.put(entityId, (long) current.number << OFFSET_BITS | offset);
+	}
+
+	/** Accounts a dead record of the specified segment, which is deleted or compacted if it is worth it. */
+	private void onDead(final Segment segment, final int recordBytes) throws IOException {
+		segment.liveBytes -= recordBytes;
+		if (segment != current) {
+			if (segment.liveBytes == 0) {
+				delete(segment);
+			} else if (segment.liveBytes * 4 < segment.size) {
+				compact(segment);
+			}
+		}
+	}
+
+	/** Moves the live records of the specified segment to the current one, and deletes the former. */
+	private void compact(final Segment segment) throws IOException {
+		long offset = 0;
+		while (offset < segment.size) {
+			final ByteBuffer record = read(segment, offset);
+			final int recordBytes = record.remaining();
+			if (isLive(record, segment, offset)) {
+				append(record.getLong(LENGTH_PREFIX_BYTES), record);
+			}
+			offset += recordBytes;
+		}
+		log.debug("The cold trajectories segment {} was compacted", segment.file);
+		delete(segment);
+	}
+
+	private boolean isLive(final ByteBuffer record, final Segment segment, final long offset) {
+		return locations.get(record.getLong(LENGTH_PREFIX_BYTES)) == ((long) segment.number << OFFSET_BITS | offset);
+	}
+
+	private Segment openSegment(final int number) throws IOException {
+		final Path file = directory.resolve(String.format("segment-%08d%s", number, SEGMENT_SUFFIX));
+		final var channel = FileChannel.open(
+				file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		final var segment = new Segment(number, file, channel);
+		segments.put(number, segment);
+		return segment;
+	}
+
+	private void delete(final Segment segment) throws IOException {
+		segments.remove(segment.number);
+		if (windowSegment == segment) {
+			windowSegment = null;
+		}
+		segment.channel.close();
+		Files.deleteIfExists(segment.file);
+	}
+
+	/**
+	 * @return the record, length prefix included, at the specified offset of the specified segment. It is a view of the
+	 *     read window, valid until the next read.
+	 */
+	private ByteBuffer read(final Segment segment, final long offset) throws IOException {
+		if (!isInWindow(segment, offset, LENGTH_PREFIX_BYTES)) {
+			fillWindow(segment, offset, LENGTH_PREFIX_BYTES);
+		}
+		final int recordBytes = LENGTH_PREFIX_BYTES + window.getInt((int) (offset - windowOffset));
+		if (!isInWindow(segment, offset, recordBytes)) {
+			fillWindow(segment, offset, recordBytes);
+		}
+		final int start = (int) (offset - windowOffset);
+		return window.duplicate().limit(start + recordBytes).position(start).slice();
+	}
+
+	private boolean isInWindow(final Segment segment, final long offset, final int bytes) {
+		return windowSegment == segment && offset >= windowOffset && offset + bytes <= windowOffset + window.limit();
+	}
+
+	private void fillWindow(final Segment segment, final long offset, final int bytes) throws IOException {
+		if (window.capacity() < bytes) {
+			window = ByteBuffer.allocate(Math.max(bytes, 2 * window.capacity()));
+		}
+		window.clear();
+		window.limit((int) Math.min(window.capacity(), segment.size - offset));
+		while (window.hasRemaining()) {
+			if (segment.channel.read(window, offset + window.position()) < 0) {
+				throw new IOException("Unexpected end of the cold trajectories segment " + segment.file);
+			}
+		}
+		window.flip();
+		windowSegment = segment;
+		windowOffset = offset;
+	}
+
+	private void encode(final Backlog.Trajectory trajectory) {
+		encoded.clear();
+		ensureEncoded(LENGTH_PREFIX_BYTES + Long.BYTES + 1 + Integer.BYTES);
+		encoded.putInt(0); // the length, known at the end
+		encoded.putLong(trajectory.entityId);
+		encoded.put((byte) (trajectory.isCompleted ? 1 : 0));
+		encoded.putInt(trajectory.size());
+		for (int index = 0; index < trajectory.size(); ++index) {
+			ensureEncoded(3 * Long.BYTES);
+			encoded.putLong(trajectory.arrivalSerialNumberAt(index));
+			encoded.putLong(trajectory.eventIdAt(index));
+			encoded.putLong(trajectory.arrivalDateNanosAt(index));
+			encodeState(trajectory.newStateAt(index));
+			encodeState(trajectory.oldStateAt(index));
+		}
+		encoded.putInt(0, encoded.position() - LENGTH_PREFIX_BYTES);
+		encoded.flip();
+	}
+
+	private void encodeState(final EntityState state) {
+		ensureEncoded(1);
+		if (state == null) {
+			encoded.put((byte) 0);
+			return;
+		}
+		final Object[] values = {
+				state.getLogisticCenter(),
+				state.getWorkflow(),
+				state.getStatus(),
+				state.getDateIn(),
+				state.getArea(),
+				state.getDeadline()
+		};
+		int flags = PRESENT | (state.isUltimate() ? ULTIMATE : 0);
+		for (int index = 0; index < values.length; ++index) {
+			if (values[index] != null) {
+				flags |= FIRST_VALUE_PRESENT << index;
+			}
+		}
+		encoded.put((byte) flags);
+		for (Object value : values) {
+			if (value instanceof Timestamp) {
+				ensureEncoded(Long.BYTES + Integer.BYTES);
+				encoded.putLong(((Timestamp) value).getTime());
+				encoded.putInt(((Timestamp) value).getNanos());
+			} else if (value != null) {
+				final byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+				ensureEncoded(Integer.BYTES + bytes.length);
+				encoded.putInt(bytes.length);
+				encoded.put(bytes);
+			}
+		}
+	}
+
+	private void ensureEncoded(final int bytes) {
+		if (encoded.remaining() < bytes) {
+			final var grown = ByteBuffer.allocate(Math.max(2 * encoded.capacity(), encoded.position() + bytes));
+			encoded.flip();
+			grown.put(encoded);
+			encoded = grown;
+		}
+	}
+
+	/** Decodes the specified record, length prefix included. */
+	private static Backlog.Trajectory decode(final ByteBuffer record, final StateDictionary states) {
+		final ByteBuffer input = record.duplicate().position(LENGTH_PREFIX_BYTES);
+		final var trajectory = new Backlog.Trajectory(states, input.getLong());
+		final boolean isCompleted = input.get() != 0;
+		final int eventsCount = input.getInt();
+		for (int index = 0; index < eventsCount; ++index) {
+			final long arrivalSerialNumber = input.getLong();
+			final long eventId = input.getLong();
+			final long arrivalDate = input.getLong();
+			final EntityState newState = decodeState(input);
+			final EntityState oldState = decodeState(input);
+			trajectory.add(arrivalSerialNumber, eventId, arrivalDate, newState, oldState);
+		}
+		trajectory.isCompleted = isCompleted;
+		return trajectory;
+	}
+
+	private static EntityState decodeState(final ByteBuffer input) {
+		final int flags = input.get() & 0xFF;
+		if ((flags & PRESENT) == 0) {
+			return null;
+		}
+		return EntityType.OutboundUnitStateV0.of(
+				decodeString(input, flags, 0),
+				decodeString(input, flags, 1),
+				decodeString(input, flags, 2),
+				decodeTimestamp(input, flags, 3),
+				decodeString(input, flags, 4),
+				decodeTimestamp(input, flags, 5),
+				(flags & ULTIMATE) != 0
+		);
+	}
+
+	private static String decodeString(final ByteBuffer input, final int flags, final int valueIndex) {
+		if ((flags & FIRST_VALUE_PRESENT << valueIndex) == 0) {
+			return null;
+		}
+		final var bytes = new byte[input.getInt()];
+		input.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static Timestamp decodeTimestamp(final ByteBuffer input, final int flags, final int valueIndex) {
+		if ((flags & FIRST_VALUE_PRESENT << valueIndex) == 0) {
+			return null;
+		}
+		final var timestamp = new Timestamp(input.getLong());
+		timestamp.setNanos(input.getInt());
+		return timestamp;
+	}
+
+	private static int segmentOf(final long location) {
+		return (int) (location >>> OFFSET_BITS);
+	}
+
+	private static long offsetOf(final long location) {
+		return location & OFFSET_MASK;
+	}
+
+	/** A segment file, and the accounting of its records. */
+	private static class Segment {
+		final int number;
+
+		final Path file;
+
+		final FileChannel channel;
+
+		/** The number of bytes written to the file. */
+		long size = 0;
+
+		/** The number of bytes of the records that are the current location of their entity. */
+		long liveBytes = 0;
+
+		Segment(final int number, final Path file, final FileChannel channel) {
+			this.number = number;
+			this.file = file;
+			this.channel = channel;
+		}
+	}
+}
@@ -1,33 +1,51 @@
 package com.mercadolibre.flowbacklogchecker.consolidation;
 
+import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.RequiredArgsConstructor;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
 import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static java.time.temporal.ChronoUnit.HOURS;
-import static java.time.temporal.ChronoUnit.SECONDS;
-
 /**
  * Contains the known entity types and different versions of their JSON structures.
  */
 public enum EntityType {
 	outboundUnit("outbound-unit",
-			new VersionedStructure(1, OutboundUnitStateV0.class));
+			new VersionedStructure(1, OutboundUnitStateV0.class, OutboundUnitStateV0::read, OutboundUnitStateV0.CANONICALIZER));
 
 	private static final Timestamp BIG_BANG = new Timestamp(0);
 
+	/** The epoch millis value that represents a null date. */
+	private static final long NULL_DATE = Long.MIN_VALUE;
+
 	private static final Map<String, EntityType> ENTITY_TYPE_MAP =
 			Arrays.stream(EntityType.values())
 					.collect(Collectors.toUnmodifiableMap(entityType -> entityType.id, Function.identity()));
 
+	/** The {@link VersionedStructure}s of all the entity types, by their {@link VersionedStructure#backlogStructure}. */
+	private static final Map<Class<? extends EntityState>, VersionedStructure> STRUCTURE_MAP =
+			Arrays.stream(EntityType.values())
+					.flatMap(entityType -> Arrays.stream(entityType.versionedStructures))
+					.collect(Collectors.toUnmodifiableMap(
+							versionedStructure -> versionedStructure.backlogStructure,
+							Function.identity(),
+							(first, second) -> first
+					));
+
 	/** The identification of entity type as received from the incoming events. */
 	public final String id;
 
@@ -55,17 +73,80 @@ public enum EntityType {
 	 * @throws EventRecordParser.NotSupportedStructureVersion when the version is illegal
 	 */
 	public static Class<? extends EntityState> determineStructure(String entityTypeName, int version) throws EventRecordParser.NotSupportedStructureVersion {
+		return determineVersionedStructure(entityTypeName, version).backlogStructure;
+	}
+
+	/**
+	 * Same as {@link #determineStructure(String, int)} but gives the {@link StateReader} of the structure.
+	 *
+	 * @throws EventRecordParser.NotSupportedStructureVersion when the version is illegal
+	 */
+	public static StateReader determineReader(String entityTypeName, int version) throws EventRecordParser.NotSupportedStructureVersion {
+		return determineVersionedStructure(entityTypeName, version).reader;
+	}
+
+	/**
+	 * Finds the {@link StateCanonicalizer} of the structure of the specified state, which is the java class of the
+	 * state.
+	 *
+	 * @throws IllegalArgumentException when the class of the state is not the structure of a known entity type
+	 */
+	static StateCanonicalizer determineCanonicalizer(final EntityState state) {
+		final VersionedStructure versionedStructure = STRUCTURE_MAP.get(state.getClass());
+		if (versionedStructure == null) {
+			throw new IllegalArgumentException("Not a known entity state structure: " + state.getClass().getName());
+		}
+		return versionedStructure.canonicalizer;
+	}
+
+	private static VersionedStructure determineVersionedStructure(String entityTypeName, int version) throws EventRecordParser.NotSupportedStructureVersion {
 		EntityType entityType = ENTITY_TYPE_MAP.get(entityTypeName);
 		if (entityType != null) {
 			for (VersionedStructure versionedStructure : entityType.versionedStructures) {
 				if (versionedStructure.startingVersion <= version) {
-					return  versionedStructure.backlogStructure;
+					return  versionedStructure;
 				}
 			}
 		}
 		throw new EventRecordParser.NotSupportedStructureVersion(entityTypeName, version);
 	}
 
+	/**
+	 * Reads an {@link EntityState} from a token stream, without reflection.
+	 */
+	@FunctionalInterface
+	public interface StateReader {
+		/**
+		 * @param parser a parser positioned at the first token of the state JSON.
+		 * @return the read state, or null if the JSON is null.
+		 */
+		EntityState read(JsonParser parser) throws IOException;
+	}
+
+	/**
+	 * Creates the canonical instances of the states of a structure: complete, never modified, and with shared field
+	 * values, so that they may be referenced by any number of events, dictionaries and threads. See {@link
+	 * StateInterner}.
+	 */
+	interface StateCanonicalizer {
+		/** Tells if the specified state, whose class is the structure, is a canonical instance. */
+		boolean isCanonical(EntityState state);
+
+		/**
+		 * @param state a complete state whose class is the structure.
+		 * @param sharer gives the shared instance of each field value of the created state.
+		 * @return a canonical instance equal to the specified state.
+		 */
+		EntityState canonicalOf(EntityState state, ValueSharer sharer);
+	}
+
+	/** Gives the shared instance equal to a field value. See {@link StateCanonicalizer}. */
+	@FunctionalInterface
+	interface ValueSharer {
+		/** @return the shared instance equal to the specified value, or null if the value is null. */
+		<T> T share(T value);
+	}
+
 	@RequiredArgsConstructor
 	private static class VersionedStructure {
 		/**
@@ -79,15 +160,22 @@ public enum EntityType {
 		 */
 		final Class<? extends EntityState> backlogStructure;
 
+		/**
+		 * The reader of the JSON structure of the entity state.
+		 */
+		final StateReader reader;
+
+		/**
+		 * The creator of the canonical instances of the entity state.
+		 */
+		final StateCanonicalizer canonicalizer;
 
 	}
 
 	@Getter
 	@NoArgsConstructor
 	@EqualsAndHashCode
-	public static class OutboundUnitStateV0 implements EntityState {
-		private static Timestamp lastDateCreated = new Timestamp(0);
-
+	public static class OutboundUnitStateV0 implements EntityState, ParseContext.Dependent {
 
 		private String logisticCenter;
 
@@ -103,42 +191,277 @@ public enum EntityType {
 
 		private boolean ultimate;
 
-		public void setWarehouseId(String warehouseId) {this.logisticCenter = warehouseId;}
+		/**
+		 * The epoch millis of the creation date as received, or {@link #NULL_DATE} if it is null. Kept until {@link
+		 * #resolve(ParseContext)} completes the {@link #dateIn}.
+		 */
+		@Getter(AccessLevel.NONE)
+		@EqualsAndHashCode.Exclude
+		private transient long dateCreated = NULL_DATE;
 
-		public void setGroupType(String groupType) {this.workflow = groupType;}
+		/** Tells if the creation date field was present, even if null. */
+		@Getter(AccessLevel.NONE)
+		@EqualsAndHashCode.Exclude
+		private transient boolean dateCreatedReceived;
 
-		public void setStatus(String status) {
-			this.status = status;
-			if ("OUT".equals(status)) {
-				this.ultimate = true;
-			} else if ("PENDING".equals(status) && this.dateIn == BIG_BANG) {
-				this.dateIn = Timestamp.from(lastDateCreated.toInstant().truncatedTo(HOURS));
-			}
+		/**
+		 * Tells if this state is a canonical instance: complete, never modified, and with shared field values, so that it
+		 * may be referenced by any number of events, dictionaries and threads. See {@link StateInterner}.
+		 */
+		@Getter(AccessLevel.NONE)
+		@EqualsAndHashCode.Exclude
+		private transient boolean canonical;
+
+		/**
+		 * Creates an already resolved {@link OutboundUnitStateV0} with the specified field values.
+		 */
+		static OutboundUnitStateV0 of(
+				final String logisticCenter,
+				final String workflow,
+				final String status,
+				final Timestamp dateIn,
+				final String area,
+				final Timestamp deadline,
+				final boolean ultimate
+		) {
+			final var state = new OutboundUnitStateV0();
+			state.logisticCenter = logisticCenter;
+			state.workflow = workflow;
+			state.status = status;
+			state.dateIn = dateIn;
+			state.area = area;
+			state.deadline = deadline;
+			state.ultimate = ultimate;
+			return state;
+		}
+
+		/** Like {@link #of}, but the created state is a canonical instance. The field values should be shared ones. */
+		static OutboundUnitStateV0 canonicalOf(
+				final String logisticCenter,
+				final String workflow,
+				final String status,
+				final Timestamp dateIn,
+				final String area,
+				final Timestamp deadline,
+				final boolean ultimate
+		) {
+			final var state = of(logisticCenter, workflow, status, dateIn, area, deadline, ultimate);
+			state.canonical = true;
+			return state;
 		}
 
-		public void setDateCreated(Timestamp dateCreated) {
-			if (dateCreated != null) {
-				this.dateIn = Timestamp.from(dateCreated.toInstant().truncatedTo(HOURS));
+		static final StateCanonicalizer CANONICALIZER = new StateCanonicalizer() {
+			@Override
+			public boolean isCanonical(final EntityState state) {
+				return ((OutboundUnitStateV0) state).canonical;
+			}
+
+			@Override
+			public EntityState canonicalOf(final EntityState state, final ValueSharer sharer) {
+				return OutboundUnitStateV0.canonicalOf(
+						sharer.share(state.getLogisticCenter()),
+						sharer.share(state.getWorkflow()),
+						sharer.share(state.getStatus()),
+						sharer.share(state.getDateIn()),
+						sharer.share(state.getArea()),
+						sharer.share(state.getDeadline()),
+						state.isUltimate()
+				);
+			}
+		};
 
-				if (dateCreated.after(lastDateCreated)) {
-					lastDateCreated = dateCreated;
+		/**
+		 * Reads an {@link OutboundUnitStateV0} from the specified parser, which should be positioned at the first token of
+		 * the state JSON. Only the fields this class knows are read, and the values are stored straight into the state.
+		 *
+		 * @return the read state, or null if said first token is a JSON null.
+		 */
+		static OutboundUnitStateV0 read(final JsonParser parser) throws IOException {
+			if (parser.currentToken() == JsonToken.VALUE_NULL) {
+				return null;
+			}
+			if (parser.currentToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "The outbound unit state should be a JSON object");
+			}
+			final var state = new OutboundUnitStateV0();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String fieldName = parser.getCurrentName();
+				parser.nextToken();
+				switch (fieldName) {
+					case "warehouse_id":
+						state.logisticCenter = readText(parser);
+						break;
+					case "group_type":
+						state.workflow = readText(parser);
+						break;
+					case "status":
+						state.status = readText(parser);
+						state.ultimate |= "OUT".equals(state.status);
+						break;
+					case "date_created":
+						state.dateCreated = readEpochMillis(parser);
+						state.dateCreatedReceived = true;
+						break;
+					case "storage_id":
+						state.area = readArea(parser);
+						break;
+					case "estimated_time_departure":
+						final long deadline = readEpochMillis(parser);
+						state.deadline = deadline == NULL_DATE ? null : new Timestamp(deadline - Math.floorMod(deadline, 1000L));
+						break;
+					case "ultimate":
+						state.ultimate = parser.getValueAsBoolean() || "OUT".equals(state.status);
+						break;
+					default:
+						parser.skipChildren();
 				}
-			} else if ("PENDING".equals(status)){
-				this.dateIn = Timestamp.from(lastDateCreated.toInstant().truncatedTo(HOURS));;
+			}
+			return state;
+		}
+
+		/**
+		 * Completes the {@link #dateIn}. The pending units whose creation date is unknown are assumed to be created at
+		 * the same hour than the last created unit.
+		 */
+		@Override
+		public void resolve(ParseContext context) {
+			if (dateCreated != NULL_DATE) {
+				this.dateIn = new Timestamp(truncateToHours(dateCreated));
+
+				context.updateLastDateCreated(logisticCenter, dateCreated);
+			} else if (!dateCreatedReceived) {
+				this.dateIn = null;
+			} else if ("PENDING".equals(status)) {
+				this.dateIn = new Timestamp(truncateToHours(context.getLastDateCreated(logisticCenter)));
 			} else {
 				this.dateIn = BIG_BANG;
 			}
 		}
 
-		public void setStorageId(String storageId) {
-			final String[] addressFields = storageId != null ? storageId.split("-") : null;
-			this.area = addressFields != null && addressFields.length > 1 ? addressFields[0] : null;
+		/**
+		 * The area is the first field of the storage address, whose fields are separated by dashes. Equivalent to taking
+		 * the first element of {@code storageId.split("-")} when said array has more than one element.
+		 */
+		private static String readArea(final JsonParser parser) throws IOException {
+			if (parser.currentToken() != JsonToken.VALUE_STRING) {
+				final String storageId = readText(parser);
+				return storageId == null ? null : readArea(storageId.toCharArray(), 0, storageId.length());
+			}
+			return readArea(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+		}
+
+		private static String readArea(final char[] chars, final int offset, final int length) {
+			final int end = offset + length;
+			int separator = offset;
+			while (separator < end && chars[separator] != '-') {
+				++separator;
+			}
+			for (int i = separator + 1; i < end; ++i) {
+				if (chars[i] != '-') {
+					return new String(chars, offset, separator - offset);
+				}
+			}
+			return null;
 		}
 
-		public void setEstimatedTimeDeparture(Timestamp estimatedTimeDeparture) {
-			this.deadline = Timestamp.from(estimatedTimeDeparture.toInstant().truncatedTo(SECONDS));
+		private static long truncateToHours(final long epochMillis) {
+			return epochMillis - Math.floorMod(epochMillis, 3_600_000L);
+		}
+	}
+
+	/** Reads the current scalar value as text. */
+	private static String readText(final JsonParser parser) throws IOException {
+		if (parser.currentToken() == JsonToken.VALUE_NULL) {
+			return null;
 		}
+		if (!parser.currentToken().isScalarValue()) {
+			throw new JsonParseException(parser, "A scalar value was expected");
+		}
+		return parser.getValueAsString();
+	}
+
+	/**
+	 * Reads the current value as a date. Accepts the epoch millis as a number, or an ISO-8601 UTC date-time string.
+	 *
+	 * @return the epoch millis of the read date, or {@link #NULL_DATE} if the value is null.
+	 */
+	private static long readEpochMillis(final JsonParser parser) throws IOException {
+		switch (parser.currentToken()) {
+			case VALUE_NULL:
+				return NULL_DATE;
+			case VALUE_NUMBER_INT:
+				return parser.getLongValue();
+			case VALUE_STRING:
+				final long epochMillis = parseIsoUtcDateTime(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+				if (epochMillis != NULL_DATE) {
+					return epochMillis;
+				}
+				try {
+					return Instant.parse(parser.getText()).toEpochMilli();
+				} catch (DateTimeParseException e) {
+					throw new JsonParseException(parser, "Unparseable date: " + parser.getText(), e);
+				}
+			default:
+				throw new JsonParseException(parser, "A date was expected");
+		}
+	}
+
+	/**
+	 * Parses the "yyyy-MM-dd'T'HH:mm:ss[.SSS]'Z'" format without allocating.
+	 *
+	 * @return the epoch millis, or {@link #NULL_DATE} if the text has other format.
+	 */
+	private static long parseIsoUtcDateTime(final char[] chars, final int offset, final int length) {
+		if (length < 20 || chars[offset + length - 1] != 'Z' || chars[offset + 4] != '-' || chars[offset + 7] != '-'
+				|| chars[offset + 10] != 'T' || chars[offset + 13] != ':' || chars[offset + 16] != ':') {
+			return NULL_DATE;
+		}
+		final int year = digits(chars, offset, 4);
+		final int month = digits(chars, offset + 5, 2);
+		final int day = digits(chars, offset + 8, 2);
+		final int hour = digits(chars, offset + 11, 2);
+		final int minute = digits(chars, offset + 14, 2);
+		final int second = digits(chars, offset + 17, 2);
+		int millis = 0;
+		if (length > 20) {
+			// a fraction of second with one to nine digits
+			final int fractionDigits = length - 21;
+			if (chars[offset + 19] != '.' || fractionDigits < 1 || fractionDigits > 9
+					|| digits(chars, offset + 20, fractionDigits) < 0) {
+				return NULL_DATE;
+			}
+			millis = digits(chars, offset + 20, Math.min(3, fractionDigits));
+			for (int i = fractionDigits; i < 3; ++i) {
+				millis *= 10;
+			}
+		}
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0
+				|| minute > 59 || second < 0 || second > 59 || millis < 0) {
+			return NULL_DATE;
+		}
+		return ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + millis;
+	}
+
+	/** @return the decimal value of the specified digits, or -1 if a char is not a digit. */
+	private static int digits(final char[] chars, final int offset, final int count) {
+		int value = 0;
+		for (int i = offset; i < offset + count; ++i) {
+			final int digit = chars[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
 
-		public void setUltimate(boolean ultimate) {this.ultimate = ultimate || "OUT".equals(status);}
+	/** The number of days since 1970-01-01 of the specified proleptic gregorian date. */
+	private static long daysFromCivil(final int year, final int month, final int day) {
+		final int y = month <= 2 ? year - 1 : year;
+		final int era = Math.floorDiv(y, 400);
+		final int yearOfEra = y - era * 400;
+		final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468L;
 	}
 }
@@ -1,8 +1,12 @@
 package com.mercadolibre.flowbacklogchecker.consolidation;
 
+import io.r2dbc.spi.Row;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
@@ -40,7 +44,7 @@ public class EventRecord {
 		return new EventRecord(
 				rs.getLong("event_id"),
 				rs.getLong("id"),
-				rs.getTimestamp("date_created").toInstant(),
+				toInstant(rs.getTimestamp("date_created")),
 				rs.getLong("entity_id"),
 				rs.getString("entity_type"),
 				rs.getInt("struct_version"),
@@ -48,4 +52,36 @@ public class EventRecord {
 				rs.getString("old_state")
 		);
 	}
+
+	private static Instant toInstant(final Timestamp timestamp) {
+		return timestamp == null ? null : timestamp.toInstant();
+	}
+
+	/**
+	 * The R2DBC counterpart of {@link #fromResultSet(ResultSet)}. The dates without time zone are interpreted as UTC, as
+	 * the JDBC connection does. Like the JDBC getters, the null numbers are read as zero and the null dates as null.
+	 */
+	public static EventRecord fromRow(final Row row) {
+		final LocalDateTime dateCreated = row.get("date_created", LocalDateTime.class);
+		return new EventRecord(
+				longOf(row, "event_id"),
+				longOf(row, "id"),
+				dateCreated == null ? null : dateCreated.toInstant(ZoneOffset.UTC),
+				longOf(row, "entity_id"),
+				row.get("entity_type", String.class),
+				intOf(row, "struct_version"),
+				row.get("new_state", String.class),
+				row.get("old_state", String.class)
+		);
+	}
+
+	private static long longOf(final Row row, final String column) {
+		final Long value = row.get(column, Long.class);
+		return value == null ? 0 : value;
+	}
+
+	private static int intOf(final Row row, final String column) {
+		final Integer value = row.get(column, Integer.class);
+		return value == null ? 0 : value;
+	}
 }
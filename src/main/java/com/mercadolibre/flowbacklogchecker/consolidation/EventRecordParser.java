@@ -1,6 +1,7 @@
 package com.mercadolibre.flowbacklogchecker.consolidation;
 
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
 import java.time.Instant;
@@ -13,21 +14,58 @@ import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 
 @Service
-@RequiredArgsConstructor
 public class EventRecordParser {
 	private final ObjectMapper objectMapper;
 
+	private final BacklogMetrics metrics;
+
+	public EventRecordParser(final ObjectMapper objectMapper) {
+		this(objectMapper, BacklogMetrics.DISABLED);
+	}
+
+	/** @param metrics where the time of each parse is recorded, by entity type and struct version. */
+	public EventRecordParser(final ObjectMapper objectMapper, final BacklogMetrics metrics) {
+		this.objectMapper = objectMapper;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Parses the specified record and completes the resulting states with the specified context, which replaces them by
+	 * their canonical instances. Must be called in arrival serial number order.
+	 */
+	public TransitionEvent parse(final EventRecord eventRecord, final ParseContext parseContext) throws IOException, NotSupportedStructureVersion {
+		return parseContext.resolve(parse(eventRecord));
+	}
+
+	/**
+	 * Parses the specified record. The resulting states are not complete until {@link ParseContext#resolve(TransitionEvent)}
+	 * is applied to the returned event. This method is thread safe.
+	 */
 	public TransitionEvent parse(final EventRecord eventRecord) throws IOException, NotSupportedStructureVersion {
-		Class<? extends EntityState> structure =
-				EntityType.determineStructure(eventRecord.entityType, eventRecord.structVersion);
-		return new TransitionEventImpl(
+		final long parseStart = System.nanoTime();
+		final EntityType.StateReader stateReader =
+				EntityType.determineReader(eventRecord.entityType, eventRecord.structVersion);
+		final var transitionEvent = new TransitionEventImpl(
 				eventRecord.eventId,
 				eventRecord.arrivalSerialNumber,
 				eventRecord.arrivalDate,
 				eventRecord.entityId,
-				objectMapper.readValue(eventRecord.newStateRawJson, structure),
-				objectMapper.readValue(eventRecord.oldStateRawJson, structure)
+				read(stateReader, eventRecord.newStateRawJson),
+				read(stateReader, eventRecord.oldStateRawJson)
 		);
+		metrics.recordParse(eventRecord.entityType, eventRecord.structVersion, System.nanoTime() - parseStart);
+		return transitionEvent;
+	}
+
+	/** Streams the tokens of the specified JSON into the specified reader. */
+	private EntityState read(final EntityType.StateReader stateReader, final String rawJson) throws IOException {
+		if (rawJson == null) {
+			return null;
+		}
+		try (JsonParser parser = objectMapper.getFactory().createParser(rawJson)) {
+			parser.nextToken();
+			return stateReader.read(parser);
+		}
 	}
 
 	@Getter
@@ -0,0 +1,28 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.Iterator;
+
+/**
+ * An {@link EventsSource} that pushes the events given by an iterator, like the {@link SyntheticEventsGenerator}, with
+ * no I/O. Useful to drive the integration at its maximum speed in load tests.
+ *
+ * <p>The iterator should give the events in ascending arrival serial number order. Note that the pushed events are
+ * consumed: each event is pushed once at most, even if this source is asked to provide again.
+ */
+@RequiredArgsConstructor
+public class InMemoryEventsSource implements EventsSource {
+
+	private final Iterator<EventRecord> eventRecords;
+
+	@Override
+	public void provideWhile(final long startingEventArrivalSerialNumberExclusive, final Sink sink) {
+		while (eventRecords.hasNext()) {
+			final EventRecord eventRecord = eventRecords.next();
+			if (eventRecord.getArrivalSerialNumber() > startingEventArrivalSerialNumberExclusive && !sink.accept(eventRecord)) {
+				return;
+			}
+		}
+	}
+}
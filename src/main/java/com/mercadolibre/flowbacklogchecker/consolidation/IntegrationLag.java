@@ -0,0 +1,42 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.time.Instant;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures the freshness of the backlogs: the time between the arrival of the last integrated event, as its {@link
+ * EventRecord#getArrivalDate()} tells, and its integration. Said lag spans the whole way of the event: the wait in the
+ * "incoming_events" table, the read, the parsing and the dispatch to the shards.
+ *
+ * <p>The {@link #onIntegrated(ShardedBacklog)} method may be called by the integrator threads of several backlogs, and
+ * the lag read by any thread.
+ */
+public class IntegrationLag {
+
+	/** Gives the current time, in milliseconds since the epoch. */
+	private final LongSupplier clockMillis;
+
+	private volatile long lagMillis = 0;
+
+	public IntegrationLag() {
+		this(System::currentTimeMillis);
+	}
+
+	/** Creates a lag measured with the specified clock, which gives the milliseconds since the epoch. */
+	IntegrationLag(final LongSupplier clockMillis) {
+		this.clockMillis = clockMillis;
+	}
+
+	/** Should be called after each event dispatch, by the dispatcher thread. */
+	public void onIntegrated(final ShardedBacklog backlog) {
+		final Instant arrivalDate = backlog.getLastEventArrivalDate();
+		if (arrivalDate != null) {
+			lagMillis = clockMillis.getAsLong() - arrivalDate.toEpochMilli();
+		}
+	}
+
+	/** @return the lag of the last integrated event, in milliseconds. Zero if no event was integrated yet. */
+	public long getLagMillis() {
+		return lagMillis;
+	}
+}
@@ -0,0 +1,106 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An {@link OrderedParsingPipeline.Downstream} that routes each parsed event to the integrator of the logistic center
+ * of the event's entity, and discards the events of the logistic centers that have none. That way a single scan of the
+ * stored events feeds the backlogs of all the monitored logistic centers.
+ *
+ * <p>The logistic center of an event is the one of its new state, or the one of its old state if there is no new
+ * state.
+ *
+ * <p>As the scan starts from the logistic center that is most behind, the events a logistic center already integrated,
+ * the ones whose arrival serial number is not greater than the last one routed to it or than the one its backlog was
+ * restored at, are discarded too. Accessed by the integrator thread only.
+ */
+public class LogisticCenterRouter implements OrderedParsingPipeline.Downstream {
+
+	private final Map<String, Route> routesByLogisticCenter;
+
+	private final Route[] routes;
+
+	private final ParseFailureHandler parseFailureHandler;
+
+	/** The number of discarded events because their logistic center is not monitored. */
+	public long unroutedEvents = 0;
+
+	/** The number of discarded events because their logistic center already integrated them. */
+	public long alreadyIntegratedEvents = 0;
+
+	/** The integrator of a logistic center and the arrival serial number of the last event it integrated. */
+	private static class Route {
+		final OrderedParsingPipeline.Integrator integrator;
+		long lastEventArrivalSerialNumber;
+
+		Route(final OrderedParsingPipeline.Integrator integrator, final long lastEventArrivalSerialNumber) {
+			this.integrator = integrator;
+			this.lastEventArrivalSerialNumber = lastEventArrivalSerialNumber;
+		}
+	}
+
+	/** Handles the records whose parsing failed, whose logistic center is unknown. */
+	@FunctionalInterface
+	public interface ParseFailureHandler {
+		void onParseFailure(EventRecord eventRecord, Exception cause);
+	}
+
+	/**
+	 * @param integratorsByLogisticCenter the consumer of the events of each monitored logistic center, which integrated
+	 * none yet.
+	 * @param parseFailureHandler the handler of the records that could not be parsed.
+	 */
+	public LogisticCenterRouter(
+			final Map<String, OrderedParsingPipeline.Integrator> integratorsByLogisticCenter,
+			final ParseFailureHandler parseFailureHandler
+	) {
+		this(integratorsByLogisticCenter, Map.of(), parseFailureHandler);
+	}
+
+	/**
+	 * @param integratorsByLogisticCenter the consumer of the events of each monitored logistic center.
+	 * @param restoredSerialNumbers the arrival serial number of the last event integrated into the restored backlog of
+	 * each logistic center. The ones that are absent integrated none.
+	 * @param parseFailureHandler the handler of the records that could not be parsed.
+	 */
+	public LogisticCenterRouter(
+			final Map<String, OrderedParsingPipeline.Integrator> integratorsByLogisticCenter,
+			final Map<String, Long> restoredSerialNumbers,
+			final ParseFailureHandler parseFailureHandler
+	) {
+		this.routesByLogisticCenter = new HashMap<>();
+		integratorsByLogisticCenter.forEach((logisticCenter, integrator) -> routesByLogisticCenter.put(
+				logisticCenter,
+				new Route(integrator, restoredSerialNumbers.getOrDefault(logisticCenter, 0L))
+		));
+		this.routes = routesByLogisticCenter.values().toArray(new Route[0]);
+		this.parseFailureHandler = parseFailureHandler;
+	}
+
+	@Override
+	public void integrate(final TransitionEvent transitionEvent) {
+		final EntityState state = transitionEvent.getNewState() != null ? transitionEvent.getNewState() : transitionEvent.getOldState();
+		final var route = state == null ? null : routesByLogisticCenter.get(state.getLogisticCenter());
+		if (route == null) {
+			unroutedEvents += 1;
+		} else if (transitionEvent.getArrivalSerialNumber() <= route.lastEventArrivalSerialNumber) {
+			alreadyIntegratedEvents += 1;
+		} else {
+			route.lastEventArrivalSerialNumber = transitionEvent.getArrivalSerialNumber();
+			route.integrator.integrate(transitionEvent);
+		}
+	}
+
+	@Override
+	public void onParseFailure(final EventRecord eventRecord, final Exception cause) {
+		parseFailureHandler.onParseFailure(eventRecord, cause);
+	}
+
+	@Override
+	public void onIdle() {
+		for (var route : routes) {
+			route.integrator.onIdle();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.Arrays;
+
+/**
+ * A mutable map from long keys to long values, with the entries kept in parallel primitive arrays of a linear probing
+ * open addressing table, like the one of {@link CellStore}, so that there are no boxed keys nor entry objects.
+ *
+ * <p>The key {@link Long#MIN_VALUE} is the empty slot marker of the table, so its entry is kept aside, in {@link
+ * #minKeyValue}. Said key is a legit one: the group key of a {@link Rollup} whose highest partition id has the sign bit
+ * set, for instance.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe.
+ */
+final class LongLongHashMap {
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	/** The value returned by {@link #get(long)} and {@link #remove(long)} when the key is absent. */
+	static final long NO_VALUE = -1L;
+
+	private long[] keys;
+	private long[] values;
+
+	/** The number of entries, the one of the {@link #EMPTY} key included. */
+	private int size = 0;
+
+	/** Tells if the {@link #EMPTY} key is present. */
+	private boolean hasMinKey = false;
+
+	/** The value of the {@link #EMPTY} key, which has no slot. */
+	private long minKeyValue = 0;
+
+	/** @param initialCapacity the expected number of entries. Must be a power of two. */
+	LongLongHashMap(final int initialCapacity) {
+		assert Integer.bitCount(initialCapacity) == 1;
+		allocate(initialCapacity * 2);
+	}
+
+	/** Creates a copy of the specified map. */
+	LongLongHashMap(final LongLongHashMap original) {
+		this.keys = original.keys.clone();
+		this.values = original.values.clone();
+		this.size = original.size;
+		this.hasMinKey = original.hasMinKey;
+		this.minKeyValue = original.minKeyValue;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/** @return the value of the specified key, or {@link #NO_VALUE} if the key is absent. */
+	long get(final long key) {
+		if (key == EMPTY) {
+			return hasMinKey ? minKeyValue : NO_VALUE;
+		}
+		final int mask = keys.length - 1;
+		for (int slot = hash(key) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+		}
+		return NO_VALUE;
+	}
+
+	/**
+	 * Associates the specified value to the specified key.
+	 *
+	 * @return the previous value of the key, or {@link #NO_VALUE} if the key was absent.
+	 */
+	long put(final long key, final long value) {
+		if (key == EMPTY) {
+			final long previous = hasMinKey ? minKeyValue : NO_VALUE;
+			setMinKeyValue(value);
+			return previous;
+		}
+		int slot = hash(key) & (keys.length - 1);
+		while (keys[slot] != key) {
+			if (keys[slot] == EMPTY) {
+				if (size * 2 >= keys.length) {
+					rehash(keys.length * 2);
+					return put(key, value);
+				}
+				keys[slot] = key;
+				values[slot] = value;
+				size += 1;
+				return NO_VALUE;
+			}
+			slot = (slot + 1) & (keys.length - 1);
+		}
+		final long previous = values[slot];
+		values[slot] = value;
+		return previous;
+	}
+
+	/**
+	 * Adds the specified delta to the value of the specified key, which is zero if the key is absent. The entry is
+	 * removed if its value becomes zero.
+	 *
+	 * @return the new value.
+	 */
+	long addTo(final long key, final long delta) {
+		if (key == EMPTY) {
+			final long value = (hasMinKey ? minKeyValue : 0) + delta;
+			if (value == 0) {
+				removeMinKey();
+			} else {
+				setMinKeyValue(value);
+			}
+			return value;
+		}
+		final int mask = keys.length - 1;
+		for (int slot = hash(key) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				final long value = values[slot] + delta;
+				if (value == 0) {
+					removeSlot(slot);
+				} else {
+					values[slot] = value;
+				}
+				return value;
+			}
+		}
+		if (delta != 0) {
+			put(key, delta);
+		}
+		return delta;
+	}
+
+	/**
+	 * Removes the entry of the specified key.
+	 *
+	 * @return the removed value, or {@link #NO_VALUE} if the key was absent.
+	 */
+	long remove(final long key) {
+		if (key == EMPTY) {
+			final long value = hasMinKey ? minKeyValue : NO_VALUE;
+			removeMinKey();
+			return value;
+		}
+		final int mask = keys.length - 1;
+		for (int slot = hash(key) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				final long value = values[slot];
+				removeSlot(slot);
+				return value;
+			}
+		}
+		return NO_VALUE;
+	}
+
+	/** Applies the specified visitor to every entry of this map, in no particular order. The map must not be modified meanwhile. */
+	void forEach(final Visitor visitor) {
+		for (int slot = 0; slot < keys.length; ++slot) {
+			if (keys[slot] != EMPTY) {
+				visitor.visit(keys[slot], values[slot]);
+			}
+		}
+		if (hasMinKey) {
+			visitor.visit(EMPTY, minKeyValue);
+		}
+	}
+
+	@FunctionalInterface
+	interface Visitor {
+		void visit(long key, long value);
+	}
+
+	private void setMinKeyValue(final long value) {
+		if (!hasMinKey) {
+			hasMinKey = true;
+			size += 1;
+		}
+		minKeyValue = value;
+	}
+
+	private void removeMinKey() {
+		if (hasMinKey) {
+			hasMinKey = false;
+			minKeyValue = 0;
+			size -= 1;
+		}
+	}
+
+	/** Removes the entry at the specified slot shifting back the following entries of the same cluster. */
+	private void removeSlot(int hole) {
+		final int mask = keys.length - 1;
+		size -= 1;
+		int slot = (hole + 1) & mask;
+		while (keys[slot] != EMPTY) {
+			final int home = hash(keys[slot]) & mask;
+			// move the entry to the hole if its home slot is not in the cyclic interval (hole, slot]
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				keys[hole] = keys[slot];
+				values[hole] = values[slot];
+				hole = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[hole] = EMPTY;
+		values[hole] = 0;
+	}
+
+	private void rehash(final int newCapacity) {
+		final long[] oldKeys = keys;
+		final long[] oldValues = values;
+		allocate(newCapacity);
+		for (int oldSlot = 0; oldSlot < oldKeys.length; ++oldSlot) {
+			if (oldKeys[oldSlot] != EMPTY) {
+				int slot = hash(oldKeys[oldSlot]) & (newCapacity - 1);
+				while (keys[slot] != EMPTY) {
+					slot = (slot + 1) & (newCapacity - 1);
+				}
+				keys[slot] = oldKeys[oldSlot];
+				values[slot] = oldValues[oldSlot];
+			}
+		}
+	}
+
+	private void allocate(final int capacity) {
+		this.keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		this.values = new long[capacity];
+	}
+
+	/** The murmur3 64 bits finalizer. */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb34fe1a85ec3L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
@@ -0,0 +1,205 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link EventsSource.Sink} that parses the received {@link EventRecord}s on several worker threads and hands the
+ * resulting {@link TransitionEvent}s to a single integrator thread, in the same order the records were received.
+ *
+ * <p>The records waiting to be integrated are kept in a bounded reorder buffer. When it is full, the {@link
+ * #accept(EventRecord)} method blocks until the integrator thread catches up.
+ */
+@Slf4j
+public class OrderedParsingPipeline implements EventsSource.Sink, AutoCloseable {
+
+	/** The consumer of the parsed events. Its methods are called by the integrator thread only. */
+	public interface Integrator {
+		void integrate(TransitionEvent transitionEvent);
+
+		/** Called when no event was received during the last {@link #IDLE_POLL_MILLIS} milliseconds. */
+		default void onIdle() {}
+	}
+
+	/** The consumer of the parsed events and of the records whose parsing failed. */
+	public interface Downstream extends Integrator {
+		void onParseFailure(EventRecord eventRecord, Exception cause);
+	}
+
+	/** How long the integrator thread waits for the next event before notifying the downstream it is idle. */
+	public static final long IDLE_POLL_MILLIS = 100;
+
+	private final EventRecordParser eventRecordParser;
+
+	private final Downstream downstream;
+
+	/** Completes the parsed states. Accessed by the integrator thread only. */
+	private final ParseContext parseContext;
+
+	private final ExecutorService parsers;
+
+	private final BlockingQueue<PendingEvent> reorderBuffer;
+
+	private final Thread integrator;
+
+	/** The failure that stopped the integrator thread, if any. */
+	private volatile RuntimeException integrationFailure;
+
+	/**
+	 * @param eventRecordParser the parser of the received records.
+	 * @param parsersCount the number of parsing threads.
+	 * @param reorderBufferCapacity the maximum number of received records that were not integrated yet.
+	 * @param downstream the consumer of the parsed events.
+	 */
+	public OrderedParsingPipeline(
+			final EventRecordParser eventRecordParser,
+			final int parsersCount,
+			final int reorderBufferCapacity,
+			final Downstream downstream
+	) {
+		this(eventRecordParser, parsersCount, reorderBufferCapacity, new ParseContext(), downstream);
+	}
+
+	/**
+	 * Like {@link #OrderedParsingPipeline(EventRecordParser, int, int, Downstream)}, but the parsed states are completed
+	 * with the specified context, which may carry the information of the events integrated before a restart. Said
+	 * context is accessed by the integrator thread only, hence by the downstream too.
+	 */
+	public OrderedParsingPipeline(
+			final EventRecordParser eventRecordParser,
+			final int parsersCount,
+			final int reorderBufferCapacity,
+			final ParseContext parseContext,
+			final Downstream downstream
+	) {
+		this.eventRecordParser = eventRecordParser;
+		this.parseContext = parseContext;
+		this.downstream = downstream;
+		this.reorderBuffer = new ArrayBlockingQueue<>(reorderBufferCapacity);
+		final var parserNumber = new AtomicInteger();
+		this.parsers = Executors.newFixedThreadPool(parsersCount, runnable -> {
+			final var thread = new Thread(runnable, "parser-" + parserNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.integrator = new Thread(this::integrateInOrder, "integrator");
+		this.integrator.setDaemon(true);
+		this.integrator.start();
+	}
+
+	/**
+	 * Queues the specified record to be parsed and integrated. Blocks while the reorder buffer is full.
+	 *
+	 * @return false if the calling thread was interrupted.
+	 * @throws IllegalStateException if the integration of a previous event has failed, or the pipeline was closed.
+	 */
+	@Override
+	public boolean accept(final EventRecord eventRecord) {
+		checkIntegrationFailure();
+		final var pendingEvent = new PendingEvent(eventRecord);
+		try {
+			put(pendingEvent);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		parsers.execute(pendingEvent);
+		return true;
+	}
+
+	/**
+	 * Blocks until all the records accepted so far were integrated.
+	 *
+	 * @throws IllegalStateException if the integration of a previous event has failed, or the pipeline was closed.
+	 */
+	public void awaitIntegration() throws InterruptedException {
+		checkIntegrationFailure();
+		final var barrier = new PendingEvent(null);
+		put(barrier);
+		// the integrator may stop without running the barrier, so its liveness is checked while waiting
+		while (true) {
+			try {
+				barrier.get(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				break;
+			} catch (TimeoutException e) {
+				checkIntegrationFailure();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		checkIntegrationFailure();
+	}
+
+	/** Queues the specified pending event. Blocks while the reorder buffer is full and the integrator is alive. */
+	private void put(final PendingEvent pendingEvent) throws InterruptedException {
+		while (!reorderBuffer.offer(pendingEvent, IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+			checkIntegrationFailure();
+		}
+	}
+
+	@Override
+	public void close() {
+		parsers.shutdownNow();
+		integrator.interrupt();
+	}
+
+	private void checkIntegrationFailure() {
+		// the failure is set before the integrator thread ends, so it is seen once the thread is not alive
+		if (integrationFailure != null || !integrator.isAlive()) {
+			throw new IllegalStateException("The integration thread has stopped", integrationFailure);
+		}
+	}
+
+	private void integrateInOrder() {
+		try {
+			while (true) {
+				final PendingEvent pendingEvent = reorderBuffer.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (pendingEvent == null) {
+					downstream.onIdle();
+					continue;
+				}
+				if (pendingEvent.eventRecord == null) {
+					// a barrier: all the previous events were integrated
+					pendingEvent.run();
+					continue;
+				}
+				final TransitionEvent transitionEvent;
+				try {
+					transitionEvent = pendingEvent.get();
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					downstream.onParseFailure(pendingEvent.eventRecord, cause instanceof Exception ? (Exception) cause : e);
+					continue;
+				}
+				downstream.integrate(parseContext.resolve(transitionEvent));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			log.error("The integration of parsed events has stopped", e);
+			integrationFailure = e;
+			// release the threads blocked on a full buffer or waiting a barrier
+			reorderBuffer.forEach(PendingEvent::run);
+			reorderBuffer.clear();
+		}
+	}
+
+	/** A record whose parsing was, or will be, submitted to the parsers. A null record is a barrier. */
+	private class PendingEvent extends FutureTask<TransitionEvent> {
+		final EventRecord eventRecord;
+
+		PendingEvent(final EventRecord eventRecord) {
+			super(() -> eventRecord == null ? null : eventRecordParser.parse(eventRecord));
+			this.eventRecord = eventRecord;
+		}
+	}
+}
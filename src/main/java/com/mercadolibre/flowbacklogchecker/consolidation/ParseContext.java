@@ -0,0 +1,87 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Knows the information, carried by previously parsed events, that is needed to complete the {@link EntityState}s of
+ * the following ones.
+ *
+ * <p>The {@link EventRecordParser#parse(EventRecord)} method is stateless and may be called concurrently. The states it
+ * produces are completed afterwards by {@link #resolve(TransitionEvent)}, which must be called sequentially in arrival
+ * serial number order. That way the result does not depend on the order in which the events were parsed. Said
+ * resolution also replaces the complete states by their canonical instances, see {@link StateInterner}.
+ *
+ * <p>Note that this is a mutable class. Each stream of events should have its own instance. The events of different
+ * logistic centers are independent streams that share an instance: the information is kept by logistic center.
+ */
+public class ParseContext {
+
+	private static final int INTERNED_STATES_CAPACITY = 16_384;
+
+	private static final int INTERNED_VALUES_CAPACITY = 4_096;
+
+	/**
+	 * The epoch millis of the greatest creation date found in the states resolved by this context so far, by logistic
+	 * center. The values are single element arrays to avoid boxing.
+	 */
+	private final Map<String, long[]> lastDateCreatedByLogisticCenter = new HashMap<>();
+
+	/** The canonical instances of the resolved states. */
+	private final StateInterner interner = new StateInterner(INTERNED_STATES_CAPACITY, INTERNED_VALUES_CAPACITY);
+
+	/**
+	 * An {@link EntityState} whose content depends on the previously parsed states.
+	 */
+	public interface Dependent {
+		/** Completes this state based on the specified context, and updates said context if necessary. */
+		void resolve(ParseContext context);
+	}
+
+	/**
+	 * @return the epoch millis of the greatest creation date found in the states of the specified logistic center
+	 *     resolved so far, or zero if there is none.
+	 */
+	public long getLastDateCreated(final String logisticCenter) {
+		final long[] lastDateCreated = lastDateCreatedByLogisticCenter.get(logisticCenter);
+		return lastDateCreated == null ? 0L : lastDateCreated[0];
+	}
+
+	/** Registers a creation date found in a state of the specified logistic center. */
+	public void updateLastDateCreated(final String logisticCenter, final long dateCreated) {
+		final long[] lastDateCreated = lastDateCreatedByLogisticCenter.computeIfAbsent(logisticCenter, lc -> new long[1]);
+		if (dateCreated > lastDateCreated[0]) {
+			lastDateCreated[0] = dateCreated;
+		}
+	}
+
+	/**
+	 * Completes the states of the specified event. Must be called in arrival serial number order.
+	 *
+	 * @return an event equal to the specified one whose states are canonical instances, which should be used instead.
+	 */
+	public TransitionEvent resolve(final TransitionEvent transitionEvent) {
+		// in the same order in which the states are read from the event record
+		resolve(transitionEvent.getNewState());
+		resolve(transitionEvent.getOldState());
+		final EntityState newState = interner.intern(transitionEvent.getNewState());
+		final EntityState oldState = interner.intern(transitionEvent.getOldState());
+		if (newState == transitionEvent.getNewState() && oldState == transitionEvent.getOldState()) {
+			return transitionEvent;
+		}
+		return new EventRecordParser.TransitionEventImpl(
+				transitionEvent.getEventId(),
+				transitionEvent.getArrivalSerialNumber(),
+				transitionEvent.getArrivalDate(),
+				transitionEvent.getEntityId(),
+				newState,
+				oldState
+		);
+	}
+
+	private void resolve(final EntityState state) {
+		if (state instanceof Dependent) {
+			((Dependent) state).resolve(this);
+		}
+	}
+}
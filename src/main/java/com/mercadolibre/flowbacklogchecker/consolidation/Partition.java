@@ -18,6 +18,18 @@ public interface Partition {
 	 */
 	int getOrdinal();
 
+	/**
+	 * @return the number of bits of a packed cell key that are reserved to the dictionary id of the parts of this
+	 *     partition. Hence, this partition can't have more than {@code 2^bits - 1} distinct parts.
+	 */
+	int getKeyBits();
+
+	/**
+	 * @return the class of the indexes of the parts of this partition, which is also the java type of the column of the
+	 *     "backlog_photo_cell" table that indexes this partition.
+	 */
+	Class<?> getValueType();
+
 	/**
 	 * @return the function that, when applied to the state of an entity, gives the index of the part of this partition
 	 *     that contains said state.
@@ -1,5 +1,6 @@
 package com.mercadolibre.flowbacklogchecker.consolidation;
 
+import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.List;
 import java.util.function.Function;
@@ -24,15 +25,20 @@ public class PartitionsCatalog {
 
 	@RequiredArgsConstructor
 	public enum PartitionsDb implements Partition {
-		logisticCenter("logistic_center_id", EntityState::getLogisticCenter),
-		workflow("workflow", EntityState::getWorkflow),
-		area("area", state -> state.getArea() != null ? state.getArea() : "N/A"),
-		status("status", EntityState::getStatus),
-		dateIn("date_in", EntityState::getDateIn),
-		deadline("date_out", EntityState::getDeadline);
+		logisticCenter("logistic_center_id", 8, String.class, EntityState::getLogisticCenter),
+		workflow("workflow", 6, String.class, EntityState::getWorkflow),
+		area("area", 10, String.class, state -> state.getArea() != null ? state.getArea() : "N/A"),
+		status("status", 6, String.class, EntityState::getStatus),
+		dateIn("date_in", 17, Timestamp.class, EntityState::getDateIn),
+		deadline("date_out", 17, Timestamp.class, EntityState::getDeadline);
 
 		public  final String columnName;
 
+		/** The bits of a packed cell key reserved to this partition. The sum for all the partitions must not exceed 64. */
+		public  final int keyBits;
+
+		public  final Class<?> valueType;
+
 		public  final Function<EntityState, Object> valueGetter;
 
 		@Override
@@ -45,6 +51,16 @@ public class PartitionsCatalog {
 			return this.ordinal();
 		}
 
+		@Override
+		public int getKeyBits() {
+			return this.keyBits;
+		}
+
+		@Override
+		public Class<?> getValueType() {
+			return this.valueType;
+		}
+
 		@Override
 		public Function<EntityState, Object> discriminator() {
 			return this.valueGetter;
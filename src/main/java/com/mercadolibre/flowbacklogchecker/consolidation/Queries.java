@@ -3,7 +3,8 @@ package com.mercadolibre.flowbacklogchecker.consolidation;
 import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.BrokenTrajectoryInfo;
 import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.LastStateSuccess;
 import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.Trajectory;
-import io.netty.util.collection.LongObjectHashMap;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import org.springframework.data.util.Pair;
@@ -17,20 +18,101 @@ import java.util.Map;
 import java.util.TreeMap;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 public class Queries {
 
+	/** The queried backlog, or null if the queries are evaluated on a {@link BacklogSnapshot}. */
 	public final Backlog backlog;
 	public final Timestamp now = Timestamp.from(Instant.now());
 
-	public final Map<Backlog.Coordinates, Backlog.CellContent> cells;
-	public final LongObjectHashMap<Trajectory> trajectoriesByEntity;
+	public final CellStore cells;
+
+	/** The columnar copy of the cells, created on the first columnar query. */
+	private CellColumns columns = null;
+
+	private final Supplier<Stream<Trajectory>> trajectories;
+
+	private final Function<int[], Rollup> rollups;
+
+	private final Timers timers;
 
 	public Queries(Backlog backlog) {
+		this(backlog, Timers.DISABLED);
+	}
+
+	/** Creates the queries of the specified backlog, whose latency is recorded in the specified timers. */
+	public Queries(Backlog backlog, Timers timers) {
 		this.backlog = backlog;
 		this.cells = backlog.cells;
-		this.trajectoriesByEntity = backlog.trajectoriesByEntity;
+		this.trajectories = backlog::trajectories;
+		this.rollups = backlog::rollupOf;
+		this.timers = timers;
+	}
+
+	/**
+	 * Creates the queries of the specified snapshot, which may be evaluated by any thread. The trajectory groupings
+	 * require the snapshot to contain the trajectories.
+	 */
+	public Queries(BacklogSnapshot snapshot) {
+		this.backlog = null;
+		this.cells = snapshot.cells;
+		this.trajectories = snapshot::trajectories;
+		this.rollups = snapshot::rollupOf;
+		this.timers = Timers.DISABLED;
+	}
+
+	/**
+	 * Creates the queries of the specified cells, like the merged ones of a {@link ShardedBacklog}, which must be
+	 * evaluated by the owner of the cells. The trajectory groupings are not supported. Their latency is recorded in the
+	 * specified timers.
+	 */
+	public Queries(CellStore cells, Timers timers) {
+		this.backlog = null;
+		this.cells = cells;
+		this.trajectories = () -> {
+			throw new IllegalStateException("The queried cells have no trajectories");
+		};
+		this.rollups = partitionOrdinals -> null;
+		this.timers = timers;
+	}
+
+	/**
+	 * The latency of each query, resolved once from the registry that publishes it. The instance methods that delegate
+	 * to a static one are timed by the latter. See {@link BacklogMetrics#queryTimers()}.
+	 */
+	public static final class Timers {
+		/** The timers that record nothing. */
+		public static final Timers DISABLED = new Timers(null);
+
+		private final Timer cellBasedPopulation;
+		private final Timer population;
+		private final Timer columnarPopulation;
+		private final Timer healthyTrajectories;
+		private final Timer brokenTrajectories;
+
+		/** @param registry the registry where the timers are registered, or null to record nothing. */
+		public Timers(final MeterRegistry registry) {
+			this.cellBasedPopulation = queryTimer(registry, "cellBasedPopulationGrouped");
+			this.population = queryTimer(registry, "populationGrouped");
+			this.columnarPopulation = queryTimer(registry, "columnarPopulationGrouped");
+			this.healthyTrajectories = queryTimer(registry, "healthyTrajectoryGrouping");
+			this.brokenTrajectories = queryTimer(registry, "brokenTrajectoriesGrouping");
+		}
+
+		private static Timer queryTimer(final MeterRegistry registry, final String method) {
+			return registry == null ? null : Timer.builder("backlog.queries")
+					.description("The evaluation of a query of the backlog")
+					.tag("method", method)
+					.publishPercentileHistogram()
+					.register(registry);
+		}
+
+		/** @return the result of the specified query, whose latency is recorded in the specified timer, if any. */
+		private static <T> T time(final Timer timer, final Supplier<T> query) {
+			return timer == null ? query.get() : timer.record(query);
+		}
 	}
 
 	public <T> T eval(final Function<Queries, T> f) {
@@ -63,23 +145,83 @@ public class Queries {
 		}
 	}
 
+	/**
+	 * Merges the results of {@link #healthyTrajectoryGrouping} or {@link #brokenTrajectoriesGrouping} evaluated on
+	 * disjoint parts of a backlog, like the shards of a {@link ShardedBacklog}. The first argument is mutated.
+	 */
+	public static Map<Key, List<Trajectory>> mergeGroups(Map<Key, List<Trajectory>> a, Map<Key, List<Trajectory>> b) {
+		b.forEach((key, group) -> a.computeIfAbsent(key, k -> new ArrayList<>()).addAll(group));
+		return a;
+	}
+
 	public Map<Key, IntAccum> cellBasedPopulationGrouped(Predicate<Object[]> coordinatesFilter, Predicate<Backlog.CellContent> contentFilter, int... coordinatesToGroupBy) {
-		return cells.entrySet().stream()
-				.filter(c -> coordinatesFilter.test(c.getKey().indexValues) && contentFilter.test(c.getValue()))
-				.reduce(
-						new TreeMap<Key, IntAccum>(),
-						(acc, c) -> {
-							var key = new Key(Arrays.stream(coordinatesToGroupBy).mapToObj(pi -> c.getKey().indexValues[pi]).toArray());
-							var intAccum = acc.get(key);
-							if (intAccum == null) {
-								intAccum = new IntAccum();
-								acc.put(key, intAccum);
-							}
-							intAccum.register += c.getValue().population;
-							return acc;
-						},
-						(a, b) -> {a.putAll(b); return a;}
-				);
+		return Timers.time(timers.cellBasedPopulation, () -> {
+			final var acc = new TreeMap<Key, IntAccum>();
+			cells.forEach((cellKey, population, variation, accumulatedPopulation) -> {
+				final var coordinates = cells.coordinatesOf(cellKey);
+				final var content = new Backlog.CellContent(population, accumulatedPopulation);
+				content.variation = variation;
+				if (coordinatesFilter.test(coordinates) && contentFilter.test(content)) {
+					var key = new Key(Arrays.stream(coordinatesToGroupBy).mapToObj(pi -> coordinates[pi]).toArray());
+					var intAccum = acc.get(key);
+					if (intAccum == null) {
+						intAccum = new IntAccum();
+						acc.put(key, intAccum);
+					}
+					intAccum.register += population;
+				}
+			});
+			return acc;
+		});
+	}
+
+	/**
+	 * Gives the same population as {@link #cellBasedPopulationGrouped} with no content filter, reading the rollup of the
+	 * specified partitions if it is registered, in time proportional to the number of groups. Otherwise, the cells are
+	 * scanned. The groups whose population is zero may be absent.
+	 *
+	 * @param groupFilter tells which groups to include, given the values of the grouped partitions.
+	 * @see Backlog#registerRollup(int...)
+	 */
+	public Map<Key, IntAccum> populationGrouped(Predicate<Object[]> groupFilter, int... coordinatesToGroupBy) {
+		return Timers.time(timers.population, () -> {
+			final Rollup rollup = rollups.apply(coordinatesToGroupBy);
+			if (rollup == null) {
+				final var grouped = cellBasedPopulationGrouped(coordinates -> true, content -> true, coordinatesToGroupBy);
+				grouped.keySet().removeIf(key -> !groupFilter.test(key.key));
+				return grouped;
+			}
+			final var acc = new TreeMap<Key, IntAccum>();
+			rollup.forEach((groupValues, population) -> {
+				if (groupFilter.test(groupValues)) {
+					final var intAccum = new IntAccum();
+					intAccum.register = population;
+					acc.put(new Key(groupValues), intAccum);
+				}
+			});
+			return acc;
+		});
+	}
+
+	/**
+	 * Gives the same population as {@link #cellBasedPopulationGrouped}, except that the groups whose population is zero
+	 * are absent, evaluating the filter with the kernels of {@link CellColumns} on a columnar copy of the cells. The
+	 * copy is made by the first call and reused by the following ones, so they don't see the later changes of the
+	 * cells.
+	 */
+	public Map<Key, IntAccum> columnarPopulationGrouped(CellColumns.Filter filter, int... coordinatesToGroupBy) {
+		return Timers.time(timers.columnarPopulation, () -> {
+			if (columns == null) {
+				columns = cells.toColumns();
+			}
+			final var acc = new TreeMap<Key, IntAccum>();
+			columns.populationGrouped(filter, coordinatesToGroupBy, (groupValues, population) -> {
+				final var intAccum = new IntAccum();
+				intAccum.register = population;
+				acc.put(new Key(groupValues), intAccum);
+			});
+			return acc;
+		});
 	}
 
 	public Map<Key, List<Trajectory>> healthyTrajectoryGrouping(
@@ -87,12 +229,26 @@ public class Queries {
 			Trajectory.Comparator entityStateComparator,
 			int... coordinatesToGroupBy
 	) {
-		return trajectoriesByEntity.entrySet().stream()
-				.filter(e -> trajectoryFilter.test(e.getValue()))
+		return healthyTrajectoryGrouping(timers, trajectories.get(), trajectoryFilter, entityStateComparator, coordinatesToGroupBy);
+	}
+
+	/**
+	 * Same as {@link #healthyTrajectoryGrouping(Predicate, Trajectory.Comparator, int...)} but on the specified
+	 * trajectories, which may be copies detached from the backlog, like the ones {@link BacklogQueryApi} groups, and
+	 * with its latency recorded in the specified timers.
+	 */
+	public static Map<Key, List<Trajectory>> healthyTrajectoryGrouping(
+			Timers timers,
+			Stream<Trajectory> trajectories,
+			Predicate<Trajectory> trajectoryFilter,
+			Trajectory.Comparator entityStateComparator,
+			int... coordinatesToGroupBy
+	) {
+		return Timers.time(timers.healthyTrajectories, () -> trajectories
+				.filter(trajectoryFilter)
 				.reduce(
 						new TreeMap<Key, List<Trajectory>>(),
-						(acc, e) -> {
-							final var trajectory = e.getValue();
+						(acc, trajectory) -> {
 							final var lastState = trajectory.getLastState(entityStateComparator);
 							if (lastState instanceof LastStateSuccess) {
 								return addTrajectoryToGroup(
@@ -109,7 +265,8 @@ public class Queries {
 							a.putAll(b);
 							return a;
 						}
-				);
+				)
+		);
 	}
 
 	public Map<Key, List<Trajectory>> brokenTrajectoriesGrouping(
@@ -118,9 +275,32 @@ public class Queries {
 			boolean groupByLastGoodOrFirstBadLink,
 			int... sideCoordinatesToGroupBy
 	) {
-		return trajectoriesByEntity.entrySet().stream()
-				.flatMap(e -> {
-					var lastState = e.getValue().getLastState(entityStateComparator);
+		return brokenTrajectoriesGrouping(
+				timers,
+				trajectories.get(),
+				brokenTrajectoryFilter,
+				entityStateComparator,
+				groupByLastGoodOrFirstBadLink,
+				sideCoordinatesToGroupBy
+		);
+	}
+
+	/**
+	 * Same as {@link #brokenTrajectoriesGrouping(Predicate, Trajectory.Comparator, boolean, int...)} but on the
+	 * specified trajectories, which may be copies detached from the backlog, and with its latency recorded in the
+	 * specified timers.
+	 */
+	public static Map<Key, List<Trajectory>> brokenTrajectoriesGrouping(
+			Timers timers,
+			Stream<Trajectory> trajectories,
+			Predicate<BrokenTrajectoryInfo> brokenTrajectoryFilter,
+			Trajectory.Comparator entityStateComparator,
+			boolean groupByLastGoodOrFirstBadLink,
+			int... sideCoordinatesToGroupBy
+	) {
+		return Timers.time(timers.brokenTrajectories, () -> trajectories
+				.flatMap(trajectory -> {
+					var lastState = trajectory.getLastState(entityStateComparator);
 					if (lastState instanceof BrokenTrajectoryInfo) {
 						var bti = (BrokenTrajectoryInfo) lastState;
 						return brokenTrajectoryFilter.test(bti) ? Stream.of(bti) : Stream.empty();
@@ -138,7 +318,8 @@ public class Queries {
 							a.putAll(b);
 							return a;
 						}
-				);
+				)
+		);
 	}
 
 
@@ -159,24 +340,43 @@ public class Queries {
 		return null;
 	}
 
-	public Trajectory.Comparator buildStateComparator(int... coordinatesToCompare) {
-		return (a, b) ->
-			a == b
-			|| (
-					(a != null && b != null) && Arrays.stream(coordinatesToCompare)
-					.allMatch(coordinateIndex -> {
-						var valueGetter = PartitionsCatalog.PartitionsDb.values()[coordinateIndex].valueGetter;
-						return valueGetter.apply(a).equals(valueGetter.apply(b));
-					})
-			);
+	/**
+	 * Builds a comparator that considers equal the states whose values of the specified partitions are equal. The key
+	 * of a state is the list of said values.
+	 */
+	public static Trajectory.KeyedComparator buildStateComparator(int... coordinatesToCompare) {
+		final var partitions = PartitionsCatalog.PartitionsDb.values();
+		return state -> {
+			if (state == null) {
+				return null;
+			}
+			final var values = new Object[coordinatesToCompare.length];
+			for (int index = 0; index < coordinatesToCompare.length; ++index) {
+				values[index] = partitions[coordinatesToCompare[index]].valueGetter.apply(state);
+			}
+			return Arrays.asList(values);
+		};
+	}
+
+	public static Predicate<BrokenTrajectoryInfo> buildSlaFilter(Instant sla) {
+		final var trajectorySlaFilter = buildTrajectorySlaFilter(sla);
+		return bti -> trajectorySlaFilter.test(bti.trajectory);
 	}
 
-	public Predicate<BrokenTrajectoryInfo> buildSlaFilter(Instant sla) {
+	/** Builds a filter that accepts the trajectories with an event whose new state has the specified deadline. */
+	public static Predicate<Trajectory> buildTrajectorySlaFilter(Instant sla) {
 		final var time = sla.toEpochMilli();
-		return bti -> bti.trajectory.events.stream().anyMatch(e -> e.getNewState().getDeadline().getTime() == time);
+		return trajectory -> {
+			for (int index = 0; index < trajectory.size(); ++index) {
+				if (trajectory.newStateAt(index).getDeadline().getTime() == time) {
+					return true;
+				}
+			}
+			return false;
+		};
 	}
 
-	private TreeMap<Key, List<Trajectory>> addTrajectoryToGroup(
+	private static TreeMap<Key, List<Trajectory>> addTrajectoryToGroup(
 			TreeMap<Key, List<Trajectory>> groupedTrajectories,
 			Trajectory trajectory,
 			EntityState discriminatingState,
@@ -0,0 +1,112 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.R2dbcException;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.sql.SQLException;
+
+/**
+ * An {@link EventsSource} that pushes the events stored in the "incoming_events" table, like {@link
+ * StoredEventsSource}, but through a non-blocking R2DBC connection.
+ *
+ * <p>The events are also available as a {@link Flux} with demand driven backpressure, see {@link #events(long)}, so
+ * that the consumers can subscribe on their own schedulers and the network waits never block a thread that does CPU
+ * work.
+ */
+@Slf4j
+public class ReactiveStoredEventsSource implements EventsSource, AutoCloseable {
+
+	private static final int PAGE_SIZE = 100_000;
+
+	/** The maximum number of records requested to the database in advance of the consumer demand. */
+	private static final int PREFETCH = 4096;
+
+	private static final String PAGE_QUERY = "SELECT event_id, id, date_created, entity_id, entity_type, struct_version, new_state, old_state "
+			+ "FROM incoming_events "
+			+ "WHERE id > ? AND entity_type = 'outbound-unit' "
+			+ "ORDER BY id "
+			+ "LIMIT ?";
+
+	private final ConnectionFactory connectionFactory;
+
+	/** The thread where the {@link Sink}s passed to {@link #provideWhile(long, Sink)} are called, given they block. */
+	private final Scheduler sinkScheduler = Schedulers.newSingle("events-sink", true);
+
+	public ReactiveStoredEventsSource(final ConnectionFactory connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	/**
+	 * Pushes the events to the specified sink from the sink thread, blocking the calling thread until the sink returns
+	 * false or there are no more stored events.
+	 */
+	@Override
+	public void provideWhile(final long startingEventArrivalSerialNumberExclusive, final Sink sink) throws SQLException {
+		try {
+			events(startingEventArrivalSerialNumberExclusive)
+					.publishOn(sinkScheduler, PREFETCH)
+					.takeWhile(sink::accept)
+					.blockLast();
+		} catch (R2dbcException e) {
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * Gives the stored events whose arrival serial number is greater than the specified one, in ascending arrival serial
+	 * number order, until there are no more. The events are read with keyset paging, each page with a single query, on
+	 * a connection that is opened on subscription and closed on termination or cancellation. No more than {@link
+	 * #PREFETCH} records are requested in advance of the subscriber demand.
+	 */
+	public Flux<EventRecord> events(final long startingEventArrivalSerialNumberExclusive) {
+		return Flux.usingWhen(
+				Mono.from(connectionFactory.create()),
+				connection -> {
+					final var cursor = new Cursor(startingEventArrivalSerialNumberExclusive);
+					return Flux.defer(() -> fetchPage(connection, cursor))
+							.repeat(() -> cursor.recordsRead == PAGE_SIZE);
+				},
+				Connection::close
+		).limitRate(PREFETCH);
+	}
+
+	private Flux<EventRecord> fetchPage(final Connection connection, final Cursor cursor) {
+		final long pageStartingSerial = cursor.lastEventRead;
+		cursor.recordsRead = 0;
+		return Flux.from(connection.createStatement(PAGE_QUERY)
+						.bind(0, pageStartingSerial)
+						.bind(1, PAGE_SIZE)
+						.execute())
+				.flatMap(result -> result.map((row, rowMetadata) -> EventRecord.fromRow(row)))
+				.doOnNext(eventRecord -> {
+					cursor.recordsRead += 1;
+					cursor.lastEventRead = eventRecord.getArrivalSerialNumber();
+				})
+				.doOnComplete(() -> log.info(
+						"The events whose arrival serial is between {} and {} where provided",
+						pageStartingSerial, cursor.lastEventRead
+				));
+	}
+
+	@Override
+	public void close() {
+		sinkScheduler.dispose();
+	}
+
+	/** The keyset paging position of a subscription. Accessed sequentially by the threads that emit the records. */
+	private static class Cursor {
+		private long recordsRead;
+		private long lastEventRead;
+
+		Cursor(final long lastEventRead) {
+			this.recordsRead = 0;
+			this.lastEventRead = lastEventRead;
+		}
+	}
+}
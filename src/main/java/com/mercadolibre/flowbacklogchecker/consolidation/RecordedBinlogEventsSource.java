@@ -0,0 +1,59 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.github.shyiko.mysql.binlog.BinaryLogFileReader;
+import com.github.shyiko.mysql.binlog.event.Event;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * An {@link EventsSource} that pushes the rows inserted into the "incoming_events" table found in recorded MySQL binary
+ * log files, like the ones the server keeps or the ones {@code mysqlbinlog --read-from-remote-server --raw} downloads.
+ * Decodes them as {@link BinlogEventsSource} does, so said decoding can be tested, and the integration replayed,
+ * locally with no database.
+ */
+@RequiredArgsConstructor
+public class RecordedBinlogEventsSource implements EventsSource {
+
+	/** The binary log files, in the order they were written. */
+	private final List<Path> binlogFiles;
+
+	private final String schema;
+
+	private final String table;
+
+	/** The names of the columns of the table, in table order. */
+	private final List<String> columnNames;
+
+	/**
+	 * Pushes the rows of all the files, and returns.
+	 *
+	 * @throws UncheckedIOException if a file could not be read.
+	 */
+	@Override
+	public void provideWhile(final long startingEventArrivalSerialNumberExclusive, final Sink sink) {
+		final var decoder = new BinlogRowsDecoder(
+				schema,
+				table,
+				columnNames,
+				startingEventArrivalSerialNumberExclusive,
+				binlogFiles.isEmpty() ? null : binlogFiles.get(0).getFileName().toString(),
+				null
+		);
+		for (Path binlogFile : binlogFiles) {
+			try (var reader = new BinaryLogFileReader(Files.newInputStream(binlogFile), BinlogRowsDecoder.eventDeserializer())) {
+				for (Event event = reader.readEvent(); event != null; event = reader.readEvent()) {
+					if (!decoder.decode(event, sink)) {
+						return;
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException("The binary log file " + binlogFile + " could not be read", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.Arrays;
+
+/**
+ * The population of the cells of a {@link Backlog} grouped by some of the partitions, maintained incrementally as the
+ * cells change, so that reading it costs time proportional to the number of groups instead of a scan of all the cells.
+ * See {@link Backlog#registerRollup(int...)}.
+ *
+ * <p>The key of a group is the packed key of its cells, as given by {@link CellStore}, with the dictionary ids of the
+ * other partitions masked out. The groups whose population is zero are removed.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe: it is owned by the thread that integrates the events
+ * into the backlog.
+ */
+public class Rollup {
+	private final CellStore cells;
+
+	/** The ordinals of the grouped partitions, in the order the group values are given. */
+	private final int[] partitionOrdinals;
+
+	private final long mask;
+
+	private final LongLongHashMap populations;
+
+	/** Creates the rollup of the current content of the specified cells. */
+	Rollup(final CellStore cells, final int... partitionOrdinals) {
+		this.cells = cells;
+		this.partitionOrdinals = partitionOrdinals.clone();
+		this.mask = cells.maskOf(partitionOrdinals);
+		this.populations = new LongLongHashMap(1024);
+		cells.forEach((key, population, variation, accumulatedPopulation) -> add(key, population));
+	}
+
+	/**
+	 * Creates a copy of the specified rollup whose group values are decoded with the specified cells, which must be a
+	 * copy of the ones of the original. See {@link CellStore#CellStore(CellStore)}.
+	 */
+	Rollup(final Rollup original, final CellStore cells) {
+		this.cells = cells;
+		this.partitionOrdinals = original.partitionOrdinals;
+		this.mask = original.mask;
+		this.populations = new LongLongHashMap(original.populations);
+	}
+
+	/** Tells if this rollup groups by the specified partitions, in the specified order. */
+	public boolean groupsBy(final int... partitionOrdinals) {
+		return Arrays.equals(this.partitionOrdinals, partitionOrdinals);
+	}
+
+	/** Adds the specified quantity to the population of the group of the cell pointed by the specified key. */
+	void add(final long cellKey, final int quantity) {
+		populations.addTo(cellKey & mask, quantity);
+	}
+
+	/** @return the number of groups whose population is not zero. */
+	public int size() {
+		return populations.size();
+	}
+
+	/** Applies the specified visitor to every group whose population is not zero, in no particular order. */
+	public void forEach(final Visitor visitor) {
+		populations.forEach((groupKey, population) -> {
+			final var groupValues = new Object[partitionOrdinals.length];
+			for (int index = 0; index < partitionOrdinals.length; ++index) {
+				groupValues[index] = cells.valueOf(groupKey, partitionOrdinals[index]);
+			}
+			visitor.visit(groupValues, (int) population);
+		});
+	}
+
+	@FunctionalInterface
+	public interface Visitor {
+		/**
+		 * @param groupValues the values of the grouped partitions, in the order they were specified when the rollup was
+		 *     registered.
+		 */
+		void visit(Object[] groupValues, int population);
+	}
+}
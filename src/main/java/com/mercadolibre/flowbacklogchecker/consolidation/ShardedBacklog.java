@@ -0,0 +1,642 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link Backlog} split in shards that integrate events concurrently. Each {@link TransitionEvent} is routed, by the
+ * hash of its entity id, to the shard that owns said entity. Every shard is a {@link Backlog} with its own cells and
+ * trajectories, fed by a dedicated thread through a lock-free queue. Given all the events of an entity go to the same
+ * shard in arrival order, the trajectory logic is not affected.
+ *
+ * <p>The populations of the cells of the shards are additive: the population of a cell of the whole backlog is the
+ * sum of the populations of said cell in every shard. The other contents of the cells are not, given a cell is emptied
+ * at different moments in each shard and in the whole. Hence the shards log the changes of their cells, and a merger
+ * thread replays them in arrival order into the cells of the whole, which are the ones a single backlog would have.
+ * See {@link CellChanges}. The photos, the checkpoints and the {@link #query} read said cells.
+ *
+ * <p>The merged views are computed by tasks that are queued to all the shards at the same point of the event stream,
+ * so each shard runs its part of the view after integrating exactly the events that preceded said point. Hence the
+ * merged views are consistent, as if they were computed on a single backlog.
+ *
+ * <p>The {@link #integrate(TransitionEvent)} and {@link #onIdle()} methods must be called by a single thread, the
+ * dispatcher. The other methods may be called by any thread.
+ */
+@Slf4j
+public class ShardedBacklog implements AutoCloseable {
+	private static final int SHARD_QUEUE_CAPACITY = 8192;
+
+	/**
+	 * How long an idle shard thread parks before polling its queue again. The time doubles on each consecutive empty
+	 * poll, up to {@link #MAX_IDLE_PARK_NANOS}, so that the shards of quiet backlogs do not keep the cores busy.
+	 */
+	private static final long MIN_IDLE_PARK_NANOS = 50_000;
+
+	private static final long MAX_IDLE_PARK_NANOS = 1_000_000;
+
+	/** The number of dispatched events between consecutive merges of the cells, which bounds the logs of the shards. */
+	private static final int CELLS_MERGE_INTERVAL = 1 << 16;
+
+	public final PartitionsCatalog partitionsCatalog;
+
+	private final Shard[] shards;
+
+	/** The tasks requested by threads other than the dispatcher, waiting to be queued to the shards. */
+	private final Queue<ShardsTask<?>> requestedTasks = new ConcurrentLinkedQueue<>();
+
+	/** The arrival serial number of the last event dispatched to the shards. */
+	private volatile long lastEventArrivalSerialNumber;
+
+	private volatile Instant lastEventArrivalDate;
+
+	private volatile Thread dispatcher;
+
+	/** The settings of the history of the cells, or null if it is disabled. */
+	private final CellHistory.Settings cellHistory;
+
+	/**
+	 * The cells of the whole backlog, as of the last merge of the changes of the cells of the shards. Owned by the
+	 * {@link #merger}.
+	 */
+	private final CellStore cells;
+
+	/** The thread that merges the changes of the cells of the shards into {@link #cells}, in the order of the merges. */
+	private final ExecutorService merger;
+
+	/** The arrival serial number of the last event whose changes were merged into {@link #cells}. */
+	private long cellsLastEventArrivalSerialNumber;
+
+	/** The size of {@link #cells} after the last merge. */
+	private volatile int cellsCount;
+
+	/** The number of events dispatched since the last merge of the cells requested by the dispatcher. */
+	private int eventsSinceCellsMerge = 0;
+
+	/** The timers of the queries. See {@link #timeQueries(Queries.Timers)}. */
+	private volatile Queries.Timers queryTimers = Queries.Timers.DISABLED;
+
+	/** The last snapshots published by {@link #publishSnapshot()}. */
+	private final AtomicReference<ShardsResults<BacklogSnapshot>> latestSnapshot = new AtomicReference<>();
+
+	/**
+	 * Creates a sharded backlog whose content is the content of the specified backlog. The trajectories are moved to
+	 * the shards that own their entities. The cells and the counters are kept by the first shard.
+	 *
+	 * @param seed the initial content. It is owned by the created instance afterwards.
+	 * @param shardsCount the number of shards.
+	 */
+	public ShardedBacklog(final Backlog seed, final int shardsCount) {
+		this(seed, shardsCount, null);
+	}
+
+	/**
+	 * Like {@link #ShardedBacklog(Backlog, int)}, with the cold tier of every shard enabled.
+	 *
+	 * @param coldTier the settings of the cold tier. Each shard keeps its spilled trajectories in its own subdirectory
+	 *     of the configured directory, and gets its share of the budget. Null to keep all the trajectories on heap.
+	 */
+	public ShardedBacklog(final Backlog seed, final int shardsCount, final ColdTrajectoryStore.Settings coldTier) {
+		this(seed, shardsCount, coldTier, null);
+	}
+
+	/**
+	 * Like {@link #ShardedBacklog(Backlog, int, ColdTrajectoryStore.Settings)}, with the history of the cells of every
+	 * shard enabled.
+	 *
+	 * @param cellHistory the settings of the history of the cells. A new generation, named after the arrival serial
+	 *     number of the seed, is started in the configured directory, and each shard records its cells in its own
+	 *     subdirectory of it. Null to disable the history.
+	 */
+	public ShardedBacklog(
+			final Backlog seed,
+			final int shardsCount,
+			final ColdTrajectoryStore.Settings coldTier,
+			final CellHistory.Settings cellHistory
+	) {
+		this.partitionsCatalog = seed.partitionsCatalog;
+		this.lastEventArrivalSerialNumber = seed.getLastEventArrivalSerialNumber();
+		this.lastEventArrivalDate = seed.getLastEventArrivalDate();
+		this.shards = new Shard[shardsCount];
+		for (int shardIndex = 0; shardIndex < shardsCount; ++shardIndex) {
+			shards[shardIndex] = new Shard(
+					shardIndex,
+					shardIndex == 0
+							? seed
+							: new Backlog(seed.partitionsCatalog, seed.getLastEventArrivalSerialNumber(), seed.getLastEventArrivalDate())
+			);
+		}
+		final var foreignEntities = new ArrayList<Long>();
+		seed.trajectories().forEach(trajectory -> {
+			final int shardIndex = shardOf(trajectory.entityId);
+			if (shardIndex != 0) {
+				final Backlog shardBacklog = shards[shardIndex].backlog;
+				shardBacklog.adopt(new Backlog.Trajectory(shardBacklog.states, trajectory));
+				foreignEntities.add(trajectory.entityId);
+			}
+		});
+		foreignEntities.forEach(seed::discardTrajectory);
+		this.cells = new CellStore(seed.cells);
+		this.cellsLastEventArrivalSerialNumber = seed.getLastEventArrivalSerialNumber();
+		this.cellsCount = cells.size();
+		this.merger = Executors.newSingleThreadExecutor(runnable -> {
+			final var thread = new Thread(runnable, "cells-merger");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (Shard shard : shards) {
+			shard.backlog.enableCellChanges();
+		}
+		if (coldTier != null) {
+			for (Shard shard : shards) {
+				try {
+					shard.backlog.enableColdTier(coldTier.forPart("shard-" + shard.index, shardsCount));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+		this.cellHistory = cellHistory;
+		if (cellHistory != null) {
+			try {
+				CellHistory.deleteOldGenerations(cellHistory);
+				for (Shard shard : shards) {
+					shard.backlog.enableCellHistory(cellHistory.forPart(seed.getLastEventArrivalSerialNumber(), "shard-" + shard.index));
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		for (Shard shard : shards) {
+			shard.thread.start();
+		}
+	}
+
+	/** @return the arrival serial number of the last dispatched event. */
+	public long getLastEventArrivalSerialNumber() {
+		return lastEventArrivalSerialNumber;
+	}
+
+	/** @return the arrival date of the last dispatched event. */
+	public Instant getLastEventArrivalDate() {
+		return lastEventArrivalDate;
+	}
+
+	/**
+	 * Routes the specified event to the shard that owns its entity. Blocks while the queue of said shard is full. Must
+	 * be called by the dispatcher thread.
+	 *
+	 * @throws IllegalStateException if a shard has stopped because of a failure.
+	 */
+	public void integrate(final TransitionEvent transitionEvent) {
+		dispatchRequestedTasks();
+		final Shard shard = shards[shardOf(transitionEvent.getEntityId())];
+		shard.checkFailure();
+		shard.queue.put(transitionEvent, shard.aliveCheck);
+		lastEventArrivalSerialNumber = transitionEvent.getArrivalSerialNumber();
+		lastEventArrivalDate = transitionEvent.getArrivalDate();
+		if (++eventsSinceCellsMerge >= CELLS_MERGE_INTERVAL) {
+			evalOnShardsAndCells(backlog -> null, (results, mergedCells) -> null);
+		}
+	}
+
+	/** Should be called by the dispatcher thread when there are no events to integrate, to run the requested tasks. */
+	public void onIdle() {
+		dispatchRequestedTasks();
+	}
+
+	/**
+	 * Applies the specified function to every shard, on the shard thread. The cut point of the event stream is the
+	 * current one if this method is called by the dispatcher thread, or the next event or idle notification otherwise.
+	 *
+	 * @return a future of the results, in shard order.
+	 */
+	public <T> CompletableFuture<ShardsResults<T>> evalOnShards(final Function<Backlog, T> function) {
+		final var task = new ShardsTask<>(function, shards.length);
+		if (Thread.currentThread() == dispatcher) {
+			dispatch(task);
+		} else {
+			requestedTasks.add(task);
+		}
+		return task.future;
+	}
+
+	/**
+	 * Like {@link #evalOnShards(Function)}, and merges the changes of the cells of the shards up to the same point of the
+	 * event stream before combining the results with the merged cells, on the merger thread.
+	 *
+	 * @param combiner the combination of the results of the shards and the cells of the whole backlog, which must not
+	 *     retain said cells.
+	 */
+	private <T, R> CompletableFuture<R> evalOnShardsAndCells(
+			final Function<Backlog, T> function,
+			final BiFunction<ShardsResults<T>, CellStore, R> combiner
+	) {
+		if (Thread.currentThread() == dispatcher) {
+			eventsSinceCellsMerge = 0;
+		}
+		return evalOnShards(backlog -> new ShardResultAndCellChanges<>(backlog, function))
+				.thenApplyAsync(results -> {
+					assert results.lastEventArrivalSerialNumber >= cellsLastEventArrivalSerialNumber;
+					CellChanges.replay(results.values.stream().map(result -> result.cellChanges).collect(Collectors.toList()), cells);
+					cellsLastEventArrivalSerialNumber = results.lastEventArrivalSerialNumber;
+					cellsCount = cells.size();
+					final var values = new ArrayList<T>(results.values.size());
+					for (ShardResultAndCellChanges<T> result : results.values) {
+						if (result.failure != null) {
+							throw result.failure;
+						}
+						values.add(result.value);
+					}
+					return combiner.apply(
+							new ShardsResults<>(results.lastEventArrivalSerialNumber, results.lastEventArrivalDate, values),
+							cells
+					);
+				}, merger);
+	}
+
+	/**
+	 * @return a future of a photo of the whole backlog. Its cells are the ones a single backlog would have, see {@link
+	 *     CellChanges}.
+	 */
+	public CompletableFuture<BacklogPhoto> photo() {
+		return evalOnShardsAndCells(
+				backlog -> null,
+				(results, mergedCells) -> BacklogPhoto.of(results.lastEventArrivalSerialNumber, results.lastEventArrivalDate, mergedCells)
+		);
+	}
+
+	/**
+	 * @return a future of the {@link BacklogCheckpoint.Snapshot} of the whole backlog, which must be released once
+	 *     written. See {@link BacklogCheckpoint#capture(Backlog)} for what each shard copies, except the cells, which
+	 *     are the merged ones.
+	 */
+	public CompletableFuture<BacklogCheckpoint.Snapshot> checkpointSnapshot() {
+		return evalOnShardsAndCells(
+				BacklogCheckpoint::captureTrajectories,
+				(snapshots, mergedCells) -> BacklogCheckpoint.merge(
+						snapshots.lastEventArrivalSerialNumber,
+						snapshots.lastEventArrivalDate,
+						mergedCells.toCells(),
+						snapshots.values
+				)
+		);
+	}
+
+	/**
+	 * @return the number of cells of the whole backlog with population, as of the last merge of the cells of the
+	 *     shards, which {@link #publishSnapshot()} does too. May be called by any thread.
+	 */
+	public int getCellsCount() {
+		return cellsCount;
+	}
+
+	/**
+	 * Registers the rollup of the population grouped by the specified partitions on every shard. See {@link
+	 * Backlog#registerRollup(int...)}.
+	 */
+	public CompletableFuture<Void> registerRollup(final int... partitionOrdinals) {
+		return evalOnShards(backlog -> backlog.registerRollup(partitionOrdinals)).thenApply(rollups -> null);
+	}
+
+	/**
+	 * Includes the open trajectories in the snapshots of every shard. See {@link Backlog#enableTrajectorySnapshots()}.
+	 */
+	public CompletableFuture<Void> enableTrajectorySnapshots() {
+		return evalOnShards(backlog -> {
+			backlog.enableTrajectorySnapshots();
+			return null;
+		}).thenApply(results -> null);
+	}
+
+	/**
+	 * Publishes a snapshot of every shard, at the same point of the event stream, which becomes the {@link
+	 * #latestSnapshot()} unless a newer one was published meanwhile. See {@link Backlog#publishSnapshot()}.
+	 *
+	 * @return a future of the snapshots, in shard order.
+	 */
+	public CompletableFuture<ShardsResults<BacklogSnapshot>> publishSnapshot() {
+		return evalOnShardsAndCells(Backlog::publishSnapshot, (snapshots, mergedCells) -> latestSnapshot.accumulateAndGet(
+				snapshots,
+				(latest, published) -> latest == null || latest.lastEventArrivalSerialNumber <= published.lastEventArrivalSerialNumber
+						? published
+						: latest
+		));
+	}
+
+	/**
+	 * @return the snapshots of every shard published last, in shard order, or null if none were. They can be read
+	 *     without involving the shard threads. May be called by any thread.
+	 */
+	public ShardsResults<BacklogSnapshot> latestSnapshot() {
+		return latestSnapshot.get();
+	}
+
+	/**
+	 * Reconstructs, from the history of the cells, the cells of the whole backlog as they were just after the
+	 * integration of the event with the specified arrival serial number. See {@link CellHistory}.
+	 *
+	 * @param executor the executor of the reconstruction, which reads the files of the history.
+	 * @return a future of the photo of the reconstructed cells, or of an {@link IllegalArgumentException} if the history
+	 *     does not reach back to the specified event.
+	 * @throws IllegalStateException if the history of the cells is disabled.
+	 */
+	public CompletableFuture<BacklogPhoto> cellsAt(final long arrivalSerialNumber, final Executor executor) {
+		checkCellHistory();
+		return flushCellHistory().thenApplyAsync(ignored -> {
+			try {
+				return CellHistory.cellsAt(cellHistory.directory, partitionsCatalog, arrivalSerialNumber);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Like {@link #cellsAt(long, Executor)}, as they were just after the integration of the last event that arrived at
+	 * or before the specified date.
+	 */
+	public CompletableFuture<BacklogPhoto> cellsAt(final Instant arrivalDate, final Executor executor) {
+		checkCellHistory();
+		return flushCellHistory().thenApplyAsync(ignored -> {
+			try {
+				return CellHistory.cellsAt(cellHistory.directory, partitionsCatalog, arrivalDate);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Makes every shard record the time it takes to integrate each event into the specified timer. See {@link
+	 * BacklogMetrics#bind(ShardedBacklog, String)}.
+	 */
+	void timeIntegrations(final Timer integrateTimer) {
+		for (Shard shard : shards) {
+			shard.integrateTimer = integrateTimer;
+		}
+	}
+
+	/**
+	 * Makes the {@link #query(Function)} and {@link #queryTrajectories(Function, BinaryOperator)} calls record their
+	 * latency in the specified timers. See {@link BacklogMetrics#bind(ShardedBacklog, String)}.
+	 */
+	void timeQueries(final Queries.Timers queryTimers) {
+		this.queryTimers = queryTimers;
+	}
+
+	/** Tells if the history of the cells is enabled, so that {@link #cellsAt(long, Executor)} can be called. */
+	public boolean hasCellHistory() {
+		return cellHistory != null;
+	}
+
+	private CompletableFuture<Void> flushCellHistory() {
+		return evalOnShards(backlog -> {
+			backlog.flushCellHistory();
+			return null;
+		}).thenApply(results -> null);
+	}
+
+	private void checkCellHistory() {
+		if (cellHistory == null) {
+			throw new IllegalStateException("The history of the cells of this backlog is disabled");
+		}
+	}
+
+	/**
+	 * @return a future of the sum of the specified counter of all the shards.
+	 */
+	public CompletableFuture<Integer> sumCounter(final Function<Backlog, Integer> counter) {
+		return evalOnShards(counter).thenApply(counts -> counts.values.stream().mapToInt(Integer::intValue).sum());
+	}
+
+	/**
+	 * Evaluates the specified query on the cells of the whole backlog, on the merger thread. The filters of the contents
+	 * of the cells see the merged contents, never the partial ones of a shard. See {@link Queries#Queries(CellStore)}.
+	 */
+	public <T> CompletableFuture<T> query(final Function<Queries, T> query) {
+		return evalOnShardsAndCells(backlog -> null, (results, mergedCells) -> new Queries(mergedCells, queryTimers).eval(query));
+	}
+
+	/**
+	 * Evaluates the specified query about the trajectories on every shard and merges the partial results with the
+	 * specified merger, like {@link Queries#mergeGroups}. The trajectories of an entity are all in the same shard.
+	 */
+	public <T> CompletableFuture<T> queryTrajectories(final Function<Queries, T> query, final BinaryOperator<T> merger) {
+		return evalOnShards(backlog -> new Queries(backlog, queryTimers).eval(query))
+				.thenApply(partialResults -> partialResults.values.stream().reduce(merger).orElseThrow());
+	}
+
+	/** Stops the shard threads and the merger, and closes the cold tier and the history of the cells of the shards. */
+	@Override
+	public void close() {
+		merger.shutdown();
+		for (Shard shard : shards) {
+			shard.thread.interrupt();
+		}
+		for (Shard shard : shards) {
+			try {
+				shard.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			shard.backlog.closeColdTier();
+			shard.backlog.closeCellHistory();
+		}
+	}
+
+	private int shardOf(final long entityId) {
+		final long mixed = entityId * 0x9E3779B97F4A7C15L;
+		return (int) Math.floorMod(mixed ^ (mixed >>> 32), (long) shards.length);
+	}
+
+	private void dispatchRequestedTasks() {
+		if (dispatcher == null) {
+			dispatcher = Thread.currentThread();
+		}
+		ShardsTask<?> task;
+		while ((task = requestedTasks.poll()) != null) {
+			dispatch(task);
+		}
+	}
+
+	private void dispatch(final ShardsTask<?> task) {
+		task.lastEventArrivalSerialNumber = lastEventArrivalSerialNumber;
+		task.lastEventArrivalDate = lastEventArrivalDate;
+		for (Shard shard : shards) {
+			shard.checkFailure();
+			shard.queue.put(task, shard.aliveCheck);
+		}
+	}
+
+	/**
+	 * The results of a function applied to every shard at the same point of the event stream.
+	 */
+	public static class ShardsResults<T> {
+		/** The arrival serial number of the last event integrated before the function was applied. */
+		public final long lastEventArrivalSerialNumber;
+
+		public final Instant lastEventArrivalDate;
+
+		/** The results of each shard, in shard order. */
+		public final List<T> values;
+
+		ShardsResults(final long lastEventArrivalSerialNumber, final Instant lastEventArrivalDate, final List<T> values) {
+			this.lastEventArrivalSerialNumber = lastEventArrivalSerialNumber;
+			this.lastEventArrivalDate = lastEventArrivalDate;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * The result of a function applied to a shard, or its failure, and the changes of the cells of said shard since the
+	 * previous merge, which are drained even if the function fails.
+	 */
+	private static class ShardResultAndCellChanges<T> {
+		final CellChanges.Drained cellChanges;
+
+		T value;
+
+		RuntimeException failure;
+
+		ShardResultAndCellChanges(final Backlog backlog, final Function<Backlog, T> function) {
+			this.cellChanges = backlog.drainCellChanges();
+			try {
+				this.value = function.apply(backlog);
+			} catch (RuntimeException e) {
+				this.failure = e;
+			}
+		}
+	}
+
+	/** A function to apply to every shard, and the collector of its results. */
+	private static class ShardsTask<T> {
+		final Function<Backlog, T> function;
+
+		final Object[] results;
+
+		final CompletableFuture<ShardsResults<T>> future = new CompletableFuture<>();
+
+		/** The number of shards that have not applied the function yet. */
+		final AtomicInteger pendingShards;
+
+		/** The cut point. Written by the dispatcher before the task is queued. */
+		long lastEventArrivalSerialNumber;
+
+		Instant lastEventArrivalDate;
+
+		ShardsTask(final Function<Backlog, T> function, final int shardsCount) {
+			this.function = function;
+			this.results = new Object[shardsCount];
+			this.pendingShards = new AtomicInteger(shardsCount);
+		}
+
+		@SuppressWarnings("unchecked")
+		void run(final int shardIndex, final Backlog backlog) {
+			try {
+				results[shardIndex] = function.apply(backlog);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+			if (pendingShards.decrementAndGet() == 0) {
+				future.complete(new ShardsResults<>(
+						lastEventArrivalSerialNumber,
+						lastEventArrivalDate,
+						(List<T>) Arrays.asList(results)
+				));
+			}
+		}
+	}
+
+	/** A shard of the backlog, and the thread that integrates the events routed to it. */
+	private static class Shard {
+		final int index;
+
+		final Backlog backlog;
+
+		final SpscQueue<Object> queue = new SpscQueue<>(SHARD_QUEUE_CAPACITY);
+
+		final Thread thread;
+
+		/** The failure that stopped this shard, if any. */
+		volatile RuntimeException failure;
+
+		/** {@link #checkAlive()}, allocated once rather than on each put. */
+		final Runnable aliveCheck = this::checkAlive;
+
+		/** The timer of the integration of each event, or null if it is not timed. */
+		volatile Timer integrateTimer;
+
+		Shard(final int index, final Backlog backlog) {
+			this.index = index;
+			this.backlog = backlog;
+			this.thread = new Thread(this::integrateQueuedEvents, "shard-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		void checkFailure() {
+			if (failure != null) {
+				throw new IllegalStateException("The shard " + index + " has stopped", failure);
+			}
+		}
+
+		/** Like {@link #checkFailure()}, and also throws if the thread has ended without a failure, once closed. */
+		void checkAlive() {
+			checkFailure();
+			if (thread.getState() == Thread.State.TERMINATED) {
+				throw new IllegalStateException("The shard " + index + " has stopped");
+			}
+		}
+
+		private void integrateQueuedEvents() {
+			try {
+				long idleParkNanos = MIN_IDLE_PARK_NANOS;
+				while (!Thread.currentThread().isInterrupted()) {
+					final Object item = queue.poll();
+					if (item == null) {
+						LockSupport.parkNanos(idleParkNanos);
+						idleParkNanos = Math.min(2 * idleParkNanos, MAX_IDLE_PARK_NANOS);
+						continue;
+					}
+					idleParkNanos = MIN_IDLE_PARK_NANOS;
+					if (item instanceof TransitionEvent) {
+						final Timer timer = integrateTimer;
+						if (timer == null) {
+							backlog.integrate((TransitionEvent) item);
+						} else {
+							final long integrationStart = System.nanoTime();
+							backlog.integrate((TransitionEvent) item);
+							timer.record(System.nanoTime() - integrationStart, TimeUnit.NANOSECONDS);
+						}
+					} else {
+						((ShardsTask<?>) item).run(index, backlog);
+					}
+				}
+			} catch (RuntimeException e) {
+				log.error("The shard {} has stopped", index, e);
+				failure = e;
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free FIFO queue for exactly one producer thread and one consumer thread, backed by a ring buffer.
+ *
+ * @param <E> the type of the queued elements.
+ */
+class SpscQueue<E> {
+	/** How long the producer parks while the queue is full. */
+	private static final long PARK_NANOS = 10_000;
+
+	private final Object[] buffer;
+
+	private final int mask;
+
+	/** The sequence number of the next element to take. Written by the consumer only. */
+	private final AtomicLong head = new AtomicLong();
+
+	/** The sequence number of the next element to put. Written by the producer only. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** The last value of {@link #head} seen by the producer. */
+	private long producerCachedHead = 0;
+
+	/** The last value of {@link #tail} seen by the consumer. */
+	private long consumerCachedTail = 0;
+
+	/**
+	 * @param capacity the maximum number of queued elements. Must be a power of two.
+	 */
+	SpscQueue(final int capacity) {
+		assert Integer.bitCount(capacity) == 1;
+		this.buffer = new Object[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Adds the specified element at the tail of this queue. Must be called by the producer thread only.
+	 *
+	 * @return false if the queue is full.
+	 */
+	boolean offer(final E element) {
+		final long currentTail = tail.get();
+		if (currentTail - producerCachedHead >= buffer.length) {
+			producerCachedHead = head.get();
+			if (currentTail - producerCachedHead >= buffer.length) {
+				return false;
+			}
+		}
+		buffer[(int) currentTail & mask] = element;
+		tail.lazySet(currentTail + 1);
+		return true;
+	}
+
+	/**
+	 * Adds the specified element at the tail of this queue, waiting while the queue is full. Must be called by the
+	 * producer thread only.
+	 *
+	 * @param consumerCheck called while the queue is full, before each wait. Throws to give up if the consumer has
+	 *     stopped taking elements, which would otherwise leave the producer waiting forever.
+	 */
+	void put(final E element, final Runnable consumerCheck) {
+		while (!offer(element)) {
+			consumerCheck.run();
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Removes the element at the head of this queue. Must be called by the consumer thread only.
+	 *
+	 * @return the removed element, or null if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		final long currentHead = head.get();
+		if (currentHead >= consumerCachedTail) {
+			consumerCachedTail = tail.get();
+			if (currentHead >= consumerCachedTail) {
+				return null;
+			}
+		}
+		final int index = (int) currentHead & mask;
+		final E element = (E) buffer[index];
+		buffer[index] = null;
+		head.lazySet(currentHead + 1);
+		return element;
+	}
+}
@@ -0,0 +1,169 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Assigns a dense int id to each distinct {@link EntityState} referenced by the {@link Backlog.Trajectory}s of a
+ * backlog, so that they reference states with four bytes instead of retaining a parsed copy of each one. The number of
+ * distinct states is about the number of cells, which is tiny compared with the number of events of the open
+ * trajectories.
+ *
+ * <p>Equal states get the same id, hence comparing ids is equivalent to comparing states with {@link Object#equals}.
+ *
+ * <p>The field values of the states are shared too. The canonical instances, like the ones a {@link StateInterner} gives,
+ * are kept as they are instead of copied, so that the dictionaries and the events share them, and the lookups of the
+ * events that carry them are resolved by identity.
+ *
+ * <p>The references are counted, so that the states that are no longer referenced by an open trajectory are forgotten
+ * and their ids reused. Otherwise the dictionary would grow forever, given the dates of the states do.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe: it is owned by the thread that integrates the events
+ * into the backlog.
+ */
+public class StateDictionary {
+
+	/** The id that represents the absence of state. */
+	public static final int NULL_ID = -1;
+
+	private final HashMap<EntityState, Integer> idsByState = new HashMap<>(1024);
+
+	/**
+	 * The distinct field values of the known states that are not canonical, so that the states share them instead of
+	 * retaining the copies created by the parser. Their references are counted too, so that the dates of the forgotten
+	 * states are forgotten with them.
+	 */
+	private final HashMap<Object, SharedValue> values = new HashMap<>(256);
+
+	private EntityState[] states = new EntityState[1024];
+
+	/** Tells, for each id, whether its state references the {@link #values}, which it does unless it was canonical. */
+	private boolean[] sharesValues = new boolean[1024];
+
+	private int[] referencesCounts = new int[1024];
+
+	/** The number of ids ever assigned, the free ones included. */
+	private int assignedIds = 0;
+
+	/** The ids whose state was forgotten, available for reuse. */
+	private int[] freeIds = new int[64];
+
+	private int freeIdsCount = 0;
+
+	/**
+	 * Adds a reference to the specified state.
+	 *
+	 * @return the id of the specified state, which is assigned if the state is not referenced yet.
+	 */
+	public int acquire(final EntityState state) {
+		if (state == null) {
+			return NULL_ID;
+		}
+		final Integer knownId = idsByState.get(state);
+		final int id = knownId != null ? knownId : add(state);
+		referencesCounts[id] += 1;
+		return id;
+	}
+
+	private int add(final EntityState state) {
+		final int id;
+		if (freeIdsCount > 0) {
+			freeIdsCount -= 1;
+			id = freeIds[freeIdsCount];
+		} else {
+			id = assignedIds;
+			assignedIds += 1;
+			if (id == states.length) {
+				states = Arrays.copyOf(states, id * 2);
+				referencesCounts = Arrays.copyOf(referencesCounts, id * 2);
+				sharesValues = Arrays.copyOf(sharesValues, id * 2);
+			}
+		}
+		final EntityType.StateCanonicalizer canonicalizer = EntityType.determineCanonicalizer(state);
+		final boolean isCanonical = canonicalizer.isCanonical(state);
+		final EntityState canonicalState = isCanonical ? state : canonicalizer.canonicalOf(state, this::value);
+		states[id] = canonicalState;
+		sharesValues[id] = !isCanonical;
+		idsByState.put(canonicalState, id);
+		return id;
+	}
+
+	/** Adds a reference to the specified field value. */
+	@SuppressWarnings("unchecked")
+	private <T> T value(final T value) {
+		if (value == null) {
+			return null;
+		}
+		final var sharedValue = values.computeIfAbsent(value, SharedValue::new);
+		sharedValue.referencesCount += 1;
+		return (T) sharedValue.value;
+	}
+
+	/** Removes a reference to the specified field value, which is forgotten if it was the last one. */
+	private void releaseValue(final Object value) {
+		if (value != null) {
+			final var sharedValue = values.get(value);
+			sharedValue.referencesCount -= 1;
+			if (sharedValue.referencesCount == 0) {
+				values.remove(value);
+			}
+		}
+	}
+
+	private void releaseValues(final EntityState state) {
+		releaseValue(state.getLogisticCenter());
+		releaseValue(state.getWorkflow());
+		releaseValue(state.getStatus());
+		releaseValue(state.getDateIn());
+		releaseValue(state.getArea());
+		releaseValue(state.getDeadline());
+	}
+
+	/** Removes a reference to the state whose id is the specified one, which is forgotten if it was the last one. */
+	public void release(final int id) {
+		if (id != NULL_ID) {
+			referencesCounts[id] -= 1;
+			if (referencesCounts[id] == 0) {
+				idsByState.remove(states[id]);
+				if (sharesValues[id]) {
+					releaseValues(states[id]);
+				}
+				states[id] = null;
+				if (freeIdsCount == freeIds.length) {
+					freeIds = Arrays.copyOf(freeIds, freeIdsCount * 2);
+				}
+				freeIds[freeIdsCount] = id;
+				freeIdsCount += 1;
+			}
+		}
+	}
+
+	/** @return the state whose id is the specified one, or null if the id is {@link #NULL_ID}. */
+	public EntityState get(final int id) {
+		return id == NULL_ID ? null : states[id];
+	}
+
+	/**
+	 * @return a copy of the known states indexed by their id, so that the ids captured now can be resolved by any thread
+	 *     after the dictionary changes. The free ids have no state.
+	 */
+	public EntityState[] statesById() {
+		return Arrays.copyOf(states, assignedIds);
+	}
+
+	/** @return the number of distinct states referenced by the trajectories. */
+	public int size() {
+		return idsByState.size();
+	}
+
+	/** A field value shared by the known states, and the number of said states that reference it. */
+	private static class SharedValue {
+		final Object value;
+
+		int referencesCount = 0;
+
+		SharedValue(final Object value) {
+			this.value = value;
+		}
+	}
+}
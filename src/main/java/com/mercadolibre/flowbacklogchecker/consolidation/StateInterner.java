@@ -0,0 +1,81 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+/**
+ * Maps the resolved {@link EntityState}s of the parsed events to canonical instances, so that the many equal states of
+ * the events share a single immutable instance, and the field values of the canonical instances are shared too.
+ * Hence the states of an event die young, and the {@link StateDictionary}s keep the canonical instances instead of
+ * copying them, and find them by identity.
+ *
+ * <p>The table is bounded and evictable: it is direct mapped, each state having a single slot given by its hash, and a
+ * state that is not known evicts the one that occupied its slot. The distinct states of the recent events are about
+ * the cells they touch, which fit the table, so the evictions are rare. An evicted state only costs a missed sharing:
+ * the equal states are still equal.
+ *
+ * <p>The canonical instances are created by the {@link EntityType.StateCanonicalizer} of the structure of each state.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe: it is owned by the thread that resolves the states, see
+ * {@link ParseContext}.
+ */
+class StateInterner {
+
+	private final EntityState[] states;
+
+	/** The shared field values, direct mapped like the states. */
+	private final Object[] values;
+
+	/**
+	 * @param statesCapacity the number of slots of the states table, rounded up to a power of two.
+	 * @param valuesCapacity the number of slots of the values table, rounded up to a power of two.
+	 */
+	StateInterner(final int statesCapacity, final int valuesCapacity) {
+		this.states = new EntityState[powerOfTwoNotLessThan(statesCapacity)];
+		this.values = new Object[powerOfTwoNotLessThan(valuesCapacity)];
+	}
+
+	/**
+	 * @param state a complete state, or null.
+	 * @return the canonical instance equal to the specified state, which is created if it is not known. Null if the
+	 *     state is null.
+	 */
+	EntityState intern(final EntityState state) {
+		if (state == null) {
+			return null;
+		}
+		final EntityType.StateCanonicalizer canonicalizer = EntityType.determineCanonicalizer(state);
+		if (canonicalizer.isCanonical(state)) {
+			return state;
+		}
+		final int slot = spread(state.hashCode()) & (states.length - 1);
+		final EntityState known = states[slot];
+		if (known != null && known.equals(state)) {
+			return known;
+		}
+		final EntityState canonical = canonicalizer.canonicalOf(state, this::value);
+		states[slot] = canonical;
+		return canonical;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T value(final T value) {
+		if (value == null) {
+			return null;
+		}
+		final int slot = spread(value.hashCode()) & (values.length - 1);
+		final Object known = values[slot];
+		if (value.equals(known)) {
+			return (T) known;
+		}
+		values[slot] = value;
+		return value;
+	}
+
+	/** Mixes the high bits of the specified hash into the low ones, which select the slot. */
+	private static int spread(final int hash) {
+		final int mixed = hash * 0x9E3779B9;
+		return mixed ^ (mixed >>> 16);
+	}
+
+	private static int powerOfTwoNotLessThan(final int capacity) {
+		return Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+	}
+}
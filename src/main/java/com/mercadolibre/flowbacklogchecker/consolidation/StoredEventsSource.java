@@ -1,69 +1,347 @@
 package com.mercadolibre.flowbacklogchecker.consolidation;
 
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
- * An {@link EventsSource} that pushes the events stored in the "incoming_events" table.
+ * An {@link EventsSource} that pushes the events stored in the "incoming_events" table. The events of all the logistic
+ * centers are pushed: the selection of the monitored ones is done by the client, after parsing, with a {@link
+ * LogisticCenterRouter}. That way a single scan of the table feeds all of them.
+ *
+ * <p>The table is read with keyset paging. Each page is read completely into memory by a fetcher thread, so that the
+ * next page is being fetched while the current one is pushed to the sink. The size of the pages adapts to the observed
+ * size of the rows and to the rate at which the sink consumes them.
+ *
+ * <p>Without a {@link TailSettings}, the provision returns once the table is caught up with, as the {@link
+ * EventsSource} contract tells. With it, the provision switches to the tail mode instead: the new rows are polled with
+ * small pages, at an interval that adapts to the arrival rate and to the {@link IntegrationLag}, so that the lag stays
+ * within the configured objective without hammering the replica. The source switches back to the catch-up mode, with
+ * large prefetched pages, when the polls can't keep up with the arrivals.
  */
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class StoredEventsSource implements EventsSource {
 
-	private static final int PAGE_SIZE = 100_000;
+	/** The settings of the tail mode of a {@link StoredEventsSource}. */
+	public static class TailSettings {
+		/**
+		 * The objective of the {@link IntegrationLag}. The polls are never more than a quarter of it apart, and are done as
+		 * frequently as allowed while the events they find lag more than half of it.
+		 */
+		public Duration lagObjective = Duration.ofSeconds(2);
+
+		public Duration minPollInterval = Duration.ofMillis(20);
+
+		public int minPageSize = 16;
+
+		/** Polls that fill a page of this size switch the source back to the catch-up mode. */
+		public int maxPageSize = MIN_PAGE_SIZE;
+	}
+
+	private static final int MIN_PAGE_SIZE = 1_000;
+
+	private static final int MAX_PAGE_SIZE = 100_000;
+
+	private static final int INITIAL_PAGE_SIZE = 10_000;
+
+	/** The maximum memory, in bytes, that the records of a page should occupy. */
+	private static final long PAGE_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+	/** The time the sink should take to consume a page, so that the fetch of the next one is hidden behind it. */
+	private static final long PAGE_CONSUMPTION_TARGET_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+	/** An estimate of the memory occupied by a record, not counting the characters of its raw JSONs. */
+	private static final int RECORD_OVERHEAD_BYTES = 200;
+
+	/** The value returned by the provision loops when the sink asked to stop, or the thread was interrupted. */
+	private static final long STOPPED = Long.MIN_VALUE;
 
 	private final Connection connection;
 
-	@Override
-	public void provideWhile(final long startingEventArrivalSerialNumberExclusive, final Sink sink) throws SQLException {
+	/** The settings of the tail mode, or null if the provision returns once the table is caught up with. */
+	private final TailSettings tailSettings;
 
-		final var state = new State(startingEventArrivalSerialNumberExclusive);
-		do {
-			state.recordsRead = 0;
-			executeQuery(sink, state);
-		} while (state.keepGoing && state.recordsRead == PAGE_SIZE);
+	private final IntegrationLag integrationLag;
+
+	private final BacklogMetrics metrics;
+
+	/** Creates a source whose provision returns once the table is caught up with. */
+	public StoredEventsSource(final Connection connection) {
+		this(connection, null, null, BacklogMetrics.DISABLED);
+	}
+
+	/**
+	 * Creates a source whose provision keeps tailing the table once it is caught up with, until the sink asks to stop.
+	 *
+	 * @param integrationLag the measure of the lag the tail mode keeps within the objective.
+	 * @param metrics where the time of each page fetch, and the number of events read, are recorded.
+	 */
+	public StoredEventsSource(
+			final Connection connection,
+			final TailSettings tailSettings,
+			final IntegrationLag integrationLag,
+			final BacklogMetrics metrics
+	) {
+		this.connection = connection;
+		this.tailSettings = tailSettings;
+		this.integrationLag = integrationLag;
+		this.metrics = metrics;
 	}
 
-	private void executeQuery(final Sink sink, final State state) throws SQLException {
-		var ps = connection.prepareStatement(
+	@Override
+	public void provideWhile(final long startingEventArrivalSerialNumberExclusive, final Sink sink) throws SQLException {
+		final ExecutorService fetcher = Executors.newSingleThreadExecutor(runnable -> {
+			final var thread = new Thread(runnable, "events-fetcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try (var ps = connection.prepareStatement(
 				"SELECT event_id, id, date_created, entity_id, entity_type, struct_version, new_state, old_state "
 						+ "FROM incoming_events "
-						+ "WHERE id > ? AND entity_type = 'outbound-unit' AND new_state like '%\"warehouse_id\":\"BRSP03\"%' "
+						+ "WHERE id > ? AND entity_type = 'outbound-unit' "
 						+ "ORDER BY id "
 						+ "LIMIT ?"
-		);
-		ps.setLong(1, state.lastEventRead);
-		ps.setInt(2, PAGE_SIZE);
-		ps.setFetchSize(Integer.MIN_VALUE);
-
-		final long pageStartingSerial = state.lastEventRead;
-
-		var rs = ps.executeQuery();
-		while (state.keepGoing && rs.next()) {
-			state.recordsRead++;
-			state.lastEventRead = rs.getLong("id");
-			state.keepGoing = sink.accept(EventRecord.fromResultSet(rs));
+		)) {
+			ps.setFetchSize(Integer.MIN_VALUE);
+			try {
+				long lastEventRead = startingEventArrivalSerialNumberExclusive;
+				while (lastEventRead != STOPPED) {
+					lastEventRead = pushPages(ps, fetcher, lastEventRead, sink);
+					if (tailSettings == null) {
+						return;
+					}
+					if (lastEventRead != STOPPED) {
+						lastEventRead = tail(ps, lastEventRead, sink);
+					}
+				}
+			} finally {
+				// the statement must not be closed while the fetcher is using it
+				fetcher.shutdownNow();
+				awaitTermination(fetcher);
+			}
 		}
+	}
 
-		log.info("The events whose arrival serial is between {} and {} where provided", pageStartingSerial, state.lastEventRead);
+	/**
+	 * Pushes the pages of the catch-up mode until a page is not full.
+	 *
+	 * @return the arrival serial number of the last event read, or {@link #STOPPED}.
+	 */
+	private long pushPages(
+			final PreparedStatement ps,
+			final ExecutorService fetcher,
+			final long startingEventArrivalSerialNumberExclusive,
+			final Sink sink
+	) throws SQLException {
+		final var pageSizer = new PageSizer();
+		Future<Page> nextPage = fetcher.submit(() -> fetchPage(ps, startingEventArrivalSerialNumberExclusive, pageSizer.pageSize, false));
+		while (true) {
+			final Page page = await(nextPage);
+			if (page == null) {
+				return STOPPED;
+			}
+			pageSizer.onFetched(page);
+			final boolean isLastPage = page.records.size() < page.requestedSize;
+			if (!isLastPage) {
+				final int nextPageSize = pageSizer.pageSize;
+				nextPage = fetcher.submit(() -> fetchPage(ps, page.lastEventRead, nextPageSize, false));
+			}
 
+			final long consumptionStart = System.nanoTime();
+			for (EventRecord eventRecord : page.records) {
+				if (!sink.accept(eventRecord)) {
+					return STOPPED;
+				}
+			}
+			pageSizer.onConsumed(page, System.nanoTime() - consumptionStart);
+			log.info("The events whose arrival serial is between {} and {} where provided", page.startingSerial, page.lastEventRead);
+
+			if (isLastPage) {
+				return page.lastEventRead;
+			}
+		}
 	}
 
-	private static class State {
-		private boolean keepGoing;
-		private long recordsRead;
-		private long lastEventRead;
+	/**
+	 * Polls the new events in the tail mode until the polls can't keep up with the arrivals. The pages are fetched by
+	 * the calling thread, given there is nothing to prefetch.
+	 *
+	 * @return the arrival serial number of the last event read, or {@link #STOPPED}.
+	 */
+	private long tail(final PreparedStatement ps, long lastEventRead, final Sink sink) throws SQLException {
+		final var poller = new TailPoller(tailSettings);
+		log.info("Caught up with the incoming events at #{}. Tailing them.", lastEventRead);
+		while (true) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(poller.intervalNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return STOPPED;
+			}
+			final Page page = fetchPage(ps, lastEventRead, poller.pageSize, true);
+			for (EventRecord eventRecord : page.records) {
+				if (!sink.accept(eventRecord)) {
+					return STOPPED;
+				}
+			}
+			lastEventRead = page.lastEventRead;
+			if (poller.onPolled(page.records.size(), integrationLag.getLagMillis())) {
+				log.info("The tail polls fall behind the incoming events at #{}, lagging {} ms. Catching up.", lastEventRead, integrationLag.getLagMillis());
+				return lastEventRead;
+			}
+		}
+	}
 
-		State(final long lastEventRead) {
-			keepGoing = true;
-			recordsRead = 0;
+	/** Executes the page query. Called by the fetcher thread, or by the provision thread in the tail mode. */
+	private Page fetchPage(final PreparedStatement ps, final long lastEventRead, final int pageSize, final boolean tailMode) throws SQLException {
+		final long fetchStart = System.nanoTime();
+		ps.setLong(1, lastEventRead);
+		ps.setInt(2, pageSize);
+		final var records = new ArrayList<EventRecord>(pageSize);
+		long jsonChars = 0;
+		try (var rs = ps.executeQuery()) {
+			while (rs.next()) {
+				final var eventRecord = EventRecord.fromResultSet(rs);
+				records.add(eventRecord);
+				jsonChars += length(eventRecord.getNewStateRawJson()) + length(eventRecord.getOldStateRawJson());
+			}
+		}
+		metrics.recordPageFetch(tailMode, records.size(), System.nanoTime() - fetchStart);
+		final long lastEventReadInPage = records.isEmpty() ? lastEventRead : records.get(records.size() - 1).getArrivalSerialNumber();
+		return new Page(lastEventRead, lastEventReadInPage, pageSize, records, jsonChars);
+	}
+
+	/** @return the fetched page, or null if the calling thread was interrupted. */
+	private static Page await(final Future<Page> page) throws SQLException {
+		try {
+			return page.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static void awaitTermination(final ExecutorService fetcher) {
+		try {
+			fetcher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static int length(final String string) {
+		return string == null ? 0 : string.length();
+	}
+
+	private static class Page {
+		/** The arrival serial number after which this page starts, exclusive. */
+		private final long startingSerial;
+		private final long lastEventRead;
+		private final int requestedSize;
+		private final List<EventRecord> records;
+		/** The total number of characters of the raw JSONs of the records. */
+		private final long jsonChars;
+
+		Page(final long startingSerial, final long lastEventRead, final int requestedSize, final List<EventRecord> records, final long jsonChars) {
+			this.startingSerial = startingSerial;
 			this.lastEventRead = lastEventRead;
+			this.requestedSize = requestedSize;
+			this.records = records;
+			this.jsonChars = jsonChars;
+		}
+	}
+
+	/**
+	 * Decides the interval and the size of the polls of the tail mode. The interval halves after each poll that found
+	 * events, drops to the minimum if their lag exceeds half the objective, and doubles after each empty poll, up to a
+	 * quarter of the objective. The lag is ignored after the empty polls, given it is the one of an older event. The
+	 * size doubles after each full poll, and halves after each poll that filled less than a quarter.
+	 */
+	static class TailPoller {
+		private final long lagObjectiveMillis;
+		private final long minIntervalNanos;
+		private final long maxIntervalNanos;
+		private final int minPageSize;
+		private final int maxPageSize;
+
+		long intervalNanos;
+		int pageSize;
+
+		TailPoller(final TailSettings settings) {
+			this.lagObjectiveMillis = settings.lagObjective.toMillis();
+			this.minIntervalNanos = settings.minPollInterval.toNanos();
+			this.maxIntervalNanos = Math.max(minIntervalNanos, settings.lagObjective.toNanos() / 4);
+			this.minPageSize = settings.minPageSize;
+			this.maxPageSize = settings.maxPageSize;
+			this.intervalNanos = minIntervalNanos;
+			this.pageSize = minPageSize;
+		}
+
+		/** @return true if the source should switch to the catch-up mode. */
+		boolean onPolled(final int eventsCount, final long lagMillis) {
+			final boolean isFull = eventsCount >= pageSize;
+			if ((isFull && pageSize >= maxPageSize) || (lagMillis > lagObjectiveMillis && eventsCount * 2 >= pageSize)) {
+				return true;
+			}
+			if (isFull) {
+				pageSize = Math.min(maxPageSize, pageSize * 2);
+			} else if (eventsCount < pageSize / 4) {
+				pageSize = Math.max(minPageSize, pageSize / 2);
+			}
+			if (eventsCount > 0 && lagMillis * 2 > lagObjectiveMillis) {
+				intervalNanos = minIntervalNanos;
+			} else if (eventsCount > 0) {
+				intervalNanos = Math.max(minIntervalNanos, intervalNanos / 2);
+			} else {
+				intervalNanos = Math.min(maxIntervalNanos, intervalNanos * 2);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Decides the size of the pages. The size is the greatest that fits in the {@link #PAGE_MEMORY_BUDGET} and whose
+	 * consumption takes no more than {@link #PAGE_CONSUMPTION_TARGET_NANOS}, according to the last observed page.
+	 */
+	private static class PageSizer {
+		private int pageSize = INITIAL_PAGE_SIZE;
+		private int sizeByMemory = MAX_PAGE_SIZE;
+
+		void onFetched(final Page page) {
+			if (!page.records.isEmpty()) {
+				final long bytesPerRecord = RECORD_OVERHEAD_BYTES + 2 * page.jsonChars / page.records.size();
+				sizeByMemory = (int) Math.min(MAX_PAGE_SIZE, PAGE_MEMORY_BUDGET / bytesPerRecord);
+				pageSize = clamp(Math.min(pageSize, sizeByMemory));
+			}
+		}
+
+		void onConsumed(final Page page, final long consumptionNanos) {
+			if (!page.records.isEmpty() && consumptionNanos > 0) {
+				final long sizeByRate = page.records.size() * PAGE_CONSUMPTION_TARGET_NANOS / consumptionNanos;
+				pageSize = clamp(Math.min(sizeByRate, sizeByMemory));
+			}
+		}
+
+		private static int clamp(final long size) {
+			return (int) Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, size));
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,272 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+
+/**
+ * Generates a realistic stream of outbound unit {@link EventRecord}s, for load tests. The arrival serial numbers are
+ * consecutive, starting at one.
+ *
+ * <p>The generator keeps a fixed number of entity slots. Each generated event advances the trajectory of the entity of
+ * a random slot; the empty slots are filled with new entities and the slots of the entities that finished their
+ * trajectory are emptied. Hence, after a warm up, the number of concurrently open entities is close to the number of
+ * slots. The state of the slots is kept in primitive arrays so that tens of millions of them fit in a modest heap.
+ *
+ * <p>The logistic centers, workflows and areas are drawn from Zipf distributions, so that a few of them receive most
+ * of the events, as in production. Some of the trajectories end in a not ultimate state, some of their links arrive out
+ * of order, and some are missing.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe.
+ */
+public class SyntheticEventsGenerator implements Iterator<EventRecord> {
+
+	/** The statuses of a trajectory, in order. The ones that end with the ultimate status have it appended. */
+	private static final String[] STATUSES = {"PENDING", "TO_PICK", "PICKED", "TO_SORT", "SORTED", "TO_GROUP", "GROUPED", "TO_PACK", "PACKED"};
+
+	private static final String ULTIMATE_STATUS = "OUT";
+
+	private static final String[] WORKFLOWS = {"fbm-wms-outbound", "fbm-wms-transfer", "fbm-wms-withdrawals", "fbm-wms-picking-only"};
+
+	private static final String[] AREAS = {"MZ", "RK", "HV", "BL", "PW", "RS", "PB", "SO", "CV", "LF", "EX", "NA"};
+
+	/** The number of distinct creation hours and deadlines. */
+	private static final int HOURS = 256;
+
+	private static final Instant START = Instant.parse("2021-10-01T00:00:00Z");
+
+	/** The settings of a generator. The defaults describe the peak season of a big marketplace. */
+	public static class Settings {
+		/** The number of entity slots, which is about the number of concurrently open entities. */
+		public int openEntities = 10_000_000;
+
+		/** The number of generated events. */
+		public long eventsCount = 200_000_000;
+
+		public int logisticCentersCount = 30;
+
+		/** The exponent of the Zipf distributions of the logistic centers, workflows and areas. */
+		public double skew = 1.1;
+
+		/** The minimum number of states of a trajectory, the ultimate one included. */
+		public int minTrajectoryLength = 3;
+
+		/** The maximum number of states of a trajectory, the ultimate one included. */
+		public int maxTrajectoryLength = STATUSES.length;
+
+		/** The proportion of the trajectories that end with the ultimate status. The rest are abandoned. */
+		public double terminalRate = 0.97;
+
+		/** The proportion of the transitions that arrive before the previous one of the same entity. */
+		public double outOfOrderRate = 0.001;
+
+		/** The proportion of the transitions, other than the creation, that never arrive. */
+		public double missingLinkRate = 0.0005;
+
+		public long seed = 1;
+	}
+
+	private final Settings settings;
+
+	private final SplittableRandom random;
+
+	private final String[] logisticCenters;
+
+	private final double[] logisticCentersCdf;
+
+	private final double[] workflowsCdf;
+
+	private final double[] areasCdf;
+
+	/** The distribution of the hours between the creation and the deadline, minus two. */
+	private final double[] deadlinesCdf;
+
+	/** The ISO representation of the hours since {@link #START}. */
+	private final String[] hourTexts;
+
+	/** The id of the entity of each slot, or zero if the slot is empty. */
+	private final long[] entityIds;
+
+	/** The index of the current state of the entity of each slot, in its trajectory. */
+	private final byte[] steps;
+
+	/** The number of states of the trajectory of the entity of each slot. Negative if it ends with the ultimate status. */
+	private final byte[] lengths;
+
+	/** The logistic center, workflow, area, creation hour and deadline hour indexes of each slot, packed. */
+	private final int[] attributes;
+
+	private final StringBuilder jsonBuilder = new StringBuilder(512);
+
+	private long lastEntityId = 0;
+
+	private long emittedEvents = 0;
+
+	/** A transition that was generated but is emitted after the following one of the same entity, if any. */
+	private long deferredEntityId = 0;
+
+	private int deferredAttributes;
+
+	private int deferredFromStep;
+
+	private int deferredLength;
+
+	public SyntheticEventsGenerator(final Settings settings) {
+		if (settings.minTrajectoryLength < 2 || settings.maxTrajectoryLength > STATUSES.length
+				|| settings.minTrajectoryLength > settings.maxTrajectoryLength || settings.logisticCentersCount > 256) {
+			throw new IllegalArgumentException("Invalid settings");
+		}
+		this.settings = settings;
+		this.random = new SplittableRandom(settings.seed);
+		this.logisticCenters = new String[settings.logisticCentersCount];
+		final String[] countries = {"BR", "AR", "MX", "CO", "CL", "UY", "PE"};
+		for (int index = 0; index < logisticCenters.length; ++index) {
+			logisticCenters[index] = String.format("%sXX%02d", countries[index % countries.length], index / countries.length + 1);
+		}
+		this.logisticCentersCdf = zipfCdf(logisticCenters.length, settings.skew);
+		this.workflowsCdf = zipfCdf(WORKFLOWS.length, settings.skew);
+		this.areasCdf = zipfCdf(AREAS.length, settings.skew);
+		this.deadlinesCdf = zipfCdf(48, settings.skew);
+		this.hourTexts = new String[HOURS];
+		for (int hour = 0; hour < HOURS; ++hour) {
+			hourTexts[hour] = START.plus(hour, ChronoUnit.HOURS).toString();
+		}
+		this.entityIds = new long[settings.openEntities];
+		this.steps = new byte[settings.openEntities];
+		this.lengths = new byte[settings.openEntities];
+		this.attributes = new int[settings.openEntities];
+	}
+
+	/** @return the ids of the logistic centers of the generated events. */
+	public List<String> getLogisticCenters() {
+		return Arrays.asList(logisticCenters);
+	}
+
+	@Override
+	public boolean hasNext() {
+		return emittedEvents < settings.eventsCount;
+	}
+
+	@Override
+	public EventRecord next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if (deferredEntityId != 0) {
+			final long entityId = deferredEntityId;
+			deferredEntityId = 0;
+			return emit(entityId, deferredAttributes, deferredFromStep, deferredLength);
+		}
+		while (true) {
+			final int slot = random.nextInt(entityIds.length);
+			if (entityIds[slot] == 0) {
+				return emitCreation(slot);
+			}
+			final long entityId = entityIds[slot];
+			final int packedAttributes = attributes[slot];
+			final int length = lengths[slot];
+			final int fromStep = steps[slot];
+			final int toStep = advance(slot);
+			if (random.nextDouble() < settings.missingLinkRate) {
+				continue;
+			}
+			if (toStep < Math.abs(length) - 1 && random.nextDouble() < settings.outOfOrderRate) {
+				// the following transition arrives first
+				deferredEntityId = entityId;
+				deferredAttributes = packedAttributes;
+				deferredFromStep = fromStep;
+				deferredLength = length;
+				advance(slot);
+				return emit(entityId, packedAttributes, toStep, length);
+			}
+			return emit(entityId, packedAttributes, fromStep, length);
+		}
+	}
+
+	/**
+	 * Moves the entity of the specified slot to its next state, and empties the slot if said state is the last one.
+	 *
+	 * @return the index of the new state.
+	 */
+	private int advance(final int slot) {
+		final int toStep = steps[slot] + 1;
+		if (toStep == Math.abs(lengths[slot]) - 1) {
+			entityIds[slot] = 0;
+		} else {
+			steps[slot] = (byte) toStep;
+		}
+		return toStep;
+	}
+
+	private EventRecord emitCreation(final int slot) {
+		final long entityId = ++lastEntityId;
+		final int trajectoryLength = settings.minTrajectoryLength + random.nextInt(settings.maxTrajectoryLength - settings.minTrajectoryLength + 1);
+		final boolean terminal = random.nextDouble() < settings.terminalRate;
+		entityIds[slot] = entityId;
+		steps[slot] = 0;
+		lengths[slot] = (byte) (terminal ? -trajectoryLength : trajectoryLength);
+		final int createdHour = random.nextInt(HOURS / 2);
+		final int deadlineHour = Math.min(HOURS - 1, createdHour + 2 + sample(deadlinesCdf));
+		attributes[slot] = sample(logisticCentersCdf)
+				| sample(workflowsCdf) << 8
+				| sample(areasCdf) << 12
+				| createdHour << 16
+				| deadlineHour << 24;
+		return emit(entityId, attributes[slot], -1, lengths[slot]);
+	}
+
+	/** Builds the record of the transition of the specified entity from the specified step to the next one. */
+	private EventRecord emit(final long entityId, final int packedAttributes, final int fromStep, final int length) {
+		final long serial = ++emittedEvents;
+		return new EventRecord(
+				serial,
+				serial,
+				START.plusMillis(serial),
+				entityId,
+				EntityType.outboundUnit.id,
+				1,
+				stateJson(entityId, packedAttributes, fromStep + 1, length),
+				fromStep < 0 ? null : stateJson(entityId, packedAttributes, fromStep, length)
+		);
+	}
+
+	private String stateJson(final long entityId, final int packedAttributes, final int step, final int length) {
+		final boolean isUltimate = length < 0 && step == -length - 1;
+		final int area = ((packedAttributes >>> 12 & 0xF) + step / 2) % AREAS.length;
+		jsonBuilder.setLength(0);
+		return jsonBuilder
+				.append("{\"warehouse_id\":\"").append(logisticCenters[packedAttributes & 0xFF])
+				.append("\",\"group_type\":\"").append(WORKFLOWS[packedAttributes >>> 8 & 0xF])
+				.append("\",\"status\":\"").append(isUltimate ? ULTIMATE_STATUS : STATUSES[step])
+				.append("\",\"date_created\":\"").append(hourTexts[packedAttributes >>> 16 & 0xFF])
+				.append("\",\"storage_id\":\"").append(AREAS[area]).append("-0").append(step).append("-12-3")
+				.append("\",\"estimated_time_departure\":\"").append(hourTexts[packedAttributes >>> 24 & 0xFF])
+				.append("\",\"inbound_shipment_id\":").append(entityId * 7)
+				.append(",\"carrier_name\":\"Mercado Envios\",\"priority\":").append(entityId % 5)
+				.append('}')
+				.toString();
+	}
+
+	private int sample(final double[] cdf) {
+		final int index = Arrays.binarySearch(cdf, random.nextDouble());
+		return index >= 0 ? index : Math.min(-index - 1, cdf.length - 1);
+	}
+
+	/** @return the cumulative distribution of a Zipf distribution of the specified number of elements and exponent. */
+	private static double[] zipfCdf(final int elementsCount, final double exponent) {
+		final var cdf = new double[elementsCount];
+		double sum = 0;
+		for (int rank = 1; rank <= elementsCount; ++rank) {
+			sum += 1 / Math.pow(rank, exponent);
+			cdf[rank - 1] = sum;
+		}
+		for (int index = 0; index < elementsCount; ++index) {
+			cdf[index] /= sum;
+		}
+		return cdf;
+	}
+}
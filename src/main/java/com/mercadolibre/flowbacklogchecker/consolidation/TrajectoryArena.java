@@ -0,0 +1,379 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An off-heap storage of the event records of the open trajectories, so that the millions of trajectories in flight
+ * are not millions of small objects for the garbage collector to trace. The on-heap part is a primitive open
+ * addressing index from the entity id to the address of its chunk, and the free lists.
+ *
+ * <p>Each trajectory is a chunk of a slab of direct memory: a header with the entity id, the number of events and the
+ * size class of the chunk, followed by the event records with the same fields as the ones of {@link
+ * Backlog.Trajectory}. The chunks of the size class {@code c} have room for {@code 4 << c} events. When a chunk is
+ * full, its content is moved to a chunk of the next size class, so the events of a trajectory are always contiguous.
+ *
+ * <p>The chunks are bump allocated from the current slab, and the ones of the removed trajectories are kept in a free
+ * list per size class, from which they are reused before allocating new ones. The slabs are never released, so the
+ * off-heap footprint is the one of the peak of open trajectories.
+ *
+ * <p>The trajectories are identified by the address of their chunk, which changes when the chunk grows. Hence the
+ * addresses must not be retained across the appends.
+ *
+ * <p>Given the chunks are bump allocated, each slab is a sequence of contiguous chunks whose header tells their size
+ * class. The free chunks are marked in their header, so an {@link Image}, a bulk copy of the slabs, tells the stored
+ * trajectories by scanning the chunks without the index.
+ *
+ * <p>Note that this is a mutable class. It is not thread safe: it is owned by the thread that integrates the events
+ * into the backlog.
+ */
+public final class TrajectoryArena {
+
+	/** The address that represents the absence of trajectory. */
+	public static final long NONE = -1L;
+
+	private static final int ENTITY_ID = 0;
+	private static final int SIZE = 8;
+	private static final int SIZE_CLASS = 12;
+	private static final int HEADER_BYTES = 16;
+
+	/** The number of events of a free chunk. */
+	private static final int FREE = -1;
+
+	private static final int SERIAL = 0;
+	private static final int EVENT_ID = 8;
+	private static final int ARRIVAL_DATE = 16;
+	private static final int NEW_STATE_ID = 24;
+	private static final int OLD_STATE_ID = 28;
+	private static final int RECORD_BYTES = 32;
+
+	private static final int MIN_CAPACITY = 4;
+
+	/** The biggest size class whose chunks fit in a direct buffer. */
+	private static final int MAX_SIZE_CLASS = 23;
+
+	private static final int SLAB_SIZE = 64 * 1024 * 1024;
+
+	/** The slabs, indexed by the high half of the addresses. The low half is the offset in the slab. */
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<>();
+
+	/** The slab the chunks are bump allocated from. */
+	private ByteBuffer currentSlab = null;
+
+	private int currentSlabIndex = -1;
+
+	private final LongLongHashMap addressesByEntity;
+
+	/** The addresses of the free chunks of each size class. */
+	private final long[][] freeChunks = new long[MAX_SIZE_CLASS + 1][];
+
+	private final int[] freeChunksCounts = new int[MAX_SIZE_CLASS + 1];
+
+	/** @param initialCapacity the expected number of trajectories. Must be a power of two. */
+	public TrajectoryArena(final int initialCapacity) {
+		this.addressesByEntity = new LongLongHashMap(initialCapacity);
+		for (int sizeClass = 0; sizeClass <= MAX_SIZE_CLASS; ++sizeClass) {
+			freeChunks[sizeClass] = new long[16];
+		}
+	}
+
+	/** @return the number of stored trajectories. */
+	public int size() {
+		return addressesByEntity.size();
+	}
+
+	/** @return the amount of direct memory reserved by the slabs. */
+	public long offHeapBytes() {
+		long bytes = 0;
+		for (ByteBuffer slab : slabs) {
+			bytes += slab.capacity();
+		}
+		return bytes;
+	}
+
+	/** @return the address of the trajectory of the specified entity, or {@link #NONE} if it is not stored. */
+	public long addressOf(final long entityId) {
+		final long address = addressesByEntity.get(entityId);
+		return address == LongLongHashMap.NO_VALUE ? NONE : address;
+	}
+
+	/** @return the addresses of all the stored trajectories, in no particular order. */
+	public long[] addresses() {
+		final var addresses = new long[addressesByEntity.size()];
+		final int[] count = {0};
+		addressesByEntity.forEach((entityId, address) -> addresses[count[0]++] = address);
+		return addresses;
+	}
+
+	/**
+	 * Creates the empty trajectory of the specified entity, which must not be stored.
+	 *
+	 * @return the address of the created trajectory.
+	 */
+	public long create(final long entityId) {
+		final long address = allocate(0);
+		final ByteBuffer slab = slabOf(address);
+		final int offset = offsetOf(address);
+		slab.putLong(offset + ENTITY_ID, entityId);
+		slab.putInt(offset + SIZE, 0);
+		final long previous = addressesByEntity.put(entityId, address);
+		assert previous == LongLongHashMap.NO_VALUE;
+		return address;
+	}
+
+	/**
+	 * Appends an event with the specified values to the trajectory at the specified address. The arrival date is in
+	 * epoch nanos.
+	 *
+	 * @return the address of the trajectory, which changes if its chunk had to grow.
+	 */
+	public long append(
+			long address,
+			final long arrivalSerialNumber,
+			final long eventId,
+			final long arrivalDate,
+			final int newStateId,
+			final int oldStateId
+	) {
+		final int size = size(address);
+		if (size == capacityOf(sizeClassOf(address))) {
+			address = grow(address);
+		}
+		final ByteBuffer slab = slabOf(address);
+		final int record = offsetOf(address) + HEADER_BYTES + size * RECORD_BYTES;
+		slab.putLong(record + SERIAL, arrivalSerialNumber);
+		slab.putLong(record + EVENT_ID, eventId);
+		slab.putLong(record + ARRIVAL_DATE, arrivalDate);
+		slab.putInt(record + NEW_STATE_ID, newStateId);
+		slab.putInt(record + OLD_STATE_ID, oldStateId);
+		slab.putInt(offsetOf(address) + SIZE, size + 1);
+		return address;
+	}
+
+	/** Removes the last event of the trajectory at the specified address. */
+	public void removeLast(final long address) {
+		final int size = size(address);
+		assert size > 0;
+		slabOf(address).putInt(offsetOf(address) + SIZE, size - 1);
+	}
+
+	/** Removes the trajectory at the specified address, whose chunk is freed for reuse. */
+	public void remove(final long address) {
+		addressesByEntity.remove(entityIdOf(address));
+		free(address);
+	}
+
+	public long entityIdOf(final long address) {
+		return slabOf(address).getLong(offsetOf(address) + ENTITY_ID);
+	}
+
+	/** @return the number of events of the trajectory at the specified address. */
+	public int size(final long address) {
+		return slabOf(address).getInt(offsetOf(address) + SIZE);
+	}
+
+	public long arrivalSerialNumberAt(final long address, final int index) {
+		return slabOf(address).getLong(recordOf(address, index) + SERIAL);
+	}
+
+	public long eventIdAt(final long address, final int index) {
+		return slabOf(address).getLong(recordOf(address, index) + EVENT_ID);
+	}
+
+	/** @return the arrival date in epoch nanos of the event at the specified index. */
+	public long arrivalDateAt(final long address, final int index) {
+		return slabOf(address).getLong(recordOf(address, index) + ARRIVAL_DATE);
+	}
+
+	public int newStateIdAt(final long address, final int index) {
+		return slabOf(address).getInt(recordOf(address, index) + NEW_STATE_ID);
+	}
+
+	public int oldStateIdAt(final long address, final int index) {
+		return slabOf(address).getInt(recordOf(address, index) + OLD_STATE_ID);
+	}
+
+	private int recordOf(final long address, final int index) {
+		assert index >= 0 && index < size(address);
+		return offsetOf(address) + HEADER_BYTES + index * RECORD_BYTES;
+	}
+
+	/** Moves the trajectory at the specified address to a chunk of the next size class. */
+	private long grow(final long address) {
+		final int sizeClass = sizeClassOf(address);
+		if (sizeClass == MAX_SIZE_CLASS) {
+			throw new IllegalStateException("The trajectory of the entity " + entityIdOf(address) + " has too many events");
+		}
+		final long grown = allocate(sizeClass + 1);
+		final int bytes = chunkBytesOf(sizeClass);
+		final ByteBuffer source = slabOf(address).duplicate();
+		source.limit(offsetOf(address) + bytes).position(offsetOf(address));
+		final ByteBuffer target = slabOf(grown).duplicate();
+		target.position(offsetOf(grown));
+		target.put(source);
+		// the header was copied with the size class of the source
+		slabOf(grown).put(offsetOf(grown) + SIZE_CLASS, (byte) (sizeClass + 1));
+		addressesByEntity.put(entityIdOf(grown), grown);
+		free(address);
+		return grown;
+	}
+
+	/** @return the address of a chunk of the specified size class, whose size class is set in its header. */
+	private long allocate(final int sizeClass) {
+		final long address;
+		if (freeChunksCounts[sizeClass] > 0) {
+			freeChunksCounts[sizeClass] -= 1;
+			address = freeChunks[sizeClass][freeChunksCounts[sizeClass]];
+		} else {
+			final int bytes = chunkBytesOf(sizeClass);
+			if (bytes > SLAB_SIZE) {
+				// a huge chunk gets a slab of its own, and the current slab remains the same
+				final int slabIndex = addSlab(bytes);
+				slabs.get(slabIndex).position(bytes);
+				address = (long) slabIndex << 32;
+			} else {
+				if (currentSlab == null || currentSlab.remaining() < bytes) {
+					currentSlabIndex = addSlab(SLAB_SIZE);
+					currentSlab = slabs.get(currentSlabIndex);
+				}
+				address = (long) currentSlabIndex << 32 | currentSlab.position();
+				currentSlab.position(currentSlab.position() + bytes);
+			}
+		}
+		slabOf(address).put(offsetOf(address) + SIZE_CLASS, (byte) sizeClass);
+		return address;
+	}
+
+	private int addSlab(final int bytes) {
+		slabs.add(ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder()));
+		return slabs.size() - 1;
+	}
+
+	private void free(final long address) {
+		slabOf(address).putInt(offsetOf(address) + SIZE, FREE);
+		final int sizeClass = sizeClassOf(address);
+		if (freeChunksCounts[sizeClass] == freeChunks[sizeClass].length) {
+			freeChunks[sizeClass] = Arrays.copyOf(freeChunks[sizeClass], 2 * freeChunksCounts[sizeClass]);
+		}
+		freeChunks[sizeClass][freeChunksCounts[sizeClass]] = address;
+		freeChunksCounts[sizeClass] += 1;
+	}
+
+	private int sizeClassOf(final long address) {
+		return slabOf(address).get(offsetOf(address) + SIZE_CLASS);
+	}
+
+	private ByteBuffer slabOf(final long address) {
+		return slabs.get((int) (address >>> 32));
+	}
+
+	private static int offsetOf(final long address) {
+		return (int) address;
+	}
+
+	private static int capacityOf(final int sizeClass) {
+		return MIN_CAPACITY << sizeClass;
+	}
+
+	private static int chunkBytesOf(final int sizeClass) {
+		return HEADER_BYTES + capacityOf(sizeClass) * RECORD_BYTES;
+	}
+
+	/**
+	 * @return a copy of the stored trajectories, made of a bulk copy of the allocated part of each slab, which can be
+	 *     read by any thread. The copies are off-heap too.
+	 */
+	public Image image() {
+		final var copies = new ByteBuffer[slabs.size()];
+		for (int index = 0; index < copies.length; ++index) {
+			// the position of every slab is the end of its allocated chunks
+			final ByteBuffer allocated = slabs.get(index).duplicate().flip();
+			copies[index] = ByteBuffer.allocateDirect(allocated.remaining()).order(ByteOrder.nativeOrder()).put(allocated).flip();
+		}
+		return new Image(copies, size());
+	}
+
+	/** An immutable copy of the trajectories of an arena at some point in time. See {@link #image()}. */
+	public static final class Image {
+		private final ByteBuffer[] slabs;
+
+		private final int size;
+
+		private Image(final ByteBuffer[] slabs, final int size) {
+			this.slabs = slabs;
+			this.size = size;
+		}
+
+		/** @return the number of copied trajectories. */
+		public int size() {
+			return size;
+		}
+
+		/** Applies the specified visitor to every copied trajectory, in storage order. */
+		public <E extends Exception> void forEach(final Visitor<E> visitor) throws E {
+			for (ByteBuffer slab : slabs) {
+				final var chunk = new Chunk(slab);
+				while (chunk.offset < slab.limit()) {
+					if (slab.getInt(chunk.offset + SIZE) != FREE) {
+						visitor.visit(chunk);
+					}
+					chunk.offset += chunkBytesOf(slab.get(chunk.offset + SIZE_CLASS));
+				}
+			}
+		}
+
+		@FunctionalInterface
+		public interface Visitor<E extends Exception> {
+			/** @param chunk the visited trajectory. It is valid during the visit only. */
+			void visit(Chunk chunk) throws E;
+		}
+
+		/** A read only view of a copied trajectory. */
+		public static final class Chunk {
+			private final ByteBuffer slab;
+
+			private int offset = 0;
+
+			private Chunk(final ByteBuffer slab) {
+				this.slab = slab;
+			}
+
+			public long entityId() {
+				return slab.getLong(offset + ENTITY_ID);
+			}
+
+			/** @return the number of events of the trajectory. */
+			public int size() {
+				return slab.getInt(offset + SIZE);
+			}
+
+			public long arrivalSerialNumberAt(final int index) {
+				return slab.getLong(recordOf(index) + SERIAL);
+			}
+
+			public long eventIdAt(final int index) {
+				return slab.getLong(recordOf(index) + EVENT_ID);
+			}
+
+			/** @return the arrival date in epoch nanos of the event at the specified index. */
+			public long arrivalDateAt(final int index) {
+				return slab.getLong(recordOf(index) + ARRIVAL_DATE);
+			}
+
+			public int newStateIdAt(final int index) {
+				return slab.getInt(recordOf(index) + NEW_STATE_ID);
+			}
+
+			public int oldStateIdAt(final int index) {
+				return slab.getInt(recordOf(index) + OLD_STATE_ID);
+			}
+
+			private int recordOf(final int index) {
+				assert index >= 0 && index < size();
+				return offset + HEADER_BYTES + index * RECORD_BYTES;
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+-- Photos of the backlogs, one sequence per logistic center. Each photo is written in a single transaction by
+-- BacklogPhotoRepository.
+CREATE TABLE IF NOT EXISTS backlog_photo (
+    id                               BIGINT      NOT NULL AUTO_INCREMENT,
+    logistic_center_id               VARCHAR(16) NOT NULL,
+    last_event_arrival_serial_number BIGINT      NOT NULL,
+    last_event_arrival_date          DATETIME(3) NULL,
+    cells_count                      INT         NOT NULL,
+    date_created                     DATETIME(3) NOT NULL,
+    PRIMARY KEY (id),
+    KEY idx_backlog_photo_serial (logistic_center_id, last_event_arrival_serial_number)
+);
+
+-- The cells of the photos. There is a column for each PartitionsCatalog.PartitionsDb element.
+CREATE TABLE IF NOT EXISTS backlog_photo_cell (
+    photo_id               BIGINT      NOT NULL,
+    logistic_center_id     VARCHAR(16) NULL,
+    workflow               VARCHAR(32) NULL,
+    area                   VARCHAR(16) NULL,
+    status                 VARCHAR(32) NULL,
+    date_in                DATETIME    NULL,
+    date_out               DATETIME    NULL,
+    population             INT         NOT NULL,
+    variation              INT         NOT NULL,
+    accumulated_population INT         NOT NULL,
+    KEY idx_backlog_photo_cell_photo (photo_id)
+);
@@ -0,0 +1,158 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BacklogCheckpointTest {
+
+	private static final PartitionsCatalog PARTITIONS_CATALOG = new PartitionsCatalog();
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void restoresTheSameBacklog() throws Exception {
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		TestEvents.parse(TestEvents.lifecycles(5, 5_000, 15_000)).forEach(backlog::integrate);
+		backlog.lastDateCreated = 1_633_000_000_123L;
+		final Path file = directory.resolve("backlog.ckpt");
+
+		BacklogCheckpoint.write(BacklogCheckpoint.capture(backlog), file);
+		final var restored = BacklogCheckpoint.read(file, PARTITIONS_CATALOG);
+
+		assertEquals(backlog.getLastEventArrivalSerialNumber(), restored.getLastEventArrivalSerialNumber());
+		assertEquals(backlog.getLastEventArrivalDate(), restored.getLastEventArrivalDate());
+		assertEquals(backlog.created, restored.created);
+		assertEquals(backlog.terminatedSuccessfully, restored.terminatedSuccessfully);
+		assertEquals(backlog.discardedEvents, restored.discardedEvents);
+		assertEquals(backlog.irregularTrajectories, restored.irregularTrajectories);
+		assertEquals(backlog.lastDateCreated, restored.lastDateCreated);
+		assertEquals(cellsOf(backlog), cellsOf(restored));
+		assertEquals(trajectoriesOf(backlog), trajectoriesOf(restored));
+	}
+
+	@Test
+	void theRestoredBacklogIntegratesLikeTheOriginal() throws Exception {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(6, 4_000, 12_000));
+		final var original = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.forEach(original::integrate);
+
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.subList(0, 6_000).forEach(backlog::integrate);
+		final Path file = directory.resolve("backlog.ckpt");
+		BacklogCheckpoint.write(BacklogCheckpoint.capture(backlog), file);
+		final var restored = BacklogCheckpoint.read(file, PARTITIONS_CATALOG);
+		events.subList(6_000, events.size()).forEach(restored::integrate);
+
+		assertEquals(cellsOf(original), cellsOf(restored));
+		assertEquals(trajectoriesOf(original), trajectoriesOf(restored));
+		assertEquals(original.created, restored.created);
+		assertEquals(original.terminatedSuccessfully, restored.terminatedSuccessfully);
+	}
+
+	/**
+	 * The trajectories are captured from the three tiers: the events of some records are missing, so that some
+	 * trajectories are not continuous and stay on heap, and the hot ones are few, so that most are spilled to the cold
+	 * tier. The second capture copies only the on heap trajectories touched since the first one.
+	 */
+	@Test
+	void restoresTheSameBacklogFromIncrementalCapturesOfAllTheTiers() throws Exception {
+		final List<EventRecord> records = TestEvents.lifecycles(7, 3_000, 9_000);
+		records.removeIf(eventRecord -> eventRecord.getArrivalSerialNumber() % 41 == 0);
+		final List<TransitionEvent> events = TestEvents.parse(records);
+		final var coldTier = new ColdTrajectoryStore.Settings();
+		coldTier.directory = directory.resolve("cold");
+		coldTier.hotTrajectoriesBudget = 200;
+		coldTier.sweepInterval = 500;
+		coldTier.segmentSize = 16 * 1024;
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		backlog.enableColdTier(coldTier);
+		final Path file = directory.resolve("backlog.ckpt");
+		try {
+			events.subList(0, 4_000).forEach(backlog::integrate);
+			final var first = BacklogCheckpoint.capture(backlog);
+			events.subList(4_000, events.size()).forEach(backlog::integrate);
+			final var second = BacklogCheckpoint.capture(backlog);
+			BacklogCheckpoint.write(first, file);
+			first.release();
+			BacklogCheckpoint.write(second, file);
+			second.release();
+			final var restored = BacklogCheckpoint.read(file, PARTITIONS_CATALOG);
+
+			assertTrue(backlog.trajectoriesByEntity.size() > 0);
+			assertTrue(backlog.continuousTrajectories.size() > 0);
+			assertTrue(backlog.openTrajectoriesCount() > backlog.hotTrajectoriesCount());
+			assertEquals(cellsOf(backlog), cellsOf(restored));
+			assertEquals(trajectoriesOf(backlog), trajectoriesOf(restored));
+			try (var images = Files.newDirectoryStream(coldTier.directory, "image-*")) {
+				assertFalse(images.iterator().hasNext());
+			}
+		} finally {
+			backlog.closeColdTier();
+		}
+	}
+
+	/** The creation dates that are null are completed after a restart like they would have been without it. */
+	@Test
+	void theParseContextResumesFromTheCheckpoint() throws Exception {
+		final var parseContext = new ParseContext();
+		TestEvents.PARSER.parse(OrderedParsingPipelineTest.record(1, "{\"warehouse_id\":\"BRSP01\",\"status\":\"PENDING\",\"date_created\":\"2021-10-01T12:34:56Z\"}"), parseContext);
+		final var sharded = new ShardedBacklog(new Backlog(PARTITIONS_CATALOG, 1, null), 2);
+		final Path file = directory.resolve("backlog.ckpt");
+		final var checkpointer = new BacklogCheckpointer(file, Duration.ZERO, () -> parseContext.getLastDateCreated(TestEvents.LOGISTIC_CENTER));
+		try {
+			// this thread becomes the dispatcher, and the checkpointer checks the clock once every thousand events
+			sharded.onIdle();
+			for (int event = 0; event < 1000; ++event) {
+				checkpointer.onIntegrated(sharded);
+			}
+			for (int attempt = 0; attempt < 500 && !Files.exists(file); ++attempt) {
+				Thread.sleep(10);
+			}
+		} finally {
+			checkpointer.close();
+			sharded.close();
+		}
+
+		final var restored = BacklogCheckpoint.read(file, PARTITIONS_CATALOG);
+		final var resumedContext = new ParseContext();
+		resumedContext.updateLastDateCreated(TestEvents.LOGISTIC_CENTER, restored.lastDateCreated);
+		final var state = TestEvents.PARSER.parse(OrderedParsingPipelineTest.record(2, "{\"warehouse_id\":\"BRSP01\",\"status\":\"PENDING\",\"date_created\":null}"), resumedContext).getNewState();
+
+		assertEquals(Timestamp.from(Instant.parse("2021-10-01T12:00:00Z")), state.getDateIn());
+	}
+
+	static Set<String> cellsOf(final Backlog backlog) {
+		return backlog.getCells()
+				.map(cell -> Arrays.toString(cell.coordinates) + " " + cell.population + " " + cell.variation + " " + cell.accumulatedPopulation)
+				.collect(Collectors.toCollection(TreeSet::new));
+	}
+
+	static Map<Long, String> trajectoriesOf(final Backlog backlog) {
+		return backlog.trajectories().collect(Collectors.toMap(
+				trajectory -> trajectory.entityId,
+				trajectory -> trajectory.events().stream()
+						.map(event -> event.getArrivalSerialNumber() + "/" + event.getEventId() + "/" + event.getArrivalDate() + "/" + event)
+						.collect(Collectors.joining("\n")) + " completed " + trajectory.isCompleted,
+				(first, second) -> first,
+				TreeMap::new
+		));
+	}
+}
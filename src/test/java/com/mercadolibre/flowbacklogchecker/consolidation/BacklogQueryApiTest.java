@@ -0,0 +1,183 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.mercadolibre.flowbacklogchecker.consolidation.PartitionsCatalog.PartitionsDb;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class BacklogQueryApiTest {
+
+	private static final PartitionsCatalog PARTITIONS_CATALOG = new PartitionsCatalog();
+
+	/** A logistic center whose backlog was never published. */
+	private static final String UNPUBLISHED = "UNPUBLISHED";
+
+	private static final int STATUS = PartitionsDb.status.ordinal();
+
+	private static final int AREA = PartitionsDb.area.ordinal();
+
+	/** The backlog the published one must answer like. */
+	private Backlog single;
+
+	private ShardedBacklog published;
+
+	private ShardedBacklog unpublished;
+
+	private BacklogQueryApi api;
+
+	private WebTestClient client;
+
+	/**
+	 * The events of some records are missing, so that some trajectories are broken. The population grouped by status
+	 * has a rollup.
+	 */
+	@BeforeEach
+	void publish() throws Exception {
+		final List<EventRecord> records = TestEvents.lifecycles(71, 2_000, 6_000);
+		records.removeIf(eventRecord -> eventRecord.getArrivalSerialNumber() % 37 == 0);
+		final List<TransitionEvent> events = TestEvents.parse(records);
+		single = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.forEach(single::integrate);
+		published = new ShardedBacklog(new Backlog(PARTITIONS_CATALOG, 0, null), 2);
+		unpublished = new ShardedBacklog(new Backlog(PARTITIONS_CATALOG, 0, null), 2);
+		// this thread becomes the dispatcher, so the tasks are dispatched at once
+		published.registerRollup(STATUS);
+		published.enableTrajectorySnapshots();
+		events.forEach(published::integrate);
+		published.publishSnapshot().get(10, TimeUnit.SECONDS);
+
+		final var backlogs = new LinkedHashMap<String, ShardedBacklog>();
+		backlogs.put(TestEvents.LOGISTIC_CENTER, published);
+		backlogs.put(UNPUBLISHED, unpublished);
+		api = new BacklogQueryApi(backlogs, new Boot().objectMapper(), Queries.Timers.DISABLED, 2, 16);
+		client = WebTestClient.bindToRouterFunction(api.routes()).build();
+	}
+
+	@AfterEach
+	void close() {
+		api.close();
+		published.close();
+		unpublished.close();
+	}
+
+	/** Both the rollup, when there is no filter, and the columns, when there is one, give the population of the cells. */
+	@Test
+	void answersThePopulation() {
+		assertEquals(scannedPopulation(new String[0], STATUS), population("groupBy=status"));
+		assertEquals(
+				scannedPopulation(new String[]{"PICKING", "PACKING"}, STATUS, AREA),
+				population("groupBy=status,area&status=PICKING,PACKING")
+		);
+
+		final List<String> all = population("groupBy=status,area");
+		assertEquals(scannedPopulation(new String[0], STATUS, AREA), all);
+		assertEquals(all.subList(1, 3), population("groupBy=status,area&offset=1&limit=2"));
+	}
+
+	@Test
+	void answersTheHealthyTrajectories() {
+		final var expected = new ArrayList<String>();
+		new Queries(single).healthyTrajectoryGrouping(trajectory -> true, Queries.buildStateComparator(STATUS), STATUS)
+				.forEach((key, group) -> expected.add(key + " " + group.size()));
+		assertFalse(expected.isEmpty());
+
+		assertEquals(expected, trajectoryGroups("/trajectories/healthy?groupBy=status&compareBy=status"));
+		assertEquals(expected.subList(1, 2), trajectoryGroups("/trajectories/healthy?groupBy=status&compareBy=status&offset=1&limit=1"));
+	}
+
+	@Test
+	void answersTheBrokenTrajectories() {
+		for (String side : new String[]{"lastGood", "firstBad"}) {
+			final var expected = new ArrayList<String>();
+			new Queries(single)
+					.brokenTrajectoriesGrouping(broken -> true, Queries.buildStateComparator(STATUS), side.equals("lastGood"), STATUS)
+					.forEach((key, group) -> expected.add(key + " " + group.size()));
+			assertFalse(expected.isEmpty(), side);
+
+			assertEquals(expected, trajectoryGroups("/trajectories/broken?groupBy=status&compareBy=status&side=" + side), side);
+		}
+	}
+
+	@Test
+	void rejectsTheInvalidParameters() {
+		expectStatus("/backlogs/" + TestEvents.LOGISTIC_CENTER + "/population?groupBy=nope", HttpStatus.BAD_REQUEST);
+		expectStatus("/backlogs/" + TestEvents.LOGISTIC_CENTER + "/population?limit=-1", HttpStatus.BAD_REQUEST);
+		expectStatus("/backlogs/" + TestEvents.LOGISTIC_CENTER + "/population?dateIn.from=yesterday", HttpStatus.BAD_REQUEST);
+		expectStatus("/backlogs/" + TestEvents.LOGISTIC_CENTER + "/population?asOfSerial=5", HttpStatus.BAD_REQUEST);
+		expectStatus("/backlogs/" + TestEvents.LOGISTIC_CENTER + "/trajectories/broken?side=middle", HttpStatus.BAD_REQUEST);
+		expectStatus("/backlogs/" + TestEvents.LOGISTIC_CENTER + "/trajectories/healthy?compareBy=status,nope", HttpStatus.BAD_REQUEST);
+		expectStatus("/backlogs/NOWHERE/population", HttpStatus.NOT_FOUND);
+	}
+
+	@Test
+	void isUnavailableUntilTheBacklogIsPublished() {
+		expectStatus("/backlogs/" + UNPUBLISHED + "/population?groupBy=status", HttpStatus.SERVICE_UNAVAILABLE);
+		expectStatus("/backlogs/" + UNPUBLISHED + "/trajectories/healthy", HttpStatus.SERVICE_UNAVAILABLE);
+		expectStatus("/backlogs/" + UNPUBLISHED + "/trajectories/broken", HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+	/** @return the groups of the population of {@link #single} with any of the specified statuses, if any is. */
+	private List<String> scannedPopulation(final String[] statuses, final int... partitionOrdinals) {
+		final var accepted = List.of(statuses);
+		final var groups = new ArrayList<String>();
+		new Queries(single).cellBasedPopulationGrouped(
+				coordinates -> accepted.isEmpty() || accepted.contains(coordinates[STATUS]),
+				content -> true,
+				partitionOrdinals
+		).forEach((key, intAccum) -> {
+			if (intAccum.register != 0) {
+				groups.add(key + " " + intAccum.register);
+			}
+		});
+		assertFalse(groups.isEmpty());
+		return groups;
+	}
+
+	/** @return the groups the population endpoint answers with the specified query, as "[values] population". */
+	@SuppressWarnings("unchecked")
+	private List<String> population(final String query) {
+		final var groups = new ArrayList<String>();
+		for (Map<String, Object> group : get("/population?" + query)) {
+			groups.add(((Map<String, Object>) group.get("group")).values() + " " + group.get("population"));
+		}
+		return groups;
+	}
+
+	/** @return the groups the specified trajectories endpoint answers, as "[values] count". */
+	@SuppressWarnings("unchecked")
+	private List<String> trajectoryGroups(final String pathAndQuery) {
+		final var groups = new ArrayList<String>();
+		for (Map<String, Object> group : get(pathAndQuery)) {
+			final int count = (Integer) group.get("count");
+			assertEquals(Math.min(count, 100), ((List<Object>) group.get("trajectories")).size());
+			groups.add(((Map<String, Object>) group.get("group")).values() + " " + count);
+		}
+		return groups;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private List<Map<String, Object>> get(final String pathAndQuery) {
+		return (List) client.get()
+				.uri("/backlogs/" + TestEvents.LOGISTIC_CENTER + pathAndQuery)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBodyList(Map.class)
+				.returnResult()
+				.getResponseBody();
+	}
+
+	private void expectStatus(final String pathAndQuery, final HttpStatus status) {
+		client.get().uri(pathAndQuery).exchange().expectStatus().isEqualTo(status);
+	}
+}
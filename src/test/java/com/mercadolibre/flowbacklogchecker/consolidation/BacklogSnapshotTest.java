@@ -0,0 +1,118 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.Trajectory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BacklogSnapshotTest {
+
+	private static final PartitionsCatalog PARTITIONS_CATALOG = new PartitionsCatalog();
+
+	/** A published snapshot must keep the content of its publication while the backlog integrates the next events. */
+	@Test
+	void isNotChangedByTheLaterEvents() {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(41, 1_000, 3_000));
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.subList(0, 500).forEach(backlog::integrate);
+		backlog.enableTrajectorySnapshots();
+		events.subList(500, 1_500).forEach(backlog::integrate);
+		final BacklogSnapshot first = backlog.publishSnapshot();
+		final Set<String> firstCells = cellsOf(backlog.getCells());
+		final Map<Long, String> firstTrajectories = trajectoriesOf(backlog.trajectories());
+
+		events.subList(1_500, events.size()).forEach(backlog::integrate);
+		final BacklogSnapshot second = backlog.publishSnapshot();
+
+		assertEquals(events.get(1_499).getArrivalSerialNumber(), first.lastEventArrivalSerialNumber);
+		assertEquals(firstCells, cellsOf(first.cells.toCells().stream()));
+		assertEquals(firstTrajectories, trajectoriesOf(first.trajectories()));
+		assertEquals(firstTrajectories.size(), first.trajectoriesCount());
+		assertEquals(cellsOf(backlog.getCells()), cellsOf(second.cells.toCells().stream()));
+		assertEquals(trajectoriesOf(backlog.trajectories()), trajectoriesOf(second.trajectories()));
+		assertEquals(second, backlog.latestSnapshot());
+	}
+
+	/** The trajectories are included only after {@link Backlog#enableTrajectorySnapshots()} is called. */
+	@Test
+	void includesTheTrajectoriesOnlyIfEnabled() {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(42, 100, 200));
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.forEach(backlog::integrate);
+		final BacklogSnapshot withoutTrajectories = backlog.publishSnapshot();
+		assertFalse(withoutTrajectories.hasTrajectories());
+		assertThrows(IllegalStateException.class, withoutTrajectories::trajectories);
+
+		backlog.enableTrajectorySnapshots();
+		final BacklogSnapshot withTrajectories = backlog.publishSnapshot();
+		assertTrue(withTrajectories.hasTrajectories());
+		final Map<Long, String> expected = trajectoriesOf(backlog.trajectories());
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, trajectoriesOf(withTrajectories.trajectories()));
+		for (long entityId : expected.keySet()) {
+			assertEquals(expected.get(entityId), trajectoriesOf(Stream.of(withTrajectories.getTrajectory(entityId))).get(entityId));
+		}
+		assertNull(withTrajectories.getTrajectory(-1));
+	}
+
+	/**
+	 * The next version of a table must hold the current trajectories of the touched entities, removing the ones that
+	 * were closed, while the previous version keeps the old ones.
+	 */
+	@Test
+	void theNextVersionOfATableHoldsTheTouchedTrajectories() {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(43, 1_000, 3_000));
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.subList(0, 2_000).forEach(backlog::integrate);
+		final var previous = BacklogSnapshot.TrajectoryTable.of(backlog.trajectories());
+		final Map<Long, String> previousTrajectories = trajectoriesOf(backlog.trajectories());
+
+		final var touchedEntities = new LongLongHashMap(1024);
+		for (TransitionEvent event : events.subList(2_000, events.size())) {
+			backlog.integrate(event);
+			touchedEntities.put(event.getEntityId(), 1);
+		}
+		final var next = previous.with(touchedEntities, backlog::getTrajectory);
+
+		final Map<Long, String> expected = trajectoriesOf(backlog.trajectories());
+		assertEquals(expected, trajectoriesOf(imagesOf(next)));
+		assertEquals(expected.size(), next.size());
+		assertEquals(previousTrajectories, trajectoriesOf(imagesOf(previous)));
+		assertEquals(previousTrajectories.size(), previous.size());
+	}
+
+	private static Stream<Trajectory> imagesOf(final BacklogSnapshot.TrajectoryTable table) {
+		final var states = new StateDictionary();
+		return table.images().map(image -> image.toTrajectory(states));
+	}
+
+	private static Set<String> cellsOf(final Stream<Backlog.Cell> cells) {
+		return cells
+				.map(cell -> Arrays.toString(cell.coordinates) + " " + cell.population + " " + cell.variation + " " + cell.accumulatedPopulation)
+				.collect(Collectors.toCollection(TreeSet::new));
+	}
+
+	private static Map<Long, String> trajectoriesOf(final Stream<Trajectory> trajectories) {
+		return trajectories.collect(Collectors.toMap(
+				trajectory -> trajectory.entityId,
+				trajectory -> trajectory.events().stream()
+						.map(event -> event.getArrivalSerialNumber() + "/" + event.getEventId() + "/" + event)
+						.collect(Collectors.joining("\n")),
+				(first, second) -> first,
+				TreeMap::new
+		));
+	}
+}
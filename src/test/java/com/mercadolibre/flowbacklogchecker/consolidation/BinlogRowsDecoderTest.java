@@ -0,0 +1,162 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.github.shyiko.mysql.binlog.BinaryLogFileReader;
+import com.github.shyiko.mysql.binlog.event.Event;
+import org.junit.jupiter.api.Test;
+
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Decodes the binary log files in the "binlog" test resources directory, which are laid out as the ones of a MySQL 5.7
+ * server in row format with the checksums disabled. Their columns are not in the order of the {@link EventRecord}
+ * fields, and the states are JSON columns, so they are encoded in the MySQL binary JSON format. The transactions are:
+ * <ol>
+ *     <li>the creation of the entities 10 and 14, with the ids 1 and 2. The creation date of the entity 14 is a JSON
+ *     null;</li>
+ *     <li>an insertion into another table of the same schema;</li>
+ *     <li>the PICKING of the entity 10, with the id 4;</li>
+ *     <li>the creation of the entity 12, with the id 3, committed after the one with the id 4, and an "inbound-unit"
+ *     event with the id 5.</li>
+ * </ol>
+ * Then the first file rotates to the second one, where a transaction has the PICKING of the entity 14 and the PACKING
+ * of the entity 10, with the ids 6 and 7.
+ */
+class BinlogRowsDecoderTest {
+
+	private static final List<String> COLUMN_NAMES = List.of(
+			"id", "date_created", "entity_type", "logistic_center", "entity_id", "event_id", "struct_version", "new_state", "old_state");
+
+	@Test
+	void decodesTheInsertedOutboundUnitEvents() throws Exception {
+		final List<EventRecord> records = provide(0);
+
+		assertEquals(List.of(1L, 2L, 4L, 6L, 7L), serialsOf(records));
+		assertEquals(List.of(1_000_001L, 1_000_002L, 1_000_004L, 1_000_006L, 1_000_007L),
+				records.stream().map(EventRecord::getEventId).collect(Collectors.toList()));
+		assertEquals(List.of(10L, 14L, 10L, 14L, 10L), records.stream().map(EventRecord::getEntityId).collect(Collectors.toList()));
+		assertEquals(Instant.parse("2021-10-01T12:00:04.123456Z"), records.get(2).getArrivalDate());
+		for (EventRecord eventRecord : records) {
+			assertEquals(BinlogRowsDecoder.ENTITY_TYPE, eventRecord.getEntityType());
+			assertEquals(1, eventRecord.getStructVersion());
+		}
+
+		// the binary JSON states are parsed like the textual ones the table queries give
+		final List<TransitionEvent> expected = TestEvents.parse(List.of(
+				record(1, 10, "PENDING", null),
+				record(2, 14, "PENDING", null),
+				record(4, 10, "PICKING", "PENDING"),
+				record(6, 14, "PICKING", "PENDING"),
+				record(7, 10, "PACKING", "PICKING")
+		));
+		final List<TransitionEvent> actual = TestEvents.parse(records);
+		for (int index = 0; index < expected.size(); ++index) {
+			assertEquals(expected.get(index).getNewState(), actual.get(index).getNewState());
+			assertEquals(expected.get(index).getOldState(), actual.get(index).getOldState());
+		}
+	}
+
+	@Test
+	void skipsTheRowsNotAfterTheStartingSerialNumber() throws Exception {
+		assertEquals(List.of(6L, 7L), serialsOf(provide(4)));
+		assertEquals(List.of(6L, 7L), serialsOf(provide(5)));
+		assertEquals(List.of(7L), serialsOf(provide(6)));
+	}
+
+	@Test
+	void stopsWhenTheSinkAsksTo() throws Exception {
+		final var records = new ArrayList<EventRecord>();
+		source().provideWhile(0, eventRecord -> {
+			records.add(eventRecord);
+			return records.size() < 3;
+		});
+		assertEquals(List.of(1L, 2L, 4L), serialsOf(records));
+	}
+
+	/**
+	 * Each transaction end is mapped to the greatest id decoded or skipped up to it, including the ids of the skipped
+	 * late row and of the other entity type, and to the position of the end of its XID event.
+	 */
+	@Test
+	void mapsTheTransactionsEndsToTheLastSerialNumbers() throws Exception {
+		final var commits = new ArrayList<String>();
+		final var decoder = new BinlogRowsDecoder("backlogprd", "incoming_events", COLUMN_NAMES, 0, "binlog.000001",
+				(binlogFilename, binlogPosition, lastArrivalSerialNumber) ->
+						commits.add(binlogFilename + ":" + binlogPosition + " #" + lastArrivalSerialNumber));
+		for (Path file : binlogFiles()) {
+			try (var reader = new BinaryLogFileReader(Files.newInputStream(file), BinlogRowsDecoder.eventDeserializer())) {
+				for (Event event = reader.readEvent(); event != null; event = reader.readEvent()) {
+					decoder.decode(event, eventRecord -> true);
+				}
+			}
+		}
+		assertEquals(List.of(
+				"binlog.000001:791 #2",
+				"binlog.000001:971 #2",
+				"binlog.000001:1601 #4",
+				"binlog.000001:2289 #5",
+				"binlog.000002:1158 #7"
+		), commits);
+		assertEquals(7, decoder.getLastArrivalSerialNumber());
+	}
+
+	@Test
+	void requiresTheColumnsOfTheEventRecords() {
+		final var columnNames = new ArrayList<>(COLUMN_NAMES);
+		columnNames.remove("event_id");
+		assertThrows(IllegalArgumentException.class,
+				() -> new BinlogRowsDecoder("backlogprd", "incoming_events", columnNames, 0, "binlog.000001", null));
+	}
+
+	@Test
+	void rejectsATableWhoseLayoutChanged() {
+		final var columnNames = new ArrayList<>(COLUMN_NAMES);
+		columnNames.add("added_column");
+		final var source = new RecordedBinlogEventsSource(binlogFiles(), "backlogprd", "incoming_events", columnNames);
+		assertThrows(IllegalStateException.class, () -> source.provideWhile(0, eventRecord -> true));
+	}
+
+	private static List<EventRecord> provide(final long startingSerialNumber) throws Exception {
+		final var records = new ArrayList<EventRecord>();
+		source().provideWhile(startingSerialNumber, records::add);
+		return records;
+	}
+
+	private static RecordedBinlogEventsSource source() {
+		return new RecordedBinlogEventsSource(binlogFiles(), "backlogprd", "incoming_events", COLUMN_NAMES);
+	}
+
+	private static List<Path> binlogFiles() {
+		try {
+			final Path directory = Path.of(BinlogRowsDecoderTest.class.getResource("/binlog").toURI());
+			return List.of(directory.resolve("binlog.000001"), directory.resolve("binlog.000002"));
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static EventRecord record(final long id, final long entity, final String newStatus, final String oldStatus) {
+		return new EventRecord(
+				1_000_000 + id,
+				id,
+				Instant.parse("2021-10-01T12:00:00Z").plusSeconds(id),
+				entity,
+				BinlogRowsDecoder.ENTITY_TYPE,
+				1,
+				TestEvents.stateJson(newStatus, entity),
+				oldStatus == null ? null : TestEvents.stateJson(oldStatus, entity)
+		);
+	}
+
+	private static List<Long> serialsOf(final List<EventRecord> records) {
+		return records.stream().map(EventRecord::getArrivalSerialNumber).collect(Collectors.toList());
+	}
+}
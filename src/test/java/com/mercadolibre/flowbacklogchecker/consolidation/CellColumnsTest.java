@@ -0,0 +1,107 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.mercadolibre.flowbacklogchecker.consolidation.PartitionsCatalog.PartitionsDb;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CellColumnsTest {
+
+	private static final PartitionsCatalog PARTITIONS_CATALOG = new PartitionsCatalog();
+
+	/** The number of cells from which the kernels split the cells in halves that run in parallel. */
+	private static final int PARALLELISM_THRESHOLD = 64 * 1024;
+
+	@Test
+	void givesThePopulationOfTheScannedCellsBelowTheParallelismThreshold() {
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		TestEvents.parse(TestEvents.lifecycles(61, 5_000, 15_000)).forEach(backlog::integrate);
+		assertTrue(backlog.cells.size() < PARALLELISM_THRESHOLD);
+
+		assertSamePopulationAsTheScan(backlog);
+	}
+
+	/** The cells of the events are copied with shifted dates, so that there are enough to be split twice. */
+	@Test
+	void givesThePopulationOfTheScannedCellsAboveTheParallelismThreshold() {
+		final var events = new Backlog(PARTITIONS_CATALOG, 0, null);
+		TestEvents.parse(TestEvents.lifecycles(62, 5_000, 15_000)).forEach(events::integrate);
+		final List<Backlog.Cell> cells = events.cells.toCells();
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		final int dateIn = PartitionsDb.dateIn.ordinal();
+		final int deadline = PartitionsDb.deadline.ordinal();
+		for (int shift = 0; backlog.cells.size() <= 4 * PARALLELISM_THRESHOLD; ++shift) {
+			for (Backlog.Cell cell : cells) {
+				final Object[] coordinates = cell.coordinates.clone();
+				coordinates[dateIn] = new Timestamp(((Timestamp) coordinates[dateIn]).getTime() + (shift % 300) * 60_000L);
+				coordinates[deadline] = new Timestamp(((Timestamp) coordinates[deadline]).getTime() + (shift / 300) * 60_000L);
+				final var content = new Backlog.CellContent(cell.population + shift % 3, cell.accumulatedPopulation + shift % 5);
+				content.variation = cell.variation - shift % 2;
+				backlog.loadCell(coordinates, content);
+			}
+		}
+
+		assertSamePopulationAsTheScan(backlog);
+	}
+
+	/** Compares the columnar population with the one of {@link Queries#cellBasedPopulationGrouped} for some queries. */
+	private static void assertSamePopulationAsTheScan(final Backlog backlog) {
+		final var queries = new Queries(backlog);
+		final int status = PartitionsDb.status.ordinal();
+		final int area = PartitionsDb.area.ordinal();
+		final int deadline = PartitionsDb.deadline.ordinal();
+		final Timestamp firstDeadline = Timestamp.valueOf("2021-10-02 10:00:03");
+
+		assertSamePopulation(queries, Map.of(), null, status);
+		assertSamePopulation(queries, Map.of(status, Set.of("PICKING", "PACKING")::contains), null, status, deadline);
+		assertSamePopulation(
+				queries,
+				Map.of(deadline, value -> value != null && firstDeadline.compareTo((Timestamp) value) <= 0, area, "RK"::equals),
+				content -> content.population > 1 && content.accumulatedPopulation > content.population && content.variation >= 0,
+				area, status, deadline
+		);
+	}
+
+	private static void assertSamePopulation(
+			final Queries queries,
+			final Map<Integer, Predicate<Object>> valueFilters,
+			final Predicate<Backlog.CellContent> contentFilter,
+			final int... partitionOrdinals
+	) {
+		final var filter = new CellColumns.Filter();
+		valueFilters.forEach(filter::where);
+		if (contentFilter != null) {
+			filter.whereContent((population, variation, accumulatedPopulation) -> {
+				final var content = new Backlog.CellContent(population, accumulatedPopulation);
+				content.variation = variation;
+				return contentFilter.test(content);
+			});
+		}
+		final Map<String, Integer> scanned = new TreeMap<>();
+		queries.cellBasedPopulationGrouped(
+				coordinates -> valueFilters.entrySet().stream().allMatch(entry -> entry.getValue().test(coordinates[entry.getKey()])),
+				contentFilter == null ? content -> true : contentFilter,
+				partitionOrdinals
+		).forEach((key, intAccum) -> {
+			if (intAccum.register != 0) {
+				scanned.put(key.toString(), intAccum.register);
+			}
+		});
+		final Map<String, Integer> columnar = new TreeMap<>();
+		queries.columnarPopulationGrouped(filter, partitionOrdinals)
+				.forEach((key, intAccum) -> columnar.put(key.toString(), intAccum.register));
+
+		assertFalse(scanned.isEmpty(), "grouped by " + Arrays.toString(partitionOrdinals));
+		assertEquals(scanned, columnar, "grouped by " + Arrays.toString(partitionOrdinals));
+	}
+}
@@ -0,0 +1,138 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CellHistoryTest {
+
+	private static final PartitionsCatalog PARTITIONS_CATALOG = new PartitionsCatalog();
+
+	/** Small, so that the reconstructions cross several keyframes. */
+	private static final int KEYFRAME_INTERVAL = 700;
+
+	@TempDir
+	Path directory;
+
+	/** The reconstructions at the events around the keyframes boundaries must be the cells of a replayed backlog. */
+	@Test
+	void reconstructsTheCellsOfAReplayedBacklog() throws Exception {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(21, 1_000, 3_000));
+		final var settings = settings();
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		backlog.enableCellHistory(settings.forPart(0, "shard-0"));
+		events.forEach(backlog::integrate);
+		backlog.flushCellHistory();
+
+		for (int count : keyframeBoundaryCounts(events.size())) {
+			final TransitionEvent last = events.get(count - 1);
+			final Set<String> expected = cellsOf(replay(events.subList(0, count)).getCells());
+
+			final var bySerial = CellHistory.cellsAt(directory, PARTITIONS_CATALOG, last.getArrivalSerialNumber());
+			assertEquals(expected, cellsOf(bySerial.cells.stream()), "at event " + count);
+			assertEquals(last.getArrivalSerialNumber(), bySerial.lastEventArrivalSerialNumber);
+
+			final var byDate = CellHistory.cellsAt(directory, PARTITIONS_CATALOG, last.getArrivalDate());
+			assertEquals(expected, cellsOf(byDate.cells.stream()), "at the date of event " + count);
+			assertEquals(last.getArrivalDate(), byDate.lastEventArrivalDate);
+		}
+		backlog.closeCellHistory();
+	}
+
+	/** The parts of a sharded backlog record their own cells, and the reconstruction sums them. */
+	@Test
+	void sumsTheCellsOfTheParts() throws Exception {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(22, 1_000, 3_000));
+		final var settings = settings();
+		final var parts = new Backlog[3];
+		for (int index = 0; index < parts.length; ++index) {
+			parts[index] = new Backlog(PARTITIONS_CATALOG, 0, null);
+			parts[index].enableCellHistory(settings.forPart(0, "shard-" + index));
+		}
+		events.forEach(event -> parts[(int) (event.getEntityId() % parts.length)].integrate(event));
+		for (Backlog part : parts) {
+			part.flushCellHistory();
+		}
+
+		for (int count : keyframeBoundaryCounts(events.size())) {
+			final TransitionEvent last = events.get(count - 1);
+			final Set<String> expected = cellsOf(replay(events.subList(0, count)).getCells());
+			assertEquals(expected, cellsOf(CellHistory.cellsAt(directory, PARTITIONS_CATALOG, last.getArrivalSerialNumber()).cells.stream()), "at event " + count);
+			assertEquals(expected, cellsOf(CellHistory.cellsAt(directory, PARTITIONS_CATALOG, last.getArrivalDate()).cells.stream()), "at the date of event " + count);
+		}
+		for (Backlog part : parts) {
+			part.closeCellHistory();
+		}
+	}
+
+	/**
+	 * A restart from a checkpoint older than the last recorded event starts a new generation. The events before said
+	 * checkpoint are reconstructed from the old generation, and the following ones from the new one.
+	 */
+	@Test
+	void reconstructsFromTheGenerationOfTheEvent() throws Exception {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(23, 1_000, 3_000));
+		final var settings = settings();
+		final var firstRun = new Backlog(PARTITIONS_CATALOG, 0, null);
+		firstRun.enableCellHistory(settings.forPart(0, "shard-0"));
+		events.subList(0, 2_000).forEach(firstRun::integrate);
+		firstRun.closeCellHistory();
+
+		final int checkpointCount = 1_500;
+		final long generation = events.get(checkpointCount - 1).getArrivalSerialNumber();
+		final var secondRun = replay(events.subList(0, checkpointCount));
+		secondRun.enableCellHistory(settings.forPart(generation, "shard-0"));
+		events.subList(checkpointCount, events.size()).forEach(secondRun::integrate);
+		secondRun.flushCellHistory();
+
+		for (int count : new int[] {1, 700, 1_499, 1_500, 1_501, 1_999, 2_000, 2_500, 3_000}) {
+			final TransitionEvent last = events.get(count - 1);
+			final Set<String> expected = cellsOf(replay(events.subList(0, count)).getCells());
+			assertEquals(expected, cellsOf(CellHistory.cellsAt(directory, PARTITIONS_CATALOG, last.getArrivalSerialNumber()).cells.stream()), "at event " + count);
+			assertEquals(expected, cellsOf(CellHistory.cellsAt(directory, PARTITIONS_CATALOG, last.getArrivalDate()).cells.stream()), "at the date of event " + count);
+		}
+		// the first generation started with an empty backlog
+		final Instant beforeFirstEvent = events.get(0).getArrivalDate().minusSeconds(1);
+		assertEquals(Set.of(), cellsOf(CellHistory.cellsAt(directory, PARTITIONS_CATALOG, beforeFirstEvent).cells.stream()));
+		secondRun.closeCellHistory();
+	}
+
+	private CellHistory.Settings settings() {
+		final var settings = new CellHistory.Settings();
+		settings.directory = directory;
+		settings.keyframeInterval = KEYFRAME_INTERVAL;
+		return settings;
+	}
+
+	/** @return the numbers of integrated events at, and next to, the keyframes boundaries. */
+	private static int[] keyframeBoundaryCounts(final int eventsCount) {
+		final var counts = new TreeSet<Integer>(List.of(1, eventsCount));
+		for (int boundary = KEYFRAME_INTERVAL; boundary < eventsCount; boundary += KEYFRAME_INTERVAL) {
+			counts.addAll(List.of(boundary - 1, boundary, boundary + 1));
+		}
+		return counts.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private static Backlog replay(final List<TransitionEvent> events) {
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.forEach(backlog::integrate);
+		return backlog;
+	}
+
+	private static Set<String> cellsOf(final Stream<Backlog.Cell> cells) {
+		return cells
+				.filter(cell -> cell.population != 0)
+				.map(cell -> Arrays.toString(cell.coordinates) + " " + cell.population)
+				.collect(Collectors.toCollection(TreeSet::new));
+	}
+}
@@ -0,0 +1,153 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CellStoreTest {
+
+	/** A status partition and a date partition whose dictionary holds only 7 values. */
+	private static final List<Partition> PARTITIONS = List.of(partition(0, 4), partition(1, 3));
+
+	@Test
+	void keepsTheSameCellsAsAMapOfCoordinates() {
+		final var store = new CellStore(PARTITIONS, 16);
+		final Map<List<Object>, Integer> expected = new HashMap<>();
+		final var random = new Random(1);
+		final String[] statuses = {"PENDING", "PICKING", "PACKING", null};
+		// the dates slide, so that far more of them than the dictionary holds come and go
+		for (int step = 0; step < 100_000; ++step) {
+			if (!expected.isEmpty() && (expected.size() == 6 || random.nextBoolean())) {
+				final var cells = new ArrayList<>(expected.keySet());
+				final List<Object> coordinatesKey = cells.get(random.nextInt(cells.size()));
+				store.decrement(store.keyOf(coordinatesKey.toArray()), 1);
+				expected.computeIfPresent(coordinatesKey, (cell, population) -> population == 1 ? null : population - 1);
+			} else {
+				final Object[] coordinates = {
+						statuses[random.nextInt(statuses.length)],
+						new Timestamp((step / 1000 + random.nextInt(3)) * 60_000L)
+				};
+				store.increment(store.keyOf(coordinates), 1);
+				expected.merge(Arrays.asList(coordinates), 1, Integer::sum);
+			}
+		}
+		assertTrue(store.reclaims() > 0);
+
+		final Map<List<Object>, Integer> actual = new HashMap<>();
+		store.forEach((key, population, variation, accumulatedPopulation) ->
+				actual.put(Arrays.asList(store.coordinatesOf(key)), population));
+		assertEquals(expected, actual);
+		for (var cell : expected.entrySet()) {
+			final var content = store.get(store.findKeyOf(cell.getKey().toArray()));
+			assertNotNull(content);
+			assertEquals(cell.getValue().intValue(), content.population);
+		}
+	}
+
+	@Test
+	void findingAKeyDoesNotAddTheValues() {
+		final var store = new CellStore(PARTITIONS, 16);
+		store.increment(store.keyOf(new Object[]{"PENDING", new Timestamp(0)}), 1);
+		for (int minute = 1; minute < 1000; ++minute) {
+			final Object[] coordinates = {"PENDING", new Timestamp(minute * 60_000L)};
+			assertEquals(CellStore.NO_KEY, store.findKeyOf(coordinates));
+			assertNull(store.get(store.findKeyOf(coordinates)));
+		}
+		assertEquals(0, store.reclaims());
+	}
+
+	@Test
+	void reclaimsTheIdsOfTheRemovedCellsOnlyWhenFull() {
+		final var store = new CellStore(PARTITIONS, 16);
+		final var keys = new ArrayList<Long>();
+		for (int minute = 0; minute < 7; ++minute) {
+			final long key = store.keyOf(new Object[]{"PENDING", new Timestamp(minute * 60_000L)});
+			store.increment(key, 1);
+			keys.add(key);
+		}
+		assertThrows(IllegalStateException.class, () -> store.keyOf(new Object[]{"PENDING", new Timestamp(7 * 60_000L)}));
+
+		store.decrement(keys.get(2), 1);
+		// the removed cell still decodes until some ids are reclaimed
+		assertArrayEquals(new Object[]{"PENDING", new Timestamp(2 * 60_000L)}, store.coordinatesOf(keys.get(2)));
+		assertEquals(0, store.reclaims());
+
+		final long key = store.keyOf(new Object[]{"PENDING", new Timestamp(7 * 60_000L)});
+		store.increment(key, 1);
+		assertEquals(1, store.reclaims());
+		assertEquals(CellStore.NO_KEY, store.findKeyOf(new Object[]{"PENDING", new Timestamp(2 * 60_000L)}));
+		assertArrayEquals(new Object[]{"PENDING", new Timestamp(7 * 60_000L)}, store.coordinatesOf(key));
+		assertEquals(7, store.size());
+	}
+
+	@Test
+	void keepsTheIdsOfTheLastResolvedKey() {
+		final var store = new CellStore(PARTITIONS, 16);
+		for (int minute = 0; minute < 6; ++minute) {
+			store.increment(store.keyOf(new Object[]{"PENDING", new Timestamp(minute * 60_000L)}), 1);
+		}
+		// the old state of an event whose cell is absent, resolved before the new one
+		final long decrementedKey = store.keyOf(new Object[]{"PICKING", new Timestamp(6 * 60_000L)});
+		assertThrows(IllegalStateException.class, () -> store.keyOf(new Object[]{"PICKING", new Timestamp(7 * 60_000L)}));
+		assertArrayEquals(new Object[]{"PICKING", new Timestamp(6 * 60_000L)}, store.coordinatesOf(decrementedKey));
+	}
+
+	@Test
+	void aCopyDoesNotChangeWithTheOriginal() {
+		final var store = new CellStore(PARTITIONS, 16);
+		final long key = store.keyOf(new Object[]{"PENDING", new Timestamp(0)});
+		store.increment(key, 2);
+		final var copy = new CellStore(store);
+		store.decrement(key, 2);
+		for (int minute = 1; minute < 20; ++minute) {
+			final long otherKey = store.keyOf(new Object[]{"PENDING", new Timestamp(minute * 60_000L)});
+			store.increment(otherKey, 1);
+			store.decrement(otherKey, 1);
+		}
+		assertEquals(2, copy.get(key).population);
+		assertArrayEquals(new Object[]{"PENDING", new Timestamp(0)}, copy.coordinatesOf(key));
+	}
+
+	private static Partition partition(final int ordinal, final int keyBits) {
+		return new Partition() {
+			@Override
+			public String getColumnName() {
+				return "column_" + ordinal;
+			}
+
+			@Override
+			public int getOrdinal() {
+				return ordinal;
+			}
+
+			@Override
+			public int getKeyBits() {
+				return keyBits;
+			}
+
+			@Override
+			public Class<?> getValueType() {
+				return Object.class;
+			}
+
+			@Override
+			public Function<EntityState, Object> discriminator() {
+				return state -> null;
+			}
+		};
+	}
+}
@@ -0,0 +1,115 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.mercadolibre.flowbacklogchecker.consolidation.BacklogCheckpointTest.cellsOf;
+import static com.mercadolibre.flowbacklogchecker.consolidation.BacklogCheckpointTest.trajectoriesOf;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ColdTrajectoryStoreTest {
+
+	private static final PartitionsCatalog PARTITIONS_CATALOG = new PartitionsCatalog();
+
+	@TempDir
+	Path directory;
+
+	/**
+	 * The trajectories spilled to the store, and faulted back in when an event of their entity arrives, must end as the
+	 * ones of a backlog that spills nothing, and so must the cells.
+	 */
+	@Test
+	void faultsInLikeABacklogThatSpillsNothing() throws Exception {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(51, 3_000, 9_000));
+		final var reference = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.forEach(reference::integrate);
+
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		backlog.enableColdTier(coldTier());
+		try {
+			events.subList(0, 4_000).forEach(backlog::integrate);
+			final Set<Long> spilledEntities = spilledEntitiesOf(backlog);
+			assertFalse(spilledEntities.isEmpty());
+			assertTrue(events.subList(4_000, events.size()).stream().anyMatch(event -> spilledEntities.contains(event.getEntityId())));
+			events.subList(4_000, events.size()).forEach(backlog::integrate);
+
+			assertEquals(cellsOf(reference), cellsOf(backlog));
+			assertEquals(trajectoriesOf(reference), trajectoriesOf(backlog));
+			assertEquals(reference.openTrajectoriesCount(), backlog.openTrajectoriesCount());
+		} finally {
+			backlog.closeColdTier();
+		}
+	}
+
+	/**
+	 * A process that restarts from a checkpoint opens its store in the directory of the store of the previous run,
+	 * which was never closed and whose image was never released. The stale files must be deleted, and the new store
+	 * must spill and fault in like the first one.
+	 */
+	@Test
+	void aRestartReusesTheDirectoryOfAStoreStillInUse() throws Exception {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(52, 3_000, 9_000));
+		final var reference = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.forEach(reference::integrate);
+
+		final var coldTier = coldTier();
+		final var firstRun = new Backlog(PARTITIONS_CATALOG, 0, null);
+		firstRun.enableColdTier(coldTier);
+		events.subList(0, 4_000).forEach(firstRun::integrate);
+		final Path file = directory.resolve("backlog.ckpt");
+		final var checkpoint = BacklogCheckpoint.capture(firstRun);
+		BacklogCheckpoint.write(checkpoint, file);
+		checkpoint.release();
+		assertTrue(firstRun.openTrajectoriesCount() > firstRun.hotTrajectoriesCount());
+		// the first run dies here, holding its segments and an image
+		firstRun.coldTrajectoriesImage();
+
+		final var restored = BacklogCheckpoint.read(file, PARTITIONS_CATALOG);
+		restored.enableColdTier(coldTier);
+		try {
+			try (var staleImages = Files.newDirectoryStream(coldTier.directory, "image-*")) {
+				assertFalse(staleImages.iterator().hasNext());
+			}
+			try (var segments = Files.newDirectoryStream(coldTier.directory, "*.cold")) {
+				for (Path segment : segments) {
+					assertEquals(0, Files.size(segment));
+				}
+			}
+			events.subList(4_000, 6_000).forEach(restored::integrate);
+			final Set<Long> spilledEntities = spilledEntitiesOf(restored);
+			assertTrue(events.subList(6_000, events.size()).stream().anyMatch(event -> spilledEntities.contains(event.getEntityId())));
+			events.subList(6_000, events.size()).forEach(restored::integrate);
+
+			assertEquals(cellsOf(reference), cellsOf(restored));
+			assertEquals(trajectoriesOf(reference), trajectoriesOf(restored));
+		} finally {
+			restored.closeColdTier();
+		}
+	}
+
+	/** A tier with few hot trajectories and small segments, so that most trajectories are spilled and compacted. */
+	private ColdTrajectoryStore.Settings coldTier() {
+		final var coldTier = new ColdTrajectoryStore.Settings();
+		coldTier.directory = directory.resolve("cold");
+		coldTier.hotTrajectoriesBudget = 200;
+		coldTier.sweepInterval = 500;
+		coldTier.segmentSize = 16 * 1024;
+		return coldTier;
+	}
+
+	private static Set<Long> spilledEntitiesOf(final Backlog backlog) throws Exception {
+		final Set<Long> spilledEntities = new HashSet<>();
+		try (var image = backlog.coldTrajectoriesImage()) {
+			image.forEach(new StateDictionary(), trajectory -> spilledEntities.add(trajectory.entityId));
+		}
+		return spilledEntities;
+	}
+}
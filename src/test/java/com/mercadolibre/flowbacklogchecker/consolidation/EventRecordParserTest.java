@@ -0,0 +1,218 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import static java.time.temporal.ChronoUnit.HOURS;
+import static java.time.temporal.ChronoUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class EventRecordParserTest {
+
+	private final ObjectMapper objectMapper = new Boot().objectMapper();
+
+	private final EventRecordParser parser = new EventRecordParser(objectMapper);
+
+	/** The streaming parser gives the same states the reflective one of the baseline gave, for the JSON it accepted. */
+	@Test
+	void parsesLikeTheDataBinding() throws Exception {
+		final var random = new Random(7);
+		final var parseContext = new ParseContext();
+		BaselineOutboundUnitState.lastDateCreated = new Timestamp(0);
+		for (int serial = 1; serial <= 20_000; ++serial) {
+			final String newStateJson = randomStateJson(random);
+			final String oldStateJson = random.nextInt(4) == 0 ? "null" : randomStateJson(random);
+			final var eventRecord = new EventRecord(serial, serial, Instant.ofEpochSecond(serial), serial % 100, "outbound-unit", 1, newStateJson, oldStateJson);
+
+			final TransitionEvent transitionEvent = parser.parse(eventRecord, parseContext);
+			// in the same order the baseline read them
+			final var expectedNewState = objectMapper.readValue(newStateJson, BaselineOutboundUnitState.class);
+			final var expectedOldState = objectMapper.readValue(oldStateJson, BaselineOutboundUnitState.class);
+
+			assertSameState(expectedNewState, transitionEvent.getNewState(), newStateJson);
+			assertSameState(expectedOldState, transitionEvent.getOldState(), oldStateJson);
+		}
+	}
+
+	@Test
+	void theResultDoesNotDependOnTheParseOrder() throws Exception {
+		final var random = new Random(11);
+		final var records = new ArrayList<EventRecord>();
+		for (int serial = 1; serial <= 2_000; ++serial) {
+			records.add(new EventRecord(serial, serial, Instant.ofEpochSecond(serial), serial, "outbound-unit", 1, randomStateJson(random), randomStateJson(random)));
+		}
+		final var sequentialContext = new ParseContext();
+		final var expected = new ArrayList<TransitionEvent>();
+		for (EventRecord eventRecord : records) {
+			expected.add(parser.parse(eventRecord, sequentialContext));
+		}
+
+		final var shuffled = new ArrayList<>(records);
+		Collections.shuffle(shuffled, random);
+		final var parsed = new TransitionEvent[records.size()];
+		for (EventRecord eventRecord : shuffled) {
+			parsed[(int) eventRecord.getArrivalSerialNumber() - 1] = parser.parse(eventRecord);
+		}
+		final var resolvingContext = new ParseContext();
+		for (int index = 0; index < parsed.length; ++index) {
+			final TransitionEvent transitionEvent = resolvingContext.resolve(parsed[index]);
+			assertEquals(expected.get(index).getNewState(), transitionEvent.getNewState());
+			assertEquals(expected.get(index).getOldState(), transitionEvent.getOldState());
+		}
+	}
+
+	@Test
+	void theLastCreationDateIsKeptByLogisticCenter() throws Exception {
+		final var parseContext = new ParseContext();
+		parser.parse(record(1, "{\"warehouse_id\":\"BRSP01\",\"status\":\"PENDING\",\"date_created\":\"2021-10-01T12:34:56Z\"}"), parseContext);
+		parser.parse(record(2, "{\"warehouse_id\":\"BRSP02\",\"status\":\"PENDING\",\"date_created\":\"2021-10-03T08:00:00Z\"}"), parseContext);
+
+		final var state = parser.parse(record(3, "{\"warehouse_id\":\"BRSP01\",\"status\":\"PENDING\",\"date_created\":null}"), parseContext).getNewState();
+
+		assertEquals(Timestamp.from(Instant.parse("2021-10-01T12:00:00Z")), state.getDateIn());
+	}
+
+	@Test
+	void acceptsWhatTheDataBindingRejected() throws Exception {
+		final var state = parser.parse(record(1, "{\"status\":\"PENDING\",\"date_created\":\"2021-10-01T12:34:56.789Z\",\"estimated_time_departure\":null}"), new ParseContext()).getNewState();
+
+		assertEquals(Timestamp.from(Instant.parse("2021-10-01T12:00:00Z")), state.getDateIn());
+		assertNull(state.getDeadline());
+	}
+
+	@Test
+	void rejectsTheUnknownStructVersions() {
+		final var eventRecord = new EventRecord(1, 1, Instant.EPOCH, 1, "outbound-unit", 0, "{}", "null");
+
+		assertThrows(EventRecordParser.NotSupportedStructureVersion.class, () -> parser.parse(eventRecord));
+	}
+
+	private static EventRecord record(final long serial, final String newStateJson) {
+		return new EventRecord(serial, serial, Instant.ofEpochSecond(serial), serial, "outbound-unit", 1, newStateJson, "null");
+	}
+
+	private static void assertSameState(final BaselineOutboundUnitState expected, final EntityState actual, final String json) {
+		if (expected == null) {
+			assertNull(actual, json);
+			return;
+		}
+		assertEquals(expected.getLogisticCenter(), actual.getLogisticCenter(), json);
+		assertEquals(expected.getWorkflow(), actual.getWorkflow(), json);
+		assertEquals(expected.getStatus(), actual.getStatus(), json);
+		assertEquals(expected.getDateIn(), actual.getDateIn(), json);
+		assertEquals(expected.getArea(), actual.getArea(), json);
+		assertEquals(expected.getDeadline(), actual.getDeadline(), json);
+		assertEquals(expected.isUltimate(), actual.isUltimate(), json);
+	}
+
+	/** A state with the fields in random order, some of them missing or null, and fields the states do not have. */
+	private static String randomStateJson(final Random random) {
+		final var fields = new ArrayList<String>();
+		fields.add("\"warehouse_id\":\"BRSP01\"");
+		if (random.nextBoolean()) {
+			fields.add("\"group_type\":" + pick(random, "null", "\"wf\"", "\"pick-and-pack\""));
+		}
+		fields.add("\"status\":" + pick(random, "null", "\"PENDING\"", "\"PICKING\"", "\"PACKED\"", "\"OUT\""));
+		if (random.nextInt(5) != 0) {
+			fields.add("\"date_created\":" + pick(random, "null", dateJson(random), dateJson(random)));
+		}
+		if (random.nextBoolean()) {
+			fields.add("\"storage_id\":" + pick(random, "null", "\"RK-01-02\"", "\"RK\"", "\"-\"", "\"--B\"", "\"A--\"", "\"AB-CD-EF\"", "\"\""));
+		}
+		fields.add("\"estimated_time_departure\":" + dateJson(random));
+		if (random.nextInt(4) == 0) {
+			fields.add("\"ultimate\":" + random.nextBoolean());
+		}
+		if (random.nextInt(3) == 0) {
+			fields.add("\"unknown\":{\"nested\":[1,{\"status\":\"OUT\"}],\"text\":\"x\"}");
+		}
+		Collections.shuffle(fields, random);
+		return "{" + String.join(",", fields) + "}";
+	}
+
+	/** A date in one of the formats the data binding accepted: whole seconds ISO-8601 UTC, or epoch millis. */
+	private static String dateJson(final Random random) {
+		final Instant date = Instant.parse("2021-09-01T00:00:00Z").plusMillis((long) (random.nextDouble() * 90 * 86_400_000L));
+		return random.nextBoolean()
+				? "\"" + date.truncatedTo(ChronoUnit.SECONDS) + "\""
+				: Long.toString(date.toEpochMilli());
+	}
+
+	private static String pick(final Random random, final String... values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	/**
+	 * The outbound unit state as the baseline read it, through the setters called by the data binding. The last creation
+	 * date is global instead of by logistic center, hence the events of {@link #parsesLikeTheDataBinding()} have a
+	 * single logistic center.
+	 */
+	@Getter
+	static class BaselineOutboundUnitState {
+		private static final Timestamp BIG_BANG = new Timestamp(0);
+
+		static Timestamp lastDateCreated = new Timestamp(0);
+
+		private String logisticCenter;
+
+		private String workflow;
+
+		private String status;
+
+		private Timestamp dateIn;
+
+		private String area;
+
+		private Timestamp deadline;
+
+		private boolean ultimate;
+
+		public void setWarehouseId(String warehouseId) {this.logisticCenter = warehouseId;}
+
+		public void setGroupType(String groupType) {this.workflow = groupType;}
+
+		public void setStatus(String status) {
+			this.status = status;
+			if ("OUT".equals(status)) {
+				this.ultimate = true;
+			} else if ("PENDING".equals(status) && this.dateIn == BIG_BANG) {
+				this.dateIn = Timestamp.from(lastDateCreated.toInstant().truncatedTo(HOURS));
+			}
+		}
+
+		public void setDateCreated(Timestamp dateCreated) {
+			if (dateCreated != null) {
+				this.dateIn = Timestamp.from(dateCreated.toInstant().truncatedTo(HOURS));
+
+				if (dateCreated.after(lastDateCreated)) {
+					lastDateCreated = dateCreated;
+				}
+			} else if ("PENDING".equals(status)) {
+				this.dateIn = Timestamp.from(lastDateCreated.toInstant().truncatedTo(HOURS));
+			} else {
+				this.dateIn = BIG_BANG;
+			}
+		}
+
+		public void setStorageId(String storageId) {
+			final String[] addressFields = storageId != null ? storageId.split("-") : null;
+			this.area = addressFields != null && addressFields.length > 1 ? addressFields[0] : null;
+		}
+
+		public void setEstimatedTimeDeparture(Timestamp estimatedTimeDeparture) {
+			this.deadline = Timestamp.from(estimatedTimeDeparture.toInstant().truncatedTo(SECONDS));
+		}
+
+		public void setUltimate(boolean ultimate) {this.ultimate = ultimate || "OUT".equals(status);}
+	}
+}
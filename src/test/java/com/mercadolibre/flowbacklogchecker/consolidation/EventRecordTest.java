@@ -0,0 +1,69 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import io.r2dbc.spi.Row;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EventRecordTest {
+
+	@Test
+	void readsARow() {
+		final var columns = new HashMap<String, Object>();
+		columns.put("event_id", 7L);
+		columns.put("id", 11L);
+		columns.put("date_created", LocalDateTime.of(2021, 10, 1, 12, 34, 56));
+		columns.put("entity_id", 13L);
+		columns.put("entity_type", "outbound-unit");
+		columns.put("struct_version", 1);
+		columns.put("new_state", "{}");
+		columns.put("old_state", "null");
+
+		final var eventRecord = EventRecord.fromRow(row(columns));
+
+		assertEquals(7, eventRecord.getEventId());
+		assertEquals(11, eventRecord.getArrivalSerialNumber());
+		assertEquals(Instant.parse("2021-10-01T12:34:56Z"), eventRecord.getArrivalDate());
+		assertEquals(13, eventRecord.getEntityId());
+		assertEquals("outbound-unit", eventRecord.getEntityType());
+		assertEquals(1, eventRecord.getStructVersion());
+		assertEquals("{}", eventRecord.getNewStateRawJson());
+		assertEquals("null", eventRecord.getOldStateRawJson());
+	}
+
+	/** Like the JDBC getters, the null numbers are read as zero. */
+	@Test
+	void readsTheNullColumnsOfARow() {
+		final var columns = new HashMap<String, Object>();
+		columns.put("id", 11L);
+
+		final var eventRecord = EventRecord.fromRow(row(columns));
+
+		assertEquals(0, eventRecord.getEventId());
+		assertEquals(11, eventRecord.getArrivalSerialNumber());
+		assertNull(eventRecord.getArrivalDate());
+		assertEquals(0, eventRecord.getEntityId());
+		assertEquals(0, eventRecord.getStructVersion());
+		assertNull(eventRecord.getNewStateRawJson());
+	}
+
+	private static Row row(final Map<String, Object> columns) {
+		return new Row() {
+			@Override
+			public <T> T get(final int index, final Class<T> type) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public <T> T get(final String name, final Class<T> type) {
+				return type.cast(columns.get(name));
+			}
+		};
+	}
+}
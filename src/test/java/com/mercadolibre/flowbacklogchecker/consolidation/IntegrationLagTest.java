@@ -0,0 +1,44 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IntegrationLagTest {
+
+	private static final PartitionsCatalog PARTITIONS_CATALOG = new PartitionsCatalog();
+
+	@Test
+	void isTheTimeSinceTheArrivalOfTheLastIntegratedEvent() {
+		final long[] now = {0};
+		final var integrationLag = new IntegrationLag(() -> now[0]);
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(81, 10, 20));
+		try (
+				var empty = new ShardedBacklog(new Backlog(PARTITIONS_CATALOG, 0, null), 1);
+				var restored = new ShardedBacklog(new Backlog(PARTITIONS_CATALOG, 5, Instant.ofEpochMilli(1_000)), 1)
+		) {
+			now[0] = 1_500;
+			integrationLag.onIntegrated(empty);
+			assertEquals(0, integrationLag.getLagMillis());
+
+			integrationLag.onIntegrated(restored);
+			assertEquals(500, integrationLag.getLagMillis());
+
+			// this thread becomes the dispatcher of the restored backlog
+			final TransitionEvent event = events.get(0);
+			restored.integrate(event);
+			now[0] = event.getArrivalDate().toEpochMilli() + 250;
+			integrationLag.onIntegrated(restored);
+			assertEquals(250, integrationLag.getLagMillis());
+
+			// the clock moves on while no event is integrated, but the lag is the one of the last integration
+			now[0] += 10_000;
+			assertEquals(250, integrationLag.getLagMillis());
+			integrationLag.onIntegrated(restored);
+			assertEquals(10_250, integrationLag.getLagMillis());
+		}
+	}
+}
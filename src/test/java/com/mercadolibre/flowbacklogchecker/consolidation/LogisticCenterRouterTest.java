@@ -0,0 +1,70 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LogisticCenterRouterTest {
+
+	private final List<String> received = new ArrayList<>();
+
+	@Test
+	void routesTheEventsByLogisticCenterAndTheParseFailuresToTheHandler() throws Exception {
+		final var router = new LogisticCenterRouter(
+				Map.of("BRSP01", integrator("BRSP01"), "BRSP02", integrator("BRSP02")),
+				(eventRecord, cause) -> received.add("failure " + eventRecord.getArrivalSerialNumber())
+		);
+		try (var pipeline = new OrderedParsingPipeline(TestEvents.PARSER, 2, 16, router)) {
+			pipeline.accept(OrderedParsingPipelineTest.record(1, stateJson("BRSP02")));
+			pipeline.accept(OrderedParsingPipelineTest.record(2, "{broken"));
+			pipeline.accept(OrderedParsingPipelineTest.record(3, stateJson("ARBA01")));
+			pipeline.accept(OrderedParsingPipelineTest.record(4, stateJson("BRSP01")));
+			pipeline.awaitIntegration();
+		}
+
+		assertEquals(List.of("BRSP02 1", "failure 2", "BRSP01 4"), received);
+		assertEquals(1, router.unroutedEvents);
+	}
+
+	/**
+	 * The single scan starts at the serial number the backlog of BRSP01 was restored at, which is before the one of
+	 * BRSP02. The events BRSP02 already integrated must not reach it, neither when the scan is repeated after a
+	 * reconnection.
+	 */
+	@Test
+	void discardsTheEventsEachLogisticCenterAlreadyIntegrated() throws Exception {
+		final var router = new LogisticCenterRouter(
+				Map.of("BRSP01", integrator("BRSP01"), "BRSP02", integrator("BRSP02")),
+				Map.of("BRSP01", 2L, "BRSP02", 5L),
+				(eventRecord, cause) -> received.add("failure " + eventRecord.getArrivalSerialNumber())
+		);
+		try (var pipeline = new OrderedParsingPipeline(TestEvents.PARSER, 2, 16, router)) {
+			final long startingSerialNumber = 2;
+			for (long serial = startingSerialNumber + 1; serial <= 7; ++serial) {
+				pipeline.accept(OrderedParsingPipelineTest.record(serial, stateJson(serial % 2 == 0 ? "BRSP01" : "BRSP02")));
+			}
+			pipeline.awaitIntegration();
+			// the connection is lost and the scan restarts from the same serial number
+			for (long serial = startingSerialNumber + 1; serial <= 9; ++serial) {
+				pipeline.accept(OrderedParsingPipelineTest.record(serial, stateJson(serial % 2 == 0 ? "BRSP01" : "BRSP02")));
+			}
+			pipeline.awaitIntegration();
+		}
+
+		assertEquals(List.of("BRSP01 4", "BRSP01 6", "BRSP02 7", "BRSP01 8", "BRSP02 9"), received);
+		assertEquals(7, router.alreadyIntegratedEvents);
+		assertEquals(0, router.unroutedEvents);
+	}
+
+	private OrderedParsingPipeline.Integrator integrator(final String logisticCenter) {
+		return transitionEvent -> received.add(logisticCenter + " " + transitionEvent.getArrivalSerialNumber());
+	}
+
+	private static String stateJson(final String logisticCenter) {
+		return "{\"warehouse_id\":\"" + logisticCenter + "\",\"status\":\"PENDING\",\"date_created\":\"2021-10-01T12:34:56Z\",\"estimated_time_departure\":\"2021-10-02T10:00:00Z\"}";
+	}
+}
@@ -0,0 +1,67 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LongLongHashMapTest {
+
+	/** The keys include {@link Long#MIN_VALUE}, the group key of a rollup whose highest partition id has the sign bit set. */
+	@Test
+	void keepsTheSameEntriesAsAHashMap() {
+		final var map = new LongLongHashMap(4);
+		final Map<Long, Long> expected = new HashMap<>();
+		final var random = new Random(17);
+		final long[] someKeys = {Long.MIN_VALUE, 0, -1, Long.MAX_VALUE, Long.MIN_VALUE | 1};
+		for (int step = 0; step < 100_000; ++step) {
+			final long key = random.nextBoolean() ? someKeys[random.nextInt(someKeys.length)] : random.nextInt(512) - 256;
+			final long value = random.nextInt(5) + 1;
+			switch (random.nextInt(4)) {
+				case 0:
+					assertEquals(expected.getOrDefault(key, LongLongHashMap.NO_VALUE), map.put(key, value));
+					expected.put(key, value);
+					break;
+				case 1:
+					assertEquals(expected.getOrDefault(key, LongLongHashMap.NO_VALUE), map.remove(key));
+					expected.remove(key);
+					break;
+				default:
+					final long delta = random.nextInt(5) - 2;
+					final long sum = expected.getOrDefault(key, 0L) + delta;
+					assertEquals(sum, map.addTo(key, delta));
+					if (sum == 0) {
+						expected.remove(key);
+					} else {
+						expected.put(key, sum);
+					}
+			}
+			assertEquals(expected.getOrDefault(key, LongLongHashMap.NO_VALUE), map.get(key));
+		}
+		assertEquals(expected, entriesOf(map));
+		assertEquals(expected, entriesOf(new LongLongHashMap(map)));
+	}
+
+	@Test
+	void theMinimumKeyIsAnOrdinaryOne() {
+		final var map = new LongLongHashMap(4);
+		assertEquals(LongLongHashMap.NO_VALUE, map.get(Long.MIN_VALUE));
+		assertEquals(3, map.addTo(Long.MIN_VALUE, 3));
+		assertEquals(1, map.size());
+		assertEquals(3, map.get(Long.MIN_VALUE));
+		final var copy = new LongLongHashMap(map);
+		assertEquals(0, map.addTo(Long.MIN_VALUE, -3));
+		assertEquals(0, map.size());
+		assertEquals(Map.of(Long.MIN_VALUE, 3L), entriesOf(copy));
+	}
+
+	private static Map<Long, Long> entriesOf(final LongLongHashMap map) {
+		final Map<Long, Long> entries = new HashMap<>();
+		map.forEach(entries::put);
+		assertEquals(map.size(), entries.size());
+		return entries;
+	}
+}
@@ -0,0 +1,149 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderedParsingPipelineTest {
+
+	private static final String STATE_JSON = "{\"warehouse_id\":\"BRSP01\",\"status\":\"PENDING\",\"date_created\":\"2021-10-01T12:34:56Z\",\"estimated_time_departure\":\"2021-10-02T10:00:00Z\"}";
+
+	private final EventRecordParser parser = new EventRecordParser(new Boot().objectMapper());
+
+	/** The integrated events and the parse failures, by arrival serial number, the failures negated. */
+	private final List<Long> received = Collections.synchronizedList(new ArrayList<>());
+
+	@Test
+	void integratesInTheReceptionOrderAndReportsTheParseFailuresInPlace() throws Exception {
+		try (var pipeline = new OrderedParsingPipeline(parser, 4, 64, recordingDownstream())) {
+			for (long serial = 1; serial <= 10_000; ++serial) {
+				pipeline.accept(record(serial, serial % 1000 == 0 ? "{broken" : STATE_JSON));
+			}
+			pipeline.awaitIntegration();
+		}
+
+		assertEquals(10_000, received.size());
+		for (int index = 0; index < received.size(); ++index) {
+			final long serial = index + 1;
+			assertEquals(serial % 1000 == 0 ? -serial : serial, received.get(index).longValue());
+		}
+	}
+
+	@Test
+	void aFailedIntegrationStopsThePipeline() throws Exception {
+		final var downstream = new OrderedParsingPipeline.Downstream() {
+			@Override
+			public void integrate(final TransitionEvent transitionEvent) {
+				if (transitionEvent.getArrivalSerialNumber() == 5) {
+					throw new IllegalArgumentException("boom");
+				}
+				received.add(transitionEvent.getArrivalSerialNumber());
+			}
+
+			@Override
+			public void onParseFailure(final EventRecord eventRecord, final Exception cause) {
+				received.add(-eventRecord.getArrivalSerialNumber());
+			}
+		};
+		try (var pipeline = new OrderedParsingPipeline(parser, 2, 4, downstream)) {
+			// more records than the buffer holds: the producer must not stay blocked once the integration has stopped
+			final var failure = assertThrows(IllegalStateException.class, () -> {
+				for (long serial = 1; serial <= 1_000; ++serial) {
+					pipeline.accept(record(serial, STATE_JSON));
+				}
+				pipeline.awaitIntegration();
+			});
+			assertTrue(failure.getCause() instanceof IllegalArgumentException);
+		}
+		assertEquals(List.of(1L, 2L, 3L, 4L), received);
+	}
+
+	@Test
+	void reportsTheErrorsOfTheParserAsParseFailures() throws Exception {
+		final var failingParser = new EventRecordParser(new Boot().objectMapper()) {
+			@Override
+			public TransitionEvent parse(final EventRecord eventRecord) throws IOException, NotSupportedStructureVersion {
+				if (eventRecord.getArrivalSerialNumber() == 3) {
+					throw new StackOverflowError();
+				}
+				return super.parse(eventRecord);
+			}
+		};
+		try (var pipeline = new OrderedParsingPipeline(failingParser, 2, 4, recordingDownstream())) {
+			for (long serial = 1; serial <= 5; ++serial) {
+				pipeline.accept(record(serial, STATE_JSON));
+			}
+			pipeline.awaitIntegration();
+		}
+		assertEquals(List.of(1L, 2L, -3L, 4L, 5L), received);
+	}
+
+	@Test
+	void waitingTheIntegrationOfAClosedPipelineFailsInsteadOfBlocking() throws Exception {
+		final var pipeline = new OrderedParsingPipeline(parser, 1, 4, recordingDownstream());
+		pipeline.accept(record(1, STATE_JSON));
+		pipeline.awaitIntegration();
+		pipeline.close();
+		// the integrator may still be alive when the barrier is queued, and then stop without running it
+		assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+			assertThrows(IllegalStateException.class, pipeline::awaitIntegration);
+		});
+		assertEquals(List.of(1L), received);
+	}
+
+	@Test
+	void notifiesTheDownstreamWhenIdle() throws Exception {
+		final var idle = new CountDownLatch(2);
+		final var downstream = new OrderedParsingPipeline.Downstream() {
+			@Override
+			public void integrate(final TransitionEvent transitionEvent) {
+				received.add(transitionEvent.getArrivalSerialNumber());
+			}
+
+			@Override
+			public void onParseFailure(final EventRecord eventRecord, final Exception cause) {
+				received.add(-eventRecord.getArrivalSerialNumber());
+			}
+
+			@Override
+			public void onIdle() {
+				idle.countDown();
+			}
+		};
+		try (var pipeline = new OrderedParsingPipeline(parser, 1, 4, downstream)) {
+			pipeline.accept(record(1, STATE_JSON));
+			assertTrue(idle.await(5 * OrderedParsingPipeline.IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS));
+		}
+		assertEquals(List.of(1L), received);
+	}
+
+	private OrderedParsingPipeline.Downstream recordingDownstream() {
+		return new OrderedParsingPipeline.Downstream() {
+			@Override
+			public void integrate(final TransitionEvent transitionEvent) {
+				received.add(transitionEvent.getArrivalSerialNumber());
+			}
+
+			@Override
+			public void onParseFailure(final EventRecord eventRecord, final Exception cause) {
+				received.add(-eventRecord.getArrivalSerialNumber());
+			}
+		};
+	}
+
+	static EventRecord record(final long serial, final String newStateJson) {
+		return new EventRecord(serial, serial, Instant.ofEpochSecond(serial), serial, "outbound-unit", 1, newStateJson, "null");
+	}
+}
@@ -0,0 +1,83 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.mercadolibre.flowbacklogchecker.consolidation.PartitionsCatalog.PartitionsDb;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RollupTest {
+
+	private static final PartitionsCatalog PARTITIONS_CATALOG = new PartitionsCatalog();
+
+	private static final int[] STATUS_AND_DEADLINE = {PartitionsDb.status.ordinal(), PartitionsDb.deadline.ordinal()};
+
+	/**
+	 * A rollup registered halfway must give the population of the cells scanned by {@link
+	 * Queries#cellBasedPopulationGrouped}, while the events increment and decrement its groups, and the groups that are
+	 * emptied must be removed.
+	 */
+	@Test
+	void givesThePopulationOfTheScannedCells() {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(31, 100, 390));
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.subList(0, 100).forEach(backlog::integrate);
+		final Rollup rollup = backlog.registerRollup(STATUS_AND_DEADLINE);
+		assertSame(rollup, backlog.registerRollup(STATUS_AND_DEADLINE));
+
+		final Set<String> seenGroups = new HashSet<>();
+		for (int count = 100; count <= events.size(); count += 10) {
+			if (count > 100) {
+				events.subList(count - 10, count).forEach(backlog::integrate);
+			}
+			final Map<String, Integer> expected = new TreeMap<>();
+			new Queries(backlog).cellBasedPopulationGrouped(coordinates -> true, content -> true, STATUS_AND_DEADLINE)
+					.forEach((key, intAccum) -> {
+						if (intAccum.register != 0) {
+							expected.put(key.toString(), intAccum.register);
+						}
+					});
+			final Map<String, Integer> actual = new TreeMap<>();
+			rollup.forEach((groupValues, population) -> actual.put(Arrays.deepToString(groupValues), population));
+			assertEquals(expected, actual, "at event " + count);
+			assertEquals(expected.size(), rollup.size(), "at event " + count);
+			seenGroups.addAll(expected.keySet());
+		}
+		// most entities went through all the statuses, so the groups of the first ones were emptied
+		assertTrue(seenGroups.size() > rollup.size());
+	}
+
+	/** The copy of a snapshot must keep the groups of the publication while the rollup of the backlog changes. */
+	@Test
+	void theCopyOfASnapshotDoesNotChange() {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(32, 100, 390));
+		final var backlog = new Backlog(PARTITIONS_CATALOG, 0, null);
+		backlog.registerRollup(STATUS_AND_DEADLINE);
+		events.subList(0, 200).forEach(backlog::integrate);
+		final BacklogSnapshot snapshot = backlog.publishSnapshot();
+		final Map<String, Integer> published = new TreeMap<>();
+		snapshot.rollupOf(STATUS_AND_DEADLINE)
+				.forEach((groupValues, population) -> published.put(Arrays.deepToString(groupValues), population));
+
+		events.subList(200, events.size()).forEach(backlog::integrate);
+		final Rollup copy = snapshot.rollupOf(STATUS_AND_DEADLINE);
+		assertNotNull(copy);
+		final Map<String, Integer> actual = new TreeMap<>();
+		copy.forEach((groupValues, population) -> actual.put(Arrays.deepToString(groupValues), population));
+		assertEquals(published, actual);
+		final Map<String, Integer> scanned = new TreeMap<>();
+		new Queries(snapshot).cellBasedPopulationGrouped(coordinates -> true, content -> true, STATUS_AND_DEADLINE)
+				.forEach((key, intAccum) -> scanned.put(key.toString(), intAccum.register));
+		scanned.values().removeIf(population -> population == 0);
+		assertEquals(scanned, actual);
+	}
+}
@@ -0,0 +1,131 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.mercadolibre.flowbacklogchecker.consolidation.PartitionsCatalog.PartitionsDb;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ShardedBacklogTest {
+
+	private static final PartitionsCatalog PARTITIONS_CATALOG = new PartitionsCatalog();
+
+	@Test
+	void integratesLikeASingleBacklog() throws Exception {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(3, 20_000, 60_000));
+		final var single = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.forEach(single::integrate);
+
+		// the sharded one is seeded with the first half, integrated by a single backlog
+		final var seed = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.subList(0, 30_000).forEach(seed::integrate);
+		try (var sharded = new ShardedBacklog(seed, 4)) {
+			events.subList(30_000, events.size()).forEach(sharded::integrate);
+			final var photo = sharded.photo().get(10, TimeUnit.SECONDS);
+			final var checkpoint = sharded.checkpointSnapshot().get(10, TimeUnit.SECONDS);
+
+			assertEquals(single.getLastEventArrivalSerialNumber(), photo.getLastEventArrivalSerialNumber());
+			assertEquals(contentsOf(single.getCells()), contentsOf(photo.getCells().stream()));
+			assertEquals(single.created, checkpoint.created);
+			assertEquals(single.terminatedSuccessfully, checkpoint.terminatedSuccessfully);
+			assertEquals(single.openTrajectoriesCount(), checkpoint.trajectoriesCount());
+			assertEquals(single.openTrajectoriesCount(), sharded.sumCounter(Backlog::openTrajectoriesCount).get(10, TimeUnit.SECONDS).intValue());
+		}
+	}
+
+	/**
+	 * The cells of the whole are the ones of a single backlog, including the variations and accumulated populations,
+	 * which are lost when a cell is emptied. The seed is integrated by a single backlog and its cells are kept by the
+	 * first shard, so the other shards empty cells they never filled.
+	 */
+	@Test
+	void mergesTheCellsLikeASingleBacklog() throws Exception {
+		final List<TransitionEvent> events = TestEvents.parse(TestEvents.lifecycles(6, 20_000, 60_000));
+		final var single = new Backlog(PARTITIONS_CATALOG, 0, null);
+		final var seed = new Backlog(PARTITIONS_CATALOG, 0, null);
+		events.subList(0, 20_000).forEach(single::integrate);
+		events.subList(0, 20_000).forEach(seed::integrate);
+		final Predicate<Backlog.CellContent> refilled = content -> content.population > 0 && content.accumulatedPopulation > content.population;
+		try (var sharded = new ShardedBacklog(seed, 4)) {
+			int integrated = 20_000;
+			for (int count : new int[] {40_000, events.size()}) {
+				for (TransitionEvent event : events.subList(integrated, count)) {
+					single.integrate(event);
+					sharded.integrate(event);
+				}
+				integrated = count;
+				final Map<String, String> expected = contentsOf(single.getCells());
+
+				assertEquals(expected, contentsOf(sharded.photo().get(10, TimeUnit.SECONDS).getCells().stream()));
+				final var checkpoint = sharded.checkpointSnapshot().get(10, TimeUnit.SECONDS);
+				assertEquals(expected, contentsOf(checkpoint.cells.stream()));
+				checkpoint.release();
+				// the content filter sees the merged contents
+				assertEquals(
+						new Queries(single).cellBasedPopulationGrouped(coordinates -> true, refilled, PartitionsDb.status.ordinal()).toString(),
+						sharded.query(queries -> queries.cellBasedPopulationGrouped(coordinates -> true, refilled, PartitionsDb.status.ordinal()))
+								.get(10, TimeUnit.SECONDS)
+								.toString()
+				);
+				sharded.publishSnapshot().get(10, TimeUnit.SECONDS);
+				assertEquals(single.cells.size(), sharded.getCellsCount());
+			}
+		}
+	}
+
+	@Test
+	void theDispatcherFailsInsteadOfWaitingForAStoppedShard() {
+		final var closed = new ShardedBacklog(new Backlog(PARTITIONS_CATALOG, 0, null), 1);
+		closed.close();
+
+		// more events than a shard queue holds, which would leave the dispatcher waiting forever on the full queue
+		assertThrows(IllegalStateException.class, () -> {
+			for (long serial = 1; serial < 1_000_000; ++serial) {
+				closed.integrate(event(serial, false));
+			}
+		});
+	}
+
+	@Test
+	void theDispatcherFailsInsteadOfWaitingForAFailedShard() {
+		try (var sharded = new ShardedBacklog(new Backlog(PARTITIONS_CATALOG, 0, null), 1)) {
+			final var failure = assertThrows(IllegalStateException.class, () -> {
+				sharded.integrate(event(1, true));
+				for (long serial = 2; serial < 1_000_000; ++serial) {
+					sharded.integrate(event(serial, false));
+				}
+			});
+			assertEquals("boom", failure.getCause().getMessage());
+		}
+	}
+
+	/** @return the population, variation and accumulated population of each of the specified cells, by coordinates. */
+	private static Map<String, String> contentsOf(final Stream<Backlog.Cell> cells) {
+		return cells.collect(Collectors.toMap(
+				cell -> Arrays.toString(cell.coordinates),
+				cell -> cell.population + " " + cell.variation + " " + cell.accumulatedPopulation
+		));
+	}
+
+	/** @return an event with no states, whose integration throws if so specified. */
+	private static TransitionEvent event(final long serial, final boolean failing) {
+		return new EventRecordParser.TransitionEventImpl(serial, serial, Instant.ofEpochSecond(serial), serial, null, null) {
+			@Override
+			public EntityState getOldState() {
+				if (failing) {
+					throw new IllegalArgumentException("boom");
+				}
+				return null;
+			}
+		};
+	}
+}
@@ -0,0 +1,94 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class StateInternerTest {
+
+	/**
+	 * The equal states of different events resolve to the same instance, whatever the struct version of the events, and
+	 * so do the ones whose creation date is completed by the context. The states of entities 1 and 211 are equal, and so
+	 * are the ones of entities 7 and 217, whose creation date is null.
+	 */
+	@Test
+	void theEqualStatesOfTheEventsAreTheSameInstance() throws Exception {
+		final var parseContext = new ParseContext();
+		final TransitionEvent first = parse(1, 1, 1, "PICKING", "PENDING", parseContext);
+		final TransitionEvent second = parse(2, 211, 1, "PICKING", "PENDING", parseContext);
+		final TransitionEvent otherVersion = parse(3, 211, 2, "PACKING", "PICKING", parseContext);
+		final TransitionEvent completed = parse(4, 7, 1, "PICKING", "PENDING", parseContext);
+		final TransitionEvent otherCompleted = parse(5, 217, 2, "PICKING", "PENDING", parseContext);
+
+		assertEquals(first.getNewState(), second.getNewState());
+		assertSame(first.getNewState(), second.getNewState());
+		assertSame(first.getOldState(), second.getOldState());
+		assertSame(first.getNewState(), otherVersion.getOldState());
+		assertNotEquals(first.getNewState(), completed.getNewState());
+		assertSame(completed.getNewState(), otherCompleted.getNewState());
+		assertSame(completed.getOldState(), otherCompleted.getOldState());
+		// the field values are shared between different states too
+		assertSame(first.getNewState().getDeadline(), otherVersion.getNewState().getDeadline());
+		assertSame(first.getNewState().getWorkflow(), completed.getNewState().getWorkflow());
+	}
+
+	/**
+	 * A dictionary keeps the canonical instances as they are, and forgets a state when its last reference is released,
+	 * reusing its id.
+	 */
+	@Test
+	void theDictionaryDropsTheForgottenStates() throws Exception {
+		final var parseContext = new ParseContext();
+		final TransitionEvent first = parse(1, 1, 1, "PICKING", "PENDING", parseContext);
+		final TransitionEvent second = parse(2, 211, 2, "PICKING", "PENDING", parseContext);
+		final TransitionEvent other = parse(3, 2, 1, "PACKING", "PICKING", parseContext);
+		final var states = new StateDictionary();
+
+		final int id = states.acquire(first.getNewState());
+		assertEquals(id, states.acquire(second.getNewState()));
+		assertSame(first.getNewState(), states.get(id));
+		final int oldId = states.acquire(first.getOldState());
+		assertEquals(2, states.size());
+
+		states.release(id);
+		assertEquals(2, states.size());
+		states.release(id);
+		assertEquals(1, states.size());
+		assertNull(states.statesById()[id]);
+
+		final int reusedId = states.acquire(other.getNewState());
+		assertEquals(id, reusedId);
+		assertSame(other.getNewState(), states.get(reusedId));
+		assertSame(first.getOldState(), states.get(oldId));
+
+		states.release(oldId);
+		states.release(reusedId);
+		assertEquals(0, states.size());
+	}
+
+	private static TransitionEvent parse(
+			final long serial,
+			final long entity,
+			final int structVersion,
+			final String newStatus,
+			final String oldStatus,
+			final ParseContext parseContext
+	) throws Exception {
+		final var eventRecord = new EventRecord(
+				serial,
+				1_000 + serial,
+				Instant.ofEpochSecond(1_633_000_000L + serial),
+				entity,
+				"outbound-unit",
+				structVersion,
+				TestEvents.stateJson(newStatus, entity),
+				TestEvents.stateJson(oldStatus, entity)
+		);
+		return TestEvents.PARSER.parse(eventRecord, parseContext);
+	}
+}
@@ -0,0 +1,100 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StoredEventsSourceTest {
+
+	private static final long MIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+	/** A quarter of the lag objective. */
+	private static final long MAX_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+	/** The empty polls double the interval up to a quarter of the objective, whatever the lag of the older events. */
+	@Test
+	void theEmptyPollsBackOff() {
+		final var poller = poller();
+		long expectedInterval = MIN_INTERVAL_NANOS;
+		for (int poll = 0; poll < 10; ++poll) {
+			assertFalse(poller.onPolled(0, 5_000));
+			expectedInterval = Math.min(MAX_INTERVAL_NANOS, 2 * expectedInterval);
+			assertEquals(expectedInterval, poller.intervalNanos);
+		}
+		assertEquals(MAX_INTERVAL_NANOS, poller.intervalNanos);
+		assertEquals(16, poller.pageSize);
+	}
+
+	/**
+	 * The polls that find events halve the interval, and drop it to the minimum as soon as their lag exceeds half the
+	 * objective.
+	 */
+	@Test
+	void thePollsThatFindEventsSpeedUp() {
+		final var poller = poller();
+		for (int poll = 0; poll < 10; ++poll) {
+			poller.onPolled(0, 0);
+		}
+		assertFalse(poller.onPolled(4, 100));
+		assertEquals(MAX_INTERVAL_NANOS / 2, poller.intervalNanos);
+		assertFalse(poller.onPolled(4, 100));
+		assertEquals(MAX_INTERVAL_NANOS / 4, poller.intervalNanos);
+
+		assertFalse(poller.onPolled(4, 1_100));
+		assertEquals(MIN_INTERVAL_NANOS, poller.intervalNanos);
+		assertFalse(poller.onPolled(4, 100));
+		assertEquals(MIN_INTERVAL_NANOS, poller.intervalNanos);
+	}
+
+	/** The full polls double the page size, and the ones that fill less than a quarter of it halve it. */
+	@Test
+	void thePageSizeFollowsTheArrivals() {
+		final var poller = poller();
+		int expectedPageSize = 16;
+		while (expectedPageSize < 1_000) {
+			assertFalse(poller.onPolled(expectedPageSize, 0));
+			expectedPageSize = Math.min(1_000, 2 * expectedPageSize);
+			assertEquals(expectedPageSize, poller.pageSize);
+		}
+		assertFalse(poller.onPolled(300, 0));
+		assertEquals(1_000, poller.pageSize);
+		assertFalse(poller.onPolled(200, 0));
+		assertEquals(500, poller.pageSize);
+		for (int poll = 0; poll < 10; ++poll) {
+			assertFalse(poller.onPolled(0, 0));
+		}
+		assertEquals(16, poller.pageSize);
+	}
+
+	/**
+	 * The tail mode is left when a poll fills the maximum page, or when the lag exceeds the objective while the polls
+	 * fill at least half their pages. A lag over the objective with few events is not enough: it is the one of the
+	 * integration, not of the polls.
+	 */
+	@Test
+	void theLagCeilingSwitchesToTheCatchUpMode() {
+		final var poller = poller();
+		assertFalse(poller.onPolled(7, 2_500));
+		assertTrue(poller.onPolled(8, 2_500));
+
+		final var fullPoller = poller();
+		while (fullPoller.pageSize < 1_000) {
+			assertFalse(fullPoller.onPolled(fullPoller.pageSize, 0));
+		}
+		assertTrue(fullPoller.onPolled(1_000, 0));
+	}
+
+	private static StoredEventsSource.TailPoller poller() {
+		final var settings = new StoredEventsSource.TailSettings();
+		settings.lagObjective = Duration.ofSeconds(2);
+		settings.minPollInterval = Duration.ofMillis(20);
+		settings.minPageSize = 16;
+		settings.maxPageSize = 1_000;
+		return new StoredEventsSource.TailPoller(settings);
+	}
+}
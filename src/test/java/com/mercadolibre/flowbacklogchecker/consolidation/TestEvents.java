@@ -0,0 +1,63 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Builds the incoming events of random outbound unit lifecycles, the way they arrive from the database. */
+final class TestEvents {
+
+	static final String LOGISTIC_CENTER = "BRSP01";
+
+	static final String[] STATUSES = {"PENDING", "PICKING", "PACKING", "OUT"};
+
+	static final EventRecordParser PARSER = new EventRecordParser(new Boot().objectMapper());
+
+	private TestEvents() {}
+
+	/**
+	 * @return the records of the events of the specified number of entities of {@link #LOGISTIC_CENTER}, whose
+	 *     lifecycles are interleaved at random, in arrival order. Each entity goes through the {@link #STATUSES}, and
+	 *     some creation dates are null, so that they are completed by the {@link ParseContext}. The number of events
+	 *     must be less than the number of statuses times the number of entities.
+	 */
+	static List<EventRecord> lifecycles(final long seed, final int entities, final int events) {
+		final var random = new Random(seed);
+		final int[] statusIndexes = new int[entities];
+		final var records = new ArrayList<EventRecord>(events);
+		for (long serial = 1; records.size() < events; ++serial) {
+			final int entity = random.nextInt(entities);
+			if (statusIndexes[entity] == STATUSES.length) {
+				continue;
+			}
+			final String oldStateJson = statusIndexes[entity] == 0 ? "null" : stateJson(STATUSES[statusIndexes[entity] - 1], entity);
+			statusIndexes[entity] += 1;
+			final String newStateJson = stateJson(STATUSES[statusIndexes[entity] - 1], entity);
+			records.add(new EventRecord(serial, 1_000_000 + serial, Instant.ofEpochSecond(1_633_000_000L + serial), entity, "outbound-unit", 1, newStateJson, oldStateJson));
+		}
+		return records;
+	}
+
+	/** @return the specified records parsed and completed in order, by a new {@link ParseContext}. */
+	static List<TransitionEvent> parse(final List<EventRecord> records) {
+		final var parseContext = new ParseContext();
+		final var transitionEvents = new ArrayList<TransitionEvent>(records.size());
+		for (EventRecord eventRecord : records) {
+			try {
+				transitionEvents.add(PARSER.parse(eventRecord, parseContext));
+			} catch (IOException | EventRecordParser.NotSupportedStructureVersion e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		return transitionEvents;
+	}
+
+	static String stateJson(final String status, final long entity) {
+		final String dateCreated = entity % 7 == 0 ? "null" : "\"2021-10-01T1" + (entity % 10) + ":34:56Z\"";
+		return "{\"warehouse_id\":\"" + LOGISTIC_CENTER + "\",\"group_type\":\"wf\",\"status\":\"" + status
+				+ "\",\"date_created\":" + dateCreated + ",\"storage_id\":\"RK-0" + (entity % 3) + "-02\","
+				+ "\"estimated_time_departure\":\"2021-10-02T10:00:0" + (entity % 10) + "Z\"}";
+	}
+}
@@ -0,0 +1,212 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrajectoryArenaTest {
+
+	/** The trajectories grow, shrink and are removed at random, and the arena must keep the same events as the lists. */
+	@Test
+	void keepsTheSameEventsAsAMapOfLists() {
+		final var arena = new TrajectoryArena(16);
+		final Map<Long, List<long[]>> expected = new HashMap<>();
+		final var random = new Random(16);
+		for (int step = 0; step < 200_000; ++step) {
+			final long entityId = random.nextInt(64);
+			final List<long[]> events = expected.get(entityId);
+			final int action = random.nextInt(100);
+			if (events == null) {
+				arena.create(entityId);
+				expected.put(entityId, new ArrayList<>());
+			} else if (action < 2) {
+				arena.remove(arena.addressOf(entityId));
+				expected.remove(entityId);
+			} else if (action < 12 && !events.isEmpty()) {
+				arena.removeLast(arena.addressOf(entityId));
+				events.remove(events.size() - 1);
+			} else {
+				final long[] event = {step, 1_000_000 + step, 1_633_000_000_000_000_000L + step, random.nextInt(50), random.nextInt(50) - 1};
+				arena.append(arena.addressOf(entityId), event[0], event[1], event[2], (int) event[3], (int) event[4]);
+				events.add(event);
+			}
+		}
+		// some trajectories grew through several size classes
+		assertTrue(expected.values().stream().anyMatch(events -> events.size() > 64));
+		assertSameTrajectories(expected, arena);
+		assertSameImage(expected, arena.image());
+	}
+
+	@Test
+	void growsAcrossTheSizeClassesKeepingTheEvents() {
+		final var arena = new TrajectoryArena(16);
+		final long first = arena.create(1);
+		final long second = arena.create(2);
+		final var addresses = new HashSet<Long>();
+		addresses.add(first);
+		for (int index = 0; index < 1_000; ++index) {
+			arena.append(arena.addressOf(1), index, 10 * index, 100 * index, index, index - 1);
+			addresses.add(arena.addressOf(1));
+		}
+		// capacities 4, 8, ... 1024
+		assertEquals(9, addresses.size());
+		assertEquals(second, arena.addressOf(2));
+		final long address = arena.addressOf(1);
+		assertEquals(1_000, arena.size(address));
+		assertEquals(1, arena.entityIdOf(address));
+		for (int index = 0; index < 1_000; ++index) {
+			assertEquals(index, arena.arrivalSerialNumberAt(address, index));
+			assertEquals(10 * index, arena.eventIdAt(address, index));
+			assertEquals(100 * index, arena.arrivalDateAt(address, index));
+			assertEquals(index, arena.newStateIdAt(address, index));
+			assertEquals(index - 1, arena.oldStateIdAt(address, index));
+		}
+	}
+
+	@Test
+	void reusesTheChunksOfTheRemovedTrajectories() {
+		final var arena = new TrajectoryArena(16);
+		final long removed = arena.create(1);
+		arena.create(2);
+		arena.remove(removed);
+		assertEquals(TrajectoryArena.NONE, arena.addressOf(1));
+		assertEquals(removed, arena.create(3));
+
+		// the chunk left behind by a trajectory that grew is reused too
+		long grown = arena.addressOf(3);
+		for (int index = 0; index < 5; ++index) {
+			grown = arena.append(grown, index, index, index, index, index);
+		}
+		assertNotEquals(removed, grown);
+		assertEquals(removed, arena.create(4));
+
+		final long bytes = arena.offHeapBytes();
+		for (long entityId = 5; entityId < 100_000; ++entityId) {
+			long address = arena.create(entityId);
+			for (int index = 0; index < 20; ++index) {
+				address = arena.append(address, index, index, index, index, index);
+			}
+			arena.remove(address);
+		}
+		assertEquals(bytes, arena.offHeapBytes());
+		assertEquals(3, arena.size());
+		assertEquals(3, imageSize(arena.image()));
+	}
+
+	@Test
+	void removesTheLastEvents() {
+		final var arena = new TrajectoryArena(16);
+		long address = arena.create(1);
+		for (int index = 0; index < 4; ++index) {
+			address = arena.append(address, index, index, index, index, index);
+		}
+		arena.removeLast(address);
+		arena.removeLast(address);
+		assertEquals(2, arena.size(address));
+		for (int index = 2; index < 6; ++index) {
+			address = arena.append(address, 10 + index, 10 + index, 10 + index, 10 + index, 10 + index);
+		}
+		assertEquals(6, arena.size(address));
+		assertEquals(1, arena.arrivalSerialNumberAt(address, 1));
+		assertEquals(12, arena.arrivalSerialNumberAt(address, 2));
+		assertEquals(15, arena.oldStateIdAt(address, 5));
+		while (arena.size(address) > 0) {
+			arena.removeLast(address);
+		}
+		assertEquals(address, arena.addressOf(1));
+		assertEquals(1, imageSize(arena.image()));
+	}
+
+	/**
+	 * A trajectory with more than a million events needs a chunk bigger than a slab, which gets a slab of its own while
+	 * the other trajectories keep being allocated from the current slab.
+	 */
+	@Test
+	void storesTheHugeChunksInSlabsOfTheirOwn() {
+		final var arena = new TrajectoryArena(16);
+		final int events = (1 << 20) + 1;
+		long address = arena.create(1);
+		for (int index = 0; index < events; ++index) {
+			address = arena.append(address, index, index, index, index, index);
+		}
+		final long small = arena.create(2);
+		arena.append(small, 7, 7, 7, 7, 7);
+		assertNotEquals(address >>> 32, small >>> 32);
+		assertEquals(0, (int) address);
+		assertEquals(events, arena.size(address));
+		assertEquals(events - 1, arena.arrivalSerialNumberAt(address, events - 1));
+		assertEquals(1, arena.size(small));
+
+		final Map<Long, Integer> sizes = new HashMap<>();
+		arena.image().forEach(chunk -> {
+			sizes.put(chunk.entityId(), chunk.size());
+			assertEquals(chunk.entityId() == 1 ? events - 1 : 7, chunk.eventIdAt(chunk.size() - 1));
+		});
+		assertEquals(Map.of(1L, events, 2L, 1), sizes);
+
+		// the freed huge chunk is reused by the next trajectory that grows as much
+		arena.remove(address);
+		final long bytes = arena.offHeapBytes();
+		long other = arena.create(3);
+		for (int index = 0; index < events; ++index) {
+			other = arena.append(other, index, index, index, index, index);
+		}
+		assertEquals(address, other);
+		assertEquals(bytes, arena.offHeapBytes());
+	}
+
+	private static void assertSameTrajectories(final Map<Long, List<long[]>> expected, final TrajectoryArena arena) {
+		assertEquals(expected.size(), arena.size());
+		for (var trajectory : expected.entrySet()) {
+			final long address = arena.addressOf(trajectory.getKey());
+			assertEquals(trajectory.getKey(), arena.entityIdOf(address));
+			final List<long[]> events = trajectory.getValue();
+			assertEquals(events.size(), arena.size(address));
+			for (int index = 0; index < events.size(); ++index) {
+				final long[] event = events.get(index);
+				assertEquals(event[0], arena.arrivalSerialNumberAt(address, index));
+				assertEquals(event[1], arena.eventIdAt(address, index));
+				assertEquals(event[2], arena.arrivalDateAt(address, index));
+				assertEquals(event[3], arena.newStateIdAt(address, index));
+				assertEquals(event[4], arena.oldStateIdAt(address, index));
+			}
+		}
+	}
+
+	private static void assertSameImage(final Map<Long, List<long[]>> expected, final TrajectoryArena.Image image) {
+		assertEquals(expected.size(), image.size());
+		final Map<Long, List<List<Long>>> actual = new HashMap<>();
+		image.forEach(chunk -> {
+			final var events = new ArrayList<List<Long>>();
+			for (int index = 0; index < chunk.size(); ++index) {
+				events.add(List.of(chunk.arrivalSerialNumberAt(index), chunk.eventIdAt(index), chunk.arrivalDateAt(index),
+						(long) chunk.newStateIdAt(index), (long) chunk.oldStateIdAt(index)));
+			}
+			assertEquals(null, actual.put(chunk.entityId(), events));
+		});
+		final Map<Long, List<List<Long>>> expectedEvents = new HashMap<>();
+		expected.forEach((entityId, events) -> {
+			final var lists = new ArrayList<List<Long>>();
+			for (long[] event : events) {
+				lists.add(List.of(event[0], event[1], event[2], event[3], event[4]));
+			}
+			expectedEvents.put(entityId, lists);
+		});
+		assertEquals(expectedEvents, actual);
+	}
+
+	private static int imageSize(final TrajectoryArena.Image image) {
+		final int[] count = {0};
+		image.forEach(chunk -> count[0] += 1);
+		return count[0];
+	}
+}
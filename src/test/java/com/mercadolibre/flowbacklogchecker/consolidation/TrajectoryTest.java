@@ -0,0 +1,161 @@
+package com.mercadolibre.flowbacklogchecker.consolidation;
+
+import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.BrokenTrajectoryInfo;
+import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.LastState;
+import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.LastStateSuccess;
+import com.mercadolibre.flowbacklogchecker.consolidation.Backlog.Trajectory;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrajectoryTest {
+
+	private static final String[] STATUSES = {"PENDING", "PICKING", "PACKING"};
+
+	private static final String[] AREAS = {"MZ-1", "MZ-2"};
+
+	/** Considers equal the states with the same status, regardless of the area. */
+	private static final Trajectory.KeyedComparator BY_STATUS = state -> state == null ? null : state.getStatus();
+
+	private static final Trajectory.Comparator BY_EQUALITY = Objects::equals;
+
+	/**
+	 * The chains are random walks over a few states, with bounces and repeated states, whose events are then
+	 * duplicated, dropped and moved at random. The incrementally tracked status must match the one the quadratic loop
+	 * reconstructs, after each appended event and after each removed one.
+	 */
+	@Test
+	void reconstructsTheSameChainsAsTheLoop() {
+		final var random = new Random(14);
+		int brokenCount = 0;
+		int reconstructedCount = 0;
+		for (int trajectoryIndex = 0; trajectoryIndex < 3_000; ++trajectoryIndex) {
+			final var states = new StateDictionary();
+			final var trajectory = new Trajectory(states, trajectoryIndex);
+			final List<EntityState[]> transitions = shuffledTransitions(random);
+			for (int index = 0; index < transitions.size(); ++index) {
+				final EntityState[] transition = transitions.get(index);
+				trajectory.add(index + 1, 1_000 + index, Instant.ofEpochSecond(1_633_000_000L + index), transition[1], transition[0]);
+
+				final LastState expected = baseline(trajectory, BY_EQUALITY);
+				final int number = trajectoryIndex;
+				final Supplier<String> description = () -> "trajectory " + number + ": " + trajectory;
+				assertSameLastState(expected, trajectory.getLastState(), description);
+				assertSameLastState(expected, trajectory.getLastState(BY_EQUALITY), description);
+				assertEquals(expected instanceof BrokenTrajectoryInfo, trajectory.isBroken(), description);
+				assertSameLastState(baseline(trajectory, BY_STATUS), trajectory.getLastState(BY_STATUS), description);
+			}
+			if (trajectory.isBroken()) {
+				brokenCount += 1;
+			} else if (!trajectory.isContinuous()) {
+				reconstructedCount += 1;
+			}
+			while (trajectory.size() > 1) {
+				trajectory.removeLast();
+				final int number = trajectoryIndex;
+				final Supplier<String> description = () -> "trajectory " + number + " shrunk: " + trajectory;
+				assertSameLastState(baseline(trajectory, BY_EQUALITY), trajectory.getLastState(), description);
+				assertEquals(baseline(trajectory, BY_EQUALITY) instanceof BrokenTrajectoryInfo, trajectory.isBroken(), description);
+			}
+			trajectory.release();
+		}
+		// both outcomes of the reconstruction are exercised
+		assertTrue(brokenCount > 100, "broken: " + brokenCount);
+		assertTrue(reconstructedCount > 100, "reconstructed: " + reconstructedCount);
+	}
+
+	/**
+	 * @return the transitions, as old and new state pairs, of a random walk that bounces back and repeats states now
+	 *     and then, after some of them are duplicated, dropped and moved.
+	 */
+	private static List<EntityState[]> shuffledTransitions(final Random random) {
+		final int length = 1 + random.nextInt(24);
+		final var transitions = new ArrayList<EntityState[]>(length);
+		// the lifecycle of some entities started before the first recorded event
+		EntityState previous = random.nextBoolean() ? null : randomState(random);
+		EntityState current = randomState(random);
+		transitions.add(new EntityState[] {previous, current});
+		while (transitions.size() < length) {
+			final int kind = random.nextInt(10);
+			final EntityState next = kind == 0 && previous != null ? previous : kind == 1 ? current : randomState(random);
+			transitions.add(new EntityState[] {current, next});
+			previous = current;
+			current = next;
+		}
+		final int disorders = random.nextInt(6);
+		for (int disorder = 0; disorder < disorders; ++disorder) {
+			// the first events are disordered more often, so that the older end of the chain gets links too
+			final int index = random.nextInt(random.nextBoolean() ? Math.min(3, transitions.size()) : transitions.size());
+			switch (random.nextInt(3)) {
+				case 0:
+					transitions.add(random.nextInt(transitions.size() + 1), transitions.get(index));
+					break;
+				case 1:
+					if (transitions.size() > 1) {
+						transitions.remove(index);
+					}
+					break;
+				default:
+					Collections.swap(transitions, index, random.nextInt(transitions.size()));
+			}
+		}
+		return transitions;
+	}
+
+	private static EntityState randomState(final Random random) {
+		return EntityType.OutboundUnitStateV0.of(
+				TestEvents.LOGISTIC_CENTER,
+				"wf",
+				STATUSES[random.nextInt(STATUSES.length)],
+				null,
+				AREAS[random.nextInt(AREAS.length)],
+				null,
+				false
+		);
+	}
+
+	/**
+	 * @return the last state as it was found out before the incremental tracking: the head if the chain is continuous
+	 *     according to the comparator, or else the result of {@link Trajectory#getLastStateOf_loop} from the first event.
+	 */
+	private static LastState baseline(final Trajectory trajectory, final Trajectory.Comparator comparator) {
+		for (int index = 1; index < trajectory.size(); ++index) {
+			if (!comparator.areEqual(trajectory.oldStateAt(index), trajectory.newStateAt(index - 1))) {
+				final var looseLinks = new LinkedList<>(trajectory.events());
+				final TransitionEvent first = looseLinks.pollFirst();
+				return trajectory.getLastStateOf_loop(comparator, first.getNewState(), first.getOldState(), looseLinks);
+			}
+		}
+		return new LastStateSuccess(trajectory.getHeadState());
+	}
+
+	private static void assertSameLastState(final LastState expected, final LastState actual, final Supplier<String> description) {
+		if (expected instanceof LastStateSuccess) {
+			assertTrue(actual instanceof LastStateSuccess, description);
+			assertEquals(((LastStateSuccess) expected).value, ((LastStateSuccess) actual).value, description);
+		} else {
+			assertTrue(actual instanceof BrokenTrajectoryInfo, description);
+			final var expectedInfo = (BrokenTrajectoryInfo) expected;
+			final var actualInfo = (BrokenTrajectoryInfo) actual;
+			assertEquals(expectedInfo.newerSide, actualInfo.newerSide, description);
+			assertEquals(expectedInfo.olderSide, actualInfo.olderSide, description);
+			assertEquals(expectedInfo.lastTransition.getArrivalSerialNumber(), actualInfo.lastTransition.getArrivalSerialNumber(), description);
+			assertEquals(serialsOf(expectedInfo.looseLinks), serialsOf(actualInfo.looseLinks), description);
+		}
+	}
+
+	private static List<Long> serialsOf(final List<TransitionEvent> events) {
+		return events.stream().map(TransitionEvent::getArrivalSerialNumber).collect(Collectors.toList());
+	}
+}